@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponseDecoder;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSuccessResponse;
+
+/**
+ * Measures peak heap and parse time of decoding a recursive get of a large
+ * discovery directory, reading the body from a file as it would be read from
+ * the socket. Each mode runs in a fresh JVM for a clean peak:
+ * 
+ * <pre>
+ * java -Xmx1g -cp target/benchmarks.jar org.eclipse.ecf.provider.etcd.benchmarks.DecodingHeapProbe streaming 50000
+ * java -Xmx1g -cp target/benchmarks.jar org.eclipse.ecf.provider.etcd.benchmarks.DecodingHeapProbe jsonobject 50000
+ * </pre>
+ */
+public class DecodingHeapProbe {
+
+	public static void main(String[] args) throws Exception {
+		String mode = (args.length > 0) ? args[0] : "streaming"; //$NON-NLS-1$
+		int services = (args.length > 1) ? Integer.parseInt(args[1]) : 50000;
+		File f = EtcdBenchmarkData.createFile(services);
+		List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+
+		System.gc();
+		long baseline = usedHeap(pools);
+		for (MemoryPoolMXBean pool : pools)
+			pool.resetPeakUsage();
+
+		long start = System.nanoTime();
+		EtcdSuccessResponse response;
+		InputStream ins = new BufferedInputStream(new FileInputStream(f));
+		try {
+			if ("jsonobject".equals(mode)) //$NON-NLS-1$
+				response = EtcdResponseDecodingBenchmark.decodeWithJSONObject(ins);
+			else
+				response = EtcdResponseDecoder.decodeSuccess(ins, null);
+		} finally {
+			ins.close();
+		}
+		long elapsed = System.nanoTime() - start;
+		long peak = peakHeap(pools);
+
+		System.gc();
+		long retained = usedHeap(pools) - baseline;
+		int count = 0;
+		for (int i = 0; i < response.getNode().getNodes().length; i++)
+			count += response.getNode().getNodes()[i].getNodes().length;
+
+		System.out.println("mode=" + mode + " services=" + count + " bodyBytes=" + f.length() //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ " parseMs=" + (elapsed / 1000000) + " peakHeapMB=" + ((peak - baseline) >> 20) //$NON-NLS-1$ //$NON-NLS-2$
+				+ " retainedMB=" + (retained >> 20)); //$NON-NLS-1$
+	}
+
+	private static long usedHeap(List<MemoryPoolMXBean> pools) {
+		long used = 0;
+		for (MemoryPoolMXBean pool : pools)
+			if (pool.getType() == MemoryType.HEAP)
+				used += pool.getUsage().getUsed();
+		return used;
+	}
+
+	/**
+	 * Sum of per-pool peaks, which is an upper bound of the real peak, since
+	 * the pools need not have peaked at the same time.
+	 */
+	private static long peakHeap(List<MemoryPoolMXBean> pools) {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : pools)
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.UUID;
+
+import org.eclipse.ecf.discovery.IServiceProperties;
+import org.eclipse.ecf.discovery.ServiceProperties;
+import org.eclipse.ecf.provider.etcd.EtcdServiceInfo;
+import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
+import org.eclipse.ecf.provider.etcd.identity.EtcdServiceTypeID;
+
+/**
+ * Generates the body of a recursive get on the discovery directory, laid out
+ * the way EtcdDiscoveryContainer writes it: one directory per session, one
+ * node per service whose value is the service info json.
+ */
+public class EtcdBenchmarkData {
+
+	public static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+	public static final String DISCOVERY_DIR = "/org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer"; //$NON-NLS-1$
+
+	public static final int SERVICES_PER_SESSION = 50;
+
+	public static void write(Writer w, int serviceCount) throws IOException {
+		int sessions = Math.max(1, (serviceCount + SERVICES_PER_SESSION - 1) / SERVICES_PER_SESSION);
+		int index = 10;
+		w.write("{\"action\":\"get\",\"node\":{\"key\":\"" + DISCOVERY_DIR //$NON-NLS-1$
+				+ "\",\"dir\":true,\"nodes\":["); //$NON-NLS-1$
+		int written = 0;
+		for (int s = 0; s < sessions && written < serviceCount; s++) {
+			String sessionKey = DISCOVERY_DIR + "/" + UUID.randomUUID(); //$NON-NLS-1$
+			if (s > 0)
+				w.write(',');
+			w.write("{\"key\":\"" + sessionKey + "\",\"dir\":true,\"nodes\":["); //$NON-NLS-1$ //$NON-NLS-2$
+			for (int i = 0; i < SERVICES_PER_SESSION && written < serviceCount; i++, written++) {
+				if (i > 0)
+					w.write(',');
+				index++;
+				w.write("{\"key\":\"" + sessionKey + "/" + UUID.randomUUID() //$NON-NLS-1$ //$NON-NLS-2$
+						+ "\",\"value\":\"" + escape(serviceInfoJson(written)) //$NON-NLS-1$
+						+ "\",\"expiration\":\"2018-06-01T12:00:00.000000000Z\",\"ttl\":30,\"modifiedIndex\":" //$NON-NLS-1$
+						+ index + ",\"createdIndex\":" + index + "}"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			w.write("],\"modifiedIndex\":" + index + ",\"createdIndex\":" + index + "}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		w.write("],\"modifiedIndex\":3,\"createdIndex\":3}}\n"); //$NON-NLS-1$
+	}
+
+	public static byte[] createBytes(int serviceCount) throws IOException {
+		java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+		Writer w = new OutputStreamWriter(bos, UTF8);
+		write(w, serviceCount);
+		w.flush();
+		return bos.toByteArray();
+	}
+
+	public static File createFile(int serviceCount) throws IOException {
+		File f = File.createTempFile("etcd-get-" + serviceCount, ".json"); //$NON-NLS-1$ //$NON-NLS-2$
+		f.deleteOnExit();
+		Writer w = new OutputStreamWriter(new FileOutputStream(f), UTF8);
+		try {
+			write(w, serviceCount);
+		} finally {
+			w.close();
+		}
+		return f;
+	}
+
+	private static EtcdNamespace namespace;
+
+	static synchronized EtcdNamespace getNamespace() {
+		if (namespace == null)
+			namespace = (EtcdNamespace.INSTANCE != null) ? EtcdNamespace.INSTANCE : new EtcdNamespace();
+		return namespace;
+	}
+
+	/**
+	 * Create the i-th service, of one of <code>typeCount</code> service types.
+	 */
+	public static EtcdServiceInfo createServiceInfo(int i, int typeCount) {
+		EtcdServiceTypeID type = new EtcdServiceTypeID(getNamespace(),
+				"_service" + (i % typeCount) + "._osgirsvc._tcp.default._iana"); //$NON-NLS-1$ //$NON-NLS-2$
+		return new EtcdServiceInfo(URI.create("ecftcp://host" + i + ".example.org:3282/server"), //$NON-NLS-1$ //$NON-NLS-2$
+				"service" + i, type); //$NON-NLS-1$
+	}
+
+	/**
+	 * Standard properties of a Remote Service Admin endpoint description, as
+	 * published by ECF remote services.
+	 */
+	private static final String[] ENDPOINT_STRING_PROPERTIES = { "endpoint.id", "endpoint.framework.uuid", //$NON-NLS-1$ //$NON-NLS-2$
+			"service.imported.configs", "remote.configs.supported", "remote.intents.supported", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			"service.intents", "ecf.endpoint.id.ns", "ecf.endpoint.id", "ecf.exported.async.interfaces", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			"endpoint.package.version.com.example" }; //$NON-NLS-1$
+	private static final String[] ENDPOINT_LONG_PROPERTIES = { "endpoint.service.id", "ecf.rsvc.id", "ecf.endpoint.ts" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+	/**
+	 * Size of the byte[] property values.
+	 */
+	public static final int BYTES_PROPERTY_SIZE = 256;
+
+	/**
+	 * Create the i-th service with <code>propertyCount</code> remote service
+	 * endpoint properties. The standard endpoint properties come first, the
+	 * rest are service properties of mixed types. With
+	 * <code>withBytes</code> every fifth of these is a byte[] value, as used
+	 * for serialized ids and connect targets.
+	 */
+	public static EtcdServiceInfo createEndpointServiceInfo(int i, int propertyCount, boolean withBytes) {
+		Random random = new Random(i);
+		IServiceProperties props = new ServiceProperties();
+		props.setPropertyString("objectClass", "com.example.IService" + i); //$NON-NLS-1$ //$NON-NLS-2$
+		int count = 1;
+		for (int p = 0; p < ENDPOINT_STRING_PROPERTIES.length && count < propertyCount; p++, count++)
+			props.setPropertyString(ENDPOINT_STRING_PROPERTIES[p], endpointValue(ENDPOINT_STRING_PROPERTIES[p], i));
+		for (int p = 0; p < ENDPOINT_LONG_PROPERTIES.length && count < propertyCount; p++, count++)
+			props.setProperty(ENDPOINT_LONG_PROPERTIES[p], Long.valueOf(random.nextInt(Integer.MAX_VALUE)));
+		for (int p = 0; count < propertyCount; p++, count++) {
+			String name = "com.example.service.property" + p; //$NON-NLS-1$
+			if (withBytes && p % 5 == 0) {
+				byte[] bytes = new byte[BYTES_PROPERTY_SIZE];
+				random.nextBytes(bytes);
+				props.setPropertyBytes(name, bytes);
+			} else if (p % 3 == 0)
+				props.setProperty(name, Integer.valueOf(random.nextInt(10000)));
+			else if (p % 7 == 0)
+				props.setProperty(name, Boolean.valueOf(random.nextBoolean()));
+			else
+				props.setPropertyString(name, "value-" + p + "-" + UUID.randomUUID()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		EtcdServiceTypeID type = new EtcdServiceTypeID(getNamespace(), "_osgirsvc._ecftcp._tcp.default._iana"); //$NON-NLS-1$
+		return new EtcdServiceInfo(URI.create("ecftcp://host" + i + ".example.org:3282/server"), //$NON-NLS-1$ //$NON-NLS-2$
+				"service" + i, type, 0, 0, props, 30); //$NON-NLS-1$
+	}
+
+	private static String endpointValue(String name, int i) {
+		if ("endpoint.id".equals(name) || "ecf.endpoint.id".equals(name)) //$NON-NLS-1$ //$NON-NLS-2$
+			return "ecftcp://host" + i + ".example.org:3282/server"; //$NON-NLS-1$ //$NON-NLS-2$
+		if ("endpoint.framework.uuid".equals(name)) //$NON-NLS-1$
+			return UUID.randomUUID().toString();
+		if ("ecf.endpoint.id.ns".equals(name)) //$NON-NLS-1$
+			return "ecf.namespace.generic.remote"; //$NON-NLS-1$
+		if ("service.imported.configs".equals(name) || "remote.configs.supported".equals(name)) //$NON-NLS-1$ //$NON-NLS-2$
+			return "ecf.generic.server"; //$NON-NLS-1$
+		if ("endpoint.package.version.com.example".equals(name)) //$NON-NLS-1$
+			return "1.0.0"; //$NON-NLS-1$
+		if ("ecf.exported.async.interfaces".equals(name)) //$NON-NLS-1$
+			return "com.example.IService" + i + "Async"; //$NON-NLS-1$ //$NON-NLS-2$
+		return "passByValue,exactlyOnce,ordered"; //$NON-NLS-1$
+	}
+
+	static String serviceInfoJson(int i) {
+		return "{\"location\":\"ecftcp://host" + i + ".example.org:3282/server\"," //$NON-NLS-1$ //$NON-NLS-2$
+				+ "\"priority\":0,\"weight\":0,\"servicename\":\"service" + i + "\",\"ttl\":30," //$NON-NLS-1$ //$NON-NLS-2$
+				+ "\"servicetype\":{\"services\":[\"osgirsvc\",\"ecftcp\"],\"scopes\":[\"default\"],\"protocols\":[\"tcp\"],\"namingauth\":\"iana\"}," //$NON-NLS-1$
+				+ "\"properties\":[{\"type\":\"string\",\"name\":\"objectClass\",\"value\":\"com.example.IService" + i + "\"}," //$NON-NLS-1$ //$NON-NLS-2$
+				+ "{\"type\":\"long\",\"name\":\"endpoint.service.id\",\"value\":\"" + i + "\"}," //$NON-NLS-1$ //$NON-NLS-2$
+				+ "{\"type\":\"string\",\"name\":\"ecf.endpoint.id.ns\",\"value\":\"ecf.namespace.generic.remote\"}]}"; //$NON-NLS-1$
+	}
+
+	static String escape(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 32);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\');
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponseDecoder;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSuccessResponse;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parse time of a recursive get response, comparing the previous
+ * read-to-String/JSONObject path with {@link EtcdResponseDecoder}. Run with
+ * <code>-prof gc</code> to also compare allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class EtcdResponseDecodingBenchmark {
+
+	@Param({ "1000", "10000", "50000" })
+	public int services;
+
+	private byte[] body;
+
+	@Setup
+	public void setup() throws IOException {
+		body = EtcdBenchmarkData.createBytes(services);
+	}
+
+	@Benchmark
+	public EtcdSuccessResponse jsonObject() throws IOException, JSONException {
+		return decodeWithJSONObject(new ByteArrayInputStream(body));
+	}
+
+	@Benchmark
+	public EtcdSuccessResponse streaming() throws IOException, JSONException {
+		return EtcdResponseDecoder.decodeSuccess(new ByteArrayInputStream(body), null);
+	}
+
+	/**
+	 * Same steps as the decoding done before EtcdResponseDecoder: copy the
+	 * body into a byte array, then a String, then build a JSONObject tree.
+	 */
+	static EtcdSuccessResponse decodeWithJSONObject(InputStream ins) throws IOException, JSONException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int length = 0;
+		while ((length = ins.read(buffer)) != -1)
+			baos.write(buffer, 0, length);
+		return new EtcdSuccessResponse(new String(baos.toByteArray()), null);
+	}
+}
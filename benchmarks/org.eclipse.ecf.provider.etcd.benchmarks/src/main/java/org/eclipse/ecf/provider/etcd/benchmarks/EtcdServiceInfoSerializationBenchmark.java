@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.ecf.provider.etcd.EtcdServiceInfo;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of writing a service info as the value of its etcd node on
+ * registration, and of reading it back on every watch event, for remote
+ * service endpoints with 10, 50 and 200 properties, with and without byte[]
+ * values, in json and in the binary format of
+ * {@link EtcdServiceInfo#serializeToBinaryString()}. Reports ops/s; run with
+ * <code>-prof gc</code> to get the bytes allocated per operation
+ * (<code>gc.alloc.rate.norm</code>):
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar EtcdServiceInfoSerializationBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+public class EtcdServiceInfoSerializationBenchmark {
+
+	@Param({ "10", "50", "200" })
+	public int properties;
+
+	@Param({ "false", "true" })
+	public boolean bytes;
+
+	private EtcdServiceInfo serviceInfo;
+	private String serialized;
+	private String serializedBinary;
+
+	@Setup
+	public void setup() throws JSONException {
+		serviceInfo = EtcdBenchmarkData.createEndpointServiceInfo(1, properties, bytes);
+		serialized = serviceInfo.serializeToJsonString();
+		serializedBinary = serviceInfo.serializeToBinaryString();
+	}
+
+	@Benchmark
+	public String serialize() throws JSONException {
+		return serviceInfo.serializeToJsonString();
+	}
+
+	@Benchmark
+	public EtcdServiceInfo deserialize() throws JSONException {
+		return EtcdServiceInfo.deserializeFromString(serialized);
+	}
+
+	@Benchmark
+	public String serializeBinary() {
+		return serviceInfo.serializeToBinaryString();
+	}
+
+	@Benchmark
+	public EtcdServiceInfo deserializeBinary() throws JSONException {
+		return EtcdServiceInfo.deserialize(serializedBinary);
+	}
+}
@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.identity.IServiceID;
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.internal.provider.etcd.EtcdServiceRegistry;
+import org.eclipse.ecf.provider.etcd.EtcdServiceInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookup cost of the service registry used by EtcdDiscoveryContainer,
+ * comparing the previous synchronized HashMap with linear scans to
+ * {@link EtcdServiceRegistry}. The <code>mixed</code> groups run three
+ * readers against one thread applying watch updates; the registry's writer
+ * publishes a new snapshot after each update, as the watch job does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class EtcdServiceRegistryBenchmark {
+
+	public static final int SERVICE_TYPES = 50;
+
+	@Param({ "1000", "10000", "100000" })
+	public int services;
+
+	private LegacyServiceMap legacy;
+	private EtcdServiceRegistry<String> registry;
+
+	private String[] keys;
+	private String[] sessions;
+	private EtcdServiceInfo[] infos;
+	private IServiceTypeID lookupType;
+	private IServiceID lookupID;
+	private String lookupSession;
+	private int next;
+
+	@Setup
+	public void setup() {
+		legacy = new LegacyServiceMap();
+		registry = new EtcdServiceRegistry<String>();
+		keys = new String[services];
+		sessions = new String[services];
+		infos = new EtcdServiceInfo[services];
+		String session = null;
+		for (int i = 0; i < services; i++) {
+			if (i % EtcdBenchmarkData.SERVICES_PER_SESSION == 0)
+				session = UUID.randomUUID().toString();
+			sessions[i] = session;
+			keys[i] = session + "/" + UUID.randomUUID(); //$NON-NLS-1$
+			infos[i] = EtcdBenchmarkData.createServiceInfo(i, SERVICE_TYPES);
+			legacy.put(keys[i], sessions[i], infos[i]);
+			registry.put(keys[i], sessions[i], infos[i]);
+		}
+		registry.publish();
+		int last = services - 1;
+		lookupType = infos[last].getServiceID().getServiceTypeID();
+		lookupID = infos[last].getServiceID();
+		lookupSession = sessions[last];
+	}
+
+	@Benchmark
+	public IServiceInfo[] legacyServices() {
+		return legacy.getServices();
+	}
+
+	@Benchmark
+	public IServiceInfo[] indexedServices() {
+		return registry.getServices();
+	}
+
+	@Benchmark
+	public IServiceInfo[] legacyServicesByType() {
+		return legacy.getServices(lookupType);
+	}
+
+	@Benchmark
+	public IServiceInfo[] indexedServicesByType() {
+		return registry.getServices(lookupType);
+	}
+
+	@Benchmark
+	public IServiceInfo legacyServiceInfo() {
+		return legacy.getServiceInfo(lookupID);
+	}
+
+	@Benchmark
+	public IServiceInfo indexedServiceInfo() {
+		return registry.getService(lookupID);
+	}
+
+	@Benchmark
+	public IServiceTypeID[] legacyServiceTypes() {
+		return legacy.getServiceTypes();
+	}
+
+	@Benchmark
+	public IServiceTypeID[] indexedServiceTypes() {
+		return registry.getServiceTypes();
+	}
+
+	@Benchmark
+	public String legacyFindKey() {
+		return legacy.findKey(lookupID, lookupSession);
+	}
+
+	@Benchmark
+	public String indexedFindKey() {
+		return registry.findKey(lookupID, lookupSession);
+	}
+
+	@Benchmark
+	@Group("legacyMixed")
+	@GroupThreads(3)
+	public IServiceInfo[] legacyMixedRead() {
+		return legacy.getServices(lookupType);
+	}
+
+	@Benchmark
+	@Group("legacyMixed")
+	@GroupThreads(1)
+	public EtcdServiceInfo legacyMixedWrite() {
+		int i = nextIndex();
+		legacy.remove(keys[i]);
+		return legacy.put(keys[i], sessions[i], infos[i]);
+	}
+
+	@Benchmark
+	@Group("indexedMixed")
+	@GroupThreads(3)
+	public IServiceInfo[] indexedMixedRead() {
+		return registry.getServices(lookupType);
+	}
+
+	@Benchmark
+	@Group("indexedMixed")
+	@GroupThreads(1)
+	public EtcdServiceInfo indexedMixedWrite() {
+		int i = nextIndex();
+		registry.remove(keys[i]);
+		EtcdServiceInfo result = registry.put(keys[i], sessions[i], infos[i]);
+		registry.publish();
+		return result;
+	}
+
+	private int nextIndex() {
+		// only called from the single writer thread of a group
+		int i = next;
+		next = (i + 1) % services;
+		return i;
+	}
+
+	/**
+	 * The service map and lookups of EtcdDiscoveryContainer before
+	 * EtcdServiceRegistry.
+	 */
+	static class LegacyServiceMap {
+
+		private final Map<String, EtcdServiceInfo> services = new HashMap<String, EtcdServiceInfo>();
+		private final Map<String, String> sessionIds = new HashMap<String, String>();
+
+		EtcdServiceInfo put(String key, String sessionId, EtcdServiceInfo info) {
+			synchronized (services) {
+				sessionIds.put(key, sessionId);
+				return services.put(key, info);
+			}
+		}
+
+		EtcdServiceInfo remove(String key) {
+			synchronized (services) {
+				sessionIds.remove(key);
+				return services.remove(key);
+			}
+		}
+
+		IServiceInfo[] getServices() {
+			synchronized (services) {
+				return services.values().toArray(new IServiceInfo[services.size()]);
+			}
+		}
+
+		IServiceInfo getServiceInfo(IServiceID aServiceID) {
+			synchronized (services) {
+				for (EtcdServiceInfo info : services.values())
+					if (info.getServiceID().equals(aServiceID))
+						return info;
+			}
+			return null;
+		}
+
+		IServiceInfo[] getServices(IServiceTypeID aServiceTypeID) {
+			List<IServiceInfo> results = new ArrayList<IServiceInfo>();
+			synchronized (services) {
+				for (EtcdServiceInfo info : services.values()) {
+					IServiceTypeID stid = info.getServiceID().getServiceTypeID();
+					if (stid.equals(aServiceTypeID))
+						results.add(info);
+				}
+			}
+			return results.toArray(new IServiceInfo[results.size()]);
+		}
+
+		IServiceTypeID[] getServiceTypes() {
+			Set<IServiceTypeID> results = new HashSet<IServiceTypeID>();
+			synchronized (services) {
+				for (EtcdServiceInfo info : services.values())
+					results.add(info.getServiceID().getServiceTypeID());
+			}
+			return results.toArray(new IServiceTypeID[results.size()]);
+		}
+
+		String findKey(IServiceID serviceID, String sessionId) {
+			synchronized (services) {
+				for (String key : services.keySet()) {
+					EtcdServiceInfo info = services.get(key);
+					if (info.getServiceID().equals(serviceID) && sessionId.equals(sessionIds.get(key)))
+						return key;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd.benchmarks;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdException;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdNode;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdPooledTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestExecutor;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSetRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSuccessResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV2Backend;
+import org.eclipse.ecf.tests.provider.etcd.EtcdTestServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time until a watcher has seen every change of a burst of registrations,
+ * comparing the v2 watch modes: <code>poll</code> sends one long polling
+ * watch request per change, <code>stream</code> reads all changes from one
+ * <code>stream=true</code> watch. The burst is written by
+ * {@link #WRITERS} concurrent writers, as by many containers starting
+ * during a deploy. <code>latency</code> is added by the test server to
+ * every response, standing in for the network round trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class EtcdWatchPropagationBenchmark {
+
+	public static final int WRITERS = 16;
+	public static final String DIRECTORY = "/propagation"; //$NON-NLS-1$
+
+	@Param({ "poll", "stream" })
+	public String watchMode;
+
+	@Param({ "2000" })
+	public int burst;
+
+	@Param({ "0", "1" })
+	public long latency;
+
+	private EtcdTestServer server;
+	private EtcdPooledTransport transport;
+	private EtcdRequestExecutor writers;
+	private EtcdV2Backend backend;
+	private Thread watcher;
+	private volatile boolean stopped;
+	// keys of the changes seen by the watcher, guarded by itself
+	private final Set<String> seen = new HashSet<String>();
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new EtcdTestServer(0);
+		server.start();
+		server.setLatency(latency);
+		transport = new EtcdPooledTransport(WRITERS + 1);
+		writers = new EtcdRequestExecutor("PropagationWriter", WRITERS); //$NON-NLS-1$
+		backend = new EtcdV2Backend(server.getKeysUrl(), transport, writers, "stream".equals(watchMode)); //$NON-NLS-1$
+		final int index = backend.getDirectory(DIRECTORY, false).getSuccessResponse().getEtcdIndex();
+		watcher = new Thread(new Runnable() {
+			public void run() {
+				watch(index + 1);
+			}
+		}, "PropagationWatcher"); //$NON-NLS-1$
+		watcher.start();
+	}
+
+	/**
+	 * Watch as the container's watch job does, resyncing from a read of the
+	 * directory when the watch fell behind the server's event history.
+	 */
+	void watch(int index) {
+		try {
+			while (!stopped) {
+				EtcdResponse response = backend.watch(DIRECTORY, index);
+				if (response == null)
+					continue;
+				if (response.isError()) {
+					EtcdSuccessResponse directory = backend.getDirectory(DIRECTORY, false).getSuccessResponse();
+					synchronized (seen) {
+						EtcdNode[] nodes = directory.getNode().getNodes();
+						if (nodes != null)
+							for (EtcdNode node : nodes)
+								seen.add(node.getKey());
+						seen.notifyAll();
+					}
+					index = directory.getEtcdIndex() + 1;
+					continue;
+				}
+				EtcdNode node = response.getSuccessResponse().getNode();
+				synchronized (seen) {
+					seen.add(node.getKey());
+					seen.notifyAll();
+				}
+				index = node.getModifiedIndex() + 1;
+			}
+		} catch (EtcdException e) {
+			if (!stopped)
+				e.printStackTrace();
+		}
+	}
+
+	@Benchmark
+	public int registrationBurst() throws InterruptedException {
+		int expected;
+		synchronized (seen) {
+			expected = seen.size() + burst;
+		}
+		for (int i = 0; i < burst; i++) {
+			String url = server.getKeysUrl() + DIRECTORY + "/service" + next++; //$NON-NLS-1$
+			new EtcdSetRequest(url, "value").executeAsync(transport, writers); //$NON-NLS-1$
+		}
+		synchronized (seen) {
+			while (seen.size() < expected)
+				seen.wait();
+			return seen.size();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		stopped = true;
+		backend.close();
+		watcher.join();
+		writers.shutdown();
+		transport.close();
+		server.stop();
+		synchronized (seen) {
+			seen.clear();
+		}
+	}
+}
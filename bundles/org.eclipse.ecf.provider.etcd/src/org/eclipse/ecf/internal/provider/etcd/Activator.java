@@ -18,6 +18,7 @@ import org.eclipse.ecf.core.util.LogHelper;
 import org.eclipse.ecf.core.util.SystemLogService;
 import org.eclipse.ecf.discovery.IDiscoveryAdvertiser;
 import org.eclipse.ecf.discovery.IDiscoveryLocator;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequest;
 import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer;
 import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainerConfig;
 import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainerInstantiator;
@@ -109,6 +110,10 @@ public class Activator implements BundleActivator {
 	}
 
 	public void stop(BundleContext context) throws Exception {
+		// close any pooled connections of the shared transport
+		EtcdRequest.setDefaultTransport(null);
+		EtcdRequest.shutdownDefaultExecutor();
+		EtcdHeartbeatScheduler.shutdownDefault();
 		if (cfTracker != null) {
 			cfTracker.close();
 			cfTracker = null;
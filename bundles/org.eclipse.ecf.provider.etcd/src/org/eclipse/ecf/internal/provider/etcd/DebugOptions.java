@@ -29,4 +29,6 @@ public interface DebugOptions {
 
 	public static final String TTLJOB = DEBUG + "/ttljob"; //$NON-NLS-1$
 
+	public static final String DISPATCH = DEBUG + "/dispatch"; //$NON-NLS-1$
+
 }
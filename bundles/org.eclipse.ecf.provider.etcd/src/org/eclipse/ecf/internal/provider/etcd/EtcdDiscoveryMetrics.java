@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdLatencyHistogram;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryMetricsMBean;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Collects the watch metrics of a container, and answers the others from the
+ * container's request latencies, the container's registry and its event dispatcher.
+ * Recording a watch event costs a few atomic operations.
+ */
+public class EtcdDiscoveryMetrics implements EtcdDiscoveryMetricsMBean {
+
+	// seconds over which watch event rates are computed
+	private static final int RATE_PERIOD = 60;
+
+	/**
+	 * Event count with the number of events of each of the last
+	 * {@link #RATE_PERIOD} seconds.
+	 */
+	static class EventRate {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLongArray seconds = new AtomicLongArray(RATE_PERIOD);
+		private final AtomicLongArray counts = new AtomicLongArray(RATE_PERIOD);
+
+		void record(long second) {
+			count.incrementAndGet();
+			int slot = (int) (second % RATE_PERIOD);
+			long stamp = seconds.get(slot);
+			if (stamp != second && seconds.compareAndSet(slot, stamp, second))
+				counts.set(slot, 0);
+			counts.incrementAndGet(slot);
+		}
+
+		long getCount() {
+			return count.get();
+		}
+
+		long getRecent(long second) {
+			long result = 0;
+			for (int i = 0; i < RATE_PERIOD; i++) {
+				long stamp = seconds.get(i);
+				if (stamp > second - RATE_PERIOD && stamp <= second)
+					result += counts.get(i);
+			}
+			return result;
+		}
+	}
+
+	private final EtcdDiscoveryContainer container;
+	private final ConcurrentMap<String, EventRate> watchEvents = new ConcurrentHashMap<String, EventRate>();
+	private final AtomicLong maxWatchIndexLag = new AtomicLong();
+	private volatile long watchIndexLag = -1;
+	private ObjectName objectName;
+	private ServiceRegistration registration;
+
+	public EtcdDiscoveryMetrics(EtcdDiscoveryContainer container) {
+		this.container = container;
+	}
+
+	private static long currentSecond() {
+		return System.currentTimeMillis() / 1000;
+	}
+
+	/**
+	 * Record a watch event.
+	 *
+	 * @param etcdIndex
+	 *            etcd index of the watch response, or -1 if not known
+	 * @param modifiedIndex
+	 *            index of the change of the event
+	 */
+	public void watchEvent(String action, int etcdIndex, int modifiedIndex) {
+		EventRate rate = watchEvents.get(action);
+		if (rate == null) {
+			EventRate r = new EventRate();
+			rate = watchEvents.putIfAbsent(action, r);
+			if (rate == null)
+				rate = r;
+		}
+		rate.record(currentSecond());
+		if (etcdIndex > 0) {
+			long lag = Math.max(0, etcdIndex - modifiedIndex);
+			watchIndexLag = lag;
+			long max;
+			while (lag > (max = maxWatchIndexLag.get()))
+				if (maxWatchIndexLag.compareAndSet(max, lag))
+					break;
+		}
+	}
+
+	/**
+	 * Register as platform MBean and, if running in OSGi, as service. Failures
+	 * are logged.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public synchronized void register() {
+		String id = getContainerId();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECTNAME_DOMAIN + ":type=EtcdDiscoveryMetrics,name=" //$NON-NLS-1$
+					+ ObjectName.quote(id));
+			server.registerMBean(new StandardMBean(this, EtcdDiscoveryMetricsMBean.class), name);
+			objectName = name;
+		} catch (JMException e) {
+			LogUtility.logWarning("register", DebugOptions.DEBUG, getClass(), //$NON-NLS-1$
+					"Could not register metrics MBean for container=" + id + ": " + e); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		BundleContext context = Activator.getContext();
+		if (context != null) {
+			Hashtable props = new Hashtable();
+			props.put(CONTAINER_ID_PROP, id);
+			registration = context.registerService(EtcdDiscoveryMetricsMBean.class.getName(), this, props);
+		}
+	}
+
+	public synchronized void unregister() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				// already unregistered
+			}
+			objectName = null;
+		}
+		if (registration != null) {
+			try {
+				registration.unregister();
+			} catch (IllegalStateException e) {
+				// bundle already stopped
+			}
+			registration = null;
+		}
+	}
+
+	public String getContainerId() {
+		return container.getID().getName();
+	}
+
+	public String[] getRequestTypes() {
+		return container.getRequestLatencies().getLatencies().keySet().toArray(new String[0]);
+	}
+
+	private EtcdLatencyHistogram getRequestLatency(String requestType) {
+		EtcdLatencyHistogram result = container.getRequestLatencies().getLatencies().get(requestType);
+		return (result == null) ? new EtcdLatencyHistogram() : result;
+	}
+
+	public long getRequestCount(String requestType) {
+		return getRequestLatency(requestType).getCount();
+	}
+
+	public long getRequestFailures(String requestType) {
+		return getRequestLatency(requestType).getFailures();
+	}
+
+	public double getRequestLatencyMean(String requestType) {
+		return getRequestLatency(requestType).getMean();
+	}
+
+	public double getRequestLatencyPercentile(String requestType, double percentile) {
+		return getRequestLatency(requestType).getPercentile(percentile);
+	}
+
+	public double getRequestLatencyMax(String requestType) {
+		return getRequestLatency(requestType).getMax();
+	}
+
+	public long[] getRequestLatencyBuckets(String requestType) {
+		return getRequestLatency(requestType).getBuckets();
+	}
+
+	public String[] getWatchActions() {
+		return new TreeSet<String>(watchEvents.keySet()).toArray(new String[0]);
+	}
+
+	public long getWatchEventCount(String action) {
+		EventRate rate = watchEvents.get(action);
+		return (rate == null) ? 0 : rate.getCount();
+	}
+
+	public double getWatchEventRate(String action) {
+		EventRate rate = watchEvents.get(action);
+		return (rate == null) ? 0 : rate.getRecent(currentSecond()) / (double) RATE_PERIOD;
+	}
+
+	public double getWatchEventRate() {
+		long second = currentSecond();
+		long recent = 0;
+		for (EventRate rate : watchEvents.values())
+			recent += rate.getRecent(second);
+		return recent / (double) RATE_PERIOD;
+	}
+
+	public long getWatchIndexLag() {
+		return watchIndexLag;
+	}
+
+	public long getMaxWatchIndexLag() {
+		return maxWatchIndexLag.get();
+	}
+
+	public long getResyncCount() {
+		return container.getResyncCount();
+	}
+
+	public int getServiceCount() {
+		return container.getServiceCount();
+	}
+
+	public String[] getServiceTypeNames() {
+		List<IServiceTypeID> types = container.getServiceTypeList();
+		String[] result = new String[types.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = types.get(i).getName();
+		return result;
+	}
+
+	public int getServiceCount(String serviceTypeName) {
+		for (IServiceTypeID type : container.getServiceTypeList())
+			if (type.getName().equals(serviceTypeName))
+				return container.getServiceList(type).size();
+		return 0;
+	}
+
+	private EtcdLatencyHistogram getListenerTime() {
+		EtcdEventDispatcher d = container.getEventDispatcher();
+		return (d == null) ? new EtcdLatencyHistogram() : d.getListenerTime();
+	}
+
+	public long getListenerCallCount() {
+		return getListenerTime().getCount();
+	}
+
+	public double getListenerTimeMean() {
+		return getListenerTime().getMean();
+	}
+
+	public double getListenerTimePercentile(double percentile) {
+		return getListenerTime().getPercentile(percentile);
+	}
+
+	public double getListenerTimeMax() {
+		return getListenerTime().getMax();
+	}
+
+	public double getDispatchLatencyMean() {
+		EtcdEventDispatcher d = container.getEventDispatcher();
+		return (d == null) ? 0 : d.getAverageLatency();
+	}
+
+	public double getDispatchLatencyMax() {
+		EtcdEventDispatcher d = container.getEventDispatcher();
+		return (d == null) ? 0 : d.getMaxLatency();
+	}
+
+	public int getDispatchQueueDepth() {
+		EtcdEventDispatcher d = container.getEventDispatcher();
+		return (d == null) ? 0 : d.getQueueDepth();
+	}
+
+	public long getDroppedEventCount() {
+		EtcdEventDispatcher d = container.getEventDispatcher();
+		return (d == null) ? 0 : d.getDroppedCount();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("EtcdDiscoveryMetrics[container=").append(getContainerId()); //$NON-NLS-1$
+		for (Map.Entry<String, EventRate> entry : watchEvents.entrySet())
+			sb.append(", ").append(entry.getKey()).append('=').append(entry.getValue().getCount()); //$NON-NLS-1$
+		return sb.append(", watchIndexLag=").append(watchIndexLag).append(']').toString(); //$NON-NLS-1$
+	}
+}
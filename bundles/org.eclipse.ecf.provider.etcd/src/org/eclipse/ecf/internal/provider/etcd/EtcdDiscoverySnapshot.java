@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Local file with the discovered services of a discovery directory, so that
+ * a restarted container can serve them before etcd has been read (or when
+ * etcd cannot be reached).
+ * <p>
+ * The file is a log: a header followed by records, each adding or replacing
+ * (put) or removing the etcd value of one key (relative to the discovery
+ * directory), with the etcd index of the change. Changes are appended, and
+ * the file is rewritten with only the live values when it holds many more
+ * records than values. It is read into memory at once, without a memory
+ * mapping, which would keep the file from being replaced on Windows until
+ * it is garbage collected. A record that was not completely written (e.g.
+ * the process was killed) is detected by its checksum, and it and all
+ * following records are dropped.
+ * <p>
+ * Not thread safe: callers must serialize access.
+ */
+public class EtcdDiscoverySnapshot {
+
+	/**
+	 * A stored etcd value and the index it was modified at.
+	 */
+	public static final class Entry {
+		private final int index;
+		private final String value;
+
+		Entry(int index, String value) {
+			this.index = index;
+			this.value = value;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public String getValue() {
+			return value;
+		}
+	}
+
+	private static final int MAGIC = 0x45434653;
+	// 2: keys include the parent of the session directory
+	private static final int VERSION = 2;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	// rewrite once there are this many more records than values
+	private static final int COMPACT_THRESHOLD = 1000;
+	private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+	private final Path path;
+	private final String directory;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private FileChannel channel;
+	private int records;
+	private int index;
+
+	/**
+	 * @param file
+	 *            the snapshot file. Need not exist.
+	 * @param directory
+	 *            the etcd discovery directory. A file written for another
+	 *            directory is ignored.
+	 */
+	public EtcdDiscoverySnapshot(File file, String directory) {
+		this.path = file.toPath();
+		this.directory = directory;
+	}
+
+	/**
+	 * Read the file, and open it for appending.
+	 *
+	 * @return the stored values by key. Will not be <code>null</code>.
+	 */
+	public Map<String, Entry> load() throws IOException {
+		close();
+		entries.clear();
+		records = 0;
+		index = 0;
+		boolean valid = false;
+		if (Files.exists(path))
+			valid = read();
+		// rewrite a file of another directory, or with a broken record
+		if (!valid)
+			rewrite();
+		channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		return Collections.unmodifiableMap(new HashMap<String, Entry>(entries));
+	}
+
+	/**
+	 * @return <code>true</code> if all records could be read
+	 */
+	private boolean read() throws IOException {
+		FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = in.size();
+			if (size > Integer.MAX_VALUE)
+				return false;
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining())
+				if (in.read(buffer) < 0)
+					break;
+			buffer.flip();
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				return false;
+			if (!directory.equals(readString(buffer)))
+				return false;
+			CRC32 crc = new CRC32();
+			while (buffer.hasRemaining()) {
+				if (buffer.remaining() < 8)
+					return false;
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining())
+					return false;
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum)
+					return false;
+				apply(ByteBuffer.wrap(payload));
+			}
+			return true;
+		} catch (RuntimeException e) {
+			// malformed string lengths
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void apply(ByteBuffer payload) {
+		byte type = payload.get();
+		int recordIndex = payload.getInt();
+		String key = readString(payload);
+		if (type == PUT)
+			entries.put(key, new Entry(recordIndex, readString(payload)));
+		else
+			entries.remove(key);
+		index = Math.max(index, recordIndex);
+		records++;
+	}
+
+	/**
+	 * Store the etcd value of the given key.
+	 */
+	public void put(String key, int modifiedIndex, String value) throws IOException {
+		entries.put(key, new Entry(modifiedIndex, value));
+		append(PUT, modifiedIndex, key, value);
+	}
+
+	/**
+	 * Remove the given key, removed from etcd at the given index.
+	 */
+	public void remove(String key, int modifiedIndex) throws IOException {
+		if (entries.remove(key) != null)
+			append(REMOVE, modifiedIndex, key, null);
+	}
+
+	/**
+	 * @return highest etcd index of the stored changes
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private void append(byte type, int modifiedIndex, String key, String value) throws IOException {
+		if (channel == null)
+			throw new IOException("Snapshot not loaded or closed"); //$NON-NLS-1$
+		index = Math.max(index, modifiedIndex);
+		if (++records > entries.size() + COMPACT_THRESHOLD) {
+			channel.close();
+			rewrite();
+			channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			return;
+		}
+		channel.write(record(type, modifiedIndex, key, value));
+	}
+
+	/**
+	 * Write the live values to a new file, and replace the snapshot file with
+	 * it.
+	 */
+	private void rewrite() throws IOException {
+		Path parent = path.toAbsolutePath().getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp"); //$NON-NLS-1$
+		FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(bytes);
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			writeString(header, directory);
+			header.flush();
+			out.write(ByteBuffer.wrap(bytes.toByteArray()));
+			for (Map.Entry<String, Entry> entry : entries.entrySet())
+				out.write(record(PUT, entry.getValue().getIndex(), entry.getKey(), entry.getValue().getValue()));
+			out.force(true);
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		records = entries.size();
+	}
+
+	private static ByteBuffer record(byte type, int modifiedIndex, String key, String value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + ((value == null) ? 0 : value.length()));
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeByte(type);
+		out.writeInt(modifiedIndex);
+		writeString(out, key);
+		if (value != null)
+			writeString(out, value);
+		out.flush();
+		byte[] result = bytes.toByteArray();
+		int length = result.length - 8;
+		CRC32 crc = new CRC32();
+		crc.update(result, 8, length);
+		ByteBuffer buffer = ByteBuffer.wrap(result);
+		buffer.putInt(0, length);
+		buffer.putInt(4, (int) crc.getValue());
+		return buffer;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(UTF8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining())
+			throw new IllegalArgumentException("Invalid string length=" + length); //$NON-NLS-1$
+		byte[] b = new byte[length];
+		buffer.get(b);
+		return new String(b, UTF8);
+	}
+
+	/**
+	 * Flush appended records to disk and close the file.
+	 */
+	public void close() {
+		if (channel != null) {
+			try {
+				channel.force(true);
+				channel.close();
+			} catch (IOException e) {
+				LogUtility.logError("close", DebugOptions.EXCEPTIONS_THROWING, getClass(), //$NON-NLS-1$
+						"Error closing discovery snapshot=" + path, e); //$NON-NLS-1$
+			}
+			channel = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdDiscoverySnapshot[file=" + path + ", values=" + entries.size() + ", records=" + records //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ ", index=" + index + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,495 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.ecf.discovery.IServiceEvent;
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.IServiceListener;
+import org.eclipse.ecf.discovery.IServiceTypeEvent;
+import org.eclipse.ecf.discovery.IServiceTypeListener;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdLatencyHistogram;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestExecutor;
+import org.eclipse.ecf.provider.etcd.EtcdServiceEvent;
+import org.eclipse.ecf.provider.etcd.IEtcdServiceBatchListener;
+
+/**
+ * Delivers discovery events to listeners on a small pool of daemon threads,
+ * so that a slow listener does not hold back the thread producing the events
+ * (e.g. the watch job).
+ * <p>
+ * Every listener has its own bounded queue, and its events are delivered one
+ * at a time in the order they were dispatched. What happens when a queue is
+ * full is decided by the overflow policy:
+ * <ul>
+ * <li>{@link #OVERFLOW_BLOCK}: the dispatching thread waits for room. Events
+ * dispatched from a dispatcher thread (i.e. from within a listener) or from
+ * an {@link EtcdRequestExecutor} thread (i.e. from a response handler, which
+ * a listener may be waiting for) are queued regardless of the bound, to avoid
+ * deadlock.</li>
+ * <li>{@link #OVERFLOW_DROP_OLDEST}: the oldest queued event is dropped.</li>
+ * <li>{@link #OVERFLOW_DROP_NEWEST}: the new event is dropped.</li>
+ * </ul>
+ * The queue of a batch listener is not bounded: it holds the initial services
+ * and a batch of changes, which collects changes until it is delivered.
+ */
+public class EtcdEventDispatcher {
+
+	public static final String OVERFLOW_BLOCK = "block"; //$NON-NLS-1$
+	public static final String OVERFLOW_DROP_OLDEST = "dropOldest"; //$NON-NLS-1$
+	public static final String OVERFLOW_DROP_NEWEST = "dropNewest"; //$NON-NLS-1$
+
+	private static final long THREAD_KEEPALIVE = 30000;
+	// events delivered to one listener before its queue yields the thread
+	private static final int MAX_BATCH = 64;
+
+	private abstract static class Event {
+		final long dispatched = System.nanoTime();
+
+		abstract void deliver(Object listener);
+	}
+
+	/**
+	 * Changes collected for a batch listener. Guarded by its queue.
+	 */
+	private static class ChangeBatch extends Event {
+		final List<EtcdServiceEvent> events = new ArrayList<EtcdServiceEvent>();
+
+		void deliver(Object listener) {
+			// no longer changed once taken from the queue
+			((IEtcdServiceBatchListener) listener).servicesChanged(events.toArray(new EtcdServiceEvent[events.size()]));
+		}
+	}
+
+	private final ThreadPoolExecutor threads;
+	private final ThreadGroup threadGroup;
+	private final ConcurrentMap<Object, ListenerQueue> queues = new ConcurrentHashMap<Object, ListenerQueue>();
+	private final int queueSize;
+	private final String overflowPolicy;
+	private volatile boolean closed;
+
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+	private final AtomicLong dispatchedCount = new AtomicLong();
+	private final AtomicLong deliveredCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+	private final EtcdLatencyHistogram listenerTime = new EtcdLatencyHistogram();
+
+	/**
+	 * @param name
+	 *            prefix of the dispatcher thread names
+	 * @param threadCount
+	 *            maximum number of dispatcher threads. Must be > 0.
+	 * @param queueSize
+	 *            maximum number of queued events per listener. Must be > 0.
+	 * @param overflowPolicy
+	 *            one of {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_DROP_OLDEST}
+	 *            or {@link #OVERFLOW_DROP_NEWEST}
+	 */
+	public EtcdEventDispatcher(final String name, int threadCount, int queueSize, String overflowPolicy) {
+		if (threadCount < 1)
+			throw new IllegalArgumentException("threadCount must be > 0"); //$NON-NLS-1$
+		if (queueSize < 1)
+			throw new IllegalArgumentException("queueSize must be > 0"); //$NON-NLS-1$
+		if (!OVERFLOW_BLOCK.equals(overflowPolicy) && !OVERFLOW_DROP_OLDEST.equals(overflowPolicy)
+				&& !OVERFLOW_DROP_NEWEST.equals(overflowPolicy))
+			throw new IllegalArgumentException("Unknown overflow policy=" + overflowPolicy); //$NON-NLS-1$
+		this.queueSize = queueSize;
+		this.overflowPolicy = overflowPolicy;
+		this.threadGroup = new ThreadGroup(name);
+		this.threads = new ThreadPoolExecutor(threadCount, threadCount, THREAD_KEEPALIVE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(threadGroup, r, name + "-" + count.incrementAndGet()); //$NON-NLS-1$
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.threads.allowCoreThreadTimeOut(true);
+	}
+
+	public void serviceDiscovered(IServiceListener listener, final IServiceEvent event) {
+		dispatch(listener, new Event() {
+			void deliver(Object l) {
+				((IServiceListener) l).serviceDiscovered(event);
+			}
+		});
+	}
+
+	public void serviceUndiscovered(IServiceListener listener, final IServiceEvent event) {
+		dispatch(listener, new Event() {
+			void deliver(Object l) {
+				((IServiceListener) l).serviceUndiscovered(event);
+			}
+		});
+	}
+
+	public void serviceTypeDiscovered(IServiceTypeListener listener, final IServiceTypeEvent event) {
+		dispatch(listener, new Event() {
+			void deliver(Object l) {
+				((IServiceTypeListener) l).serviceTypeDiscovered(event);
+			}
+		});
+	}
+
+	public void servicesSynchronized(IEtcdServiceBatchListener listener, final IServiceInfo[] services) {
+		if (closed)
+			return;
+		dispatchedCount.incrementAndGet();
+		getQueue(listener).add(new Event() {
+			void deliver(Object l) {
+				((IEtcdServiceBatchListener) l).servicesSynchronized(services);
+			}
+		});
+	}
+
+	/**
+	 * Add the given change to the batch of the given listener. A new batch is
+	 * queued after the given window, and collects changes until it is
+	 * delivered.
+	 *
+	 * @param window
+	 *            ms to wait before queueing a new batch, 0 to queue it at once
+	 */
+	public void servicesChanged(IEtcdServiceBatchListener listener, EtcdServiceEvent event, long window) {
+		if (closed)
+			return;
+		dispatchedCount.incrementAndGet();
+		getQueue(listener).coalesce(event, window);
+	}
+
+	/**
+	 * Discard the events queued for the given listener and forget about it.
+	 * An event being delivered to the listener is not interrupted.
+	 */
+	public void removeListener(Object listener) {
+		ListenerQueue queue = queues.remove(listener);
+		if (queue != null)
+			queue.remove();
+	}
+
+	/**
+	 * Stop accepting events and wait up to the given time for queued events to
+	 * be delivered. Events still queued after that are discarded.
+	 *
+	 * @return <code>true</code> if all queued events were delivered
+	 */
+	public boolean close(long timeout) {
+		closed = true;
+		for (ListenerQueue queue : queues.values())
+			queue.wakeUp();
+		long end = System.currentTimeMillis() + timeout;
+		while (queueDepth.get() > 0 && System.currentTimeMillis() < end) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		boolean drained = queueDepth.get() == 0;
+		for (ListenerQueue queue : queues.values())
+			queue.clear();
+		queues.clear();
+		threads.shutdown();
+		return drained;
+	}
+
+	private void dispatch(Object listener, Event event) {
+		if (closed)
+			return;
+		dispatchedCount.incrementAndGet();
+		getQueue(listener).offer(event);
+	}
+
+	private ListenerQueue getQueue(Object listener) {
+		ListenerQueue queue = queues.get(listener);
+		if (queue == null) {
+			ListenerQueue newQueue = new ListenerQueue(listener);
+			queue = queues.putIfAbsent(listener, newQueue);
+			if (queue == null)
+				queue = newQueue;
+		}
+		return queue;
+	}
+
+	private boolean isDispatcherThread() {
+		return Thread.currentThread().getThreadGroup() == threadGroup;
+	}
+
+	private void dropped(ListenerQueue queue) {
+		if (droppedCount.getAndIncrement() == 0)
+			LogUtility.logWarning("dispatch", DebugOptions.DISPATCH, getClass(), //$NON-NLS-1$
+					"Event queue full for listener=" + queue.listener + ", dropping events (policy=" //$NON-NLS-1$ //$NON-NLS-2$
+							+ overflowPolicy + ")"); //$NON-NLS-1$
+		else
+			LogUtility.trace("dispatch", DebugOptions.DISPATCH, getClass(), //$NON-NLS-1$
+					"Dropped event for listener=" + queue.listener); //$NON-NLS-1$
+	}
+
+	private void delivered(Event event) {
+		long latency = System.nanoTime() - event.dispatched;
+		deliveredCount.incrementAndGet();
+		totalLatency.addAndGet(latency);
+		long max;
+		while (latency > (max = maxLatency.get()))
+			if (maxLatency.compareAndSet(max, latency))
+				break;
+	}
+
+	private void queued() {
+		int depth = queueDepth.incrementAndGet();
+		int max;
+		while (depth > (max = maxQueueDepth.get()))
+			if (maxQueueDepth.compareAndSet(max, depth))
+				break;
+	}
+
+	private class ListenerQueue implements Runnable {
+
+		final Object listener;
+		private final ArrayDeque<Event> events = new ArrayDeque<Event>();
+		// batch collecting changes until it is delivered, or null
+		private ChangeBatch batch;
+		private boolean scheduled;
+		private boolean removed;
+
+		ListenerQueue(Object listener) {
+			this.listener = listener;
+		}
+
+		void offer(Event event) {
+			boolean schedule = false;
+			synchronized (this) {
+				if (removed)
+					return;
+				if (events.size() >= queueSize) {
+					if (OVERFLOW_DROP_NEWEST.equals(overflowPolicy)) {
+						dropped(this);
+						return;
+					} else if (OVERFLOW_DROP_OLDEST.equals(overflowPolicy)) {
+						events.poll();
+						queueDepth.decrementAndGet();
+						dropped(this);
+					} else if (!isDispatcherThread() && !EtcdRequestExecutor.isExecutorThread()) {
+						while (events.size() >= queueSize && !closed && !removed) {
+							try {
+								wait();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								return;
+							}
+						}
+						if (closed || removed)
+							return;
+					}
+				}
+				events.add(event);
+				queued();
+				if (!scheduled) {
+					scheduled = true;
+					schedule = true;
+				}
+			}
+			if (schedule)
+				schedule();
+		}
+
+		void coalesce(EtcdServiceEvent event, long window) {
+			final ChangeBatch b;
+			synchronized (this) {
+				if (removed)
+					return;
+				if (batch != null) {
+					batch.events.add(event);
+					return;
+				}
+				b = batch = new ChangeBatch();
+				b.events.add(event);
+			}
+			if (window > 0)
+				try {
+					EtcdHeartbeatScheduler.getDefault().schedule(new Runnable() {
+						public void run() {
+							add(b);
+						}
+					}, window);
+					return;
+				} catch (IllegalStateException e) {
+					// scheduler shut down, queue at once
+				}
+			add(b);
+		}
+
+		/**
+		 * Queue the given event regardless of the bound.
+		 */
+		void add(Event event) {
+			boolean schedule = false;
+			synchronized (this) {
+				if (removed || closed)
+					return;
+				events.add(event);
+				queued();
+				if (!scheduled) {
+					scheduled = true;
+					schedule = true;
+				}
+			}
+			if (schedule)
+				schedule();
+		}
+
+		private void schedule() {
+			try {
+				threads.execute(this);
+			} catch (RejectedExecutionException e) {
+				// closed
+				clear();
+			}
+		}
+
+		synchronized void clear() {
+			queueDepth.addAndGet(-events.size());
+			events.clear();
+			batch = null;
+			notifyAll();
+		}
+
+		synchronized void remove() {
+			removed = true;
+			clear();
+		}
+
+		synchronized void wakeUp() {
+			notifyAll();
+		}
+
+		public void run() {
+			for (int i = 0; i < MAX_BATCH; i++) {
+				Event event;
+				synchronized (this) {
+					event = events.poll();
+					if (event == null) {
+						scheduled = false;
+						return;
+					}
+					// changes after this go into a new batch
+					if (event == batch)
+						batch = null;
+					notifyAll();
+				}
+				long start = System.nanoTime();
+				try {
+					event.deliver(listener);
+				} catch (Throwable t) {
+					LogUtility.logError("run", DebugOptions.DISPATCH, EtcdEventDispatcher.class, //$NON-NLS-1$
+							"Exception in listener=" + listener, t); //$NON-NLS-1$
+				} finally {
+					listenerTime.record(System.nanoTime() - start);
+					// count the event as queued until it has been delivered
+					queueDepth.decrementAndGet();
+					delivered(event);
+				}
+			}
+			// let other listeners' queues run before continuing
+			schedule();
+		}
+	}
+
+	/**
+	 * @return number of events queued or being delivered, over all listeners
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	/**
+	 * @return the highest {@link #getQueueDepth()} seen
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	/**
+	 * @return number of events queued for the given listener
+	 */
+	public int getQueueDepth(Object listener) {
+		ListenerQueue queue = queues.get(listener);
+		if (queue == null)
+			return 0;
+		synchronized (queue) {
+			return queue.events.size();
+		}
+	}
+
+	public long getDispatchedCount() {
+		return dispatchedCount.get();
+	}
+
+	public long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return average time in ms from dispatching an event until the listener
+	 *         returned
+	 */
+	public double getAverageLatency() {
+		long delivered = deliveredCount.get();
+		return (delivered == 0) ? 0 : totalLatency.get() / (delivered * 1000000.0);
+	}
+
+	/**
+	 * @return longest time in ms from dispatching an event until the listener
+	 *         returned
+	 */
+	public double getMaxLatency() {
+		return maxLatency.get() / 1000000.0;
+	}
+
+	/**
+	 * @return time spent in listener calls, without the time events were
+	 *         queued
+	 */
+	public EtcdLatencyHistogram getListenerTime() {
+		return listenerTime;
+	}
+
+	public String getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdEventDispatcher[policy=" + overflowPolicy + ", queueDepth=" + getQueueDepth() //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", maxQueueDepth=" + getMaxQueueDepth() + ", delivered=" + getDeliveredCount() + ", dropped=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ getDroppedCount() + ", avgLatency=" + getAverageLatency() + "ms]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,406 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs periodic heartbeats (e.g. etcd session refreshes) for any number of
+ * containers on a single daemon thread.
+ * <p>
+ * Heartbeats are kept in a hashed timer wheel, by default of
+ * {@link #WHEEL_SIZE} buckets of {@link #TICK} ms, so scheduling and
+ * cancelling cost O(1). The thread only
+ * wakes up when the next heartbeat is due. Heartbeat tasks run on the
+ * scheduler thread and must not block: blocking work such as an http request
+ * should be handed to an executor.
+ * <p>
+ * The lateness of every heartbeat (time between its deadline and when it
+ * actually ran) is recorded per heartbeat and over all heartbeats.
+ */
+public class EtcdHeartbeatScheduler {
+
+	/**
+	 * Default resolution of the wheel in ms.
+	 */
+	public static final long TICK = 100;
+	/**
+	 * Default number of buckets of the wheel.
+	 */
+	public static final int WHEEL_SIZE = 512;
+
+	private static EtcdHeartbeatScheduler defaultScheduler;
+
+	/**
+	 * @return the scheduler shared by all containers. Started on first use.
+	 */
+	public static synchronized EtcdHeartbeatScheduler getDefault() {
+		if (defaultScheduler == null)
+			defaultScheduler = new EtcdHeartbeatScheduler("EtcdHeartbeatScheduler"); //$NON-NLS-1$
+		return defaultScheduler;
+	}
+
+	public static synchronized void shutdownDefault() {
+		if (defaultScheduler != null) {
+			defaultScheduler.shutdown();
+			defaultScheduler = null;
+		}
+	}
+
+	/**
+	 * Handle of a scheduled heartbeat.
+	 */
+	public class Heartbeat {
+
+		private final Runnable task;
+		private final long period;
+		// deadline as System.nanoTime()
+		private long deadline;
+		// tick the deadline falls into
+		private long tick;
+		// bucket list links. Guarded by the scheduler
+		private Heartbeat prev;
+		private Heartbeat next;
+		private boolean scheduled;
+		private boolean cancelled;
+
+		private volatile long lastLateness;
+		private volatile long maxLateness;
+		private volatile long runCount;
+
+		Heartbeat(Runnable task, long period) {
+			this.task = task;
+			this.period = period;
+		}
+
+		/**
+		 * Stop running this heartbeat. A run that is in progress is not
+		 * interrupted.
+		 */
+		public void cancel() {
+			synchronized (EtcdHeartbeatScheduler.this) {
+				cancelled = true;
+				unlink(this);
+			}
+		}
+
+		public boolean isCancelled() {
+			synchronized (EtcdHeartbeatScheduler.this) {
+				return cancelled;
+			}
+		}
+
+		/**
+		 * @return period of this heartbeat in ms, 0 if it runs once
+		 */
+		public long getPeriod() {
+			return TimeUnit.NANOSECONDS.toMillis(period);
+		}
+
+		/**
+		 * @return ms between the deadline of the last run and when it actually
+		 *         started
+		 */
+		public long getLastLateness() {
+			return lastLateness;
+		}
+
+		/**
+		 * @return the highest {@link #getLastLateness()} seen
+		 */
+		public long getMaxLateness() {
+			return maxLateness;
+		}
+
+		public long getRunCount() {
+			return runCount;
+		}
+
+		void run(long now) {
+			long lateness = TimeUnit.NANOSECONDS.toMillis(now - deadline);
+			lastLateness = lateness;
+			if (lateness > maxLateness)
+				maxLateness = lateness;
+			runCount++;
+			recordLateness(lateness);
+			try {
+				task.run();
+			} catch (Throwable t) {
+				LogUtility.logError("run", DebugOptions.TTLJOB, EtcdHeartbeatScheduler.class, //$NON-NLS-1$
+						"Exception in heartbeat task=" + task, t); //$NON-NLS-1$
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Heartbeat[task=" + task + ", period=" + getPeriod() + ", lastLateness=" + lastLateness //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					+ ", maxLateness=" + maxLateness + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	private final long tickNanos;
+	private final int mask;
+	private final Heartbeat[] buckets;
+	private final long start = System.nanoTime();
+	private final Thread thread;
+	// last tick whose bucket has been processed
+	private long processedTick;
+	// tick the scheduler thread will wake up at, or Long.MAX_VALUE
+	private long wakeTick = Long.MAX_VALUE;
+	private int size;
+	private boolean shutdown;
+
+	private long runCount;
+	private long totalLateness;
+	private long maxLateness;
+
+	public EtcdHeartbeatScheduler(String name) {
+		this(name, TICK, WHEEL_SIZE);
+	}
+
+	/**
+	 * @param tick
+	 *            resolution of the wheel in ms
+	 * @param wheelSize
+	 *            number of buckets of the wheel. Must be a power of two.
+	 */
+	public EtcdHeartbeatScheduler(String name, long tick, int wheelSize) {
+		if (tick <= 0)
+			throw new IllegalArgumentException("tick must be > 0"); //$NON-NLS-1$
+		if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1)
+			throw new IllegalArgumentException("wheelSize must be a power of two"); //$NON-NLS-1$
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+		mask = wheelSize - 1;
+		buckets = new Heartbeat[wheelSize];
+		thread = new Thread(new Runnable() {
+			public void run() {
+				runLoop();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Run the given task every <code>period</code> ms, the first time after
+	 * <code>initialDelay</code> ms. Runs are scheduled at a fixed rate; runs
+	 * missed because the scheduler was late are skipped rather than run back
+	 * to back.
+	 *
+	 * @return handle to cancel the heartbeat and read its lateness
+	 */
+	public Heartbeat schedule(Runnable task, long initialDelay, long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("period must be > 0"); //$NON-NLS-1$
+		return schedule(new Heartbeat(task, TimeUnit.MILLISECONDS.toNanos(period)), initialDelay);
+	}
+
+	/**
+	 * Run the given task once, after <code>delay</code> ms.
+	 *
+	 * @return handle to cancel the task
+	 */
+	public Heartbeat schedule(Runnable task, long delay) {
+		return schedule(new Heartbeat(task, 0), delay);
+	}
+
+	private Heartbeat schedule(Heartbeat heartbeat, long initialDelay) {
+		synchronized (this) {
+			if (shutdown)
+				throw new IllegalStateException("Scheduler has been shut down"); //$NON-NLS-1$
+			heartbeat.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, initialDelay));
+			link(heartbeat);
+		}
+		return heartbeat;
+	}
+
+	public void shutdown() {
+		synchronized (this) {
+			shutdown = true;
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = null;
+			size = 0;
+			notifyAll();
+		}
+	}
+
+	// deadlines are rounded up and the current time down, so that a
+	// heartbeat never runs before its deadline
+	private long deadlineTick(long nanos) {
+		return (nanos - start + tickNanos - 1) / tickNanos;
+	}
+
+	private long currentTick(long nanos) {
+		return (nanos - start) / tickNanos;
+	}
+
+	private void link(Heartbeat heartbeat) {
+		heartbeat.tick = Math.max(deadlineTick(heartbeat.deadline), processedTick + 1);
+		int index = (int) (heartbeat.tick & mask);
+		Heartbeat head = buckets[index];
+		heartbeat.prev = null;
+		heartbeat.next = head;
+		if (head != null)
+			head.prev = heartbeat;
+		buckets[index] = heartbeat;
+		heartbeat.scheduled = true;
+		size++;
+		if (heartbeat.tick < wakeTick)
+			notifyAll();
+	}
+
+	private void unlink(Heartbeat heartbeat) {
+		if (!heartbeat.scheduled)
+			return;
+		if (heartbeat.prev != null)
+			heartbeat.prev.next = heartbeat.next;
+		else
+			buckets[(int) (heartbeat.tick & mask)] = heartbeat.next;
+		if (heartbeat.next != null)
+			heartbeat.next.prev = heartbeat.prev;
+		heartbeat.prev = null;
+		heartbeat.next = null;
+		heartbeat.scheduled = false;
+		size--;
+	}
+
+	/**
+	 * Unlink and return all heartbeats due at or before the given tick.
+	 */
+	private List<Heartbeat> expire(long now) {
+		List<Heartbeat> due = null;
+		// after a long pause every bucket may hold due heartbeats
+		long first = Math.max(processedTick + 1, now - buckets.length + 1);
+		for (long t = first; t <= now; t++) {
+			Heartbeat heartbeat = buckets[(int) (t & mask)];
+			while (heartbeat != null) {
+				Heartbeat next = heartbeat.next;
+				if (heartbeat.tick <= now) {
+					unlink(heartbeat);
+					if (due == null)
+						due = new ArrayList<Heartbeat>();
+					due.add(heartbeat);
+				}
+				heartbeat = next;
+			}
+		}
+		processedTick = now;
+		return due;
+	}
+
+	/**
+	 * @return the tick of the next due heartbeat, or Long.MAX_VALUE if none
+	 */
+	private long nextTick() {
+		if (size == 0)
+			return Long.MAX_VALUE;
+		long result = Long.MAX_VALUE;
+		// heartbeats due within one revolution are in the next buckets
+		for (int i = 1; i <= buckets.length; i++) {
+			long t = processedTick + i;
+			for (Heartbeat heartbeat = buckets[(int) (t & mask)]; heartbeat != null; heartbeat = heartbeat.next) {
+				if (heartbeat.tick == t)
+					return t;
+				if (heartbeat.tick < result)
+					result = heartbeat.tick;
+			}
+		}
+		return result;
+	}
+
+	void runLoop() {
+		while (true) {
+			List<Heartbeat> due;
+			synchronized (this) {
+				if (shutdown)
+					return;
+				due = expire(currentTick(System.nanoTime()));
+				if (due == null) {
+					wakeTick = nextTick();
+					try {
+						if (wakeTick == Long.MAX_VALUE)
+							wait();
+						else {
+							long delay = start + wakeTick * tickNanos - System.nanoTime();
+							if (delay > 0)
+								TimeUnit.NANOSECONDS.timedWait(this, delay);
+						}
+					} catch (InterruptedException e) {
+						return;
+					} finally {
+						wakeTick = Long.MAX_VALUE;
+					}
+					continue;
+				}
+			}
+			for (Heartbeat heartbeat : due) {
+				synchronized (this) {
+					// cancelled by an earlier task of the same tick
+					if (heartbeat.cancelled || shutdown)
+						continue;
+				}
+				long now = System.nanoTime();
+				heartbeat.run(now);
+				synchronized (this) {
+					// a period of 0 runs once
+					if (heartbeat.cancelled || shutdown || heartbeat.period == 0)
+						continue;
+					heartbeat.deadline += heartbeat.period;
+					now = System.nanoTime();
+					if (heartbeat.deadline <= now)
+						heartbeat.deadline += ((now - heartbeat.deadline) / heartbeat.period + 1) * heartbeat.period;
+					link(heartbeat);
+				}
+			}
+		}
+	}
+
+	synchronized void recordLateness(long lateness) {
+		runCount++;
+		totalLateness += lateness;
+		if (lateness > maxLateness)
+			maxLateness = lateness;
+	}
+
+	/**
+	 * @return number of scheduled heartbeats
+	 */
+	public synchronized int getHeartbeatCount() {
+		return size;
+	}
+
+	/**
+	 * @return number of heartbeat runs
+	 */
+	public synchronized long getRunCount() {
+		return runCount;
+	}
+
+	/**
+	 * @return average lateness in ms of all heartbeat runs
+	 */
+	public synchronized double getAverageLateness() {
+		return (runCount == 0) ? 0 : (double) totalLateness / runCount;
+	}
+
+	/**
+	 * @return highest lateness in ms of any heartbeat run
+	 */
+	public synchronized long getMaxLateness() {
+		return maxLateness;
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdHeartbeatScheduler[heartbeats=" + getHeartbeatCount() + ", runs=" + getRunCount() //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", avgLateness=" + getAverageLateness() + "ms, maxLateness=" + getMaxLateness() + "ms]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
@@ -0,0 +1,425 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.ecf.discovery.IServiceProperties;
+import org.eclipse.ecf.discovery.ServiceProperties;
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.discovery.identity.ServiceIDFactory;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdBase64;
+import org.eclipse.ecf.provider.etcd.EtcdServiceInfo;
+import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
+
+/**
+ * Compact binary encoding of {@link EtcdServiceInfo}, as an alternative to
+ * the json written by {@link EtcdServiceInfo#serializeToJsonString()}.
+ * <p>
+ * The encoded service info starts with a format version and flags byte,
+ * followed by the fields as varints and length prefixed UTF-8 strings. Every
+ * string is written once: later occurrences, and the well known strings of
+ * {@link #DICTIONARY}, are written as a reference into the string table.
+ * byte[] properties are written as is. Bodies larger than
+ * {@link #DEFLATE_THRESHOLD} bytes are deflated if that makes them smaller.
+ * As etcd values are strings, the result is base64 encoded and prefixed with
+ * {@link #PREFIX}. Json values never start with the prefix, so readers can
+ * detect the format with {@link #isBinary(String)}.
+ */
+public class EtcdServiceInfoCodec {
+
+	/**
+	 * Prefix of binary encoded values.
+	 */
+	public static final String PREFIX = "ecfb:"; //$NON-NLS-1$
+
+	public static final int VERSION = 1;
+
+	/**
+	 * Minimum body size in bytes for deflating.
+	 */
+	public static final int DEFLATE_THRESHOLD = 512;
+
+	/**
+	 * Maximum size in bytes of an inflated body: 8 times the largest value
+	 * etcd accepts by default (1.5 MiB), far more than deflate gains on a
+	 * service info. Larger bodies are rejected rather than inflated.
+	 */
+	public static final int MAX_INFLATED_SIZE = 8 * 1536 * 1024;
+
+	/**
+	 * Strings that are part of the string table of every service info. The
+	 * table of a format version must never change, new strings can only be
+	 * added with a new version.
+	 */
+	static final String[] DICTIONARY = { "objectClass", "endpoint.id", "endpoint.service.id", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			"endpoint.framework.uuid", "service.imported", "service.imported.configs", "service.intents", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			"service.exported.configs", "service.exported.intents", "service.exported.intents.extra", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			"service.exported.interfaces", "remote.configs.supported", "remote.intents.supported", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			"ecf.endpoint.id", "ecf.endpoint.id.ns", "ecf.endpoint.ts", "ecf.rsvc.id", "ecf.rsvc.ns", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+			"ecf.endpoint.connecttarget.id", "ecf.endpoint.idfilter.ids", "ecf.endpoint.rsfilter", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			"ecf.exported.async.interfaces", "ecf.service.remote.container.id", //$NON-NLS-1$ //$NON-NLS-2$
+			"ecf.namespace.generic.remote", "ecf.generic.server", "ecf.generic.client", "osgirsvc", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			"ecftcp", "default", "tcp", "iana", "passByValue", "exactlyOnce", "ordered" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+
+	private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<String, Integer>();
+
+	static {
+		for (int i = 0; i < DICTIONARY.length; i++)
+			DICTIONARY_INDEX.put(DICTIONARY[i], Integer.valueOf(i));
+	}
+
+	private static final int FLAG_DEFLATED = 0x01;
+
+	// string tags. Higher tags reference entry tag - STRING_REF of the table
+	private static final int STRING_NULL = 0;
+	private static final int STRING_LITERAL = 1;
+	private static final int STRING_REF = 2;
+
+	// property value types
+	private static final int TYPE_STRING = 1;
+	private static final int TYPE_BYTES = 2;
+	private static final int TYPE_INTEGER = 3;
+	private static final int TYPE_LONG = 4;
+	private static final int TYPE_BOOLEAN = 5;
+	private static final int TYPE_DOUBLE = 6;
+	private static final int TYPE_FLOAT = 7;
+
+	public static boolean isBinary(String value) {
+		return value != null && value.startsWith(PREFIX);
+	}
+
+	/**
+	 * @return the encoded service info, or <code>null</code> if it has a
+	 *         property value that has no binary representation, in which case
+	 *         json has to be used
+	 */
+	public static String encode(EtcdServiceInfo serviceInfo) {
+		Writer w = new Writer();
+		w.writeString(serviceInfo.getLocation().toString());
+		w.writeVarLong(zigZag(serviceInfo.getPriority()));
+		w.writeVarLong(zigZag(serviceInfo.getWeight()));
+		w.writeString(serviceInfo.getServiceName());
+		w.writeVarLong(zigZag(serviceInfo.getTTL()));
+		IServiceTypeID stid = serviceInfo.getServiceID().getServiceTypeID();
+		w.writeStrings(stid.getServices());
+		w.writeStrings(stid.getScopes());
+		w.writeStrings(stid.getProtocols());
+		w.writeString(stid.getNamingAuthority());
+		IServiceProperties properties = serviceInfo.getServiceProperties();
+		List<String> names = new ArrayList<String>();
+		for (Enumeration<?> e = properties.getPropertyNames(); e.hasMoreElements();) {
+			String name = (String) e.nextElement();
+			if (properties.getProperty(name) != null)
+				names.add(name);
+		}
+		w.writeVarLong(names.size());
+		for (String name : names) {
+			byte[] bytes = properties.getPropertyBytes(name);
+			String s = (bytes == null) ? properties.getPropertyString(name) : null;
+			Object value = properties.getProperty(name);
+			if (bytes != null) {
+				w.write(TYPE_BYTES);
+				w.writeString(name);
+				w.writeVarLong(bytes.length);
+				w.write(bytes, 0, bytes.length);
+			} else if (s != null) {
+				w.write(TYPE_STRING);
+				w.writeString(name);
+				w.writeString(s);
+			} else if (value instanceof Integer) {
+				w.write(TYPE_INTEGER);
+				w.writeString(name);
+				w.writeVarLong(zigZag(((Integer) value).intValue()));
+			} else if (value instanceof Long) {
+				w.write(TYPE_LONG);
+				w.writeString(name);
+				w.writeVarLong(zigZag(((Long) value).longValue()));
+			} else if (value instanceof Boolean) {
+				w.write(TYPE_BOOLEAN);
+				w.writeString(name);
+				w.write(((Boolean) value).booleanValue() ? 1 : 0);
+			} else if (value instanceof Double) {
+				w.write(TYPE_DOUBLE);
+				w.writeString(name);
+				w.writeFixed(Double.doubleToLongBits(((Double) value).doubleValue()), 8);
+			} else if (value instanceof Float) {
+				w.write(TYPE_FLOAT);
+				w.writeString(name);
+				w.writeFixed(Float.floatToIntBits(((Float) value).floatValue()), 4);
+			} else
+				return null;
+		}
+		byte[] body = w.toByteArray();
+		int flags = 0;
+		if (body.length > DEFLATE_THRESHOLD) {
+			byte[] deflated = deflate(body);
+			if (deflated.length < body.length) {
+				body = deflated;
+				flags |= FLAG_DEFLATED;
+			}
+		}
+		byte[] result = new byte[body.length + 2];
+		result[0] = (byte) VERSION;
+		result[1] = (byte) flags;
+		System.arraycopy(body, 0, result, 2, body.length);
+		return PREFIX + EtcdBase64.encode(result);
+	}
+
+	/**
+	 * @throws IOException
+	 *             if the value is not a valid binary encoded service info of
+	 *             a supported version
+	 */
+	public static EtcdServiceInfo decode(String value) throws IOException {
+		if (!isBinary(value))
+			throw new IOException("Not a binary encoded service info"); //$NON-NLS-1$
+		byte[] data;
+		try {
+			data = EtcdBase64.decode(value.substring(PREFIX.length()));
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+		if (data.length < 2)
+			throw new IOException("Binary encoded service info too short"); //$NON-NLS-1$
+		int version = data[0] & 0xff;
+		if (version != VERSION)
+			throw new IOException("Unsupported binary service info version " + version); //$NON-NLS-1$
+		int flags = data[1] & 0xff;
+		byte[] body = Arrays.copyOfRange(data, 2, data.length);
+		if ((flags & FLAG_DEFLATED) != 0)
+			body = inflate(body);
+		Reader r = new Reader(body);
+		URI location;
+		try {
+			location = new URI(r.readString());
+		} catch (URISyntaxException e) {
+			throw new IOException(e.getMessage());
+		}
+		int priority = (int) unZigZag(r.readVarLong());
+		int weight = (int) unZigZag(r.readVarLong());
+		String serviceName = r.readString();
+		long ttl = unZigZag(r.readVarLong());
+		String[] services = r.readStrings();
+		String[] scopes = r.readStrings();
+		String[] protocols = r.readStrings();
+		String namingAuth = r.readString();
+		IServiceTypeID serviceTypeID = ServiceIDFactory.getDefault().createServiceTypeID(EtcdNamespace.INSTANCE,
+				services, scopes, protocols, namingAuth);
+		IServiceProperties props = new ServiceProperties();
+		int count = r.readLength();
+		for (int i = 0; i < count; i++) {
+			int type = r.read();
+			String name = r.readString();
+			switch (type) {
+			case TYPE_STRING:
+				props.setPropertyString(name, r.readString());
+				break;
+			case TYPE_BYTES:
+				props.setPropertyBytes(name, r.readBytes(r.readLength()));
+				break;
+			case TYPE_INTEGER:
+				props.setProperty(name, Integer.valueOf((int) unZigZag(r.readVarLong())));
+				break;
+			case TYPE_LONG:
+				props.setProperty(name, Long.valueOf(unZigZag(r.readVarLong())));
+				break;
+			case TYPE_BOOLEAN:
+				props.setProperty(name, Boolean.valueOf(r.read() != 0));
+				break;
+			case TYPE_DOUBLE:
+				props.setProperty(name, Double.valueOf(Double.longBitsToDouble(r.readFixed(8))));
+				break;
+			case TYPE_FLOAT:
+				props.setProperty(name, Float.valueOf(Float.intBitsToFloat((int) r.readFixed(4))));
+				break;
+			default:
+				throw new IOException("Unknown property type " + type + " of property " + name); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		return new EtcdServiceInfo(location, serviceName, serviceTypeID, priority, weight, props, ttl);
+	}
+
+	private static long zigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length);
+			byte[] buf = new byte[1024];
+			while (!deflater.finished())
+				bos.write(buf, 0, deflater.deflate(buf));
+			return bos.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] data) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.min(data.length * 3, MAX_INFLATED_SIZE));
+			byte[] buf = new byte[1024];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buf);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Truncated deflated service info"); //$NON-NLS-1$
+				if (bos.size() + n > MAX_INFLATED_SIZE)
+					throw new IOException("Deflated service info larger than " + MAX_INFLATED_SIZE + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+				bos.write(buf, 0, n);
+			}
+			return bos.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	static class Writer extends ByteArrayOutputStream {
+
+		private final Map<String, Integer> table = new HashMap<String, Integer>();
+
+		Writer() {
+			super(256);
+		}
+
+		void writeVarLong(long v) {
+			while ((v & ~0x7fL) != 0) {
+				write((int) ((v & 0x7f) | 0x80));
+				v >>>= 7;
+			}
+			write((int) v);
+		}
+
+		void writeFixed(long v, int bytes) {
+			for (int i = bytes - 1; i >= 0; i--)
+				write((int) (v >>> (i * 8)));
+		}
+
+		void writeString(String s) {
+			if (s == null) {
+				writeVarLong(STRING_NULL);
+				return;
+			}
+			Integer ref = DICTIONARY_INDEX.get(s);
+			if (ref == null)
+				ref = table.get(s);
+			if (ref != null) {
+				writeVarLong(STRING_REF + ref.intValue());
+				return;
+			}
+			writeVarLong(STRING_LITERAL);
+			byte[] bytes = s.getBytes(EtcdBase64.UTF8);
+			writeVarLong(bytes.length);
+			write(bytes, 0, bytes.length);
+			table.put(s, Integer.valueOf(DICTIONARY.length + table.size()));
+		}
+
+		void writeStrings(String[] strings) {
+			writeVarLong(strings.length);
+			for (String s : strings)
+				writeString(s);
+		}
+	}
+
+	static class Reader {
+
+		private final byte[] data;
+		private final List<String> table = new ArrayList<String>(Arrays.asList(DICTIONARY));
+		private int pos;
+
+		Reader(byte[] data) {
+			this.data = data;
+		}
+
+		int read() throws IOException {
+			if (pos >= data.length)
+				throw new IOException("Unexpected end of binary service info"); //$NON-NLS-1$
+			return data[pos++] & 0xff;
+		}
+
+		long readVarLong() throws IOException {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				result |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return result;
+			}
+			throw new IOException("Malformed varint in binary service info"); //$NON-NLS-1$
+		}
+
+		long readFixed(int bytes) throws IOException {
+			long result = 0;
+			for (int i = 0; i < bytes; i++)
+				result = (result << 8) | read();
+			return result;
+		}
+
+		int readLength() throws IOException {
+			long length = readVarLong();
+			if (length < 0 || length > data.length - pos)
+				throw new IOException("Invalid length " + length + " in binary service info"); //$NON-NLS-1$ //$NON-NLS-2$
+			return (int) length;
+		}
+
+		byte[] readBytes(int length) {
+			byte[] result = Arrays.copyOfRange(data, pos, pos + length);
+			pos += length;
+			return result;
+		}
+
+		String readString() throws IOException {
+			long tag = readVarLong();
+			if (tag == STRING_NULL)
+				return null;
+			if (tag == STRING_LITERAL) {
+				int length = readLength();
+				String s = new String(data, pos, length, EtcdBase64.UTF8);
+				pos += length;
+				table.add(s);
+				return s;
+			}
+			long ref = tag - STRING_REF;
+			if (ref >= table.size())
+				throw new IOException("Invalid string reference " + ref + " in binary service info"); //$NON-NLS-1$ //$NON-NLS-2$
+			return table.get((int) ref);
+		}
+
+		String[] readStrings() throws IOException {
+			int count = readLength();
+			String[] result = new String[count];
+			for (int i = 0; i < count; i++)
+				result[i] = readString();
+			return result;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.eclipse.ecf.provider.etcd.EtcdServiceInfo;
+import org.json.JSONException;
+
+/**
+ * Decodes many etcd values into service infos on a fork/join pool, e.g. the
+ * content of the discovery directory when a container connects. The values
+ * are split in halves until at most {@link #THRESHOLD} remain for a task.
+ */
+public class EtcdServiceInfoDecoder extends RecursiveAction {
+
+	private static final long serialVersionUID = -3394817315260462451L;
+
+	/**
+	 * Number of values decoded by one task without splitting.
+	 */
+	public static final int THRESHOLD = 64;
+
+	private final String[] values;
+	private final EtcdServiceInfo[] infos;
+	private final JSONException[] errors;
+	private final int from;
+	private final int to;
+
+	private EtcdServiceInfoDecoder(String[] values, EtcdServiceInfo[] infos, JSONException[] errors, int from,
+			int to) {
+		this.values = values;
+		this.infos = infos;
+		this.errors = errors;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= THRESHOLD) {
+			decodeAll();
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		invokeAll(new EtcdServiceInfoDecoder(values, infos, errors, from, middle),
+				new EtcdServiceInfoDecoder(values, infos, errors, middle, to));
+	}
+
+	private void decodeAll() {
+		for (int i = from; i < to; i++)
+			try {
+				infos[i] = EtcdServiceInfo.deserialize(values[i]);
+			} catch (JSONException e) {
+				errors[i] = e;
+			}
+	}
+
+	/**
+	 * Decode the given values.
+	 *
+	 * @param pool
+	 *            pool to decode on, or <code>null</code> to decode on the
+	 *            calling thread. Few values are always decoded on the calling
+	 *            thread.
+	 * @param infos
+	 *            receives the service info of each value, or <code>null</code>
+	 *            if the value could not be decoded
+	 * @param errors
+	 *            receives the error of each value that could not be decoded
+	 */
+	public static void decode(ForkJoinPool pool, String[] values, EtcdServiceInfo[] infos, JSONException[] errors) {
+		EtcdServiceInfoDecoder task = new EtcdServiceInfoDecoder(values, infos, errors, 0, values.length);
+		if (pool == null || values.length <= THRESHOLD)
+			task.decodeAll();
+		else if (ForkJoinTask.inForkJoinPool())
+			// already running on the pool, e.g. the initial read
+			task.invoke();
+		else
+			pool.invoke(task);
+	}
+}
@@ -0,0 +1,586 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.identity.IServiceID;
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.provider.etcd.EtcdServiceInfo;
+
+/**
+ * Discovered and registered services of a discovery container, indexed by
+ * key, service type, service id and session id.
+ * <p>
+ * Lookups by type, service id and session only touch the matching entries.
+ * Readers never lock: all indexes are concurrent maps. Writers are serialized
+ * on an internal lock so that the indexes are updated together.
+ * <p>
+ * The list queries ({@link #getServices()}, {@link #getServices(IServiceTypeID)}
+ * and {@link #getServiceTypes()}) are answered from an immutable
+ * {@link Snapshot}. Changes only become visible to these queries when
+ * {@link #publish()} is called, so that a batch of changes (e.g. one watch
+ * event, or the initial read of the discovery directory) is published at once
+ * and readers always see a consistent view. Reading a snapshot neither locks
+ * nor allocates, except for the first read of all services after a publish,
+ * which builds their array from the per type arrays.
+ * <p>
+ * Changes carry the etcd modified index of the value they were read from.
+ * A change older than the stored service, or than the removal of its key, is
+ * ignored, so that events may be applied from more than one source (e.g. the
+ * watch and a resync read, or overlapping watches) and more than once.
+ * Removals are remembered by key until pruned with
+ * {@link #pruneRemoved(int)}.
+ *
+ * @param <K>
+ *            key type. Must implement equals and hashCode.
+ */
+public class EtcdServiceRegistry<K> {
+
+	private static class Entry {
+		final String sessionId;
+		final EtcdServiceInfo info;
+		// etcd index and fingerprint of the value the info was read from.
+		// Updated without reindexing when an unchanged value is seen again
+		volatile int modifiedIndex;
+		volatile long fingerprint;
+
+		Entry(String sessionId, EtcdServiceInfo info, int modifiedIndex, long fingerprint) {
+			this.sessionId = sessionId;
+			this.info = info;
+			this.modifiedIndex = modifiedIndex;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	/**
+	 * Fingerprint for no known value.
+	 */
+	public static final long NO_FINGERPRINT = 0;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * @return 64 bit FNV-1a hash of the given etcd value, used to recognize
+	 *         unchanged values without deserializing them. Never
+	 *         {@link #NO_FINGERPRINT}.
+	 */
+	public static long fingerprint(String value) {
+		if (value == null)
+			return NO_FINGERPRINT;
+		long hash = FNV_OFFSET;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		return (hash == NO_FINGERPRINT) ? 1 : hash;
+	}
+
+	/**
+	 * Immutable view of the registry at one version. The arrays returned are
+	 * shared by all readers and must not be modified. The lists returned are
+	 * unmodifiable views of them.
+	 */
+	public static final class Snapshot {
+
+		static final IServiceInfo[] NO_SERVICES = new IServiceInfo[0];
+		static final IServiceTypeID[] NO_TYPES = new IServiceTypeID[0];
+		static final Snapshot EMPTY = new Snapshot(0, Collections.<IServiceTypeID, IServiceInfo[]> emptyMap(),
+				NO_TYPES, 0);
+
+		private final long version;
+		private final Map<IServiceTypeID, IServiceInfo[]> servicesByType;
+		private final IServiceTypeID[] serviceTypes;
+		private final int serviceCount;
+		// all services, concatenated from the per type arrays on first use, so
+		// that publishing a change costs the size of the changed types only
+		private volatile IServiceInfo[] services;
+		// views of the arrays, created on first use
+		private volatile List<IServiceInfo> serviceList;
+		private volatile List<IServiceTypeID> serviceTypeList;
+
+		Snapshot(long version, Map<IServiceTypeID, IServiceInfo[]> servicesByType, IServiceTypeID[] serviceTypes,
+				int serviceCount) {
+			this.version = version;
+			this.servicesByType = servicesByType;
+			this.serviceTypes = serviceTypes;
+			this.serviceCount = serviceCount;
+		}
+
+		/**
+		 * @return version of this snapshot. Incremented by every publish that
+		 *         had changes to publish.
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		public IServiceInfo[] getServices() {
+			IServiceInfo[] result = services;
+			if (result == null)
+				synchronized (this) {
+					result = services;
+					if (result == null) {
+						result = new IServiceInfo[serviceCount];
+						int length = 0;
+						for (IServiceTypeID type : serviceTypes) {
+							IServiceInfo[] typeServices = servicesByType.get(type);
+							System.arraycopy(typeServices, 0, result, length, typeServices.length);
+							length += typeServices.length;
+						}
+						services = result;
+					}
+				}
+			return result;
+		}
+
+		public int getServiceCount() {
+			return serviceCount;
+		}
+
+		public IServiceInfo[] getServices(IServiceTypeID serviceTypeID) {
+			IServiceInfo[] result = servicesByType.get(serviceTypeID);
+			return (result == null) ? NO_SERVICES : result;
+		}
+
+		public IServiceTypeID[] getServiceTypes() {
+			return serviceTypes;
+		}
+
+		public List<IServiceInfo> getServiceList() {
+			List<IServiceInfo> list = serviceList;
+			if (list == null)
+				serviceList = list = Collections.unmodifiableList(Arrays.asList(getServices()));
+			return list;
+		}
+
+		public List<IServiceInfo> getServiceList(IServiceTypeID serviceTypeID) {
+			return Collections.unmodifiableList(Arrays.asList(getServices(serviceTypeID)));
+		}
+
+		public List<IServiceTypeID> getServiceTypeList() {
+			List<IServiceTypeID> list = serviceTypeList;
+			if (list == null)
+				serviceTypeList = list = Collections.unmodifiableList(Arrays.asList(serviceTypes));
+			return list;
+		}
+
+		@Override
+		public String toString() {
+			return "Snapshot[version=" + version + ", services=" + serviceCount + ", types=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					+ serviceTypes.length + "]"; //$NON-NLS-1$
+		}
+	}
+
+	private final Object writeLock = new Object();
+	private final ConcurrentMap<K, Entry> entries = new ConcurrentHashMap<K, Entry>();
+	private final ConcurrentMap<IServiceTypeID, ConcurrentMap<K, EtcdServiceInfo>> byType = new ConcurrentHashMap<IServiceTypeID, ConcurrentMap<K, EtcdServiceInfo>>();
+	private final ConcurrentMap<IServiceID, ConcurrentMap<K, EtcdServiceInfo>> byServiceID = new ConcurrentHashMap<IServiceID, ConcurrentMap<K, EtcdServiceInfo>>();
+	private final ConcurrentMap<String, ConcurrentMap<K, EtcdServiceInfo>> bySession = new ConcurrentHashMap<String, ConcurrentMap<K, EtcdServiceInfo>>();
+
+	private volatile Snapshot snapshot = Snapshot.EMPTY;
+	// types changed since the last publish. Guarded by writeLock
+	private final Set<IServiceTypeID> changedTypes = new HashSet<IServiceTypeID>();
+	private boolean changed;
+	// modified index each removed key was removed at, oldest first. Guarded
+	// by writeLock
+	private final LinkedHashMap<K, Integer> removedIndexes = new LinkedHashMap<K, Integer>();
+
+	/**
+	 * Add or replace the service with the given key. The change is visible to
+	 * the list queries after the next {@link #publish()}.
+	 *
+	 * @param key
+	 *            key of the service. Must not be <code>null</code>.
+	 * @param sessionId
+	 *            id of the session that registered the service. Must not be
+	 *            <code>null</code>.
+	 * @param info
+	 *            the service. Must not be <code>null</code>.
+	 * @return the service previously stored with the key, or <code>null</code>
+	 */
+	public EtcdServiceInfo put(K key, String sessionId, EtcdServiceInfo info) {
+		return put(key, sessionId, info, 0, NO_FINGERPRINT);
+	}
+
+	/**
+	 * Add or replace the service with the given key, read from an etcd value
+	 * with the given modified index and {@link #fingerprint(String)}, unless
+	 * the change is stale: older than the stored service or than the removal
+	 * of the key.
+	 *
+	 * @param modifiedIndex
+	 *            modified index of the value, or 0 if not known. A change
+	 *            with an unknown index is never stale.
+	 * @return the service previously stored with the key, <code>null</code>
+	 *         if there was none, or <code>info</code> if the change was stale
+	 *         and ignored
+	 * @see #put(Object, String, EtcdServiceInfo)
+	 */
+	public EtcdServiceInfo put(K key, String sessionId, EtcdServiceInfo info, int modifiedIndex, long fingerprint) {
+		synchronized (writeLock) {
+			if (isStale(key, modifiedIndex))
+				return info;
+			removedIndexes.remove(key);
+			Entry old = entries.put(key, new Entry(sessionId, info, modifiedIndex, fingerprint));
+			if (old != null)
+				unindex(key, old);
+			IServiceID serviceID = info.getServiceID();
+			IServiceTypeID type = serviceID.getServiceTypeID();
+			changedTypes.add(type);
+			changed = true;
+			index(byType, type, key, info);
+			index(byServiceID, serviceID, key, info);
+			index(bySession, sessionId, key, info);
+			return (old == null) ? null : old.info;
+		}
+	}
+
+	/**
+	 * Check whether the service with the given key was read from the same
+	 * value, and if so record the new modified index. Costs one lookup and a
+	 * compare, no deserialization.
+	 *
+	 * @param fingerprint
+	 *            fingerprint of the new value
+	 * @param previousFingerprint
+	 *            fingerprint of the value etcd replaced (from the prevNode of
+	 *            the change), or {@link #NO_FINGERPRINT}. Only used if the
+	 *            fingerprint of the stored service is not known.
+	 * @return <code>true</code> if the value is unchanged
+	 */
+	public boolean isUnchanged(K key, long fingerprint, long previousFingerprint, int modifiedIndex) {
+		if (fingerprint == NO_FINGERPRINT)
+			return false;
+		synchronized (writeLock) {
+			Entry entry = entries.get(key);
+			if (entry == null)
+				return false;
+			long known = entry.fingerprint;
+			if (known != fingerprint && (known != NO_FINGERPRINT || previousFingerprint != fingerprint))
+				return false;
+			entry.fingerprint = fingerprint;
+			if (modifiedIndex > entry.modifiedIndex)
+				entry.modifiedIndex = modifiedIndex;
+			return true;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if a change of the given key with the given
+	 *         modified index is older than the stored service, or not newer
+	 *         than the removal of the key
+	 */
+	public boolean isStale(K key, int modifiedIndex) {
+		if (modifiedIndex <= 0)
+			return false;
+		Entry entry = entries.get(key);
+		if (entry != null)
+			return entry.modifiedIndex > modifiedIndex;
+		synchronized (writeLock) {
+			Integer removed = removedIndexes.get(key);
+			return removed != null && removed.intValue() >= modifiedIndex;
+		}
+	}
+
+	/**
+	 * @return etcd modified index of the value the service with the given key
+	 *         was read from, 0 if not known, or -1 if there is no such service
+	 */
+	public int getModifiedIndex(K key) {
+		Entry entry = entries.get(key);
+		return (entry == null) ? -1 : entry.modifiedIndex;
+	}
+
+	/**
+	 * @return copy of the keys of all stored services, published or not
+	 */
+	public List<K> getKeys() {
+		return new ArrayList<K>(entries.keySet());
+	}
+
+	/**
+	 * @return <code>true</code> if any service of the given type is stored,
+	 *         published or not
+	 */
+	public boolean hasServiceType(IServiceTypeID serviceTypeID) {
+		return byType.containsKey(serviceTypeID);
+	}
+
+	/**
+	 * Remove the service with the given key. The change is visible to the list
+	 * queries after the next {@link #publish()}.
+	 *
+	 * @return the removed service, or <code>null</code> if there was none
+	 */
+	public EtcdServiceInfo remove(K key) {
+		return remove(key, 0);
+	}
+
+	/**
+	 * Remove the service with the given key, unless it was read from a value
+	 * newer than the removal. The removal is remembered, so that older changes
+	 * of the key do not add the service again.
+	 *
+	 * @param modifiedIndex
+	 *            etcd index of the removal, or 0 if not known. A removal with
+	 *            an unknown index always removes the service and is not
+	 *            remembered.
+	 * @return the removed service, or <code>null</code> if there was none or
+	 *         it is newer than the removal
+	 */
+	public EtcdServiceInfo remove(K key, int modifiedIndex) {
+		synchronized (writeLock) {
+			Entry old = entries.get(key);
+			if (old != null && modifiedIndex > 0 && old.modifiedIndex > modifiedIndex)
+				return null;
+			if (modifiedIndex > 0) {
+				Integer removed = removedIndexes.remove(key);
+				removedIndexes.put(key,
+						Integer.valueOf((removed == null) ? modifiedIndex : Math.max(removed.intValue(), modifiedIndex)));
+			}
+			if (old == null)
+				return null;
+			entries.remove(key);
+			unindex(key, old);
+			return old.info;
+		}
+	}
+
+	/**
+	 * Forget the removals older than the given index. Changes older than them
+	 * are no longer recognized as stale.
+	 */
+	public void pruneRemoved(int index) {
+		synchronized (writeLock) {
+			// removals are remembered in about index order
+			for (Iterator<Integer> i = removedIndexes.values().iterator(); i.hasNext();) {
+				if (i.next().intValue() >= index)
+					return;
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return number of remembered removals
+	 */
+	public int getRemovedCount() {
+		synchronized (writeLock) {
+			return removedIndexes.size();
+		}
+	}
+
+	/**
+	 * Remove all services registered by the given session.
+	 *
+	 * @return the removed services by key. Will not be <code>null</code>.
+	 */
+	public Map<K, EtcdServiceInfo> removeSession(String sessionId) {
+		return removeSession(sessionId, 0);
+	}
+
+	/**
+	 * Remove the services registered by the given session, like
+	 * {@link #remove(Object, int)} for each of them.
+	 *
+	 * @return the removed services by key. Will not be <code>null</code>.
+	 */
+	public Map<K, EtcdServiceInfo> removeSession(String sessionId, int modifiedIndex) {
+		synchronized (writeLock) {
+			Map<K, EtcdServiceInfo> removed = new HashMap<K, EtcdServiceInfo>();
+			ConcurrentMap<K, EtcdServiceInfo> sessionServices = bySession.get(sessionId);
+			if (sessionServices == null)
+				return removed;
+			for (K key : new ArrayList<K>(sessionServices.keySet())) {
+				EtcdServiceInfo info = remove(key, modifiedIndex);
+				if (info != null)
+					removed.put(key, info);
+			}
+			return removed;
+		}
+	}
+
+	/**
+	 * Remove all services and publish the empty registry.
+	 */
+	public void clear() {
+		synchronized (writeLock) {
+			entries.clear();
+			removedIndexes.clear();
+			byType.clear();
+			byServiceID.clear();
+			bySession.clear();
+			changedTypes.clear();
+			changed = false;
+			snapshot = new Snapshot(snapshot.getVersion() + 1,
+					Collections.<IServiceTypeID, IServiceInfo[]> emptyMap(), Snapshot.NO_TYPES, 0);
+		}
+	}
+
+	/**
+	 * Make all changes since the last publish visible to the list queries.
+	 * Only the per type views of changed types are rebuilt. The view of all
+	 * services is built when it is first read.
+	 *
+	 * @return the published snapshot
+	 */
+	public Snapshot publish() {
+		synchronized (writeLock) {
+			if (!changed)
+				return snapshot;
+			Snapshot current = snapshot;
+			Map<IServiceTypeID, IServiceInfo[]> servicesByType = new HashMap<IServiceTypeID, IServiceInfo[]>(
+					current.servicesByType);
+			for (IServiceTypeID type : changedTypes) {
+				ConcurrentMap<K, EtcdServiceInfo> values = byType.get(type);
+				if (values == null)
+					servicesByType.remove(type);
+				else
+					servicesByType.put(type, values.values().toArray(new IServiceInfo[values.size()]));
+			}
+			IServiceTypeID[] types = current.serviceTypes;
+			if (servicesByType.size() != types.length || !servicesByType.keySet().containsAll(changedTypes))
+				types = servicesByType.keySet().toArray(new IServiceTypeID[servicesByType.size()]);
+			changedTypes.clear();
+			changed = false;
+			int count = 0;
+			for (IServiceInfo[] typeServices : servicesByType.values())
+				count += typeServices.length;
+			snapshot = new Snapshot(current.getVersion() + 1, Collections.unmodifiableMap(servicesByType), types,
+					count);
+			return snapshot;
+		}
+	}
+
+	/**
+	 * @return the most recently published snapshot. Will not be
+	 *         <code>null</code>.
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	public EtcdServiceInfo get(K key) {
+		Entry entry = entries.get(key);
+		return (entry == null) ? null : entry.info;
+	}
+
+	/**
+	 * @return any service with the given service id, or <code>null</code>
+	 */
+	public EtcdServiceInfo getService(IServiceID serviceID) {
+		ConcurrentMap<K, EtcdServiceInfo> matches = byServiceID.get(serviceID);
+		if (matches != null)
+			for (EtcdServiceInfo info : matches.values())
+				return info;
+		return null;
+	}
+
+	/**
+	 * @return key of the service with the given service id registered by the
+	 *         given session, or <code>null</code>
+	 */
+	public K findKey(IServiceID serviceID, String sessionId) {
+		ConcurrentMap<K, EtcdServiceInfo> matches = byServiceID.get(serviceID);
+		if (matches != null)
+			for (K key : matches.keySet()) {
+				Entry entry = entries.get(key);
+				if (entry != null && entry.sessionId.equals(sessionId))
+					return key;
+			}
+		return null;
+	}
+
+	/**
+	 * @return the services of the current snapshot. Must not be modified.
+	 */
+	public IServiceInfo[] getServices() {
+		return snapshot.getServices();
+	}
+
+	/**
+	 * @return the services of the given type in the current snapshot. Must
+	 *         not be modified.
+	 */
+	public IServiceInfo[] getServices(IServiceTypeID serviceTypeID) {
+		return snapshot.getServices(serviceTypeID);
+	}
+
+	/**
+	 * @return the service types of the current snapshot. Must not be modified.
+	 */
+	public IServiceTypeID[] getServiceTypes() {
+		return snapshot.getServiceTypes();
+	}
+
+	/**
+	 * @return the services registered by the given session. Will not be
+	 *         <code>null</code>.
+	 */
+	public Collection<EtcdServiceInfo> getSessionServices(String sessionId) {
+		ConcurrentMap<K, EtcdServiceInfo> matches = bySession.get(sessionId);
+		if (matches == null)
+			return new ArrayList<EtcdServiceInfo>();
+		return new ArrayList<EtcdServiceInfo>(matches.values());
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private <I> void index(ConcurrentMap<I, ConcurrentMap<K, EtcdServiceInfo>> index, I indexKey, K key,
+			EtcdServiceInfo info) {
+		ConcurrentMap<K, EtcdServiceInfo> values = index.get(indexKey);
+		if (values == null) {
+			values = new ConcurrentHashMap<K, EtcdServiceInfo>(4);
+			index.put(indexKey, values);
+		}
+		values.put(key, info);
+	}
+
+	private <I> void unindex(ConcurrentMap<I, ConcurrentMap<K, EtcdServiceInfo>> index, I indexKey, K key) {
+		ConcurrentMap<K, EtcdServiceInfo> values = index.get(indexKey);
+		if (values != null) {
+			values.remove(key);
+			if (values.isEmpty())
+				index.remove(indexKey);
+		}
+	}
+
+	private void unindex(K key, Entry entry) {
+		IServiceID serviceID = entry.info.getServiceID();
+		IServiceTypeID type = serviceID.getServiceTypeID();
+		changedTypes.add(type);
+		changed = true;
+		unindex(byType, type, key);
+		unindex(byServiceID, serviceID, key);
+		unindex(bySession, entry.sessionId, key);
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdServiceRegistry[services=" + entries.size() + ", types=" + byType.size() + ", sessions=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ bySession.size() + ", version=" + snapshot.getVersion() + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
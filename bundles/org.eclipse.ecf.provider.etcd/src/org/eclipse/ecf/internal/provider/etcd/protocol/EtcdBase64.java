@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.nio.charset.Charset;
+
+/**
+ * Base64 coding of the keys and values sent to and received from the etcd v3
+ * json gateway, which represents all byte strings in base64.
+ */
+public class EtcdBase64 {
+
+	public static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/" //$NON-NLS-1$
+			.toCharArray();
+	private static final int[] DECODE = new int[128];
+
+	static {
+		for (int i = 0; i < DECODE.length; i++)
+			DECODE[i] = -1;
+		for (int i = 0; i < ALPHABET.length; i++)
+			DECODE[ALPHABET[i]] = i;
+	}
+
+	public static String encode(byte[] data) {
+		StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+		int i = 0;
+		for (; i + 2 < data.length; i += 3) {
+			int b = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+			sb.append(ALPHABET[b >> 18]).append(ALPHABET[(b >> 12) & 0x3f]).append(ALPHABET[(b >> 6) & 0x3f])
+					.append(ALPHABET[b & 0x3f]);
+		}
+		int rest = data.length - i;
+		if (rest == 1) {
+			int b = (data[i] & 0xff) << 16;
+			sb.append(ALPHABET[b >> 18]).append(ALPHABET[(b >> 12) & 0x3f]).append("=="); //$NON-NLS-1$
+		} else if (rest == 2) {
+			int b = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8);
+			sb.append(ALPHABET[b >> 18]).append(ALPHABET[(b >> 12) & 0x3f]).append(ALPHABET[(b >> 6) & 0x3f])
+					.append('=');
+		}
+		return sb.toString();
+	}
+
+	public static String encode(String s) {
+		return encode(s.getBytes(UTF8));
+	}
+
+	public static byte[] decode(String s) {
+		int len = s.length();
+		while (len > 0 && s.charAt(len - 1) == '=')
+			len--;
+		byte[] result = new byte[len * 3 / 4];
+		int bits = 0;
+		int count = 0;
+		int pos = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			int v = (c < DECODE.length) ? DECODE[c] : -1;
+			if (v < 0)
+				throw new IllegalArgumentException("Invalid base64 character '" + c + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+			bits = (bits << 6) | v;
+			count += 6;
+			if (count >= 8) {
+				count -= 8;
+				result[pos++] = (byte) (bits >> count);
+			}
+		}
+		return result;
+	}
+
+	public static String decodeToString(String s) {
+		return new String(decode(s), UTF8);
+	}
+
+	/**
+	 * @return the smallest key greater than all keys starting with the given
+	 *         prefix, as used for the range_end of a prefix range
+	 */
+	public static byte[] prefixEnd(String prefix) {
+		byte[] end = prefix.getBytes(UTF8);
+		for (int i = end.length - 1; i >= 0; i--) {
+			if (end[i] != (byte) 0xff) {
+				end[i]++;
+				byte[] result = new byte[i + 1];
+				System.arraycopy(end, 0, result, 0, i + 1);
+				return result;
+			}
+		}
+		// all keys
+		return new byte[] { 0 };
+	}
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.net.URL;
+
+/**
+ * Health and latency statistics of one member of an etcd cluster, as seen by
+ * an {@link EtcdClusterTransport}.
+ */
+public class EtcdClusterMember {
+
+	// weight of a new sample in the moving averages
+	private static final double ALPHA = 0.2;
+
+	private final URL endpoint;
+
+	private long requests;
+	private long errors;
+	private double averageLatency = -1;
+	private double errorRate;
+	private long lastSampleTime;
+	private int consecutiveFailures;
+	private long retryAt;
+
+	public EtcdClusterMember(URL endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	public URL getEndpoint() {
+		return endpoint;
+	}
+
+	synchronized void succeeded(long latencyNanos, long now) {
+		requests++;
+		averageLatency = (averageLatency < 0) ? latencyNanos : (ALPHA * latencyNanos + (1 - ALPHA) * averageLatency);
+		errorRate = (1 - ALPHA) * errorRate;
+		lastSampleTime = now;
+		consecutiveFailures = 0;
+		retryAt = 0;
+	}
+
+	/**
+	 * The member answered, but the answer does not tell anything about its
+	 * round trip time (e.g. a long polling watch).
+	 */
+	synchronized void answered() {
+		requests++;
+		errorRate = (1 - ALPHA) * errorRate;
+		consecutiveFailures = 0;
+		retryAt = 0;
+	}
+
+	synchronized void failed(long now, long retryDelay, long maxRetryDelay) {
+		requests++;
+		errors++;
+		errorRate = ALPHA + (1 - ALPHA) * errorRate;
+		consecutiveFailures++;
+		long delay = retryDelay << Math.min(consecutiveFailures - 1, 16);
+		retryAt = now + Math.min(delay, maxRetryDelay);
+	}
+
+	synchronized boolean isHealthy(long now) {
+		return now >= retryAt;
+	}
+
+	synchronized long getRetryAt() {
+		return retryAt;
+	}
+
+	synchronized boolean needsProbe(long now, long probeInterval) {
+		return averageLatency < 0 || now - lastSampleTime >= probeInterval;
+	}
+
+	/**
+	 * @return the expected cost of sending a request to this member. Lower is
+	 *         better.
+	 */
+	synchronized double getScore() {
+		return Math.max(averageLatency, 0) * (1 + 4 * errorRate);
+	}
+
+	/**
+	 * @return average round trip time in ms, or -1 if not known yet
+	 */
+	public synchronized double getAverageLatency() {
+		return (averageLatency < 0) ? -1 : averageLatency / 1000000.0;
+	}
+
+	/**
+	 * @return decaying average of the fraction of failed requests
+	 */
+	public synchronized double getErrorRate() {
+		return errorRate;
+	}
+
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	public synchronized long getErrors() {
+		return errors;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "EtcdClusterMember[endpoint=" + endpoint + ", requests=" + requests + ", errors=" + errors //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ ", latency=" + getAverageLatency() + "ms, errorRate=" + errorRate //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", consecutiveFailures=" + consecutiveFailures + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
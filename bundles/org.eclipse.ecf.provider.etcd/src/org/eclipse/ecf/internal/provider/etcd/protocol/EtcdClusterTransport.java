@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.ecf.internal.provider.etcd.DebugOptions;
+import org.eclipse.ecf.internal.provider.etcd.LogUtility;
+
+/**
+ * Transport that spreads requests over the members of an etcd cluster. The url
+ * of every request is redirected to the member with the lowest average round
+ * trip time (weighted by its recent error rate). A member that fails is
+ * skipped for an exponentially growing delay, and the request is resent to the
+ * next best member: reads (including watches) on any i/o error or server error
+ * (5xx, e.g. no leader), writes only if the connection could not be
+ * established, so a write is never applied twice.
+ * Members whose latency has not been measured for a while get the next read,
+ * so that the estimates stay current.
+ */
+public class EtcdClusterTransport implements IEtcdTransport {
+
+	public static final long RETRY_DELAY = Long.parseLong(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.cluster.retrydelay", "1000")); //$NON-NLS-1$ //$NON-NLS-2$
+	public static final long MAX_RETRY_DELAY = Long.parseLong(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.cluster.maxretrydelay", "30000")); //$NON-NLS-1$ //$NON-NLS-2$
+	public static final long PROBE_INTERVAL = Long.parseLong(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.cluster.probeinterval", "10000")); //$NON-NLS-1$ //$NON-NLS-2$
+
+	private final IEtcdTransport delegate;
+	private final List<EtcdClusterMember> members;
+
+	/**
+	 * @param delegate
+	 *            transport used to send the requests. Must not be
+	 *            <code>null</code>.
+	 * @param endpoints
+	 *            urls of the cluster members. Only protocol, host and port are
+	 *            used. Duplicates are ignored. Must not be empty.
+	 */
+	public EtcdClusterTransport(IEtcdTransport delegate, List<URL> endpoints) {
+		if (endpoints == null || endpoints.isEmpty())
+			throw new IllegalArgumentException("endpoints must not be empty"); //$NON-NLS-1$
+		this.delegate = delegate;
+		List<EtcdClusterMember> ms = new ArrayList<EtcdClusterMember>();
+		List<String> seen = new ArrayList<String>();
+		for (URL endpoint : endpoints) {
+			// URL.equals would resolve host names
+			String e = EtcdPooledTransport.getEndpoint(endpoint);
+			if (!seen.contains(e)) {
+				seen.add(e);
+				ms.add(new EtcdClusterMember(endpoint));
+			}
+		}
+		this.members = Collections.unmodifiableList(ms);
+	}
+
+	public List<EtcdClusterMember> getMembers() {
+		return members;
+	}
+
+	public EtcdHttpResponse send(EtcdRequest request) throws IOException {
+		boolean watch = request.isWatch();
+		boolean probe = request.isRead() && !watch;
+		List<EtcdClusterMember> tried = new ArrayList<EtcdClusterMember>(members.size());
+		IOException lastException = null;
+		EtcdClusterMember member = select(probe, tried);
+		while (member != null) {
+			tried.add(member);
+			long start = System.nanoTime();
+			EtcdHttpResponse response;
+			try {
+				response = delegate.send(request, request.createURL(member.getEndpoint()));
+			} catch (IOException e) {
+				// not the member's fault
+				if (request.isAborted())
+					throw e;
+				member.failed(System.currentTimeMillis(), RETRY_DELAY, MAX_RETRY_DELAY);
+				trace("send", "request to " + member.getEndpoint() + " failed: " + e); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				lastException = e;
+				if (!request.isRead() && !isConnectFailure(e))
+					throw e;
+				member = select(probe, tried);
+				continue;
+			}
+			if (response.getStatus() >= 500) {
+				// e.g. no leader elected, try other members first next time
+				member.failed(System.currentTimeMillis(), RETRY_DELAY, MAX_RETRY_DELAY);
+				EtcdClusterMember next = request.isRead() ? select(probe, tried) : null;
+				if (next != null) {
+					trace("send", "request to " + member.getEndpoint() + " answered " + response.getStatus()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					response.close();
+					member = next;
+					continue;
+				}
+			} else if (watch)
+				member.answered();
+			else
+				member.succeeded(System.nanoTime() - start, System.currentTimeMillis());
+			return response;
+		}
+		throw lastException;
+	}
+
+	public EtcdHttpResponse send(EtcdRequest request, URL url) throws IOException {
+		return delegate.send(request, url);
+	}
+
+	static boolean isConnectFailure(IOException e) {
+		return e instanceof ConnectException || e instanceof NoRouteToHostException
+				|| e instanceof UnknownHostException;
+	}
+
+	/**
+	 * Select the member to send the next request to.
+	 * 
+	 * @param probe
+	 *            <code>true</code> if the request may be used to measure a
+	 *            member whose latency is unknown or out of date
+	 * @param exclude
+	 *            members already tried for this request
+	 * @return the best healthy member, or if none is healthy the member that
+	 *         becomes healthy first. <code>null</code> if all members have
+	 *         been tried.
+	 */
+	EtcdClusterMember select(boolean probe, List<EtcdClusterMember> exclude) {
+		long now = System.currentTimeMillis();
+		EtcdClusterMember best = null;
+		double bestScore = 0;
+		EtcdClusterMember firstToRecover = null;
+		for (EtcdClusterMember m : members) {
+			if (exclude.contains(m))
+				continue;
+			if (!m.isHealthy(now)) {
+				if (firstToRecover == null || m.getRetryAt() < firstToRecover.getRetryAt())
+					firstToRecover = m;
+				continue;
+			}
+			if (probe && m.needsProbe(now, PROBE_INTERVAL))
+				return m;
+			double score = m.getScore();
+			if (best == null || score < bestScore) {
+				best = m;
+				bestScore = score;
+			}
+		}
+		return (best != null) ? best : firstToRecover;
+	}
+
+	/**
+	 * @return the latencies recorded by the delegate transport
+	 */
+	public EtcdRequestLatencies getLatencies() {
+		return delegate.getLatencies();
+	}
+
+	public void close() {
+		delegate.close();
+	}
+
+	private void trace(String methodName, String message) {
+		LogUtility.trace(methodName, DebugOptions.PROTOCOL, getClass(), message);
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdClusterTransport[members=" + members + ", delegate=" + delegate + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
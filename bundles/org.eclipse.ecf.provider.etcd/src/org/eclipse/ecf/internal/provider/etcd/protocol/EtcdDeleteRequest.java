@@ -8,9 +8,6 @@
  ******************************************************************************/
 package org.eclipse.ecf.internal.provider.etcd.protocol;
 
-import java.net.HttpURLConnection;
-import java.net.ProtocolException;
-
 public class EtcdDeleteRequest extends EtcdSetRequest {
 
 	public EtcdDeleteRequest(String url) {
@@ -25,10 +22,9 @@ public class EtcdDeleteRequest extends EtcdSetRequest {
 			setQueryBoolean(DIR);
 	}
 
-	protected HttpURLConnection setRequestMethod(HttpURLConnection conn)
-			throws ProtocolException {
-		conn.setRequestMethod("DELETE"); //$NON-NLS-1$
-		return conn;
+	@Override
+	public String getMethod() {
+		return "DELETE"; //$NON-NLS-1$
 	}
 
 }
@@ -21,6 +21,9 @@ public class EtcdErrorResponse extends EtcdResponse {
 	public static final String INDEX_KEY = "index"; //$NON-NLS-1$
 	public static final String MESSAGE_KEY = "message"; //$NON-NLS-1$
 
+	// the requested watch index is older than the event history kept by etcd
+	public static final int ERRORCODE_EVENT_INDEX_CLEARED = 401;
+
 	private Map<String, List<String>> responseHeaders;
 
 	private final String cause;
@@ -38,6 +41,15 @@ public class EtcdErrorResponse extends EtcdResponse {
 		this.responseHeaders = headers;
 	}
 
+	public EtcdErrorResponse(String cause, int errorCode, int index,
+			String message, Map<String, List<String>> headers) {
+		this.cause = cause;
+		this.errorCode = errorCode;
+		this.index = index;
+		this.message = message;
+		this.responseHeaders = headers;
+	}
+
 	public Map<String, List<String>> getResponseHeaders() {
 		return responseHeaders;
 	}
@@ -0,0 +1,594 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A single persistent HTTP/1.1 connection to an etcd endpoint. Instances are
+ * owned by {@link EtcdPooledTransport} and are not thread safe: a connection is
+ * used by at most one request at a time.
+ */
+class EtcdHttpConnection implements Closeable {
+
+	private static final String CRLF = "\r\n"; //$NON-NLS-1$
+	private static final String ISO_8859_1 = "ISO-8859-1"; //$NON-NLS-1$
+
+	// the JRE's own default verifier, unless replaced before this class was
+	// loaded. It rejects every host: HttpsURLConnection identifies the server
+	// itself and only asks a verifier that replaced it
+	private static final HostnameVerifier JRE_HOSTNAME_VERIFIER = HttpsURLConnection.getDefaultHostnameVerifier();
+
+	/**
+	 * Thrown when writing a request to a reused connection fails, or when the
+	 * connection is closed or reset before the first byte of the response,
+	 * i.e. the server has closed the idle connection. Only requests that do
+	 * not modify the store may be resent on a new connection.
+	 */
+	static class StaleConnectionException extends IOException {
+		private static final long serialVersionUID = -3185472094720471187L;
+
+		StaleConnectionException(IOException cause) {
+			super(cause);
+		}
+	}
+
+	interface ReleaseCallback {
+		void released(EtcdHttpConnection connection, boolean reusable);
+
+		/**
+		 * Called once, when the connection is closed for whatever reason.
+		 */
+		void closed(EtcdHttpConnection connection);
+	}
+
+	private final String endpoint;
+	private final String hostHeader;
+	// request lines use the absolute url, for an http proxy
+	private final boolean absoluteForm;
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final ReleaseCallback callback;
+	private long lastUsed;
+	private int useCount;
+	private boolean closed;
+
+	private EtcdHttpConnection(String endpoint, String hostHeader, boolean absoluteForm, Socket socket,
+			ReleaseCallback callback) throws IOException {
+		this.endpoint = endpoint;
+		this.hostHeader = hostHeader;
+		this.absoluteForm = absoluteForm;
+		this.socket = socket;
+		this.callback = callback;
+		this.in = new BufferedInputStream(socket.getInputStream());
+		this.out = new BufferedOutputStream(socket.getOutputStream());
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Opens a connection to the endpoint of the given url, through the proxy
+	 * the default {@link ProxySelector} selects for it, like
+	 * {@link java.net.HttpURLConnection} does. Https connections use the
+	 * default socket factory and hostname verifier of
+	 * {@link HttpsURLConnection}. The callback is told when responses are
+	 * released and when the connection is closed.
+	 */
+	static EtcdHttpConnection open(String endpoint, URL url, int connectTimeout, ReleaseCallback callback)
+			throws IOException {
+		ProxySelector selector = ProxySelector.getDefault();
+		URI uri = null;
+		List<Proxy> proxies = null;
+		if (selector != null)
+			try {
+				uri = new URI(endpoint);
+				proxies = selector.select(uri);
+			} catch (URISyntaxException e) {
+				// connect directly
+			}
+		if (proxies == null || proxies.isEmpty())
+			proxies = Collections.singletonList(Proxy.NO_PROXY);
+		IOException failure = null;
+		for (Proxy proxy : proxies) {
+			try {
+				return open(endpoint, url, proxy, connectTimeout, callback);
+			} catch (IOException e) {
+				failure = e;
+				if (proxy.type() != Proxy.Type.DIRECT && uri != null)
+					selector.connectFailed(uri, proxy.address(), e);
+			}
+		}
+		throw failure;
+	}
+
+	private static EtcdHttpConnection open(String endpoint, URL url, Proxy proxy, int connectTimeout,
+			ReleaseCallback callback) throws IOException {
+		boolean secure = "https".equals(url.getProtocol()); //$NON-NLS-1$
+		int port = (url.getPort() == -1) ? url.getDefaultPort() : url.getPort();
+		String host = url.getHost();
+		String hostHeader = (url.getPort() == -1) ? host : host + ":" + port; //$NON-NLS-1$
+		boolean httpProxy = proxy.type() == Proxy.Type.HTTP;
+		Socket socket = (proxy.type() == Proxy.Type.SOCKS) ? new Socket(proxy) : new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			if (httpProxy) {
+				InetSocketAddress address = (InetSocketAddress) proxy.address();
+				if (address.isUnresolved())
+					address = new InetSocketAddress(address.getHostName(), address.getPort());
+				socket.connect(address, connectTimeout);
+			} else if (proxy.type() == Proxy.Type.SOCKS)
+				// resolved by the proxy
+				socket.connect(InetSocketAddress.createUnresolved(host, port), connectTimeout);
+			else
+				socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			if (secure) {
+				if (httpProxy)
+					tunnel(socket, host + ":" + port, connectTimeout); //$NON-NLS-1$
+				socket = startTLS(socket, host, port);
+			}
+			return new EtcdHttpConnection(endpoint, hostHeader, httpProxy && !secure, socket, callback);
+		} catch (IOException e) {
+			closeQuietly(socket);
+			throw e;
+		}
+	}
+
+	/**
+	 * Asks an http proxy for a tunnel to the given authority. The response is
+	 * read unbuffered, so that nothing after it is consumed.
+	 */
+	private static void tunnel(Socket socket, String authority, int timeout) throws IOException {
+		socket.setSoTimeout(timeout);
+		OutputStream os = socket.getOutputStream();
+		os.write(("CONNECT " + authority + " HTTP/1.1" + CRLF + "Host: " + authority + CRLF + CRLF) //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				.getBytes(ISO_8859_1));
+		os.flush();
+		InputStream is = socket.getInputStream();
+		String statusLine = readLine(is);
+		if (statusLine == null)
+			throw new EOFException("Connection closed by proxy"); //$NON-NLS-1$
+		String line;
+		while ((line = readLine(is)) != null && line.length() > 0)
+			;
+		if (line == null)
+			throw new EOFException("Connection closed by proxy"); //$NON-NLS-1$
+		if (parseStatus(statusLine) != 200)
+			throw new IOException("Unable to tunnel through proxy, status line=" + statusLine); //$NON-NLS-1$
+	}
+
+	private static Socket startTLS(Socket socket, String host, int port) throws IOException {
+		SSLSocket sslSocket = (SSLSocket) HttpsURLConnection.getDefaultSSLSocketFactory().createSocket(socket, host,
+				port, true);
+		HostnameVerifier verifier = HttpsURLConnection.getDefaultHostnameVerifier();
+		boolean replaced = verifier != JRE_HOSTNAME_VERIFIER;
+		if (!replaced) {
+			SSLParameters params = sslSocket.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS"); //$NON-NLS-1$
+			sslSocket.setSSLParameters(params);
+		}
+		try {
+			sslSocket.startHandshake();
+			if (replaced && !verifier.verify(host, sslSocket.getSession()))
+				throw new SSLPeerUnverifiedException("Hostname " + host + " not verified"); //$NON-NLS-1$ //$NON-NLS-2$
+		} catch (IOException e) {
+			closeQuietly(sslSocket);
+			throw e;
+		}
+		return sslSocket;
+	}
+
+	String getEndpoint() {
+		return endpoint;
+	}
+
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	boolean isReused() {
+		return useCount > 0;
+	}
+
+	boolean isOpen() {
+		if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+			return false;
+		try {
+			// An idle connection must not have anything to read
+			return in.available() == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Like {@link #isOpen()}, but also waits up to 1 ms for the end of stream
+	 * the server sends when it closes the idle connection. Used before
+	 * requests that cannot be resent.
+	 */
+	boolean probe() {
+		if (!isOpen())
+			return false;
+		try {
+			socket.setSoTimeout(1);
+			// end of stream, or a byte an idle connection must not have
+			in.read();
+			return false;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		closeQuietly(socket);
+		if (callback != null)
+			callback.closed(this);
+	}
+
+	Socket getSocket() {
+		return socket;
+	}
+
+	EtcdHttpResponse exchange(EtcdRequest request, URL url) throws IOException {
+		boolean reused = isReused();
+		useCount++;
+		lastUsed = System.currentTimeMillis();
+		socket.setSoTimeout(request.getReadTimeout());
+		try {
+			writeRequest(request, url);
+		} catch (IOException e) {
+			throw (reused) ? new StaleConnectionException(e) : e;
+		}
+		if (reused)
+			awaitResponse();
+		String statusLine = readLine();
+		if (statusLine == null)
+			throw new EOFException("Connection closed by server before response"); //$NON-NLS-1$
+		int status = parseStatus(statusLine);
+		Map<String, List<String>> headers = readHeaders();
+		boolean keepAlive = isKeepAlive(statusLine, headers);
+		InputStream body;
+		if ("HEAD".equals(request.getMethod()) || status == 204 || status == 304 || (status >= 100 && status < 200)) //$NON-NLS-1$
+			body = new FixedLengthInputStream(0);
+		else if ("chunked".equalsIgnoreCase(getHeader(headers, "Transfer-Encoding"))) //$NON-NLS-1$ //$NON-NLS-2$
+			body = new ChunkedInputStream();
+		else {
+			String contentLength = getHeader(headers, "Content-Length"); //$NON-NLS-1$
+			if (contentLength != null)
+				body = new FixedLengthInputStream(Long.parseLong(contentLength.trim()));
+			else {
+				// body is delimited by connection close
+				keepAlive = false;
+				body = new FixedLengthInputStream(Long.MAX_VALUE);
+			}
+		}
+		return new EtcdHttpResponse(status, headers, new ReleasingInputStream(body, keepAlive));
+	}
+
+	/**
+	 * Waits for the first byte of the response on a reused connection. A
+	 * server that closed the idle connection answers with end of stream or a
+	 * reset before any byte of the response. A read timeout is passed on as
+	 * is: the server may have received and processed the request.
+	 */
+	private void awaitResponse() throws IOException {
+		int first;
+		in.mark(1);
+		try {
+			first = in.read();
+		} catch (SocketTimeoutException e) {
+			throw e;
+		} catch (SocketException e) {
+			throw new StaleConnectionException(e);
+		}
+		if (first == -1)
+			throw new StaleConnectionException(new EOFException("Connection closed by server before response")); //$NON-NLS-1$
+		in.reset();
+	}
+
+	private void writeRequest(EtcdRequest request, URL url) throws IOException {
+		String file = url.getFile();
+		StringBuffer buf = new StringBuffer(request.getMethod()).append(' ');
+		if (absoluteForm)
+			buf.append(url.getProtocol()).append("://").append(hostHeader); //$NON-NLS-1$
+		buf.append((file == null || file.length() == 0) ? "/" : file).append(" HTTP/1.1").append(CRLF); //$NON-NLS-1$ //$NON-NLS-2$
+		buf.append("Host: ").append(hostHeader).append(CRLF); //$NON-NLS-1$
+		buf.append("Accept: application/json").append(CRLF); //$NON-NLS-1$
+		byte[] body = request.getBody();
+		if (body != null) {
+			buf.append(EtcdRequest.CONTENT_TYPE).append(": ").append(request.getContentType()).append(CRLF); //$NON-NLS-1$
+			buf.append("Content-Length: ").append(body.length).append(CRLF); //$NON-NLS-1$
+		} else if (!"GET".equals(request.getMethod())) //$NON-NLS-1$
+			buf.append("Content-Length: 0").append(CRLF); //$NON-NLS-1$
+		buf.append(CRLF);
+		out.write(buf.toString().getBytes(ISO_8859_1));
+		if (body != null)
+			out.write(body);
+		out.flush();
+	}
+
+	private static int parseStatus(String statusLine) throws IOException {
+		// HTTP/1.1 200 OK
+		int firstSpace = statusLine.indexOf(' ');
+		if (!statusLine.startsWith("HTTP/") || firstSpace < 0) //$NON-NLS-1$
+			throw new IOException("Invalid http status line=" + statusLine); //$NON-NLS-1$
+		int secondSpace = statusLine.indexOf(' ', firstSpace + 1);
+		String code = (secondSpace < 0) ? statusLine.substring(firstSpace + 1)
+				: statusLine.substring(firstSpace + 1, secondSpace);
+		try {
+			return Integer.parseInt(code.trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid http status line=" + statusLine); //$NON-NLS-1$
+		}
+	}
+
+	private Map<String, List<String>> readHeaders() throws IOException {
+		Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+		String line;
+		while ((line = readLine()) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon <= 0)
+				continue;
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			List<String> values = headers.get(name);
+			if (values == null) {
+				values = new ArrayList<String>(1);
+				headers.put(name, values);
+			}
+			values.add(value);
+		}
+		if (line == null)
+			throw new EOFException("Connection closed while reading response headers"); //$NON-NLS-1$
+		return headers;
+	}
+
+	private static String getHeader(Map<String, List<String>> headers, String name) {
+		List<String> values = headers.get(name);
+		return (values == null || values.isEmpty()) ? null : values.get(0);
+	}
+
+	private static boolean isKeepAlive(String statusLine, Map<String, List<String>> headers) {
+		String connection = getHeader(headers, "Connection"); //$NON-NLS-1$
+		if (statusLine.startsWith("HTTP/1.0")) //$NON-NLS-1$
+			return "keep-alive".equalsIgnoreCase(connection); //$NON-NLS-1$
+		return !"close".equalsIgnoreCase(connection); //$NON-NLS-1$
+	}
+
+	private String readLine() throws IOException {
+		return readLine(in);
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				byte[] bytes = line.toByteArray();
+				int length = bytes.length;
+				if (length > 0 && bytes[length - 1] == '\r')
+					length--;
+				return new String(bytes, 0, length, ISO_8859_1);
+			}
+			line.write(b);
+		}
+		return (line.size() == 0) ? null : new String(line.toByteArray(), ISO_8859_1);
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Body stream that gives the connection back to the pool once the body has
+	 * been completely read and closed, or discards it otherwise.
+	 */
+	class ReleasingInputStream extends InputStream {
+
+		private final InputStream body;
+		private final boolean keepAlive;
+		private boolean eof;
+		private boolean closed;
+
+		ReleasingInputStream(InputStream body, boolean keepAlive) {
+			this.body = body;
+			this.keepAlive = keepAlive;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (closed)
+				throw new IOException("Stream closed"); //$NON-NLS-1$
+			int b = body.read();
+			if (b == -1)
+				eof = true;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed)
+				throw new IOException("Stream closed"); //$NON-NLS-1$
+			int r = body.read(b, off, len);
+			if (r == -1)
+				eof = true;
+			return r;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (closed) ? 0 : body.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			boolean reusable = keepAlive && eof;
+			if (!reusable)
+				EtcdHttpConnection.this.close();
+			else
+				// idle from now on, see EtcdPooledTransport#acquire
+				lastUsed = System.currentTimeMillis();
+			if (callback != null)
+				callback.released(EtcdHttpConnection.this, reusable);
+		}
+	}
+
+	class FixedLengthInputStream extends InputStream {
+
+		private long remaining;
+
+		FixedLengthInputStream(long length) {
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = in.read();
+			if (b == -1) {
+				if (remaining != Long.MAX_VALUE)
+					throw new EOFException("Unexpected end of response body"); //$NON-NLS-1$
+				remaining = 0;
+				return -1;
+			}
+			remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int r = in.read(b, off, (int) Math.min(len, remaining));
+			if (r == -1) {
+				if (remaining != Long.MAX_VALUE)
+					throw new EOFException("Unexpected end of response body"); //$NON-NLS-1$
+				remaining = 0;
+				return -1;
+			}
+			if (remaining != Long.MAX_VALUE)
+				remaining -= r;
+			return r;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (remaining <= 0) ? 0 : (int) Math.min(in.available(), remaining);
+		}
+	}
+
+	class ChunkedInputStream extends InputStream {
+
+		private long chunkRemaining;
+		private boolean done;
+
+		private boolean nextChunk() throws IOException {
+			if (done)
+				return false;
+			if (chunkRemaining > 0)
+				return true;
+			String sizeLine = readLine();
+			// skip CRLF after previous chunk data
+			if (sizeLine != null && sizeLine.length() == 0)
+				sizeLine = readLine();
+			if (sizeLine == null)
+				throw new EOFException("Unexpected end of chunked response body"); //$NON-NLS-1$
+			int semi = sizeLine.indexOf(';');
+			String size = (semi < 0) ? sizeLine.trim() : sizeLine.substring(0, semi).trim();
+			try {
+				chunkRemaining = Long.parseLong(size, 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size line=" + sizeLine); //$NON-NLS-1$
+			}
+			if (chunkRemaining == 0) {
+				// read trailers up to and including the terminating empty line
+				String trailer;
+				while ((trailer = readLine()) != null && trailer.length() > 0)
+					;
+				done = true;
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextChunk())
+				return -1;
+			int b = in.read();
+			if (b == -1)
+				throw new EOFException("Unexpected end of chunked response body"); //$NON-NLS-1$
+			chunkRemaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!nextChunk())
+				return -1;
+			int r = in.read(b, off, (int) Math.min(len, chunkRemaining));
+			if (r == -1)
+				throw new EOFException("Unexpected end of chunked response body"); //$NON-NLS-1$
+			chunkRemaining -= r;
+			return r;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (done || chunkRemaining == 0) ? 0 : (int) Math.min(in.available(), chunkRemaining);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdHttpConnection[endpoint=" + endpoint + ", useCount=" + useCount + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+public class EtcdHttpResponse {
+
+	private final int status;
+	private final Map<String, List<String>> headers;
+	private final InputStream body;
+
+	public EtcdHttpResponse(int status, Map<String, List<String>> headers,
+			InputStream body) {
+		this.status = status;
+		this.headers = headers;
+		this.body = body;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public boolean isSuccess() {
+		return status >= 200 && status < 300;
+	}
+
+	public Map<String, List<String>> getHeaders() {
+		return headers;
+	}
+
+	public String getHeader(String name) {
+		if (headers == null)
+			return null;
+		List<String> values = headers.get(name);
+		return (values == null || values.isEmpty()) ? null : values.get(0);
+	}
+
+	public InputStream getInputStream() {
+		return body;
+	}
+
+	public void close() {
+		if (body != null)
+			try {
+				body.close();
+			} catch (IOException e) {
+				// nothing to do, the connection is discarded by the transport
+			}
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdHttpResponse[status=" + status + ", headers=" + headers //$NON-NLS-1$ //$NON-NLS-2$
+				+ "]"; //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,386 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONException;
+
+/**
+ * Minimal pull parser for JSON text. Tokens are read directly from the
+ * underlying reader through a fixed size buffer, so no copy of the complete
+ * document is ever held in memory.
+ */
+public class EtcdJsonReader {
+
+	public static final int BEGIN_OBJECT = 1;
+	public static final int END_OBJECT = 2;
+	public static final int BEGIN_ARRAY = 3;
+	public static final int END_ARRAY = 4;
+	public static final int NAME = 5;
+	public static final int STRING = 6;
+	public static final int NUMBER = 7;
+	public static final int BOOLEAN = 8;
+	public static final int NULL = 9;
+	public static final int END_DOCUMENT = 10;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Reader reader;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int pos;
+	private int limit;
+
+	// stack of open containers: true for object, false for array
+	private boolean[] stack = new boolean[32];
+	private int depth;
+	// whether a value (or name in an object) has already been read in the
+	// current container
+	private boolean[] hasElement = new boolean[32];
+	// true when the next token in the current object is a value
+	private boolean expectValue;
+
+	private int peeked;
+	private final StringBuilder chars = new StringBuilder();
+
+	public EtcdJsonReader(Reader reader) {
+		this.reader = reader;
+	}
+
+	private boolean fill() throws IOException {
+		if (pos < limit)
+			return true;
+		int r = reader.read(buffer, 0, buffer.length);
+		if (r <= 0)
+			return false;
+		pos = 0;
+		limit = r;
+		return true;
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		while (fill()) {
+			char c = buffer[pos++];
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+				return c;
+		}
+		return -1;
+	}
+
+	private char nextChar() throws IOException, JSONException {
+		if (!fill())
+			throw syntaxError("Unterminated input"); //$NON-NLS-1$
+		return buffer[pos++];
+	}
+
+	private void push(boolean object) {
+		if (depth == stack.length) {
+			boolean[] s = new boolean[depth * 2];
+			System.arraycopy(stack, 0, s, 0, depth);
+			stack = s;
+			boolean[] h = new boolean[depth * 2];
+			System.arraycopy(hasElement, 0, h, 0, depth);
+			hasElement = h;
+		}
+		stack[depth] = object;
+		hasElement[depth] = false;
+		depth++;
+	}
+
+	JSONException syntaxError(String message) {
+		return new JSONException(message + " at depth " + depth); //$NON-NLS-1$
+	}
+
+	/**
+	 * @return the type of the next token, without consuming it
+	 */
+	public int peek() throws IOException, JSONException {
+		if (peeked != 0)
+			return peeked;
+		int c = nextNonWhitespace();
+		if (depth > 0) {
+			if (c == -1)
+				throw syntaxError("Unterminated input"); //$NON-NLS-1$
+			boolean inObject = stack[depth - 1];
+			if (inObject && expectValue) {
+				if (c != ':')
+					throw syntaxError("Expected ':'"); //$NON-NLS-1$
+				c = nextNonWhitespace();
+			} else if (c == (inObject ? '}' : ']')) {
+				return peeked = inObject ? END_OBJECT : END_ARRAY;
+			} else if (hasElement[depth - 1]) {
+				if (c != ',')
+					throw syntaxError("Expected ',' or end of " + (inObject ? "object" : "array")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				c = nextNonWhitespace();
+			}
+			if (inObject && !expectValue) {
+				if (c != '"')
+					throw syntaxError("Expected name"); //$NON-NLS-1$
+				return peeked = NAME;
+			}
+		}
+		switch (c) {
+		case -1:
+			if (depth > 0)
+				throw syntaxError("Unterminated input"); //$NON-NLS-1$
+			return peeked = END_DOCUMENT;
+		case '{':
+			return peeked = BEGIN_OBJECT;
+		case '[':
+			return peeked = BEGIN_ARRAY;
+		case '"':
+			return peeked = STRING;
+		case 't':
+		case 'f':
+			pos--;
+			return peeked = BOOLEAN;
+		case 'n':
+			pos--;
+			return peeked = NULL;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				pos--;
+				return peeked = NUMBER;
+			}
+			throw syntaxError("Unexpected character '" + (char) c + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	private void consume(int expected) throws IOException, JSONException {
+		int p = peek();
+		if (p != expected)
+			throw syntaxError("Expected token " + expected + " but was " + p); //$NON-NLS-1$ //$NON-NLS-2$
+		peeked = 0;
+	}
+
+	private void valueConsumed() {
+		if (depth > 0) {
+			hasElement[depth - 1] = true;
+			expectValue = false;
+		}
+	}
+
+	public void beginObject() throws IOException, JSONException {
+		consume(BEGIN_OBJECT);
+		valueConsumed();
+		push(true);
+	}
+
+	public void endObject() throws IOException, JSONException {
+		consume(END_OBJECT);
+		depth--;
+		expectValue = false;
+	}
+
+	public void beginArray() throws IOException, JSONException {
+		consume(BEGIN_ARRAY);
+		valueConsumed();
+		push(false);
+	}
+
+	public void endArray() throws IOException, JSONException {
+		consume(END_ARRAY);
+		depth--;
+		expectValue = false;
+	}
+
+	/**
+	 * @return <code>true</code> if the current object or array has another
+	 *         element
+	 */
+	public boolean hasNext() throws IOException, JSONException {
+		int p = peek();
+		return p != END_OBJECT && p != END_ARRAY && p != END_DOCUMENT;
+	}
+
+	public String nextName() throws IOException, JSONException {
+		consume(NAME);
+		hasElement[depth - 1] = true;
+		expectValue = true;
+		return readString();
+	}
+
+	public String nextString() throws IOException, JSONException {
+		int p = peek();
+		if (p == NUMBER || p == BOOLEAN || p == NULL) {
+			peeked = 0;
+			valueConsumed();
+			return readLiteral();
+		}
+		consume(STRING);
+		valueConsumed();
+		return readString();
+	}
+
+	public long nextLong() throws IOException, JSONException {
+		int p = peek();
+		String literal;
+		if (p == STRING) {
+			peeked = 0;
+			literal = readString();
+		} else {
+			consume(NUMBER);
+			literal = readLiteral();
+		}
+		valueConsumed();
+		try {
+			return Long.parseLong(literal);
+		} catch (NumberFormatException e) {
+			try {
+				return (long) Double.parseDouble(literal);
+			} catch (NumberFormatException e1) {
+				throw syntaxError("Expected number but was " + literal); //$NON-NLS-1$
+			}
+		}
+	}
+
+	public int nextInt() throws IOException, JSONException {
+		return (int) nextLong();
+	}
+
+	public boolean nextBoolean() throws IOException, JSONException {
+		int p = peek();
+		if (p == STRING) {
+			peeked = 0;
+			valueConsumed();
+			return Boolean.valueOf(readString()).booleanValue();
+		}
+		consume(BOOLEAN);
+		valueConsumed();
+		String literal = readLiteral();
+		if ("true".equals(literal)) //$NON-NLS-1$
+			return true;
+		if ("false".equals(literal)) //$NON-NLS-1$
+			return false;
+		throw syntaxError("Expected boolean but was " + literal); //$NON-NLS-1$
+	}
+
+	public void nextNull() throws IOException, JSONException {
+		consume(NULL);
+		valueConsumed();
+		String literal = readLiteral();
+		if (!"null".equals(literal)) //$NON-NLS-1$
+			throw syntaxError("Expected null but was " + literal); //$NON-NLS-1$
+	}
+
+	/**
+	 * Skip the next value, including all nested objects and arrays.
+	 */
+	public void skipValue() throws IOException, JSONException {
+		int p = peek();
+		switch (p) {
+		case BEGIN_OBJECT:
+			beginObject();
+			while (hasNext()) {
+				nextName();
+				skipValue();
+			}
+			endObject();
+			break;
+		case BEGIN_ARRAY:
+			beginArray();
+			while (hasNext())
+				skipValue();
+			endArray();
+			break;
+		case STRING:
+			peeked = 0;
+			valueConsumed();
+			skipString();
+			break;
+		case NUMBER:
+		case BOOLEAN:
+		case NULL:
+			peeked = 0;
+			valueConsumed();
+			readLiteral();
+			break;
+		default:
+			throw syntaxError("Expected value but was " + p); //$NON-NLS-1$
+		}
+	}
+
+	private String readLiteral() throws IOException {
+		chars.setLength(0);
+		while (fill()) {
+			char c = buffer[pos];
+			if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == ':')
+				break;
+			chars.append(c);
+			pos++;
+		}
+		return chars.toString();
+	}
+
+	private void skipString() throws IOException, JSONException {
+		while (true) {
+			char c = nextChar();
+			if (c == '"')
+				return;
+			if (c == '\\')
+				nextChar();
+		}
+	}
+
+	private String readString() throws IOException, JSONException {
+		chars.setLength(0);
+		while (true) {
+			// copy unescaped runs directly from the buffer
+			int start = pos;
+			while (pos < limit) {
+				char c = buffer[pos];
+				if (c == '"') {
+					chars.append(buffer, start, pos - start);
+					pos++;
+					return chars.toString();
+				}
+				if (c == '\\')
+					break;
+				pos++;
+			}
+			chars.append(buffer, start, pos - start);
+			if (pos < limit) {
+				// escape
+				pos++;
+				chars.append(readEscape());
+			} else if (!fill())
+				throw syntaxError("Unterminated string"); //$NON-NLS-1$
+		}
+	}
+
+	private char readEscape() throws IOException, JSONException {
+		char c = nextChar();
+		switch (c) {
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(nextChar(), 16);
+				if (digit < 0)
+					throw syntaxError("Invalid unicode escape"); //$NON-NLS-1$
+				value = (value << 4) + digit;
+			}
+			return (char) value;
+		default:
+			// '"', '\\', '/'
+			return c;
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations. Bucket <code>i</code> counts durations
+ * below 2^i microseconds (the last bucket all longer ones), so recording costs
+ * a few atomic increments, and percentiles are accurate to a factor of 2.
+ */
+public class EtcdLatencyHistogram {
+
+	/**
+	 * Number of buckets: the last bucket holds durations of 2^30us (about 18
+	 * minutes) and more.
+	 */
+	public static final int BUCKETS = 31;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            duration in ns
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long m;
+		while (nanos > (m = max.get()))
+			if (max.compareAndSet(m, nanos))
+				break;
+	}
+
+	/**
+	 * Record a duration that ended with an error.
+	 */
+	public void recordFailure(long nanos) {
+		failures.incrementAndGet();
+		record(nanos);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return mean duration in ms
+	 */
+	public double getMean() {
+		long c = count.get();
+		return (c == 0) ? 0 : total.get() / (c * 1000000.0);
+	}
+
+	/**
+	 * @return longest duration in ms
+	 */
+	public double getMax() {
+		return max.get() / 1000000.0;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return upper bound in ms of the bucket holding the given percentile, at
+	 *         most {@link #getMax()}
+	 */
+	public double getPercentile(double percentile) {
+		long[] counts = getBuckets();
+		long c = 0;
+		for (long n : counts)
+			c += n;
+		if (c == 0)
+			return 0;
+		long rank = (long) Math.ceil(c * Math.max(0, Math.min(100, percentile)) / 100.0);
+		long seen = 0;
+		for (int i = 0; i < counts.length - 1; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0)
+				return Math.min((1L << i) / 1000.0, getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * @return count of every bucket. Bucket <code>i</code> holds the durations
+	 *         below 2^i microseconds that are not in a lower bucket.
+	 */
+	public long[] getBuckets() {
+		long[] result = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			result[i] = buckets.get(i);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdLatencyHistogram[count=" + getCount() + ", failures=" + getFailures() + ", mean=" + getMean() //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ "ms, p99=" + getPercentile(99) + "ms, max=" + getMax() + "ms]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
@@ -66,6 +66,19 @@ public class EtcdNode {
 		this.nodes = createNodes(jsonObject);
 	}
 
+	public EtcdNode(int createdIndex, boolean directory, String expiration,
+			String key, int modifiedIndex, Integer ttl, String value,
+			EtcdNode[] nodes) {
+		this.createdIndex = createdIndex;
+		this.directory = directory;
+		this.expiration = expiration;
+		this.key = key;
+		this.modifiedIndex = modifiedIndex;
+		this.ttl = ttl;
+		this.value = value;
+		this.nodes = nodes;
+	}
+
 	public int getCreatedIndex() {
 		return createdIndex;
 	}
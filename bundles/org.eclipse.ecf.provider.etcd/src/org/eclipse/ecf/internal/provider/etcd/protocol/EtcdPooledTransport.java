@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.ecf.internal.provider.etcd.DebugOptions;
+import org.eclipse.ecf.internal.provider.etcd.LogUtility;
+
+/**
+ * Transport that keeps persistent (keep-alive) HTTP/1.1 connections to every
+ * etcd endpoint (scheme, host and port) it talks to. At most
+ * <code>maxConnectionsPerEndpoint</code> connections, idle or in use, are open
+ * per endpoint, of which at most <code>maxIdlePerEndpoint</code> are kept idle.
+ * A request that needs a new connection while the limit is reached closes the
+ * least recently used idle connection, or waits up to its connect timeout for
+ * one to be released or closed. The limit must leave room for the long-polling
+ * watch requests. Idle connections older than <code>keepAliveTimeout</code> ms
+ * are closed instead of being reused. A read sent on a connection the server
+ * had closed is resent on a new connection; requests that modify the store are
+ * never resent, idle connections not used within the last
+ * {@link #PROBE_INTERVAL} ms are probed before them instead. Proxies are
+ * selected and https connections are verified like
+ * {@link java.net.HttpURLConnection} does.
+ */
+public class EtcdPooledTransport implements IEtcdTransport, EtcdHttpConnection.ReleaseCallback {
+
+	public static final int MAX_IDLE_CONNECTIONS = Integer.parseInt(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.maxconnections", "8")); //$NON-NLS-1$ //$NON-NLS-2$
+	public static final int MAX_CONNECTIONS = Integer.parseInt(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.maxopenconnections", "64")); //$NON-NLS-1$ //$NON-NLS-2$
+	public static final long KEEPALIVE_TIMEOUT = Long.parseLong(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.keepalivetimeout", "30000")); //$NON-NLS-1$ //$NON-NLS-2$
+	public static final int MAX_REDIRECTS = 5;
+	// a server closing a connection it just answered on says so in the response
+	public static final long PROBE_INTERVAL = 10;
+
+	private final int maxIdlePerEndpoint;
+	private final int maxConnectionsPerEndpoint;
+	private final long keepAliveTimeout;
+	private final EtcdRequestLatencies latencies;
+	private final Map<String, LinkedList<EtcdHttpConnection>> idleConnections = new HashMap<String, LinkedList<EtcdHttpConnection>>();
+	// guarded by idleConnections
+	private final Map<String, Integer> openConnections = new HashMap<String, Integer>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong staleConnections = new AtomicLong();
+
+	private boolean closed;
+
+	public EtcdPooledTransport() {
+		this(MAX_IDLE_CONNECTIONS, KEEPALIVE_TIMEOUT);
+	}
+
+	public EtcdPooledTransport(int maxIdlePerEndpoint) {
+		this(maxIdlePerEndpoint, KEEPALIVE_TIMEOUT);
+	}
+
+	public EtcdPooledTransport(int maxIdlePerEndpoint, long keepAliveTimeout) {
+		this(maxIdlePerEndpoint, keepAliveTimeout, new EtcdRequestLatencies());
+	}
+
+	/**
+	 * @param latencies
+	 *            where the latencies of the requests sent are recorded
+	 */
+	public EtcdPooledTransport(int maxIdlePerEndpoint, long keepAliveTimeout, EtcdRequestLatencies latencies) {
+		this(maxIdlePerEndpoint, Math.max(maxIdlePerEndpoint, MAX_CONNECTIONS), keepAliveTimeout, latencies);
+	}
+
+	/**
+	 * @param maxConnectionsPerEndpoint
+	 *            limit of the connections open to an endpoint, at least
+	 *            <code>maxIdlePerEndpoint</code>
+	 * @param latencies
+	 *            where the latencies of the requests sent are recorded
+	 */
+	public EtcdPooledTransport(int maxIdlePerEndpoint, int maxConnectionsPerEndpoint, long keepAliveTimeout,
+			EtcdRequestLatencies latencies) {
+		if (maxConnectionsPerEndpoint < Math.max(1, maxIdlePerEndpoint))
+			throw new IllegalArgumentException("maxConnectionsPerEndpoint=" + maxConnectionsPerEndpoint //$NON-NLS-1$
+					+ " is less than maxIdlePerEndpoint=" + maxIdlePerEndpoint); //$NON-NLS-1$
+		this.maxIdlePerEndpoint = maxIdlePerEndpoint;
+		this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+		this.keepAliveTimeout = keepAliveTimeout;
+		this.latencies = latencies;
+	}
+
+	static String getEndpoint(URL url) {
+		int port = (url.getPort() == -1) ? url.getDefaultPort() : url.getPort();
+		return url.getProtocol() + "://" + url.getHost() + ":" + port; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	public EtcdHttpResponse send(EtcdRequest request) throws IOException {
+		return send(request, request.createURL());
+	}
+
+	/**
+	 * Sends the request, and follows up to {@link #MAX_REDIRECTS} redirects
+	 * that keep the protocol: 307 and 308 for every request, 301, 302 and 303
+	 * for GET requests only.
+	 */
+	public EtcdHttpResponse send(EtcdRequest request, URL url) throws IOException {
+		for (int redirects = 0;; redirects++) {
+			EtcdHttpResponse response = sendOnce(request, url);
+			URL location = (redirects < MAX_REDIRECTS) ? getRedirect(request, url, response) : null;
+			if (location == null)
+				return response;
+			response.close();
+			trace("send", "redirected from " + url + " to " + location); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			url = location;
+		}
+	}
+
+	static URL getRedirect(EtcdRequest request, URL url, EtcdHttpResponse response) {
+		int status = response.getStatus();
+		boolean redirect = status == 307 || status == 308;
+		if (status == 301 || status == 302 || status == 303)
+			redirect = "GET".equals(request.getMethod()); //$NON-NLS-1$
+		String location = response.getHeader("Location"); //$NON-NLS-1$
+		if (!redirect || location == null)
+			return null;
+		try {
+			URL result = new URL(url, location);
+			return result.getProtocol().equals(url.getProtocol()) ? result : null;
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	private EtcdHttpResponse sendOnce(EtcdRequest request, URL url) throws IOException {
+		String endpoint = getEndpoint(url);
+		EtcdHttpConnection conn = acquire(endpoint, !request.isRead());
+		if (conn != null) {
+			try {
+				request.setAbortHandle(conn);
+				return conn.exchange(request, url);
+			} catch (EtcdHttpConnection.StaleConnectionException e) {
+				conn.close();
+				staleConnections.incrementAndGet();
+				// a write may have been applied before the connection broke
+				if (request.isAborted() || !request.isRead())
+					throw e;
+				// server closed the idle connection, resend on a new one
+				trace("send", "discarded stale connection to " + endpoint); //$NON-NLS-1$ //$NON-NLS-2$
+			} catch (IOException e) {
+				conn.close();
+				throw e;
+			}
+		}
+		misses.incrementAndGet();
+		reserve(endpoint, request.getConnectTimeout());
+		try {
+			conn = EtcdHttpConnection.open(endpoint, url, request.getConnectTimeout(), this);
+		} catch (IOException e) {
+			unreserve(endpoint);
+			throw e;
+		}
+		try {
+			request.setAbortHandle(conn);
+			return conn.exchange(request, url);
+		} catch (IOException e) {
+			conn.close();
+			throw e;
+		}
+	}
+
+	private EtcdHttpConnection acquire(String endpoint, boolean probe) {
+		List<EtcdHttpConnection> expired = null;
+		EtcdHttpConnection result = null;
+		synchronized (idleConnections) {
+			LinkedList<EtcdHttpConnection> idle = idleConnections.get(endpoint);
+			if (idle != null) {
+				long now = System.currentTimeMillis();
+				while (result == null && !idle.isEmpty()) {
+					// most recently used first
+					EtcdHttpConnection c = idle.removeFirst();
+					if (now - c.getLastUsed() < keepAliveTimeout && c.isOpen())
+						result = c;
+					else {
+						if (expired == null)
+							expired = new ArrayList<EtcdHttpConnection>();
+						expired.add(c);
+					}
+				}
+			}
+		}
+		if (expired != null)
+			for (EtcdHttpConnection c : expired)
+				c.close();
+		if (result != null && probe && System.currentTimeMillis() - result.getLastUsed() >= PROBE_INTERVAL
+				&& !result.probe()) {
+			result.close();
+			return acquire(endpoint, probe);
+		}
+		if (result != null)
+			hits.incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * Counts a new connection to the endpoint. While the limit is reached the
+	 * least recently used idle connection is closed, or if there is none, a
+	 * connection is waited for up to the given timeout (0 for no timeout).
+	 */
+	private void reserve(String endpoint, int timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		for (;;) {
+			EtcdHttpConnection evicted = null;
+			synchronized (idleConnections) {
+				Integer open = openConnections.get(endpoint);
+				int count = (open == null) ? 0 : open.intValue();
+				if (count < maxConnectionsPerEndpoint) {
+					openConnections.put(endpoint, Integer.valueOf(count + 1));
+					return;
+				}
+				LinkedList<EtcdHttpConnection> idle = idleConnections.get(endpoint);
+				if (idle != null && !idle.isEmpty())
+					evicted = idle.removeLast();
+				else {
+					long remaining = deadline - System.currentTimeMillis();
+					if (timeout > 0 && remaining <= 0)
+						throw new ConnectException("Too many connections to " + endpoint + ", limit=" //$NON-NLS-1$ //$NON-NLS-2$
+								+ maxConnectionsPerEndpoint);
+					try {
+						idleConnections.wait((timeout > 0) ? remaining : 0);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting for a connection to " + endpoint); //$NON-NLS-1$
+					}
+				}
+			}
+			// frees its place, see unreserve
+			if (evicted != null)
+				evicted.close();
+		}
+	}
+
+	public void closed(EtcdHttpConnection connection) {
+		unreserve(connection.getEndpoint());
+	}
+
+	private void unreserve(String endpoint) {
+		synchronized (idleConnections) {
+			Integer open = openConnections.get(endpoint);
+			if (open == null || open.intValue() <= 1)
+				openConnections.remove(endpoint);
+			else
+				openConnections.put(endpoint, Integer.valueOf(open.intValue() - 1));
+			idleConnections.notifyAll();
+		}
+	}
+
+	public void released(EtcdHttpConnection connection, boolean reusable) {
+		if (!reusable)
+			return;
+		EtcdHttpConnection discard = null;
+		synchronized (idleConnections) {
+			if (closed)
+				discard = connection;
+			else {
+				String endpoint = connection.getEndpoint();
+				LinkedList<EtcdHttpConnection> idle = idleConnections.get(endpoint);
+				if (idle == null) {
+					idle = new LinkedList<EtcdHttpConnection>();
+					idleConnections.put(endpoint, idle);
+				}
+				if (idle.size() < maxIdlePerEndpoint) {
+					idle.addFirst(connection);
+					// may be closed for a request waiting for a connection
+					idleConnections.notifyAll();
+				} else
+					discard = connection;
+			}
+		}
+		if (discard != null)
+			discard.close();
+	}
+
+	public EtcdRequestLatencies getLatencies() {
+		return latencies;
+	}
+
+	public void close() {
+		List<EtcdHttpConnection> toClose = new ArrayList<EtcdHttpConnection>();
+		synchronized (idleConnections) {
+			closed = true;
+			for (Iterator<LinkedList<EtcdHttpConnection>> i = idleConnections.values().iterator(); i.hasNext();) {
+				toClose.addAll(i.next());
+				i.remove();
+			}
+		}
+		for (EtcdHttpConnection c : toClose)
+			c.close();
+		trace("close", "transport closed " + this); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * @return number of requests sent on a pooled (already open) connection
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of requests that needed a new connection
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of pooled connections found closed by the server when
+	 *         reused. Reads sent on them were resent and are also counted as
+	 *         misses, writes failed.
+	 */
+	public long getStaleConnections() {
+		return staleConnections.get();
+	}
+
+	/**
+	 * @return number of connections open, idle or in use
+	 */
+	public int getOpenConnectionCount() {
+		int result = 0;
+		synchronized (idleConnections) {
+			for (Integer open : openConnections.values())
+				result += open.intValue();
+		}
+		return result;
+	}
+
+	public int getIdleConnectionCount() {
+		int result = 0;
+		synchronized (idleConnections) {
+			for (LinkedList<EtcdHttpConnection> idle : idleConnections.values())
+				result += idle.size();
+		}
+		return result;
+	}
+
+	private void trace(String methodName, String message) {
+		LogUtility.trace(methodName, DebugOptions.PROTOCOL, getClass(), message);
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdPooledTransport[hits=" + getHits() + ", misses=" + getMisses() //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", stale=" + getStaleConnections() + ", idle=" + getIdleConnectionCount() + ", open=" + getOpenConnectionCount() + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+}
@@ -8,13 +8,6 @@
  ******************************************************************************/
 package org.eclipse.ecf.internal.provider.etcd.protocol;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-
-import org.eclipse.ecf.internal.provider.etcd.DebugOptions;
-import org.eclipse.ecf.internal.provider.etcd.LogUtility;
-
 public abstract class EtcdProtocol {
 
 	public static final int READ_TIMEOUT = Integer.parseInt(System.getProperty(
@@ -23,6 +16,15 @@ public abstract class EtcdProtocol {
 			.getProperty(
 					"org.eclipse.ecf.provider.etcd.connecttimeout", "15000")); //$NON-NLS-1$ //$NON-NLS-2$
 
+	public static final String TRANSPORT_POOLED = "pooled"; //$NON-NLS-1$
+	public static final String TRANSPORT_URLCONNECTION = "urlconnection"; //$NON-NLS-1$
+	public static final String TRANSPORT = System.getProperty(
+			"org.eclipse.ecf.provider.etcd.transport", TRANSPORT_POOLED); //$NON-NLS-1$
+	public static final int ASYNC_THREADS = Integer.parseInt(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.asyncthreads", "8")); //$NON-NLS-1$ //$NON-NLS-2$
+
+	public static final String ETCD_INDEX_HEADER = "X-Etcd-Index"; //$NON-NLS-1$
+
 	public static final String ACTION_KEY = "action"; //$NON-NLS-1$
 	public static final String NODE_KEY = "node"; //$NON-NLS-1$
 	public static final String PREVIOUSNODE_KEY = "prevNode"; //$NON-NLS-1$
@@ -36,24 +38,4 @@ public abstract class EtcdProtocol {
 	public static final String ACTION_COMPARE_AND_SWAP = "compareAndSwap"; //$NON-NLS-1$
 	public static final String ACTION_COMPARE_AND_DELETE = "compareAndDelete"; //$NON-NLS-1$
 
-	protected String readStream(InputStream ins) throws IOException {
-		if (ins == null) return "InputStream is null"; //$NON-NLS-1$
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			byte[] buffer = new byte[1024];
-			int length = 0;
-			while ((length = ins.read(buffer)) != -1)
-				baos.write(buffer, 0, length);
-			return new String(baos.toByteArray());
-		} finally {
-			try {
-				ins.close();
-			} catch (IOException e) {
-				LogUtility
-						.logError(
-								"readStream", DebugOptions.PROTOCOL, getClass(), "Exception closing input stream", e); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-		}
-	}
-
 }
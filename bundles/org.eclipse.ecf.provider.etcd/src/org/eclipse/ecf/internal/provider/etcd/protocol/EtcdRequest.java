@@ -8,17 +8,19 @@
  ******************************************************************************/
 package org.eclipse.ecf.internal.provider.etcd.protocol;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
-import java.net.ConnectException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.ProtocolException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.equinox.concurrent.future.IListenableFuture;
+import org.eclipse.equinox.concurrent.future.IProgressRunnable;
 import org.json.JSONException;
 
 public abstract class EtcdRequest extends EtcdProtocol {
@@ -34,9 +36,56 @@ public abstract class EtcdRequest extends EtcdProtocol {
 	public static final String RECURSIVE = "recursive"; //$NON-NLS-1$
 	public static final String WAIT = "wait"; //$NON-NLS-1$
 	public static final String WAITINDEX = "waitIndex"; //$NON-NLS-1$
+	public static final String STREAM = "stream"; //$NON-NLS-1$
+	public static final String QUORUM = "quorum"; //$NON-NLS-1$
+
+	public static final String CONTENT_TYPE = "Content-Type"; //$NON-NLS-1$
+
+	private static IEtcdTransport defaultTransport;
+
+	/**
+	 * @return the transport used by {@link #execute()}. By default this is a
+	 *         shared {@link EtcdPooledTransport}, unless the system property
+	 *         <code>org.eclipse.ecf.provider.etcd.transport</code> is set to
+	 *         <code>urlconnection</code>.
+	 */
+	public static synchronized IEtcdTransport getDefaultTransport() {
+		if (defaultTransport == null)
+			defaultTransport = TRANSPORT_URLCONNECTION.equals(TRANSPORT) ? new EtcdURLConnectionTransport()
+					: new EtcdPooledTransport();
+		return defaultTransport;
+	}
+
+	public static synchronized void setDefaultTransport(IEtcdTransport transport) {
+		if (defaultTransport != null && defaultTransport != transport)
+			defaultTransport.close();
+		defaultTransport = transport;
+	}
+
+	private static EtcdRequestExecutor defaultExecutor;
+
+	/**
+	 * @return the executor used by {@link #executeAsync()}. Uses at most
+	 *         <code>org.eclipse.ecf.provider.etcd.asyncthreads</code> threads.
+	 */
+	public static synchronized EtcdRequestExecutor getDefaultExecutor() {
+		if (defaultExecutor == null)
+			defaultExecutor = new EtcdRequestExecutor("EtcdRequest", ASYNC_THREADS); //$NON-NLS-1$
+		return defaultExecutor;
+	}
+
+	public static synchronized void shutdownDefaultExecutor() {
+		if (defaultExecutor != null) {
+			defaultExecutor.shutdown();
+			defaultExecutor = null;
+		}
+	}
 
 	private final String url;
 	private final Map<String, String> queryParams;
+	// connection the request is being sent on, closed to abort it
+	private Closeable abortHandle;
+	private boolean aborted;
 
 	public EtcdRequest(String url) {
 		this.url = url;
@@ -59,23 +108,40 @@ public abstract class EtcdRequest extends EtcdProtocol {
 		setQueryParam(name, String.valueOf(true));
 	}
 
-	protected EtcdResponse getResponseOrError(HttpURLConnection conn)
-			throws IOException, JSONException {
-		try {
-			return new EtcdSuccessResponse(readStream(conn.getInputStream()),
-					conn.getHeaderFields());
-		} catch (ConnectException e) {
-			throw e;
-		} catch (Exception e) {
-			return new EtcdErrorResponse(readStream(conn.getErrorStream()),
-					conn.getHeaderFields());
-		}
+	/**
+	 * @return the http method for this request. By default GET.
+	 */
+	public String getMethod() {
+		return "GET"; //$NON-NLS-1$
+	}
+
+	/**
+	 * @return the request body, or <code>null</code> if the request has no
+	 *         body. By default <code>null</code>.
+	 */
+	public byte[] getBody() {
+		return null;
 	}
 
-	protected HttpURLConnection setRequestMethod(HttpURLConnection conn)
-			throws ProtocolException, IOException {
-		// by default do nothing and default is GET
-		return conn;
+	/**
+	 * @return the content type of the request body
+	 */
+	public String getContentType() {
+		return null;
+	}
+
+	public int getReadTimeout() {
+		return READ_TIMEOUT;
+	}
+
+	public int getConnectTimeout() {
+		return CONNECT_TIMEOUT;
+	}
+
+	protected EtcdResponse getResponseOrError(EtcdHttpResponse response)
+			throws IOException, JSONException {
+		return EtcdResponseDecoder.decode(response.isSuccess(),
+				response.getInputStream(), response.getHeaders());
 	}
 
 	protected String getQueryAsString(Map<String, String> params) {
@@ -100,35 +166,171 @@ public abstract class EtcdRequest extends EtcdProtocol {
 				getQueryAsString(getQueryParams())).toString();
 	}
 
-	protected HttpURLConnection setConnectionOptions(HttpURLConnection conn)
-			throws IOException {
-		conn.setReadTimeout(READ_TIMEOUT);
-		conn.setConnectTimeout(CONNECT_TIMEOUT);
-		return conn;
+	/**
+	 * Create the url (with any query parameters) for this request.
+	 * 
+	 * @return the url. Will not be <code>null</code>.
+	 * @throws IOException
+	 *             if the url is malformed or is not an http or https url
+	 */
+	public URL createURL() throws IOException {
+		URL u = new URL(getUrlWithQuery());
+		String protocol = u.getProtocol();
+		if (!("http".equals(protocol) || "https".equals(protocol)))throw new MalformedURLException("url=" + u + " not http protocol"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		return u;
+	}
+
+	/**
+	 * Create the url for this request, but directed at the given endpoint.
+	 * 
+	 * @param endpoint
+	 *            url of the etcd server to use. Only the protocol, host and
+	 *            port are used. Must not be <code>null</code>.
+	 * @return the url. Will not be <code>null</code>.
+	 * @throws IOException
+	 *             if the url is malformed or is not an http or https url
+	 */
+	public URL createURL(URL endpoint) throws IOException {
+		URL u = createURL();
+		return new URL(endpoint.getProtocol(), endpoint.getHost(), endpoint.getPort(), u.getFile());
+	}
+
+	/**
+	 * @return <code>true</code> if this request does not modify the etcd
+	 *         store.
+	 */
+	public boolean isRead() {
+		return "GET".equals(getMethod()); //$NON-NLS-1$
+	}
+
+	/**
+	 * @return <code>true</code> if this request waits for changes, so that its
+	 *         response time is no measure of the server's latency. By default
+	 *         <code>false</code>.
+	 */
+	public boolean isWatch() {
+		return false;
 	}
 
 	public EtcdResponse execute() throws EtcdException {
-		HttpURLConnection conn = null;
-		URL url = null;
+		return execute(getDefaultTransport());
+	}
+
+	/**
+	 * Abort this request from another thread: the connection it is sent on is
+	 * closed, so that {@link #execute(IEtcdTransport)} throws an
+	 * {@link EtcdException} without waiting for the response (e.g. of a long
+	 * polling watch). A request that is aborted before it is sent fails
+	 * immediately.
+	 */
+	public synchronized void abort() {
+		aborted = true;
+		if (abortHandle != null) {
+			try {
+				abortHandle.close();
+			} catch (IOException e) {
+				// closed anyway
+			}
+			abortHandle = null;
+		}
+	}
+
+	public synchronized boolean isAborted() {
+		return aborted;
+	}
+
+	/**
+	 * Called by transports with the connection this request is sent on, so
+	 * that {@link #abort()} can close it.
+	 * 
+	 * @param handle
+	 *            closes the connection, or <code>null</code> once the request
+	 *            is done with the connection
+	 * @throws IOException
+	 *             if the request was aborted. The handle has then been closed.
+	 */
+	public synchronized void setAbortHandle(Closeable handle) throws IOException {
+		if (aborted && handle != null) {
+			handle.close();
+			throw new InterruptedIOException("Request aborted url=" + url); //$NON-NLS-1$
+		}
+		this.abortHandle = handle;
+	}
+
+	public EtcdResponse execute(IEtcdTransport transport) throws EtcdException {
+		EtcdHttpResponse response = null;
+		String url = getUrl();
+		long start = System.nanoTime();
+		boolean failed = true;
 		try {
-			// Create url (with any query parameters)
-			url = new URL(getUrlWithQuery());
-			String protocol = url.getProtocol();
-			if (!("http".equals(protocol) || "https".equals(protocol)))throw new IOException("url=" + url + " not http protocol"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
-			conn = (HttpURLConnection) url.openConnection();
-			setConnectionOptions(conn);
-			setRequestMethod(conn);
-			return getResponseOrError(conn);
+			response = transport.send(this);
+			EtcdResponse result = getResponseOrError(response);
+			failed = result.isError();
+			return result;
 		} catch (MalformedURLException e) {
 			throw new EtcdException("Server url is malformed=" + url, e); //$NON-NLS-1$ 
 		} catch (IOException e) {
+			if (isAborted())
+				throw new EtcdException("Request aborted url=" + url, e); //$NON-NLS-1$
 			throw new EtcdException("Error communicating with server at url="+url, e); //$NON-NLS-1$
 		} catch (JSONException e) {
 			throw new EtcdException("Parsing error communicating with server url="+url, e); //$NON-NLS-1$
 		} finally {
-			if (conn != null)
-				conn.disconnect();
+			// an abort must not close the connection once it is released
+			clearAbortHandle();
+			if (response != null)
+				response.close();
+			// the response time of a watch depends on when a change happens
+			if (!isWatch())
+				transport.getLatencies().record(getClass(), System.nanoTime() - start, failed);
 		}
 	}
 
+	protected synchronized void clearAbortHandle() {
+		abortHandle = null;
+	}
+
+	/**
+	 * Execute this request without blocking the caller, using the default
+	 * transport and executor.
+	 * 
+	 * @return future for the response. If the request fails the future's
+	 *         status will contain the {@link EtcdException}.
+	 */
+	public IListenableFuture<EtcdResponse> executeAsync() {
+		return executeAsync(getDefaultTransport(), getDefaultExecutor());
+	}
+
+	public IListenableFuture<EtcdResponse> executeAsync(IEtcdTransport transport, EtcdRequestExecutor executor) {
+		return executeAsync(transport, executor, new IEtcdResponseHandler<EtcdResponse>() {
+			public EtcdResponse handleResponse(EtcdResponse response) {
+				return response;
+			}
+		});
+	}
+
+	/**
+	 * Execute this request without blocking the caller and process the
+	 * response with the given handler on the executor thread.
+	 * 
+	 * @param transport
+	 *            the transport to send the request with. Must not be
+	 *            <code>null</code>.
+	 * @param executor
+	 *            the executor to run the request on. Must not be
+	 *            <code>null</code>.
+	 * @param handler
+	 *            handler called with the response. Must not be
+	 *            <code>null</code>.
+	 * @return future for the result of the handler
+	 */
+	public <ResultType> IListenableFuture<ResultType> executeAsync(final IEtcdTransport transport,
+			EtcdRequestExecutor executor, final IEtcdResponseHandler<ResultType> handler) {
+		return executor.execute(new IProgressRunnable<ResultType>() {
+			public ResultType run(IProgressMonitor monitor) throws Exception {
+				return handler.handleResponse(execute(transport));
+			}
+		}, null);
+	}
+
 }
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.equinox.concurrent.future.AbstractExecutor;
+import org.eclipse.equinox.concurrent.future.AbstractFuture;
+import org.eclipse.equinox.concurrent.future.IListenableFuture;
+import org.eclipse.equinox.concurrent.future.IProgressRunnable;
+import org.eclipse.equinox.concurrent.future.SingleOperationListenableFuture;
+
+/**
+ * {@link org.eclipse.equinox.concurrent.future.IExecutor} that runs etcd
+ * requests on a bounded set of daemon threads, so that many requests can be in
+ * flight at once without a thread (or a Job) per request. Idle threads
+ * terminate after a short keep alive time.
+ */
+public class EtcdRequestExecutor extends AbstractExecutor {
+
+	private static final long THREAD_KEEPALIVE = 30000;
+
+	private final ThreadPoolExecutor threads;
+
+	private static class ExecutorThread extends Thread {
+		ExecutorThread(Runnable r, String name) {
+			super(r, name);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if called on a thread of an executor, e.g.
+	 *         from a response handler. Such a thread must not block waiting
+	 *         for other requests or for listeners.
+	 */
+	public static boolean isExecutorThread() {
+		return Thread.currentThread() instanceof ExecutorThread;
+	}
+
+	public EtcdRequestExecutor(final String name, int maxThreads) {
+		this.threads = new ThreadPoolExecutor(maxThreads, maxThreads, THREAD_KEEPALIVE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new ExecutorThread(r, name + "-" + count.incrementAndGet()); //$NON-NLS-1$
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.threads.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	protected AbstractFuture<?> createFuture(IProgressMonitor monitor) {
+		return new SingleOperationListenableFuture<Object>(monitor);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <ResultType> IListenableFuture<ResultType> execute(final IProgressRunnable<? extends ResultType> runnable,
+			IProgressMonitor monitor) {
+		final SingleOperationListenableFuture<ResultType> future = (SingleOperationListenableFuture<ResultType>) createFuture(
+				monitor);
+		try {
+			threads.execute(new Runnable() {
+				public void run() {
+					future.runWithProgress(runnable);
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			// executor has been shutdown, complete the future with the failure
+			future.runWithProgress(new IProgressRunnable<ResultType>() {
+				public ResultType run(IProgressMonitor m) throws Exception {
+					throw e;
+				}
+			});
+		}
+		return future;
+	}
+
+	/**
+	 * @return number of requests submitted but not yet completed
+	 */
+	public int getPendingCount() {
+		return threads.getQueue().size() + threads.getActiveCount();
+	}
+
+	/**
+	 * Stop accepting new requests. Requests already submitted are still run.
+	 */
+	public void shutdown() {
+		threads.shutdown();
+	}
+
+	public boolean awaitTermination(long timeout) throws InterruptedException {
+		return threads.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+	}
+
+}
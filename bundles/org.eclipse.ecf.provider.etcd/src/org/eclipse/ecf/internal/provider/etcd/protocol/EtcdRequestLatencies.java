@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latencies of the requests sent with a transport, by request type. Every
+ * {@link IEtcdTransport} has one, so that a container that creates its own
+ * transport only sees the latencies of its own requests.
+ */
+public class EtcdRequestLatencies {
+
+	private final ConcurrentMap<Class<?>, EtcdLatencyHistogram> latencies = new ConcurrentHashMap<Class<?>, EtcdLatencyHistogram>();
+
+	/**
+	 * @param nanos
+	 *            time from sending the request until its response was read
+	 * @param failed
+	 *            <code>true</code> if no response or an error response was
+	 *            received
+	 */
+	public void record(Class<? extends EtcdRequest> requestClass, long nanos, boolean failed) {
+		EtcdLatencyHistogram histogram = latencies.get(requestClass);
+		if (histogram == null) {
+			EtcdLatencyHistogram h = new EtcdLatencyHistogram();
+			histogram = latencies.putIfAbsent(requestClass, h);
+			if (histogram == null)
+				histogram = h;
+		}
+		if (failed)
+			histogram.recordFailure(nanos);
+		else
+			histogram.record(nanos);
+	}
+
+	/**
+	 * @return the latencies by request type (e.g. <code>Get</code>,
+	 *         <code>Set</code>, <code>V3Put</code>). Watch requests are not
+	 *         included.
+	 */
+	public Map<String, EtcdLatencyHistogram> getLatencies() {
+		Map<String, EtcdLatencyHistogram> result = new TreeMap<String, EtcdLatencyHistogram>();
+		for (Map.Entry<Class<?>, EtcdLatencyHistogram> entry : latencies.entrySet())
+			result.put(getRequestType(entry.getKey()), entry.getValue());
+		return result;
+	}
+
+	private static String getRequestType(Class<?> requestClass) {
+		String name = requestClass.getName();
+		name = name.substring(name.lastIndexOf('.') + 1);
+		if (name.startsWith("Etcd")) //$NON-NLS-1$
+			name = name.substring(4);
+		if (name.endsWith("Request") && name.length() > 7) //$NON-NLS-1$
+			name = name.substring(0, name.length() - 7);
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdRequestLatencies" + getLatencies(); //$NON-NLS-1$
+	}
+}
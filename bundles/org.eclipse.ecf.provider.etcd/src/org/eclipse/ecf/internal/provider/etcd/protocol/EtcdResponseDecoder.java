@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+/**
+ * Decodes etcd responses directly from the response body stream into
+ * {@link EtcdSuccessResponse}/{@link EtcdErrorResponse} instances. Unlike
+ * the {@link String}/{@link org.json.JSONObject} based constructors, neither
+ * the body text nor an intermediate JSON tree is held in memory, so decoding a
+ * recursive get of a large directory only costs the resulting
+ * {@link EtcdNode}s.
+ */
+public class EtcdResponseDecoder {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+	private static final EtcdNode[] EMPTY_NODES = new EtcdNode[0];
+
+	public static EtcdResponse decode(boolean success, InputStream ins,
+			Map<String, List<String>> headers) throws IOException,
+			JSONException {
+		return success ? decodeSuccess(ins, headers) : decodeError(ins, headers);
+	}
+
+	public static EtcdSuccessResponse decodeSuccess(InputStream ins,
+			Map<String, List<String>> headers) throws IOException,
+			JSONException {
+		EtcdJsonReader reader = createReader(ins);
+		EtcdSuccessResponse result = readSuccess(reader, headers);
+		endDocument(reader);
+		return result;
+	}
+
+	/**
+	 * Read one success response object, leaving the reader positioned after
+	 * it, e.g. at the next event of a watch stream.
+	 */
+	public static EtcdSuccessResponse readSuccess(EtcdJsonReader reader,
+			Map<String, List<String>> headers) throws IOException,
+			JSONException {
+		String action = null;
+		EtcdNode node = null;
+		EtcdNode previousNode = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == EtcdJsonReader.NULL)
+				reader.skipValue();
+			else if (EtcdProtocol.ACTION_KEY.equals(name))
+				action = reader.nextString();
+			else if (EtcdProtocol.NODE_KEY.equals(name))
+				node = readNode(reader);
+			else if (EtcdProtocol.PREVIOUSNODE_KEY.equals(name))
+				previousNode = readNode(reader);
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		if (action == null)
+			throw new JSONException("Response is missing " + EtcdProtocol.ACTION_KEY); //$NON-NLS-1$
+		if (node == null)
+			throw new JSONException("Response is missing " + EtcdProtocol.NODE_KEY); //$NON-NLS-1$
+		return new EtcdSuccessResponse(action, node, previousNode, headers);
+	}
+
+	public static EtcdErrorResponse decodeError(InputStream ins,
+			Map<String, List<String>> headers) throws IOException,
+			JSONException {
+		EtcdJsonReader reader = createReader(ins);
+		String cause = null;
+		Integer errorCode = null;
+		int index = 0;
+		String message = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == EtcdJsonReader.NULL)
+				reader.skipValue();
+			else if (EtcdErrorResponse.CAUSE_KEY.equals(name))
+				cause = reader.nextString();
+			else if (EtcdErrorResponse.ERRORCODE_KEY.equals(name))
+				errorCode = reader.nextInt();
+			else if (EtcdErrorResponse.INDEX_KEY.equals(name))
+				index = reader.nextInt();
+			else if (EtcdErrorResponse.MESSAGE_KEY.equals(name))
+				message = reader.nextString();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		endDocument(reader);
+		if (errorCode == null)
+			throw new JSONException("Error response is missing " + EtcdErrorResponse.ERRORCODE_KEY); //$NON-NLS-1$
+		if (message == null)
+			throw new JSONException("Error response is missing " + EtcdErrorResponse.MESSAGE_KEY); //$NON-NLS-1$
+		return new EtcdErrorResponse(cause, errorCode.intValue(), index,
+				message, headers);
+	}
+
+	/**
+	 * Read a single node object, including all of its child nodes. Missing
+	 * fields get the same defaults as {@link EtcdNode#EtcdNode(org.json.JSONObject)}.
+	 */
+	public static EtcdNode readNode(EtcdJsonReader reader) throws IOException,
+			JSONException {
+		int createdIndex = 0;
+		boolean directory = false;
+		String expiration = null;
+		String key = null;
+		int modifiedIndex = 0;
+		int ttl = 0;
+		String value = ""; //$NON-NLS-1$
+		EtcdNode[] nodes = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == EtcdJsonReader.NULL)
+				reader.skipValue();
+			else if (EtcdNode.KEY_KEY.equals(name))
+				key = emptyToNull(reader.nextString());
+			else if (EtcdNode.VALUE_KEY.equals(name))
+				value = reader.nextString();
+			else if (EtcdNode.MODIFIEDINDEX_KEY.equals(name))
+				modifiedIndex = reader.nextInt();
+			else if (EtcdNode.CREATEDINDEX_KEY.equals(name))
+				createdIndex = reader.nextInt();
+			else if (EtcdNode.DIR_KEY.equals(name))
+				directory = reader.nextBoolean();
+			else if (EtcdNode.TTL_KEY.equals(name))
+				ttl = reader.nextInt();
+			else if (EtcdNode.EXPIRATION_KEY.equals(name))
+				expiration = emptyToNull(reader.nextString());
+			else if (EtcdNode.NODES_KEY.equals(name))
+				nodes = readNodes(reader);
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return new EtcdNode(createdIndex, directory, expiration, key,
+				modifiedIndex, ttl, value, nodes);
+	}
+
+	private static EtcdNode[] readNodes(EtcdJsonReader reader)
+			throws IOException, JSONException {
+		reader.beginArray();
+		if (!reader.hasNext()) {
+			reader.endArray();
+			return EMPTY_NODES;
+		}
+		List<EtcdNode> nodes = new ArrayList<EtcdNode>();
+		while (reader.hasNext())
+			nodes.add(readNode(reader));
+		reader.endArray();
+		return nodes.toArray(new EtcdNode[nodes.size()]);
+	}
+
+	/**
+	 * Consume the rest of the body, so that keep-alive connections see the end
+	 * of the stream and can be reused.
+	 */
+	static void endDocument(EtcdJsonReader reader) throws IOException,
+			JSONException {
+		if (reader.peek() != EtcdJsonReader.END_DOCUMENT)
+			throw new JSONException("Unexpected content after response object"); //$NON-NLS-1$
+	}
+
+	private static String emptyToNull(String s) {
+		return "".equals(s) ? null : s; //$NON-NLS-1$
+	}
+
+	static EtcdJsonReader createReader(InputStream ins)
+			throws JSONException {
+		if (ins == null)
+			throw new JSONException("Response has no body"); //$NON-NLS-1$
+		return new EtcdJsonReader(new InputStreamReader(ins, UTF8));
+	}
+}
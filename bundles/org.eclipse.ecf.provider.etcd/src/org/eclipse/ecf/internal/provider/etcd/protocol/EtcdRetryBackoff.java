@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter and a circuit breaker for a loop of
+ * requests to the etcd server (e.g. the watch loop).
+ * <p>
+ * After each failure the next attempt is delayed by a random time between
+ * half and all of <code>retryDelay * 2^(failures-1)</code>, capped at
+ * <code>maxRetryDelay</code>. The jitter keeps the nodes of a cluster from
+ * retrying in lock step after a shared etcd outage. After
+ * <code>failureThreshold</code> consecutive failures the circuit is
+ * <i>open</i>: attempts are made only every <code>maxRetryDelay</code> ms
+ * (<i>half open</i>), until one succeeds and the circuit is <i>closed</i>
+ * again.
+ */
+public class EtcdRetryBackoff {
+
+	public static final int CLOSED = 0;
+	public static final int OPEN = 1;
+	public static final int HALF_OPEN = 2;
+
+	private final long retryDelay;
+	private final long maxRetryDelay;
+	private final int failureThreshold;
+	private final Random random = new Random();
+
+	private int state = CLOSED;
+	private int consecutiveFailures;
+	private long currentBackoff;
+	private long totalFailures;
+	private long openCount;
+	private long openedAt;
+	private long timeInOpenState;
+
+	public EtcdRetryBackoff(long retryDelay, long maxRetryDelay, int failureThreshold) {
+		this.retryDelay = Math.max(1, retryDelay);
+		this.maxRetryDelay = Math.max(this.retryDelay, maxRetryDelay);
+		this.failureThreshold = Math.max(1, failureThreshold);
+	}
+
+	/**
+	 * Record a successful attempt. Closes the circuit.
+	 */
+	public synchronized void succeeded(long now) {
+		if (state != CLOSED) {
+			timeInOpenState += now - openedAt;
+			state = CLOSED;
+		}
+		consecutiveFailures = 0;
+		currentBackoff = 0;
+	}
+
+	/**
+	 * Record a failed attempt.
+	 * 
+	 * @return the time in ms to wait before the next attempt
+	 */
+	public synchronized long failed(long now) {
+		consecutiveFailures++;
+		totalFailures++;
+		if (state == CLOSED && consecutiveFailures >= failureThreshold) {
+			state = OPEN;
+			openedAt = now;
+			openCount++;
+		} else if (state == HALF_OPEN)
+			state = OPEN;
+		long backoff = (state == OPEN) ? maxRetryDelay
+				: Math.min(maxRetryDelay, retryDelay << Math.min(consecutiveFailures - 1, 30));
+		// equal jitter: half fixed, half random
+		long half = backoff / 2;
+		currentBackoff = half + (long) (random.nextDouble() * (backoff - half + 1));
+		return currentBackoff;
+	}
+
+	/**
+	 * Record that the next attempt is about to be made. Moves an open circuit
+	 * to half open.
+	 */
+	public synchronized void attempting() {
+		if (state == OPEN)
+			state = HALF_OPEN;
+	}
+
+	public synchronized int getState() {
+		return state;
+	}
+
+	public synchronized boolean isOpen() {
+		return state != CLOSED;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * @return the delay in ms after the last failure, or 0 after a success
+	 */
+	public synchronized long getCurrentBackoff() {
+		return currentBackoff;
+	}
+
+	public synchronized long getTotalFailures() {
+		return totalFailures;
+	}
+
+	/**
+	 * @return number of times the circuit has opened
+	 */
+	public synchronized long getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * @return total time in ms the circuit has been open (or half open),
+	 *         including the current period
+	 */
+	public synchronized long getTimeInOpenState(long now) {
+		return timeInOpenState + ((state != CLOSED) ? now - openedAt : 0);
+	}
+
+	/**
+	 * @return a snapshot of the given backoffs, e.g. of several watch loops:
+	 *         the state, failures and backoff of the one that fails the most,
+	 *         and the totals of all of them
+	 */
+	public static EtcdRetryBackoff combine(Collection<EtcdRetryBackoff> backoffs, long now) {
+		EtcdRetryBackoff result = new EtcdRetryBackoff(1, 1, 1);
+		result.openedAt = now;
+		for (EtcdRetryBackoff backoff : backoffs)
+			synchronized (backoff) {
+				boolean open = backoff.state != CLOSED;
+				if ((open && result.state == CLOSED) || (open == (result.state != CLOSED)
+						&& backoff.consecutiveFailures > result.consecutiveFailures)) {
+					result.state = backoff.state;
+					result.consecutiveFailures = backoff.consecutiveFailures;
+					result.currentBackoff = backoff.currentBackoff;
+				}
+				result.totalFailures += backoff.totalFailures;
+				result.openCount += backoff.openCount;
+				result.timeInOpenState += backoff.getTimeInOpenState(now);
+			}
+		return result;
+	}
+
+	public static String getStateName(int state) {
+		switch (state) {
+		case OPEN:
+			return "open"; //$NON-NLS-1$
+		case HALF_OPEN:
+			return "half-open"; //$NON-NLS-1$
+		default:
+			return "closed"; //$NON-NLS-1$
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "EtcdRetryBackoff[state=" + getStateName(state) + ", consecutiveFailures=" + consecutiveFailures //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", currentBackoff=" + currentBackoff + ", totalFailures=" + totalFailures + ", openCount=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ openCount + ", timeInOpenState=" + getTimeInOpenState(System.currentTimeMillis()) + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
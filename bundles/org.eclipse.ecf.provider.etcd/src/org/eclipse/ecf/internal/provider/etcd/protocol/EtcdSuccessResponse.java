@@ -35,10 +35,37 @@ public class EtcdSuccessResponse extends EtcdResponse {
 		this.responseHeaders = headers;
 	}
 
+	public EtcdSuccessResponse(String action, EtcdNode node,
+			EtcdNode previousNode, Map<String, List<String>> headers) {
+		Assert.isNotNull(action, "action field in response must not be null"); //$NON-NLS-1$
+		Assert.isNotNull(node, "node field in response must not be null"); //$NON-NLS-1$
+		this.action = action;
+		this.etcdNode = node;
+		this.previousNode = previousNode;
+		this.responseHeaders = headers;
+	}
+
 	public Map<String, List<String>> getResponseHeaders() {
 		return responseHeaders;
 	}
 
+	/**
+	 * @return the etcd index at the time of the response (the
+	 *         <code>X-Etcd-Index</code> header), or -1 if not known
+	 */
+	public int getEtcdIndex() {
+		if (responseHeaders != null)
+			for (Map.Entry<String, List<String>> entry : responseHeaders.entrySet())
+				if (ETCD_INDEX_HEADER.equalsIgnoreCase(entry.getKey()) && entry.getValue() != null
+						&& !entry.getValue().isEmpty())
+					try {
+						return Integer.parseInt(entry.getValue().get(0));
+					} catch (NumberFormatException e) {
+						return -1;
+					}
+		return -1;
+	}
+
 	public String getAction() {
 		return action;
 	}
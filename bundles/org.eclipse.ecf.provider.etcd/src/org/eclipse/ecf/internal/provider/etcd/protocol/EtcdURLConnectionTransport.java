@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Transport based upon {@link HttpURLConnection}. Connection reuse is left to
+ * the JRE keep-alive cache, which is not bounded per endpoint and does not
+ * report reuse. Mostly useful when the {@link java.net.URLStreamHandler} of
+ * the JRE has to be used, e.g. for proxy authentication.
+ */
+public class EtcdURLConnectionTransport implements IEtcdTransport {
+
+	private final EtcdRequestLatencies latencies;
+
+	public EtcdURLConnectionTransport() {
+		this(new EtcdRequestLatencies());
+	}
+
+	/**
+	 * @param latencies
+	 *            where the latencies of the requests sent are recorded
+	 */
+	public EtcdURLConnectionTransport(EtcdRequestLatencies latencies) {
+		this.latencies = latencies;
+	}
+
+	public EtcdHttpResponse send(EtcdRequest request) throws IOException {
+		return send(request, request.createURL());
+	}
+
+	public EtcdHttpResponse send(EtcdRequest request, URL url) throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		request.setAbortHandle(new Closeable() {
+			public void close() {
+				conn.disconnect();
+			}
+		});
+		conn.setReadTimeout(request.getReadTimeout());
+		conn.setConnectTimeout(request.getConnectTimeout());
+		conn.setRequestMethod(request.getMethod());
+		byte[] body = request.getBody();
+		if (body != null) {
+			conn.setDoOutput(true);
+			conn.setRequestProperty(EtcdRequest.CONTENT_TYPE, request.getContentType());
+			OutputStream os = conn.getOutputStream();
+			try {
+				os.write(body);
+			} finally {
+				os.close();
+			}
+		}
+		int status = conn.getResponseCode();
+		InputStream ins = (status >= 400) ? conn.getErrorStream() : conn.getInputStream();
+		// Do not disconnect, closing the fully read stream allows the
+		// connection to be kept alive
+		return new EtcdHttpResponse(status, conn.getHeaderFields(), ins);
+	}
+
+	public EtcdRequestLatencies getLatencies() {
+		return latencies;
+	}
+
+	public void close() {
+		// nothing to release
+	}
+
+}
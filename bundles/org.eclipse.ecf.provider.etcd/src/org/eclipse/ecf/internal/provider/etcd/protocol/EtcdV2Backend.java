@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.ecf.internal.provider.etcd.DebugOptions;
+import org.eclipse.ecf.internal.provider.etcd.LogUtility;
+import org.eclipse.equinox.concurrent.future.IListenableFuture;
+import org.eclipse.equinox.concurrent.future.IProgressRunnable;
+import org.json.JSONException;
+
+/**
+ * Backend for the etcd v2 keys api. Sessions are directories with a ttl.
+ * Changes are received either with one long polling watch request per change,
+ * or, with stream watches, through a <code>stream=true</code> watch of each
+ * watched directory that is kept open across calls to
+ * {@link #watch(String, int)}.
+ */
+public class EtcdV2Backend implements IEtcdBackend {
+
+	private final String keysUrl;
+	private final IEtcdTransport transport;
+	private final EtcdRequestExecutor executor;
+	// session key -> directories with the session's ttl outside of it
+	private final Map<String, Set<String>> sessionDirectories = new HashMap<String, Set<String>>();
+	// session directory -> key -> value set in it, to set again if the
+	// directory expired. Guarded by sessionDirectories
+	private final Map<String, Map<String, SetValue>> directoryValues = new HashMap<String, Map<String, SetValue>>();
+	// watches in progress, aborted by close
+	private final Set<EtcdRequest> watches = new HashSet<EtcdRequest>();
+	private final boolean streamWatches;
+	// watched directory key -> open watch stream, guarded by watches
+	private final Map<String, EtcdWatchStream> streams = new HashMap<String, EtcdWatchStream>();
+	private boolean closed;
+	private volatile int watchTimeout;
+
+	private static class SetValue {
+		final String value;
+		final int ttl;
+
+		SetValue(String value, int ttl) {
+			this.value = value;
+			this.ttl = ttl;
+		}
+	}
+
+	/**
+	 * @param keysUrl
+	 *            url of the keys api, e.g.
+	 *            <code>http://127.0.0.1:2379/v2/keys</code>
+	 */
+	public EtcdV2Backend(String keysUrl, IEtcdTransport transport, EtcdRequestExecutor executor) {
+		this(keysUrl, transport, executor, false);
+	}
+
+	/**
+	 * @param streamWatches
+	 *            <code>true</code> to receive the changes of a watched
+	 *            directory through one streaming watch request instead of
+	 *            one request per change
+	 */
+	public EtcdV2Backend(String keysUrl, IEtcdTransport transport, EtcdRequestExecutor executor,
+			boolean streamWatches) {
+		this.streamWatches = streamWatches;
+		this.keysUrl = keysUrl.endsWith("/") ? keysUrl.substring(0, keysUrl.length() - 1) : keysUrl; //$NON-NLS-1$
+		this.transport = transport;
+		this.executor = executor;
+	}
+
+	protected String getUrl(String key) {
+		return keysUrl + key;
+	}
+
+	public EtcdResponse getDirectory(String key, boolean serializable) throws EtcdException {
+		String url = getUrl(key);
+		EtcdGetRequest get = new EtcdGetRequest(url, true);
+		// v2 reads are served by the receiving member unless quorum is set
+		if (!serializable)
+			get.setQueryBoolean(EtcdRequest.QUORUM);
+		EtcdResponse response = get.execute(transport);
+		if (response.isError())
+			// if dir not present, try to create
+			response = new EtcdSetRequest(url).execute(transport);
+		return response;
+	}
+
+	public EtcdResponse createSession(String key, int ttl) throws EtcdException {
+		return new EtcdSetRequest(getUrl(key), ttl).execute(transport);
+	}
+
+	private boolean isSessionDirectory(String sessionKey, String key) {
+		synchronized (sessionDirectories) {
+			Set<String> directories = sessionDirectories.get(sessionKey);
+			return directories != null && directories.contains(key);
+		}
+	}
+
+	public EtcdResponse addSessionDirectory(String sessionKey, String key, int ttl) throws EtcdException {
+		if (isSessionDirectory(sessionKey, key))
+			return null;
+		EtcdResponse response = new EtcdSetRequest(getUrl(key), ttl).execute(transport);
+		if (response.isError())
+			// exists already, e.g. from an earlier connect with the same session
+			response = new EtcdSetRequest(getUrl(key), ttl, true).execute(transport);
+		if (!response.isError())
+			synchronized (sessionDirectories) {
+				Set<String> directories = sessionDirectories.get(sessionKey);
+				if (directories == null) {
+					directories = new HashSet<String>();
+					sessionDirectories.put(sessionKey, directories);
+				}
+				directories.add(key);
+			}
+		return response;
+	}
+
+	private List<String> getSessionDirectories(String sessionKey, boolean remove) {
+		synchronized (sessionDirectories) {
+			Set<String> directories = remove ? sessionDirectories.remove(sessionKey)
+					: sessionDirectories.get(sessionKey);
+			if (directories == null)
+				return new ArrayList<String>();
+			if (remove)
+				for (String directory : directories)
+					directoryValues.remove(directory);
+			return new ArrayList<String>(directories);
+		}
+	}
+
+	/**
+	 * Refresh the session, and without waiting for them, the session
+	 * directories, all at once.
+	 */
+	public EtcdResponse refreshSession(String key, final int ttl) throws EtcdException {
+		EtcdResponse response = new EtcdSetRequest(getUrl(key), ttl, true).execute(transport);
+		for (final String directory : getSessionDirectories(key, false))
+			new EtcdSetRequest(getUrl(directory), ttl, true).executeAsync(transport, executor,
+					new IEtcdResponseHandler<Object>() {
+						public Object handleResponse(EtcdResponse r) throws EtcdException {
+							if (r.isError())
+								recreateSessionDirectory(directory, ttl, r);
+							return null;
+						}
+					});
+		return response;
+	}
+
+	/**
+	 * The given session directory expired, and the values set in it with it:
+	 * create it again, and set them again. If it cannot be created, it is
+	 * tried again with the next refresh.
+	 */
+	void recreateSessionDirectory(String directory, int ttl, EtcdResponse refreshResponse) throws EtcdException {
+		LogUtility.logWarning("refreshSession", DebugOptions.TTLJOB, getClass(), //$NON-NLS-1$
+				"Could not refresh session directory=" + directory + ": " //$NON-NLS-1$ //$NON-NLS-2$
+						+ refreshResponse.getErrorResponse().getMessage() + ", creating it again"); //$NON-NLS-1$
+		EtcdResponse response = new EtcdSetRequest(getUrl(directory), ttl).execute(transport);
+		if (response.isError()) {
+			LogUtility.logWarning("refreshSession", DebugOptions.TTLJOB, getClass(), //$NON-NLS-1$
+					"Could not create session directory=" + directory + ": " //$NON-NLS-1$ //$NON-NLS-2$
+							+ response.getErrorResponse().getMessage());
+			return;
+		}
+		Map<String, SetValue> values;
+		synchronized (sessionDirectories) {
+			Map<String, SetValue> v = directoryValues.get(directory);
+			values = (v == null) ? new HashMap<String, SetValue>() : new HashMap<String, SetValue>(v);
+		}
+		for (final Map.Entry<String, SetValue> entry : values.entrySet())
+			new EtcdSetRequest(getUrl(entry.getKey()), entry.getValue().value, entry.getValue().ttl)
+					.executeAsync(transport, executor, new IEtcdResponseHandler<Object>() {
+						public Object handleResponse(EtcdResponse r) {
+							if (r.isError())
+								LogUtility.logWarning("refreshSession", DebugOptions.TTLJOB, getClass(), //$NON-NLS-1$
+										"Could not set key=" + entry.getKey() + " again: " //$NON-NLS-1$ //$NON-NLS-2$
+												+ r.getErrorResponse().getMessage());
+							return null;
+						}
+					});
+	}
+
+	private static String getParent(String key) {
+		int slash = key.lastIndexOf('/');
+		return (slash < 0) ? "" : key.substring(0, slash); //$NON-NLS-1$
+	}
+
+	private void rememberValue(String directory, String key, String value, int ttl) {
+		synchronized (sessionDirectories) {
+			Map<String, SetValue> values = directoryValues.get(directory);
+			if (values == null) {
+				values = new HashMap<String, SetValue>();
+				directoryValues.put(directory, values);
+			}
+			values.put(key, new SetValue(value, ttl));
+		}
+	}
+
+	private void forgetValue(String key) {
+		synchronized (sessionDirectories) {
+			Map<String, SetValue> values = directoryValues.get(getParent(key));
+			if (values != null)
+				values.remove(key);
+		}
+	}
+
+	public EtcdResponse deleteSession(String key) throws EtcdException {
+		for (String directory : getSessionDirectories(key, true))
+			new EtcdDeleteRequest(getUrl(directory), true).execute(transport);
+		return new EtcdDeleteRequest(getUrl(key), true).execute(transport);
+	}
+
+	public <ResultType> IListenableFuture<ResultType> set(String sessionKey, String key, String value, int ttl,
+			IEtcdResponseHandler<ResultType> handler) {
+		return new EtcdSetRequest(getUrl(key), value, ttl).executeAsync(transport, executor, handler);
+	}
+
+	/**
+	 * The value is remembered until it is deleted, to set it again if the
+	 * session directory expires.
+	 */
+	public <ResultType> IListenableFuture<ResultType> set(final String sessionKey, final String sessionDirectory,
+			final int sessionTTL, final String key, final String value, final int ttl,
+			final IEtcdResponseHandler<ResultType> handler) {
+		final IEtcdResponseHandler<ResultType> remembering = new IEtcdResponseHandler<ResultType>() {
+			public ResultType handleResponse(EtcdResponse response) throws Exception {
+				if (!response.isError())
+					rememberValue(sessionDirectory, key, value, ttl);
+				return handler.handleResponse(response);
+			}
+		};
+		if (isSessionDirectory(sessionKey, sessionDirectory))
+			return set(sessionKey, key, value, ttl, remembering);
+		// both requests on the executor thread, one after the other
+		return executor.execute(new IProgressRunnable<ResultType>() {
+			public ResultType run(IProgressMonitor monitor) throws Exception {
+				EtcdResponse response = addSessionDirectory(sessionKey, sessionDirectory, sessionTTL);
+				if (response != null && response.isError())
+					throw new EtcdException("Could not create session directory=" + sessionDirectory, //$NON-NLS-1$
+							response.getErrorResponse());
+				return remembering.handleResponse(new EtcdSetRequest(getUrl(key), value, ttl).execute(transport));
+			}
+		}, null);
+	}
+
+	public <ResultType> IListenableFuture<ResultType> delete(String key, IEtcdResponseHandler<ResultType> handler) {
+		forgetValue(key);
+		return new EtcdDeleteRequest(getUrl(key)).executeAsync(transport, executor, handler);
+	}
+
+	/**
+	 * Not supported: a v2 session is a directory with a ttl, which cannot be
+	 * emptied without deleting it.
+	 */
+	public <ResultType> IListenableFuture<ResultType> deleteSessionServices(String sessionKey,
+			IEtcdResponseHandler<ResultType> handler) {
+		return null;
+	}
+
+	public EtcdResponse watch(String key, int index) throws EtcdException {
+		if (streamWatches)
+			return watchStream(key, index);
+		EtcdWatchRequest request = new EtcdWatchRequest(getUrl(key), Integer.toString(index));
+		request.setReadTimeout(watchTimeout);
+		synchronized (watches) {
+			if (closed)
+				throw new EtcdException("Backend closed, not watching key=" + key); //$NON-NLS-1$
+			watches.add(request);
+		}
+		try {
+			return request.execute(transport);
+		} catch (EtcdException e) {
+			// no change within the timeout, the next watch continues at index
+			if (!request.isAborted() && e.getCause() instanceof SocketTimeoutException)
+				return null;
+			throw e;
+		} finally {
+			synchronized (watches) {
+				watches.remove(request);
+			}
+		}
+	}
+
+	private EtcdResponse watchStream(String key, int index) throws EtcdException {
+		EtcdWatchStream stream;
+		synchronized (watches) {
+			if (closed)
+				throw new EtcdException("Backend closed, not watching key=" + key); //$NON-NLS-1$
+			stream = streams.get(key);
+		}
+		if (stream == null) {
+			try {
+				stream = openStream(key, index);
+			} catch (EtcdException e) {
+				// e.g. the event index was cleared: the caller resyncs
+				if (e.getErrorResponse() != null)
+					return e.getErrorResponse();
+				throw e;
+			}
+			if (stream == null)
+				return null;
+		}
+		// read outside of the lock, so that close can abort the read
+		try {
+			return stream.next();
+		} catch (IOException e) {
+			closeStream(key, stream);
+			synchronized (watches) {
+				// no change within the timeout, or the server ended the
+				// stream (etcd does when a watcher falls behind): reopen
+				// from index next time
+				if (!closed && (e instanceof SocketTimeoutException || e instanceof EOFException))
+					return null;
+			}
+			throw new EtcdException("Error reading watch stream key=" + key, e); //$NON-NLS-1$
+		} catch (JSONException e) {
+			closeStream(key, stream);
+			throw new EtcdException("Parsing error reading watch stream key=" + key, e); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * @return the stream, or <code>null</code> if the server did not answer
+	 *         within the watch timeout
+	 */
+	private EtcdWatchStream openStream(String key, int index) throws EtcdException {
+		trace("watch", "opening watch stream key=" + key + ", index=" + index); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		EtcdWatchRequest request = new EtcdWatchRequest(getUrl(key), Integer.toString(index));
+		request.setReadTimeout(watchTimeout);
+		synchronized (watches) {
+			if (closed)
+				throw new EtcdException("Backend closed, not watching key=" + key); //$NON-NLS-1$
+			watches.add(request);
+		}
+		EtcdWatchStream stream = null;
+		try {
+			stream = request.open(transport);
+			return stream;
+		} catch (EtcdException e) {
+			if (!request.isAborted() && e.getCause() instanceof SocketTimeoutException)
+				return null;
+			throw e;
+		} finally {
+			synchronized (watches) {
+				watches.remove(request);
+				if (stream != null) {
+					// closed while opening
+					if (closed)
+						stream.close();
+					else
+						streams.put(key, stream);
+				}
+			}
+		}
+	}
+
+	private void closeStream(String key, EtcdWatchStream stream) {
+		synchronized (watches) {
+			if (streams.get(key) == stream)
+				streams.remove(key);
+		}
+		stream.close();
+	}
+
+	public void setWatchTimeout(int timeout) {
+		this.watchTimeout = timeout;
+	}
+
+	public void close() {
+		List<EtcdRequest> aborted;
+		List<EtcdWatchStream> closedStreams;
+		synchronized (watches) {
+			closed = true;
+			aborted = new ArrayList<EtcdRequest>(watches);
+			closedStreams = new ArrayList<EtcdWatchStream>(streams.values());
+			streams.clear();
+		}
+		for (EtcdRequest request : aborted)
+			request.abort();
+		for (EtcdWatchStream stream : closedStreams)
+			stream.close();
+	}
+
+	private void trace(String methodName, String message) {
+		LogUtility.trace(methodName, DebugOptions.PROTOCOL, getClass(), message);
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdV2Backend[keysUrl=" + keysUrl + ", streamWatches=" + streamWatches + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
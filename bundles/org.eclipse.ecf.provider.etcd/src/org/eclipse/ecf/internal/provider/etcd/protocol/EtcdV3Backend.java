@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.ecf.internal.provider.etcd.DebugOptions;
+import org.eclipse.ecf.internal.provider.etcd.LogUtility;
+import org.eclipse.equinox.concurrent.future.IListenableFuture;
+import org.json.JSONException;
+
+/**
+ * Backend for the etcd v3 api, through its http/json gateway. A session is a
+ * lease: the session key (with an empty value, standing in for a v2
+ * directory) and all keys set in the session are bound to it, so keeping the
+ * lease alive keeps all of them, and revoking it removes all of them at once.
+ * Per key ttls are not used. Changes of each watched directory are received
+ * through a watch stream that is kept open across calls to
+ * {@link #watch(String, int)}.
+ */
+public class EtcdV3Backend implements IEtcdBackend {
+
+	private final String apiUrl;
+	private final IEtcdTransport transport;
+	private final EtcdRequestExecutor executor;
+
+	// session key -> lease id
+	private final Map<String, Long> leases = new HashMap<String, Long>();
+
+	/**
+	 * Watch stream of one directory, and the changes received but not yet
+	 * returned.
+	 */
+	private static class Watch {
+		EtcdV3WatchStream stream;
+		// request opening the stream, aborted by close
+		EtcdV3WatchRequest opening;
+		final LinkedList<EtcdResponse> pendingChanges = new LinkedList<EtcdResponse>();
+	}
+
+	private final Object watchLock = new Object();
+	// watched directory key -> watch
+	private final Map<String, Watch> watches = new HashMap<String, Watch>();
+	private boolean closed;
+	private volatile int watchTimeout;
+
+	/**
+	 * @param apiUrl
+	 *            url of the gateway, e.g. <code>http://127.0.0.1:2379/v3</code>
+	 */
+	public EtcdV3Backend(String apiUrl, IEtcdTransport transport, EtcdRequestExecutor executor) {
+		this.apiUrl = apiUrl.endsWith("/") ? apiUrl.substring(0, apiUrl.length() - 1) : apiUrl; //$NON-NLS-1$
+		this.transport = transport;
+		this.executor = executor;
+	}
+
+	public EtcdResponse getDirectory(String key, boolean serializable) throws EtcdException {
+		// directories need not exist in v3
+		return new EtcdV3RangeRequest(apiUrl, directoryKey(key), serializable).execute(transport);
+	}
+
+	public EtcdResponse createSession(String key, int ttl) throws EtcdException {
+		EtcdResponse grant = EtcdV3LeaseRequest.grant(apiUrl, ttl).execute(transport);
+		if (grant.isError())
+			return grant;
+		long leaseId = parseLeaseId(grant);
+		EtcdResponse response = new EtcdV3PutRequest(apiUrl, key, "", leaseId).execute(transport); //$NON-NLS-1$
+		if (response.isError())
+			EtcdV3LeaseRequest.revoke(apiUrl, leaseId).execute(transport);
+		else
+			synchronized (leases) {
+				leases.put(key, Long.valueOf(leaseId));
+			}
+		return response;
+	}
+
+	private long parseLeaseId(EtcdResponse grant) throws EtcdException {
+		String id = grant.getSuccessResponse().getNode().getValue();
+		try {
+			return Long.parseLong(id);
+		} catch (NumberFormatException e) {
+			throw new EtcdException("Invalid lease id=" + id, e); //$NON-NLS-1$
+		}
+	}
+
+	private long getLeaseId(String sessionKey) {
+		synchronized (leases) {
+			Long id = leases.get(sessionKey);
+			return (id == null) ? 0 : id.longValue();
+		}
+	}
+
+	public EtcdResponse refreshSession(String key, int ttl) throws EtcdException {
+		long leaseId = getLeaseId(key);
+		if (leaseId == 0)
+			// e.g. creating the session again failed: the caller creates it
+			return new EtcdErrorResponse(key, EtcdV3Request.ERRORCODE_KEY_NOT_FOUND, 0,
+					"No lease for session key=" + key, null); //$NON-NLS-1$
+		return EtcdV3LeaseRequest.keepAlive(apiUrl, leaseId).execute(transport);
+	}
+
+	public EtcdResponse addSessionDirectory(String sessionKey, String key, int ttl) {
+		// keys set in the session are bound to its lease wherever they are
+		return null;
+	}
+
+	public EtcdResponse deleteSession(String key) throws EtcdException {
+		long leaseId;
+		synchronized (leases) {
+			Long id = leases.remove(key);
+			leaseId = (id == null) ? 0 : id.longValue();
+		}
+		if (leaseId == 0)
+			throw new EtcdException("No lease for session key=" + key); //$NON-NLS-1$
+		return EtcdV3LeaseRequest.revoke(apiUrl, leaseId).execute(transport);
+	}
+
+	public <ResultType> IListenableFuture<ResultType> set(String sessionKey, String key, String value, int ttl,
+			IEtcdResponseHandler<ResultType> handler) {
+		return new EtcdV3PutRequest(apiUrl, key, value, getLeaseId(sessionKey)).executeAsync(transport, executor,
+				handler);
+	}
+
+	public <ResultType> IListenableFuture<ResultType> set(String sessionKey, String sessionDirectory, int sessionTTL,
+			String key, String value, int ttl, IEtcdResponseHandler<ResultType> handler) {
+		// keys set in the session are bound to its lease wherever they are
+		return set(sessionKey, key, value, ttl, handler);
+	}
+
+	public <ResultType> IListenableFuture<ResultType> delete(String key, IEtcdResponseHandler<ResultType> handler) {
+		return new EtcdV3DeleteRangeRequest(apiUrl, key).executeAsync(transport, executor, handler);
+	}
+
+	public <ResultType> IListenableFuture<ResultType> deleteSessionServices(String sessionKey,
+			IEtcdResponseHandler<ResultType> handler) {
+		// the session key itself is outside of its directory range
+		return EtcdV3DeleteRangeRequest.directory(apiUrl, directoryKey(sessionKey)).executeAsync(transport, executor,
+				handler);
+	}
+
+	public EtcdResponse watch(String key, int index) throws EtcdException {
+		Watch watch;
+		EtcdV3WatchStream stream;
+		EtcdV3WatchRequest request = null;
+		synchronized (watchLock) {
+			watch = watches.get(key);
+			if (watch == null) {
+				watch = new Watch();
+				watches.put(key, watch);
+			}
+			// changes already received are returned first, whatever the index
+			if (!watch.pendingChanges.isEmpty())
+				return watch.pendingChanges.removeFirst();
+			if (watch.stream == null) {
+				if (closed)
+					throw new EtcdException("Backend closed, not watching key=" + key); //$NON-NLS-1$
+				trace("watch", "opening watch stream key=" + key + ", index=" + index); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				request = new EtcdV3WatchRequest(apiUrl, directoryKey(key), index);
+				request.setReadTimeout(watchTimeout);
+				watch.opening = request;
+			}
+			stream = watch.stream;
+		}
+		// open outside of the lock, so that other watches and close are not
+		// blocked by a slow server
+		if (request != null)
+			stream = openStream(key, watch, request);
+		// read outside of the lock, so that close can abort the read
+		try {
+			List<EtcdResponse> changes = stream.next();
+			synchronized (watchLock) {
+				if (changes.get(0).isError())
+					closeWatchStream(watch, stream);
+				watch.pendingChanges.addAll(changes);
+				return watch.pendingChanges.removeFirst();
+			}
+		} catch (IOException e) {
+			synchronized (watchLock) {
+				closeWatchStream(watch, stream);
+				// no change within the timeout: reopen from index next time
+				if (!closed && e instanceof SocketTimeoutException)
+					return null;
+			}
+			throw new EtcdException("Error reading watch stream key=" + key, e); //$NON-NLS-1$
+		} catch (JSONException e) {
+			synchronized (watchLock) {
+				closeWatchStream(watch, stream);
+			}
+			throw new EtcdException("Parsing error reading watch stream key=" + key, e); //$NON-NLS-1$
+		}
+	}
+
+	private EtcdV3WatchStream openStream(String key, Watch watch, EtcdV3WatchRequest request)
+			throws EtcdException {
+		EtcdV3WatchStream stream = null;
+		try {
+			stream = request.open(transport);
+		} finally {
+			synchronized (watchLock) {
+				if (watch.opening == request)
+					watch.opening = null;
+				if (stream != null) {
+					// closed while opening
+					if (closed) {
+						stream.close();
+						stream = null;
+					} else
+						watch.stream = stream;
+				}
+			}
+		}
+		if (stream == null)
+			throw new EtcdException("Backend closed, not watching key=" + key); //$NON-NLS-1$
+		return stream;
+	}
+
+	private void closeWatchStream(Watch watch, EtcdV3WatchStream stream) {
+		// the stream may have been closed and replaced meanwhile
+		if (watch.stream == stream)
+			watch.stream = null;
+		stream.close();
+	}
+
+	private static String directoryKey(String key) {
+		return key.endsWith("/") ? key : key + "/"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	public void setWatchTimeout(int timeout) {
+		this.watchTimeout = timeout;
+	}
+
+	public void close() {
+		List<EtcdV3WatchRequest> aborted = new ArrayList<EtcdV3WatchRequest>();
+		synchronized (watchLock) {
+			closed = true;
+			for (Watch watch : watches.values()) {
+				if (watch.stream != null)
+					watch.stream.close();
+				if (watch.opening != null)
+					aborted.add(watch.opening);
+			}
+			watches.clear();
+		}
+		for (EtcdV3WatchRequest request : aborted)
+			request.abort();
+	}
+
+	private void trace(String methodName, String message) {
+		LogUtility.trace(methodName, DebugOptions.PROTOCOL, getClass(), message);
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdV3Backend[apiUrl=" + apiUrl + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+/**
+ * Delete of a single key, or of all keys in a directory. Deleting a single key
+ * that does not exist results in a v2 style 'key not found' error response.
+ */
+public class EtcdV3DeleteRangeRequest extends EtcdV3Request {
+
+	public static final String DELETED_KEY = "deleted"; //$NON-NLS-1$
+
+	private final String key;
+	private final boolean directory;
+
+	public EtcdV3DeleteRangeRequest(String apiUrl, String key) {
+		this(apiUrl, key, false);
+	}
+
+	private EtcdV3DeleteRangeRequest(String apiUrl, String key, boolean directory) {
+		super(apiUrl, "/kv/deleterange", keyBody(key, directory ? EtcdBase64.prefixEnd(key) : null)); //$NON-NLS-1$
+		this.key = key;
+		this.directory = directory;
+	}
+
+	/**
+	 * Delete all keys starting with the given directory key (which must end
+	 * with '/'), in one request. Succeeds also if there are none.
+	 */
+	public static EtcdV3DeleteRangeRequest directory(String apiUrl, String directoryKey) {
+		return new EtcdV3DeleteRangeRequest(apiUrl, directoryKey, true);
+	}
+
+	@Override
+	protected EtcdResponse readResponse(EtcdJsonReader reader, Map<String, List<String>> headers)
+			throws IOException, JSONException {
+		int revision = 0;
+		long deleted = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (HEADER_KEY.equals(name))
+				revision = readHeader(reader);
+			else if (DELETED_KEY.equals(name))
+				deleted = reader.nextLong();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		Map<String, List<String>> h = withIndex(headers, revision);
+		if (deleted == 0 && !directory)
+			return new EtcdErrorResponse(key, ERRORCODE_KEY_NOT_FOUND, revision, "Key not found", h); //$NON-NLS-1$
+		return new EtcdSuccessResponse(ACTION_DELETE, new EtcdNode(0, directory, null, key, revision, 0, "", null), //$NON-NLS-1$
+				null, h);
+	}
+}
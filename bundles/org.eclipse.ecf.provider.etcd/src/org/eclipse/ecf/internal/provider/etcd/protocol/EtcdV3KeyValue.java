@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+
+import org.json.JSONException;
+
+/**
+ * Key value pair as returned by the etcd v3 json gateway. v2 directories are
+ * represented by keys with an empty value.
+ */
+public class EtcdV3KeyValue {
+
+	public static final String CREATE_REVISION_KEY = "create_revision"; //$NON-NLS-1$
+	public static final String MOD_REVISION_KEY = "mod_revision"; //$NON-NLS-1$
+
+	private final String key;
+	private final String value;
+	private final int createRevision;
+	private final int modRevision;
+	private final long lease;
+
+	public EtcdV3KeyValue(String key, String value, int createRevision, int modRevision, long lease) {
+		this.key = key;
+		this.value = value;
+		this.createRevision = createRevision;
+		this.modRevision = modRevision;
+		this.lease = lease;
+	}
+
+	public static EtcdV3KeyValue read(EtcdJsonReader reader) throws IOException, JSONException {
+		String key = null;
+		String value = ""; //$NON-NLS-1$
+		int createRevision = 0;
+		int modRevision = 0;
+		long lease = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == EtcdJsonReader.NULL)
+				reader.skipValue();
+			else if (EtcdV3Request.KEY_KEY.equals(name))
+				key = EtcdBase64.decodeToString(reader.nextString());
+			else if (EtcdV3Request.VALUE_KEY.equals(name))
+				value = EtcdBase64.decodeToString(reader.nextString());
+			else if (CREATE_REVISION_KEY.equals(name))
+				createRevision = EtcdV3Request.readRevision(reader);
+			else if (MOD_REVISION_KEY.equals(name))
+				modRevision = EtcdV3Request.readRevision(reader);
+			else if (EtcdV3Request.LEASE_KEY.equals(name))
+				lease = reader.nextLong();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		if (key == null)
+			throw new JSONException("Key value is missing " + EtcdV3Request.KEY_KEY); //$NON-NLS-1$
+		return new EtcdV3KeyValue(key, value, createRevision, modRevision, lease);
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public int getCreateRevision() {
+		return createRevision;
+	}
+
+	public int getModRevision() {
+		return modRevision;
+	}
+
+	public long getLease() {
+		return lease;
+	}
+
+	public boolean isDirectory() {
+		return value.length() == 0;
+	}
+
+	public EtcdNode toNode() {
+		return new EtcdNode(createRevision, isDirectory(), null, key, modRevision, 0, value, null);
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdV3KeyValue[key=" + key + ", createRevision=" + createRevision + ", modRevision=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ modRevision + ", lease=" + lease + ", value=" + value + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+/**
+ * Lease requests: grant, keep alive and revoke. The lease id is returned as
+ * value and the granted ttl as ttl of the response node.
+ */
+public class EtcdV3LeaseRequest extends EtcdV3Request {
+
+	public static final String GRANT = "/lease/grant"; //$NON-NLS-1$
+	public static final String KEEPALIVE = "/lease/keepalive"; //$NON-NLS-1$
+	public static final String REVOKE = "/lease/revoke"; //$NON-NLS-1$
+
+	private final String operation;
+
+	private EtcdV3LeaseRequest(String apiUrl, String operation, String body) {
+		super(apiUrl, operation, body);
+		this.operation = operation;
+	}
+
+	public static EtcdV3LeaseRequest grant(String apiUrl, int ttl) {
+		StringBuilder sb = new StringBuilder("{"); //$NON-NLS-1$
+		appendField(sb, TTL_KEY, String.valueOf(ttl));
+		return new EtcdV3LeaseRequest(apiUrl, GRANT, sb.append('}').toString());
+	}
+
+	public static EtcdV3LeaseRequest keepAlive(String apiUrl, long leaseId) {
+		return new EtcdV3LeaseRequest(apiUrl, KEEPALIVE, leaseBody(leaseId));
+	}
+
+	public static EtcdV3LeaseRequest revoke(String apiUrl, long leaseId) {
+		return new EtcdV3LeaseRequest(apiUrl, REVOKE, leaseBody(leaseId));
+	}
+
+	@Override
+	protected EtcdResponse readResponse(EtcdJsonReader reader, Map<String, List<String>> headers)
+			throws IOException, JSONException {
+		LeaseResult result = new LeaseResult();
+		result.read(reader);
+		Map<String, List<String>> h = withIndex(headers, result.revision);
+		if (result.error != null && result.error.length() > 0)
+			return new EtcdErrorResponse(result.error, 0, result.revision, result.error, h);
+		if (!REVOKE.equals(operation) && result.ttl <= 0)
+			return new EtcdErrorResponse(result.id, ERRORCODE_KEY_NOT_FOUND, result.revision, "Lease not found", h); //$NON-NLS-1$
+		String action = GRANT.equals(operation) ? ACTION_CREATE
+				: (KEEPALIVE.equals(operation) ? ACTION_UPDATE : ACTION_DELETE);
+		return new EtcdSuccessResponse(action, new EtcdNode(result.revision, false, null, null, result.revision,
+				result.ttl, (result.id != null) ? result.id : "", null), null, h); //$NON-NLS-1$
+	}
+
+	static class LeaseResult {
+		int revision;
+		String id;
+		int ttl;
+		String error;
+
+		void read(EtcdJsonReader reader) throws IOException, JSONException {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (reader.peek() == EtcdJsonReader.NULL)
+					reader.skipValue();
+				else if (RESULT_KEY.equals(name))
+					// keep alive responses are wrapped as stream messages
+					read(reader);
+				else if (HEADER_KEY.equals(name))
+					revision = readHeader(reader);
+				else if (ID_KEY.equals(name))
+					id = reader.nextString();
+				else if (TTL_KEY.equals(name))
+					ttl = reader.nextInt();
+				else if (ERROR_KEY.equals(name) && reader.peek() == EtcdJsonReader.STRING)
+					error = reader.nextString();
+				else
+					reader.skipValue();
+			}
+			reader.endObject();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+/**
+ * Put of a key, optionally bound to a lease.
+ */
+public class EtcdV3PutRequest extends EtcdV3Request {
+
+	private final String key;
+	private final String value;
+
+	public EtcdV3PutRequest(String apiUrl, String key, String value, long leaseId) {
+		super(apiUrl, "/kv/put", createBody(key, value, leaseId)); //$NON-NLS-1$
+		this.key = key;
+		this.value = value;
+	}
+
+	private static String createBody(String key, String value, long leaseId) {
+		StringBuilder sb = new StringBuilder("{"); //$NON-NLS-1$
+		appendField(sb, KEY_KEY, EtcdBase64.encode(key));
+		appendField(sb, VALUE_KEY, EtcdBase64.encode(value));
+		if (leaseId != 0)
+			appendField(sb, LEASE_KEY, String.valueOf(leaseId));
+		return sb.append('}').toString();
+	}
+
+	@Override
+	protected EtcdResponse readResponse(EtcdJsonReader reader, Map<String, List<String>> headers)
+			throws IOException, JSONException {
+		int revision = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (HEADER_KEY.equals(reader.nextName()))
+				revision = readHeader(reader);
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		EtcdNode node = new EtcdNode(revision, value.length() == 0, null, key, revision, 0, value, null);
+		return new EtcdSuccessResponse(ACTION_SET, node, null, withIndex(headers, revision));
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+/**
+ * Range read of all keys below a directory key. The keys are returned as a v2
+ * style node tree, with the directory as top node.
+ */
+public class EtcdV3RangeRequest extends EtcdV3Request {
+
+	public static final String KVS_KEY = "kvs"; //$NON-NLS-1$
+	public static final String SERIALIZABLE_KEY = "serializable"; //$NON-NLS-1$
+
+	private final String directoryKey;
+
+	/**
+	 * @param directoryKey
+	 *            key of the directory, ending with '/'
+	 */
+	public EtcdV3RangeRequest(String apiUrl, String directoryKey) {
+		this(apiUrl, directoryKey, false);
+	}
+
+	/**
+	 * @param serializable
+	 *            <code>true</code> to read the local state of the receiving
+	 *            member instead of doing a linearizable read
+	 */
+	public EtcdV3RangeRequest(String apiUrl, String directoryKey, boolean serializable) {
+		super(apiUrl, "/kv/range", rangeBody(directoryKey, serializable)); //$NON-NLS-1$
+		this.directoryKey = directoryKey;
+	}
+
+	private static String rangeBody(String directoryKey, boolean serializable) {
+		String body = keyBody(directoryKey, EtcdBase64.prefixEnd(directoryKey));
+		if (!serializable)
+			return body;
+		// a json boolean, unlike the string fields of keyBody
+		return body.substring(0, body.length() - 1) + ",\"" + SERIALIZABLE_KEY + "\":true}"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Override
+	public boolean isRead() {
+		return true;
+	}
+
+	@Override
+	protected EtcdResponse readResponse(EtcdJsonReader reader, Map<String, List<String>> headers)
+			throws IOException, JSONException {
+		int revision = 0;
+		List<EtcdV3KeyValue> kvs = new ArrayList<EtcdV3KeyValue>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == EtcdJsonReader.NULL)
+				reader.skipValue();
+			else if (HEADER_KEY.equals(name))
+				revision = readHeader(reader);
+			else if (KVS_KEY.equals(name)) {
+				reader.beginArray();
+				while (reader.hasNext())
+					kvs.add(EtcdV3KeyValue.read(reader));
+				reader.endArray();
+			} else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return new EtcdSuccessResponse(ACTION_GET, createTree(directoryKey, kvs, revision), null,
+				withIndex(headers, revision));
+	}
+
+	static EtcdNode createTree(String directoryKey, List<EtcdV3KeyValue> kvs, int revision) {
+		String top = directoryKey.endsWith("/") ? directoryKey.substring(0, directoryKey.length() - 1) //$NON-NLS-1$
+				: directoryKey;
+		Directory root = new Directory(top);
+		root.modifiedIndex = revision;
+		for (EtcdV3KeyValue kv : kvs) {
+			String key = kv.getKey();
+			if (!key.startsWith(top + "/")) //$NON-NLS-1$
+				continue;
+			String[] segments = key.substring(top.length() + 1).split("/"); //$NON-NLS-1$
+			Directory dir = root;
+			for (int i = 0; i < segments.length - 1; i++)
+				dir = dir.getDirectory(segments[i]);
+			String last = segments[segments.length - 1];
+			if (kv.isDirectory()) {
+				dir = dir.getDirectory(last);
+				dir.createdIndex = kv.getCreateRevision();
+				dir.modifiedIndex = kv.getModRevision();
+			} else
+				dir.nodes.add(kv.toNode());
+		}
+		return root.toNode();
+	}
+
+	static class Directory {
+		final String key;
+		int createdIndex;
+		int modifiedIndex;
+		final Map<String, Directory> directories = new LinkedHashMap<String, Directory>();
+		final List<EtcdNode> nodes = new ArrayList<EtcdNode>();
+
+		Directory(String key) {
+			this.key = key;
+		}
+
+		Directory getDirectory(String name) {
+			Directory d = directories.get(name);
+			if (d == null) {
+				d = new Directory(key + "/" + name); //$NON-NLS-1$
+				directories.put(name, d);
+			}
+			return d;
+		}
+
+		EtcdNode toNode() {
+			List<EtcdNode> children = new ArrayList<EtcdNode>(directories.size() + nodes.size());
+			for (Directory d : directories.values())
+				children.add(d.toNode());
+			children.addAll(nodes);
+			return new EtcdNode(createdIndex, true, null, key, modifiedIndex, 0, "", //$NON-NLS-1$
+					children.toArray(new EtcdNode[children.size()]));
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+/**
+ * Request to the etcd v3 json gateway. The json response is translated into
+ * the v2 response model: keys and values are decoded from base64, revisions
+ * become node indexes and the header revision is reported as the
+ * <code>X-Etcd-Index</code> header. Revisions beyond
+ * {@link Integer#MAX_VALUE} are not supported: reading one fails with a
+ * {@link JSONException}.
+ */
+public abstract class EtcdV3Request extends EtcdRequest {
+
+	public static final String CONTENT_TYPE_VALUE = "application/json"; //$NON-NLS-1$
+
+	public static final String HEADER_KEY = "header"; //$NON-NLS-1$
+	public static final String REVISION_KEY = "revision"; //$NON-NLS-1$
+	public static final String KEY_KEY = "key"; //$NON-NLS-1$
+	public static final String RANGE_END_KEY = "range_end"; //$NON-NLS-1$
+	public static final String VALUE_KEY = "value"; //$NON-NLS-1$
+	public static final String LEASE_KEY = "lease"; //$NON-NLS-1$
+	public static final String ID_KEY = "ID"; //$NON-NLS-1$
+	public static final String TTL_KEY = "TTL"; //$NON-NLS-1$
+	public static final String ERROR_KEY = "error"; //$NON-NLS-1$
+	public static final String CODE_KEY = "code"; //$NON-NLS-1$
+	public static final String MESSAGE_KEY = "message"; //$NON-NLS-1$
+	public static final String RESULT_KEY = "result"; //$NON-NLS-1$
+
+	// v2 error codes used for translated errors
+	public static final int ERRORCODE_KEY_NOT_FOUND = 100;
+	public static final int ERRORCODE_EVENT_INDEX_CLEARED = EtcdErrorResponse.ERRORCODE_EVENT_INDEX_CLEARED;
+
+	private final byte[] body;
+
+	/**
+	 * @param apiUrl
+	 *            url of the gateway, e.g. <code>http://127.0.0.1:2379/v3</code>
+	 * @param path
+	 *            path of the api call, e.g. <code>/kv/range</code>
+	 * @param body
+	 *            json request body
+	 */
+	public EtcdV3Request(String apiUrl, String path, String body) {
+		super(apiUrl + path);
+		this.body = body.getBytes(EtcdBase64.UTF8);
+	}
+
+	@Override
+	public String getMethod() {
+		return "POST"; //$NON-NLS-1$
+	}
+
+	@Override
+	public String getContentType() {
+		return CONTENT_TYPE_VALUE;
+	}
+
+	@Override
+	public byte[] getBody() {
+		return body;
+	}
+
+	@Override
+	public boolean isRead() {
+		return false;
+	}
+
+	@Override
+	protected EtcdResponse getResponseOrError(EtcdHttpResponse response) throws IOException, JSONException {
+		EtcdJsonReader reader = createReader(response.getInputStream());
+		EtcdResponse result = response.isSuccess() ? readResponse(reader, response.getHeaders())
+				: readError(reader, response.getHeaders());
+		EtcdResponseDecoder.endDocument(reader);
+		return result;
+	}
+
+	/**
+	 * Read the json response object of a successful request.
+	 */
+	protected abstract EtcdResponse readResponse(EtcdJsonReader reader, Map<String, List<String>> headers)
+			throws IOException, JSONException;
+
+	static EtcdJsonReader createReader(InputStream ins) throws JSONException {
+		if (ins == null)
+			throw new JSONException("Response has no body"); //$NON-NLS-1$
+		return new EtcdJsonReader(new InputStreamReader(ins, EtcdBase64.UTF8));
+	}
+
+	static EtcdErrorResponse readError(EtcdJsonReader reader, Map<String, List<String>> headers)
+			throws IOException, JSONException {
+		String error = null;
+		String message = null;
+		int code = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == EtcdJsonReader.NULL)
+				reader.skipValue();
+			else if (ERROR_KEY.equals(name) && reader.peek() == EtcdJsonReader.STRING)
+				error = reader.nextString();
+			else if (MESSAGE_KEY.equals(name))
+				message = reader.nextString();
+			else if (CODE_KEY.equals(name))
+				code = reader.nextInt();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return new EtcdErrorResponse(error, code, 0, (message != null) ? message : error, headers);
+	}
+
+	/**
+	 * Read a response header object.
+	 * 
+	 * @return the revision of the store
+	 */
+	static int readHeader(EtcdJsonReader reader) throws IOException, JSONException {
+		int revision = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (REVISION_KEY.equals(reader.nextName()))
+				revision = readRevision(reader);
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return revision;
+	}
+
+	/**
+	 * Read an int64 revision, as used for the v2 indexes.
+	 * 
+	 * @throws JSONException
+	 *             if the revision does not fit into an int
+	 */
+	static int readRevision(EtcdJsonReader reader) throws IOException, JSONException {
+		long revision = reader.nextLong();
+		if (revision < 0 || revision > Integer.MAX_VALUE)
+			throw new JSONException("Unsupported revision=" + revision); //$NON-NLS-1$
+		return (int) revision;
+	}
+
+	/**
+	 * @return copy of the given headers with the revision as
+	 *         <code>X-Etcd-Index</code>
+	 */
+	static Map<String, List<String>> withIndex(Map<String, List<String>> headers, int revision) {
+		Map<String, List<String>> result = new HashMap<String, List<String>>();
+		if (headers != null)
+			for (Map.Entry<String, List<String>> entry : headers.entrySet())
+				if (entry.getKey() != null)
+					result.put(entry.getKey(), entry.getValue());
+		List<String> index = new ArrayList<String>(1);
+		index.add(String.valueOf(revision));
+		result.put(ETCD_INDEX_HEADER, index);
+		return result;
+	}
+
+	static void appendField(StringBuilder sb, String name, String value) {
+		if (sb.length() > 1)
+			sb.append(',');
+		// names and base64/numeric values never need escaping
+		sb.append('"').append(name).append("\":\"").append(value).append('"'); //$NON-NLS-1$
+	}
+
+	static String keyBody(String key, byte[] rangeEnd) {
+		StringBuilder sb = new StringBuilder("{"); //$NON-NLS-1$
+		appendField(sb, KEY_KEY, EtcdBase64.encode(key));
+		if (rangeEnd != null)
+			appendField(sb, RANGE_END_KEY, EtcdBase64.encode(rangeEnd));
+		return sb.append('}').toString();
+	}
+
+	static String leaseBody(long leaseId) {
+		StringBuilder sb = new StringBuilder("{"); //$NON-NLS-1$
+		appendField(sb, ID_KEY, String.valueOf(leaseId));
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+/**
+ * Watch of all keys below a directory key, starting at a given revision. The
+ * gateway answers with a stream of messages that stays open for as long as
+ * the watch. {@link #open(IEtcdTransport)} returns this stream, while
+ * {@link #execute(IEtcdTransport)} waits for the first change only, like a v2
+ * {@link EtcdWatchRequest}.
+ */
+public class EtcdV3WatchRequest extends EtcdV3Request {
+
+	public static final String CREATE_REQUEST_KEY = "create_request"; //$NON-NLS-1$
+	public static final String START_REVISION_KEY = "start_revision"; //$NON-NLS-1$
+	public static final String PREV_KV_KEY = "prev_kv"; //$NON-NLS-1$
+
+	private int readTimeout;
+
+	public EtcdV3WatchRequest(String apiUrl, String directoryKey, int startRevision) {
+		super(apiUrl, "/watch", createBody(directoryKey, startRevision)); //$NON-NLS-1$
+	}
+
+	private static String createBody(String directoryKey, int startRevision) {
+		StringBuilder sb = new StringBuilder("{"); //$NON-NLS-1$
+		appendField(sb, KEY_KEY, EtcdBase64.encode(directoryKey));
+		appendField(sb, RANGE_END_KEY, EtcdBase64.encode(EtcdBase64.prefixEnd(directoryKey)));
+		appendField(sb, START_REVISION_KEY, String.valueOf(startRevision));
+		// previous values tell deleted directories from deleted keys
+		sb.append(",\"").append(PREV_KV_KEY).append("\":true}"); //$NON-NLS-1$ //$NON-NLS-2$
+		return "{\"" + CREATE_REQUEST_KEY + "\":" + sb.toString() + "}"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	@Override
+	public boolean isRead() {
+		return true;
+	}
+
+	@Override
+	public boolean isWatch() {
+		return true;
+	}
+
+	/**
+	 * @return ms to wait for the next change on the stream. By default 0: the
+	 *         stream stays open until closed.
+	 */
+	@Override
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Send this request and return the stream of changes. The caller must
+	 * close the stream.
+	 */
+	public EtcdV3WatchStream open(IEtcdTransport transport) throws EtcdException {
+		EtcdHttpResponse response = null;
+		try {
+			response = transport.send(this);
+			if (!response.isSuccess()) {
+				EtcdJsonReader reader = createReader(response.getInputStream());
+				EtcdErrorResponse error = readError(reader, response.getHeaders());
+				throw new EtcdException("Watch request failed url=" + getUrl(), error); //$NON-NLS-1$
+			}
+			EtcdV3WatchStream stream = new EtcdV3WatchStream(response, createReader(response.getInputStream()));
+			response = null;
+			return stream;
+		} catch (IOException e) {
+			throw new EtcdException("Error communicating with server at url=" + getUrl(), e); //$NON-NLS-1$
+		} catch (JSONException e) {
+			throw new EtcdException("Parsing error communicating with server url=" + getUrl(), e); //$NON-NLS-1$
+		} finally {
+			if (response != null)
+				response.close();
+		}
+	}
+
+	@Override
+	protected EtcdResponse getResponseOrError(EtcdHttpResponse response) throws IOException, JSONException {
+		EtcdJsonReader reader = createReader(response.getInputStream());
+		if (!response.isSuccess())
+			return readError(reader, response.getHeaders());
+		// only the first change is needed, closing the response aborts the
+		// stream
+		return readResponse(reader, response.getHeaders());
+	}
+
+	@Override
+	protected EtcdResponse readResponse(EtcdJsonReader reader, Map<String, List<String>> headers)
+			throws IOException, JSONException {
+		return new EtcdV3WatchStream(null, reader).next().get(0);
+	}
+}
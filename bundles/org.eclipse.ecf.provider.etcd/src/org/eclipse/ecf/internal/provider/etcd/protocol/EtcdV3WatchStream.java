@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+/**
+ * Stream of watch messages from the etcd v3 json gateway. Each change is
+ * translated into a v2 style {@link EtcdSuccessResponse}: puts become
+ * <code>create</code> or <code>set</code> actions, deletes (including lease
+ * expiry) <code>delete</code> actions.
+ */
+public class EtcdV3WatchStream {
+
+	public static final String EVENTS_KEY = "events"; //$NON-NLS-1$
+	public static final String TYPE_KEY = "type"; //$NON-NLS-1$
+	public static final String KV_KEY = "kv"; //$NON-NLS-1$
+	public static final String PREV_KV_KEY = "prev_kv"; //$NON-NLS-1$
+	public static final String CANCELED_KEY = "canceled"; //$NON-NLS-1$
+	public static final String CANCEL_REASON_KEY = "cancel_reason"; //$NON-NLS-1$
+	public static final String COMPACT_REVISION_KEY = "compact_revision"; //$NON-NLS-1$
+
+	public static final String TYPE_PUT = "PUT"; //$NON-NLS-1$
+	public static final String TYPE_DELETE = "DELETE"; //$NON-NLS-1$
+
+	private final EtcdHttpResponse response;
+	private final EtcdJsonReader reader;
+
+	EtcdV3WatchStream(EtcdHttpResponse response, EtcdJsonReader reader) {
+		this.response = response;
+		this.reader = reader;
+	}
+
+	/**
+	 * Wait for the next message with changes.
+	 * 
+	 * @return the changes in the order they happened, or a single
+	 *         {@link EtcdErrorResponse} if the watch was canceled by the
+	 *         server (e.g. because the start revision has been compacted).
+	 *         Never empty.
+	 * @throws IOException
+	 *             if the stream was closed
+	 */
+	public List<EtcdResponse> next() throws IOException, JSONException {
+		while (true) {
+			if (reader.peek() == EtcdJsonReader.END_DOCUMENT)
+				throw new EOFException("Watch stream closed by server"); //$NON-NLS-1$
+			List<EtcdResponse> result = readMessage();
+			if (!result.isEmpty())
+				return result;
+		}
+	}
+
+	private List<EtcdResponse> readMessage() throws IOException, JSONException {
+		List<EtcdResponse> result = Collections.emptyList();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (EtcdV3Request.RESULT_KEY.equals(name) && reader.peek() == EtcdJsonReader.BEGIN_OBJECT)
+				result = readResult();
+			else if (EtcdV3Request.ERROR_KEY.equals(name) && reader.peek() == EtcdJsonReader.BEGIN_OBJECT)
+				result = Collections.<EtcdResponse> singletonList(EtcdV3Request.readError(reader, null));
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return result;
+	}
+
+	private List<EtcdResponse> readResult() throws IOException, JSONException {
+		int revision = 0;
+		int compactRevision = 0;
+		boolean canceled = false;
+		String cancelReason = null;
+		List<EtcdResponse> events = new ArrayList<EtcdResponse>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == EtcdJsonReader.NULL)
+				reader.skipValue();
+			else if (EtcdV3Request.HEADER_KEY.equals(name))
+				revision = EtcdV3Request.readHeader(reader);
+			else if (EVENTS_KEY.equals(name)) {
+				reader.beginArray();
+				while (reader.hasNext())
+					events.add(readEvent());
+				reader.endArray();
+			} else if (CANCELED_KEY.equals(name))
+				canceled = reader.nextBoolean();
+			else if (CANCEL_REASON_KEY.equals(name))
+				cancelReason = reader.nextString();
+			else if (COMPACT_REVISION_KEY.equals(name))
+				compactRevision = EtcdV3Request.readRevision(reader);
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		Map<String, List<String>> headers = EtcdV3Request.withIndex(null, revision);
+		if (compactRevision > 0)
+			return Collections.<EtcdResponse> singletonList(new EtcdErrorResponse(cancelReason,
+					EtcdV3Request.ERRORCODE_EVENT_INDEX_CLEARED, compactRevision,
+					"The event in requested index is outdated and cleared", headers)); //$NON-NLS-1$
+		if (canceled)
+			return Collections.<EtcdResponse> singletonList(new EtcdErrorResponse(cancelReason, 0, revision,
+					"Watch canceled by server", headers)); //$NON-NLS-1$
+		return events;
+	}
+
+	private EtcdResponse readEvent() throws IOException, JSONException {
+		String type = TYPE_PUT;
+		EtcdV3KeyValue kv = null;
+		EtcdV3KeyValue prev = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == EtcdJsonReader.NULL)
+				reader.skipValue();
+			else if (TYPE_KEY.equals(name))
+				type = reader.nextString();
+			else if (KV_KEY.equals(name))
+				kv = EtcdV3KeyValue.read(reader);
+			else if (PREV_KV_KEY.equals(name))
+				prev = EtcdV3KeyValue.read(reader);
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		if (kv == null)
+			throw new JSONException("Watch event is missing " + KV_KEY); //$NON-NLS-1$
+		EtcdNode prevNode = (prev != null) ? prev.toNode() : null;
+		// the default (PUT) type is omitted by the gateway
+		if (TYPE_DELETE.equals(type)) {
+			EtcdNode node = new EtcdNode((prev != null) ? prev.getCreateRevision() : 0,
+					prev != null && prev.isDirectory(), null, kv.getKey(), kv.getModRevision(), 0, "", null); //$NON-NLS-1$
+			return new EtcdSuccessResponse(EtcdProtocol.ACTION_DELETE, node, prevNode, null);
+		}
+		String action = (kv.getCreateRevision() == kv.getModRevision()) ? EtcdProtocol.ACTION_CREATE
+				: EtcdProtocol.ACTION_SET;
+		return new EtcdSuccessResponse(action, kv.toNode(), prevNode, null);
+	}
+
+	/**
+	 * Close the stream. A thread blocked in {@link #next()} gets an
+	 * {@link IOException}.
+	 */
+	public void close() {
+		if (response != null)
+			response.close();
+	}
+}
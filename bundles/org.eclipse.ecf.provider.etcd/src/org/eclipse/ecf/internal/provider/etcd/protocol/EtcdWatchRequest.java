@@ -9,10 +9,13 @@
 package org.eclipse.ecf.internal.provider.etcd.protocol;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
+
+import org.json.JSONException;
 
 public class EtcdWatchRequest extends EtcdGetRequest {
 
+	private int readTimeout;
+
 	public EtcdWatchRequest(String url) {
 		this(url, null);
 	}
@@ -30,11 +33,60 @@ public class EtcdWatchRequest extends EtcdGetRequest {
 			setQueryBoolean(RECURSIVE);
 	}
 
-	protected HttpURLConnection setConnectionOptions(HttpURLConnection conn)
-			throws IOException {
-		conn.setReadTimeout(0);
-		conn.setConnectTimeout(CONNECT_TIMEOUT);
-		return conn;
+	@Override
+	public boolean isWatch() {
+		return true;
+	}
+
+	/**
+	 * @return ms to wait for a change. By default 0: long poll until the
+	 *         server has an event.
+	 */
+	@Override
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Send this request with <code>stream=true</code> and return the stream
+	 * of changes, so that the connection is kept for all changes instead of
+	 * one request per change. The caller must close the stream.
+	 * 
+	 * @throws EtcdException
+	 *             if the server answered with an error. The error response
+	 *             (e.g. the event index was cleared) is
+	 *             {@link EtcdException#getErrorResponse()}.
+	 */
+	public EtcdWatchStream open(IEtcdTransport transport) throws EtcdException {
+		setQueryBoolean(STREAM);
+		EtcdHttpResponse response = null;
+		try {
+			response = transport.send(this);
+			if (!response.isSuccess()) {
+				EtcdErrorResponse error = EtcdResponseDecoder.decodeError(response.getInputStream(),
+						response.getHeaders());
+				throw new EtcdException("Watch request failed url=" + getUrl(), error); //$NON-NLS-1$
+			}
+			EtcdWatchStream stream = new EtcdWatchStream(response,
+					EtcdResponseDecoder.createReader(response.getInputStream()));
+			response = null;
+			return stream;
+		} catch (IOException e) {
+			if (isAborted())
+				throw new EtcdException("Request aborted url=" + getUrl(), e); //$NON-NLS-1$
+			throw new EtcdException("Error communicating with server at url=" + getUrl(), e); //$NON-NLS-1$
+		} catch (JSONException e) {
+			throw new EtcdException("Parsing error communicating with server url=" + getUrl(), e); //$NON-NLS-1$
+		} finally {
+			// the stream is closed by the caller, not by an abort of this request
+			clearAbortHandle();
+			if (response != null)
+				response.close();
+		}
 	}
 
 }
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.json.JSONException;
+
+/**
+ * Stream of changes of a v2 watch with <code>stream=true</code>: the server
+ * keeps the response open and writes one event object per change, which are
+ * decoded as they arrive.
+ */
+public class EtcdWatchStream {
+
+	private final EtcdHttpResponse response;
+	private final EtcdJsonReader reader;
+
+	EtcdWatchStream(EtcdHttpResponse response, EtcdJsonReader reader) {
+		this.response = response;
+		this.reader = reader;
+	}
+
+	/**
+	 * Wait for the next change.
+	 * 
+	 * @return the change. Its headers are <code>null</code>: the
+	 *         <code>X-Etcd-Index</code> of the response is the index the
+	 *         stream was opened at, not that of the change.
+	 * @throws IOException
+	 *             if the stream was closed, also by the server (e.g. when the
+	 *             watch fell behind)
+	 */
+	public EtcdSuccessResponse next() throws IOException, JSONException {
+		if (reader.peek() == EtcdJsonReader.END_DOCUMENT)
+			throw new EOFException("Watch stream closed by server"); //$NON-NLS-1$
+		return EtcdResponseDecoder.readSuccess(reader, null);
+	}
+
+	/**
+	 * Close the stream. A thread blocked in {@link #next()} gets an
+	 * {@link IOException}.
+	 */
+	public void close() {
+		response.close();
+	}
+}
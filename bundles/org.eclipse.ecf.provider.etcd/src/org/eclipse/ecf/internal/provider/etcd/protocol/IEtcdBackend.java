@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import org.eclipse.equinox.concurrent.future.IListenableFuture;
+
+/**
+ * The etcd operations used by the discovery container. Keys are absolute etcd
+ * key paths (e.g. <code>/containerName/sessionId/serviceId</code>), and all
+ * results use the v2 response model ({@link EtcdSuccessResponse},
+ * {@link EtcdNode}), whatever api the backend talks to the server.
+ * <p>
+ * A session is a directory holding the services registered by one
+ * container. It lives as long as it is refreshed within its ttl, and all of
+ * its services are removed with it.
+ */
+public interface IEtcdBackend {
+
+	/**
+	 * Get the given directory with all its children, creating it if it does
+	 * not exist.
+	 * 
+	 * @param serializable
+	 *            <code>true</code> to let the member that receives the request
+	 *            answer from its local state, which may be behind the cluster
+	 *            but does not involve the leader. <code>false</code> for a
+	 *            linearizable (quorum) read, that reflects all changes made
+	 *            before the request.
+	 * @return the response. Its node is the directory.
+	 *         {@link EtcdSuccessResponse#getEtcdIndex()} is the index the
+	 *         content was read at.
+	 */
+	EtcdResponse getDirectory(String key, boolean serializable) throws EtcdException;
+
+	EtcdResponse createSession(String key, int ttl) throws EtcdException;
+
+	EtcdResponse refreshSession(String key, int ttl) throws EtcdException;
+
+	/**
+	 * Make the given directory, outside of the session directory, part of the
+	 * session: it is refreshed and deleted with the session, and expires with
+	 * it. Adding a directory twice has no effect.
+	 * 
+	 * @return the response, or <code>null</code> if nothing had to be done
+	 *         (e.g. because the backend binds all keys set in the session to
+	 *         it)
+	 */
+	EtcdResponse addSessionDirectory(String sessionKey, String key, int ttl) throws EtcdException;
+
+	/**
+	 * Delete the session and all services in it.
+	 */
+	EtcdResponse deleteSession(String key) throws EtcdException;
+
+	/**
+	 * Set the value of the given key in the given session.
+	 * 
+	 * @param ttl
+	 *            ttl of the key in seconds, or 0 for none. Backends may
+	 *            instead bind the key to the lifetime of its session.
+	 */
+	<ResultType> IListenableFuture<ResultType> set(String sessionKey, String key, String value, int ttl,
+			IEtcdResponseHandler<ResultType> handler);
+
+	/**
+	 * Set the value of the given key in the given session directory, first
+	 * adding the directory to the session as
+	 * {@link #addSessionDirectory(String, String, int)} does, if needed. Does
+	 * not block the caller for either request.
+	 * 
+	 * @param sessionTTL
+	 *            ttl of the session directory in seconds
+	 */
+	<ResultType> IListenableFuture<ResultType> set(String sessionKey, String sessionDirectory, int sessionTTL,
+			String key, String value, int ttl, IEtcdResponseHandler<ResultType> handler);
+
+	<ResultType> IListenableFuture<ResultType> delete(String key, IEtcdResponseHandler<ResultType> handler);
+
+	/**
+	 * Delete all services of the given session in one request, keeping the
+	 * session.
+	 * 
+	 * @return the future, or <code>null</code> if the api cannot do this in
+	 *         one request. The services must then be deleted one by one.
+	 */
+	<ResultType> IListenableFuture<ResultType> deleteSessionServices(String sessionKey,
+			IEtcdResponseHandler<ResultType> handler);
+
+	/**
+	 * Wait for the next change of the given directory or its children.
+	 * Directories that do not contain each other may be watched concurrently
+	 * from different threads.
+	 * 
+	 * @param index
+	 *            the index to watch from. Changes up to and including the last
+	 *            change returned by this method are never returned again, as
+	 *            long as no exception is thrown.
+	 * @return the change, or <code>null</code> if there was none within the
+	 *         watch timeout. Its action is one of the
+	 *         <code>EtcdProtocol.ACTION_*</code> constants, and the node's
+	 *         modifiedIndex is the index of the change.
+	 * @throws EtcdException
+	 *             also if the watch was aborted by {@link #close()}
+	 */
+	EtcdResponse watch(String key, int index) throws EtcdException;
+
+	/**
+	 * @param timeout
+	 *            ms {@link #watch(String, int)} waits for a change before
+	 *            returning <code>null</code>, so that the watch is re-armed
+	 *            periodically. 0 to wait indefinitely.
+	 */
+	void setWatchTimeout(int timeout);
+
+	/**
+	 * Release resources held by this backend, and abort the watches in
+	 * progress without waiting for the server. Later watches fail. The
+	 * transport and executor are not closed.
+	 */
+	void close();
+
+}
@@ -0,0 +1,21 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+/**
+ * Continuation for an asynchronously executed {@link EtcdRequest}. The handler
+ * is run on the executor thread as soon as the response has been received, and
+ * its result (or exception) becomes the result of the future returned by
+ * {@link EtcdRequest#executeAsync(IEtcdTransport, EtcdRequestExecutor, IEtcdResponseHandler)}.
+ */
+public interface IEtcdResponseHandler<ResultType> {
+
+	ResultType handleResponse(EtcdResponse response) throws Exception;
+
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * HTTP transport used by {@link EtcdRequest#execute(IEtcdTransport)} to send a
+ * request to an etcd server and hand back the raw response.
+ */
+public interface IEtcdTransport {
+
+	/**
+	 * Send the given request. The caller must close the returned response
+	 * (directly or by reading its body to the end and closing the stream) so
+	 * that the underlying connection can be released.
+	 * 
+	 * @param request
+	 *            the request to send. Must not be <code>null</code>.
+	 * @return the response received. Will not be <code>null</code>.
+	 * @throws IOException
+	 *             if the request could not be sent or no response was
+	 *             received
+	 */
+	EtcdHttpResponse send(EtcdRequest request) throws IOException;
+
+	/**
+	 * Send the given request to the given url rather than to
+	 * {@link EtcdRequest#createURL()}. Used to direct a request to a specific
+	 * member of an etcd cluster.
+	 * 
+	 * @param request
+	 *            the request to send. Must not be <code>null</code>.
+	 * @param url
+	 *            the complete url (including query) to send the request to.
+	 *            Must not be <code>null</code>.
+	 * @return the response received. Will not be <code>null</code>.
+	 * @throws IOException
+	 *             if the request could not be sent or no response was
+	 *             received
+	 */
+	EtcdHttpResponse send(EtcdRequest request, URL url) throws IOException;
+
+	/**
+	 * @return latencies of the requests sent with this transport. Will not be
+	 *         <code>null</code>.
+	 */
+	EtcdRequestLatencies getLatencies();
+
+	/**
+	 * Release all resources (e.g. idle pooled connections) held by this
+	 * transport.
+	 */
+	void close();
+
+}
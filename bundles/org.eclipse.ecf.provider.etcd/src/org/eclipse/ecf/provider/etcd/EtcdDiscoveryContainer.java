@@ -8,17 +8,29 @@
  ******************************************************************************/
 package org.eclipse.ecf.provider.etcd;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
@@ -32,8 +44,10 @@ import org.eclipse.ecf.core.events.ContainerDisconnectingEvent;
 import org.eclipse.ecf.core.identity.ID;
 import org.eclipse.ecf.core.security.IConnectContext;
 import org.eclipse.ecf.discovery.AbstractDiscoveryContainerAdapter;
+import org.eclipse.ecf.discovery.IServiceEvent;
 import org.eclipse.ecf.discovery.IServiceInfo;
 import org.eclipse.ecf.discovery.IServiceListener;
+import org.eclipse.ecf.discovery.IServiceTypeEvent;
 import org.eclipse.ecf.discovery.IServiceTypeListener;
 import org.eclipse.ecf.discovery.ServiceContainerEvent;
 import org.eclipse.ecf.discovery.ServiceInfo;
@@ -42,44 +56,82 @@ import org.eclipse.ecf.discovery.identity.IServiceID;
 import org.eclipse.ecf.discovery.identity.IServiceTypeID;
 import org.eclipse.ecf.internal.provider.etcd.Activator;
 import org.eclipse.ecf.internal.provider.etcd.DebugOptions;
+import org.eclipse.ecf.internal.provider.etcd.EtcdDiscoveryMetrics;
+import org.eclipse.ecf.internal.provider.etcd.EtcdDiscoverySnapshot;
+import org.eclipse.ecf.internal.provider.etcd.EtcdEventDispatcher;
+import org.eclipse.ecf.internal.provider.etcd.EtcdHeartbeatScheduler;
+import org.eclipse.ecf.internal.provider.etcd.EtcdHeartbeatScheduler.Heartbeat;
+import org.eclipse.ecf.internal.provider.etcd.EtcdServiceInfoDecoder;
+import org.eclipse.ecf.internal.provider.etcd.EtcdServiceRegistry;
 import org.eclipse.ecf.internal.provider.etcd.LogUtility;
-import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdDeleteRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdClusterTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdErrorResponse;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdException;
-import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdGetRequest;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdNode;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdPooledTransport;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdProtocol;
-import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestLatencies;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestExecutor;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponse;
-import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSetRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRetryBackoff;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSuccessResponse;
-import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdWatchRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdURLConnectionTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV2Backend;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV3Backend;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdBackend;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdResponseHandler;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdTransport;
 import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
 import org.eclipse.ecf.provider.etcd.identity.EtcdServiceID;
+import org.eclipse.equinox.concurrent.future.IFuture;
+import org.eclipse.equinox.concurrent.future.IProgressRunnable;
 import org.json.JSONException;
 
 public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 
 	public class EtcdServiceInfoKey {
+		private final String parent;
 		private final String sessId;
 		private final String serviceInfoId;
 		private final String fullKey;
 
 		public EtcdServiceInfoKey() {
-			this.sessId = localSessionId;
-			this.serviceInfoId = UUID.randomUUID().toString();
-			this.fullKey = verifySlash(localSessionId) + this.serviceInfoId;
+			this(localSessionId, UUID.randomUUID().toString());
 		}
 
 		public EtcdServiceInfoKey(String sessionId, String serviceInfoId) {
+			this("", sessionId, serviceInfoId); //$NON-NLS-1$
+		}
+
+		/**
+		 * @param parent
+		 *            path of the session directory relative to the discovery
+		 *            directory, ending with '/', or "" if the session directory
+		 *            is in the discovery directory
+		 */
+		public EtcdServiceInfoKey(String parent, String sessionId, String serviceInfoId) {
+			this.parent = parent;
 			this.sessId = sessionId;
 			this.serviceInfoId = serviceInfoId;
 			this.fullKey = verifySlash(sessionId) + this.serviceInfoId;
 		}
 
+		/**
+		 * @return sessionId/serviceInfoId. Identifies the service whatever its
+		 *         parent.
+		 */
 		public String getFullKey() {
 			return this.fullKey;
 		}
 
+		public String getParent() {
+			return this.parent;
+		}
+
+		public String getSessionId() {
+			return this.sessId;
+		}
+
 		public boolean matchSessionId(String sId) {
 			if (sessId == null)
 				return true;
@@ -107,20 +159,58 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 	}
 
 	// services
-	private final Map<EtcdServiceInfoKey, EtcdServiceInfo> services = new HashMap<EtcdServiceInfoKey, EtcdServiceInfo>();
+	private final EtcdServiceRegistry<EtcdServiceInfoKey> services = new EtcdServiceRegistry<EtcdServiceInfoKey>();
+	// guards starting the watch job and disconnect
+	private final Object connectLock = new Object();
 	private EtcdServiceID etcdTargetID;
 	private String localSessionId;
 	private String keyPrefix;
+	private boolean typeLayout;
+	private boolean serializableReads;
+	private boolean serializableResyncReads;
 
-	private String dirUrl;
 	private EtcdWatchJob watchJob;
-	private boolean watchDone;
-	private int watchIndex;
-
-	private EtcdTTLJob ttlJob;
-
-	private String getDirectoryUrl() {
-		return this.dirUrl;
+	// type directory key -> watch job, with the type layout
+	private final Map<String, EtcdWatchJob> typeWatchJobs = new HashMap<String, EtcdWatchJob>();
+	private volatile boolean watchDone;
+	// backoff of each watch job since connect, so that a failing type
+	// directory does not delay the watches of the others
+	private final List<EtcdRetryBackoff> watchBackoffs = new ArrayList<EtcdRetryBackoff>();
+	private boolean watchBackoffsCreated;
+	// shared by all watch jobs
+	private final AtomicLong resyncCount = new AtomicLong();
+	private volatile long lastResyncDuration;
+	private final AtomicLong totalResyncDuration = new AtomicLong();
+	private final EtcdDiscoveryMetrics metrics = new EtcdDiscoveryMetrics(this);
+	// kept over reconnects, like the other metrics
+	private final EtcdRequestLatencies requestLatencies = new EtcdRequestLatencies();
+
+	private Heartbeat sessionHeartbeat;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private volatile long lastSessionRefresh;
+
+	private IEtcdTransport transport;
+	private EtcdRequestExecutor executor;
+	private IEtcdBackend backend;
+	private EtcdEventDispatcher dispatcher;
+	// decodes the services read from a directory, null to decode on the
+	// calling thread
+	private volatile ForkJoinPool decodePool;
+	private volatile EtcdDiscoverySnapshot snapshot;
+	private long coalesceWindow;
+	// batch listeners that received their initial services. Also guards
+	// syncedDirectories
+	private final Set<IEtcdServiceBatchListener> synchronizedListeners = new HashSet<IEtcdServiceBatchListener>();
+	// watched directories read since connecting
+	private final Set<String> syncedDirectories = new HashSet<String>();
+	// time disconnect waits for queued events to be delivered
+	private static final long DISPATCH_CLOSE_TIMEOUT = 1000;
+	// indexes removals are remembered for behind the watch. etcd keeps the
+	// last 1000 events, so a watch does not replay older changes
+	private static final int REMOVED_HISTORY = 1000;
+
+	private String getSessionKey() {
+		return this.keyPrefix + this.localSessionId;
 	}
 
 	public EtcdDiscoveryContainer(EtcdDiscoveryContainerConfig config) {
@@ -132,70 +222,195 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 	}
 
 	public void registerService(IServiceInfo serviceInfo) {
+		waitForResult("registerService", registerServiceAsync(serviceInfo)); //$NON-NLS-1$
+	}
+
+	/**
+	 * Register the given services. All set requests are queued on the request
+	 * executor before waiting for any response, and up to
+	 * {@link EtcdDiscoveryContainerConfig#getMaxConnections()} of them are in
+	 * flight at a time, so that registering n services takes about n /
+	 * maxConnections round trips. Listeners are notified of each service as
+	 * its registration is accepted.
+	 * 
+	 * @param serviceInfos
+	 *            the services to register. Must not be <code>null</code>.
+	 * @return the registered service infos, in the order given
+	 * @throws RuntimeException
+	 *             for the first registration that failed, after all others
+	 *             have completed
+	 */
+	public IServiceInfo[] registerServices(IServiceInfo[] serviceInfos) {
+		List<IFuture<IServiceInfo>> futures = new ArrayList<IFuture<IServiceInfo>>(serviceInfos.length);
+		for (IServiceInfo serviceInfo : serviceInfos)
+			futures.add(registerServiceAsync(serviceInfo));
+		IServiceInfo[] results = new IServiceInfo[serviceInfos.length];
+		RuntimeException failure = null;
+		for (int i = 0; i < results.length; i++)
+			try {
+				results[i] = waitForResult("registerServices", futures.get(i)); //$NON-NLS-1$
+			} catch (RuntimeException e) {
+				if (failure == null)
+					failure = e;
+			}
+		if (failure != null)
+			throw failure;
+		return results;
+	}
+
+	/**
+	 * Register the given service without waiting for the etcd server to
+	 * respond. Many registrations may be in flight at once. Service listeners
+	 * are notified once the registration has been accepted by the server.
+	 * Callers that later unregister the same service should wait for the
+	 * returned future first.
+	 * 
+	 * @param serviceInfo
+	 *            the service to register. Must not be <code>null</code>.
+	 * @return future for the registered service info. If the registration
+	 *         failed, the future's status will contain the exception.
+	 */
+	public IFuture<IServiceInfo> registerServiceAsync(IServiceInfo serviceInfo) {
 		trace("registerService", "serviceInfo=" + serviceInfo); //$NON-NLS-1$ //$NON-NLS-2$
+		checkConnected();
 		long ttl = serviceInfo.getTTL();
 		if (ttl == ServiceInfo.DEFAULT_TTL)
 			ttl = ((EtcdDiscoveryContainerConfig) getConfig()).getTTL();
-		EtcdServiceInfo si = (serviceInfo instanceof EtcdServiceInfo) ? (EtcdServiceInfo) serviceInfo
+		final EtcdServiceInfo si = (serviceInfo instanceof EtcdServiceInfo) ? (EtcdServiceInfo) serviceInfo
 				: new EtcdServiceInfo(serviceInfo, ttl);
 		String endpointid = serviceInfo.getServiceProperties().getPropertyString("endpoint.id"); //$NON-NLS-1$
-		EtcdServiceInfoKey siKey = (endpointid == null) ? new EtcdServiceInfoKey()
-				: new EtcdServiceInfoKey(this.localSessionId, endpointid);
+		String parent = typeLayout ? getTypeDirectory(si.getServiceID().getServiceTypeID()) : ""; //$NON-NLS-1$
+		final EtcdServiceInfoKey siKey = new EtcdServiceInfoKey(parent, this.localSessionId,
+				(endpointid == null) ? UUID.randomUUID().toString() : endpointid);
 		int etcdTTL = convertLongTTLToIntTTL(si.getTTL());
 		String siString = null;
 		try {
-			siString = si.serializeToJsonString();
+			siString = si.serialize(EtcdDiscoveryContainerConfig.ETCD_VALUEFORMAT_BINARY
+					.equals(((EtcdDiscoveryContainerConfig) getConfig()).getValueFormat()));
 		} catch (JSONException e) {
 			throw new IllegalArgumentException("Exception serializing serviceInfo=" + si, e); //$NON-NLS-1$
 		}
-		String fullKey = createFullKey(siKey);
-		synchronized (services) {
-			startWatchJob();
-			executeEtcdRequest("registerService", //$NON-NLS-1$
-					new EtcdSetRequest(fullKey, siString, etcdTTL),
-					"Error in EtcdServiceInfo set request serviceInfo=" + si); //$NON-NLS-1$
-			services.put(siKey, si);
-		}
-		fireServiceTypeDiscovered(si.getServiceID().getServiceTypeID());
-		fireServiceDiscovered(fullKey, si);
+		final String fullKey = createFullKey(siKey);
+		final long fingerprint = EtcdServiceRegistry.fingerprint(siString);
+		if (!typeLayout)
+			synchronized (connectLock) {
+				startWatchJob();
+			}
+		IEtcdResponseHandler<IServiceInfo> handler = new IEtcdResponseHandler<IServiceInfo>() {
+			public IServiceInfo handleResponse(EtcdResponse response) throws EtcdException {
+				if (response.isError())
+					throw new EtcdException("Error in EtcdServiceInfo set request serviceInfo=" + si, //$NON-NLS-1$
+							response.getErrorResponse());
+				EtcdNode node = response.getSuccessResponse().getNode();
+				int modifiedIndex = (node == null) ? 0 : node.getModifiedIndex();
+				List<EtcdServiceEvent> events = new ArrayList<EtcdServiceEvent>(2);
+				Set<IServiceTypeID> newTypes = new LinkedHashSet<IServiceTypeID>(1);
+				// re-registering an unchanged service fires no events
+				if (!services.isUnchanged(siKey, fingerprint, EtcdServiceRegistry.NO_FINGERPRINT,
+						modifiedIndex))
+					putService(siKey, si, modifiedIndex, fingerprint, events, newTypes);
+				fireChanges(events, newTypes);
+				return si;
+			}
+		};
+		if (typeLayout)
+			// services are set in a session directory below the directory of
+			// their type, created (without blocking) to live as long as the
+			// session
+			return backend.set(getSessionKey(), this.keyPrefix + parent + this.localSessionId,
+					getEtcdConfig().getSessionTTL(), fullKey, siString, etcdTTL, handler);
+		return backend.set(getSessionKey(), fullKey, siString, etcdTTL, handler);
 	}
 
 	private String createFullKey(EtcdServiceInfoKey key) {
-		return getDirectoryUrl() + key.getFullKey();
+		return this.keyPrefix + key.getParent() + key.getFullKey();
 	}
 
 	public void unregisterService(IServiceInfo serviceInfo) {
+		waitForResult("unregisterService", unregisterServiceAsync(serviceInfo)); //$NON-NLS-1$
+	}
+
+	/**
+	 * Unregister the given service without waiting for the etcd server to
+	 * respond. A failing delete request is logged, and the service is removed
+	 * locally regardless.
+	 * 
+	 * @param serviceInfo
+	 *            the service to unregister. Must not be <code>null</code>.
+	 * @return future for the removed service info, or for <code>null</code> if
+	 *         the service was not registered by this container
+	 */
+	public IFuture<IServiceInfo> unregisterServiceAsync(IServiceInfo serviceInfo) {
 		trace("unregisterService", "serviceInfo=" + serviceInfo); //$NON-NLS-1$ //$NON-NLS-2$
-		EtcdServiceInfoKey key = findEtcdServiceInfoKey(serviceInfo.getServiceID(), true);
+		checkConnected();
+		final EtcdServiceInfoKey key = findEtcdServiceInfoKey(serviceInfo.getServiceID(), true);
 		if (key == null) {
 			logEtcdError("unregisterService", "Could not find serviceInfo=" + serviceInfo, null); //$NON-NLS-1$ //$NON-NLS-2$
-			return;
+			return executor.execute(new IProgressRunnable<IServiceInfo>() {
+				public IServiceInfo run(IProgressMonitor monitor) {
+					return null;
+				}
+			}, null);
 		}
-		String fullKey = createFullKey(key);
-		EtcdServiceInfo si = null;
-		synchronized (services) {
-			try {
-				EtcdResponse r = new EtcdDeleteRequest(fullKey).execute();
-				if (r.isError())
-					logEtcdError("unregisterService", "EtcdDelete request failed", new EtcdException(r.getErrorResponse().getMessage())); //$NON-NLS-1$ //$NON-NLS-2$
-			} catch (EtcdException e) {
-				// we ignore but log
-				logEtcdError("unregisterServiced", "EtcdDelete request failed", e); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-			si = services.remove(key);
+		final String fullKey = createFullKey(key);
+		return backend.delete(fullKey,
+				new IEtcdResponseHandler<IServiceInfo>() {
+					public IServiceInfo handleResponse(EtcdResponse response) {
+						if (response.isError())
+							logEtcdError("unregisterService", "EtcdDelete request failed", //$NON-NLS-1$ //$NON-NLS-2$
+									new EtcdException(response.getErrorResponse().getMessage()));
+						return removeUnregistered(key, getDeleteIndex(response));
+					}
+				});
+	}
+
+	/**
+	 * @param modifiedIndex
+	 *            index of the delete, or 0 if it failed. The removal is
+	 *            remembered, so that a change of the key still in flight on
+	 *            the watch does not add the service again.
+	 */
+	private EtcdServiceInfo removeUnregistered(EtcdServiceInfoKey key, int modifiedIndex) {
+		EtcdServiceInfo si = services.remove(key, modifiedIndex);
+		services.publish();
+		if (si != null) {
+			persist(key, modifiedIndex, null);
+			fireServiceRemoved(key, si);
 		}
-		if (si != null)
-			fireServiceUndiscovered(fullKey, si);
+		return si;
+	}
+
+	/**
+	 * @return the etcd index a delete was applied at: the modified index of
+	 *         the deleted node, or the index of the response (e.g. the
+	 *         revision of a v3 deleterange), or 0 if not known
+	 */
+	private static int getDeleteIndex(EtcdResponse response) {
+		if (response.isError())
+			return 0;
+		EtcdSuccessResponse success = response.getSuccessResponse();
+		EtcdNode node = success.getNode();
+		int index = (node == null) ? 0 : node.getModifiedIndex();
+		return (index > 0) ? index : success.getEtcdIndex();
+	}
+
+	private void checkConnected() {
+		if (backend == null)
+			throw new IllegalStateException("Container is not connected"); //$NON-NLS-1$
 	}
 
-	private void executeEtcdRequest(String methodName, EtcdRequest request, String exceptionMessage) {
+	private <T> T waitForResult(String methodName, IFuture<T> future) {
+		T result = null;
 		try {
-			EtcdResponse response = request.execute();
-			if (response.isError())
-				throw new EtcdException(exceptionMessage, response.getErrorResponse());
-		} catch (EtcdException e) {
-			logAndThrowEtcdError(methodName, "Error communicating with etcd server", e); //$NON-NLS-1$
+			result = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logAndThrowEtcdError(methodName, "Interrupted waiting for etcd server", e); //$NON-NLS-1$
 		}
+		IStatus status = future.getStatus();
+		if (status != null && !status.isOK())
+			logAndThrowEtcdError(methodName, "Error communicating with etcd server", status.getException()); //$NON-NLS-1$
+		return result;
 	}
 
 	@Override
@@ -217,62 +432,90 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 		fireContainerEvent(new ContainerConnectingEvent(getID(), aTargetID, connectContext));
 
 		// set targetID from config
+		EtcdServiceID targetID;
 		if (aTargetID == null) {
-			etcdTargetID = config.getTargetID();
+			targetID = config.getTargetID();
 		} else {
 			if (!(aTargetID instanceof EtcdServiceID))
 				throw new ContainerConnectException("targetID must be of type EtcdServiceID"); //$NON-NLS-1$
-			etcdTargetID = (EtcdServiceID) aTargetID;
+			targetID = (EtcdServiceID) aTargetID;
 		}
 		// Set sessionId from config
-		localSessionId = config.getSessionId();
-		if (localSessionId == null)
+		String sessionId = config.getSessionId();
+		if (sessionId == null)
 			throw new ContainerConnectException("SessionId cannot be null"); //$NON-NLS-1$
+		etcdTargetID = targetID;
+		localSessionId = sessionId;
 		this.keyPrefix = verifySlash("/" + getID().getName()); //$NON-NLS-1$
-
-		// Then set directory URL
-		this.dirUrl = this.etcdTargetID.getLocation().toString() + this.keyPrefix;
-
-		String directoryUrl = getDirectoryUrl();
+		this.typeLayout = EtcdDiscoveryContainerConfig.ETCD_LAYOUT_TYPE.equals(config.getLayout());
+		this.serializableReads = EtcdDiscoveryContainerConfig.ETCD_READ_SERIALIZABLE.equals(config.getReadConsistency());
+		this.serializableResyncReads = EtcdDiscoveryContainerConfig.ETCD_READ_SERIALIZABLE
+				.equals(config.getResyncReadConsistency());
+		this.coalesceWindow = config.getCoalesceWindow();
+		dispatcher = new EtcdEventDispatcher("EtcdDiscovery Dispatch " + getID().getName(), //$NON-NLS-1$
+				config.getDispatchThreads(), config.getDispatchQueueSize(), config.getDispatchOverflow());
+		// serve the services of the last run until etcd has been read
+		openSnapshot(config);
+
+		String directoryKey = this.keyPrefix;
 		int sessionTTL = config.getSessionTTL();
+		this.transport = createTransport(config);
+		this.executor = new EtcdRequestExecutor("EtcdDiscovery " + getID().getName(), config.getMaxConnections()); //$NON-NLS-1$
+		this.backend = createBackend(config);
+		this.backend.setWatchTimeout(config.getWatchTimeout());
+		int parallelism = config.getBootstrapParallelism();
+		this.decodePool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+		EtcdNode tn = null;
+		int watchIndex = 0;
 		try {
-			EtcdResponse topResponse = new EtcdGetRequest(directoryUrl, true).execute();
-			if (topResponse.isError()) {
-				// if dir not present, try to create
-				topResponse = new EtcdSetRequest(directoryUrl).execute();
-				// If could not create then we cannot continue
-				if (topResponse.isError())
-					throw new ContainerConnectException("etcd directoryURL=" + directoryUrl + " could not be created"); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-			EtcdNode tn = topResponse.getSuccessResponse().getNode();
+			// with the type layout the discovery directory is only read if a
+			// listener for all types is added
+			EtcdResponse topResponse = typeLayout ? null : backend.getDirectory(directoryKey, serializableReads);
+			// If could not get or create then we cannot continue
+			if (topResponse != null && topResponse.isError())
+				throw new ContainerConnectException("etcd directory=" + directoryKey + " could not be created"); //$NON-NLS-1$ //$NON-NLS-2$
+			tn = (topResponse == null) ? null : topResponse.getSuccessResponse().getNode();
 			// If the topNode is not a directory, then we can't continue
-			if (!tn.isDirectory())
-				throw new ContainerConnectException("etcd directoryUrl=" + directoryUrl + " is not a directory"); //$NON-NLS-1$//$NON-NLS-2$
-			// Set the top node for later discovery via watch job
-			this.topNode = tn;
+			if (tn != null && !tn.isDirectory())
+				throw new ContainerConnectException("etcd directory=" + directoryKey + " is not a directory"); //$NON-NLS-1$//$NON-NLS-2$
 			// create a directory with our unique sessionid
-			EtcdResponse sessionExistsResponse = new EtcdSetRequest(directoryUrl + localSessionId, sessionTTL)
-					.execute();
+			EtcdResponse sessionExistsResponse = backend.createSession(getSessionKey(), sessionTTL);
 			if (sessionExistsResponse.isError())
 				throw new ContainerConnectException("Could not create etcd session directory for sessionDirectory=" //$NON-NLS-1$
-						+ directoryUrl + localSessionId);
-			trace("connect","client connected to etcd server at url="+ directoryUrl + localSessionId + " ttl="+sessionTTL); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-			// set watchIndex to createdIndex + 1
-			watchIndex = sessionExistsResponse.getSuccessResponse().getNode().getCreatedIndex() + 1;
+						+ getSessionKey());
+			trace("connect","client connected to etcd server with " + backend + " session=" + getSessionKey() + " ttl="+sessionTTL); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			// watch from the index the directory was read at, so that no change
+			// after the read is missed
+			if (topResponse != null) {
+				int topIndex = topResponse.getSuccessResponse().getEtcdIndex();
+				watchIndex = (topIndex > 0) ? topIndex + 1
+						: sessionExistsResponse.getSuccessResponse().getNode().getCreatedIndex() + 1;
+			}
 		} catch (EtcdException e) {
-			throw new ContainerConnectException("Could not communicate with etcd server at url=" + directoryUrl, e); //$NON-NLS-1$
+			String message = "Could not communicate with etcd server at " + backend; //$NON-NLS-1$
+			connectFailed();
+			throw new ContainerConnectException(message, e);
+		} catch (ContainerConnectException e) {
+			connectFailed();
+			throw e;
 		}
 		
-		ttlJob = new EtcdTTLJob(sessionTTL);
-		watchJob = new EtcdWatchJob();
-		// schedule ttlJob right away
-		ttlJob.schedule();
+		synchronized (watchBackoffs) {
+			watchBackoffs.clear();
+			watchBackoffsCreated = true;
+		}
+		watchDone = false;
+		watchJob = new EtcdWatchJob(directoryKey, tn, watchIndex);
+		lastSessionRefresh = System.currentTimeMillis();
+		long refreshPeriod = getRefreshPeriod(sessionTTL);
+		sessionHeartbeat = EtcdHeartbeatScheduler.getDefault().schedule(new SessionRefresh(sessionTTL), refreshPeriod,
+				refreshPeriod);
+		if (config.isMetrics())
+			metrics.register();
 		// Fire container connected event
 		fireContainerEvent(new ContainerConnectedEvent(this.getID(), aTargetID));
 	}
 
-	EtcdNode topNode;
-
 	private void startWatchJob() {
 		if (watchJob != null && watchJob.getState() == Job.NONE) {
 			trace("startWatchJob", "starting watchJob");  //$NON-NLS-1$//$NON-NLS-2$
@@ -280,25 +523,197 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 			watchJob.schedule(startDelay);
 		}
 	}
+
+	/**
+	 * With the type layout, start watching the directory of the given type.
+	 * Otherwise start the watch of the discovery directory.
+	 */
+	private void startWatchJob(IServiceTypeID type) {
+		if (!typeLayout || type == null) {
+			startWatchJob();
+			return;
+		}
+		if (etcdTargetID == null)
+			return;
+		String directoryKey = this.keyPrefix + getTypeDirectory(type);
+		if (!typeWatchJobs.containsKey(directoryKey)) {
+			trace("startWatchJob", "starting watchJob for type directory=" + directoryKey); //$NON-NLS-1$ //$NON-NLS-2$
+			EtcdWatchJob job = new EtcdWatchJob(directoryKey, null, 0);
+			typeWatchJobs.put(directoryKey, job);
+			// the type was asked for, so no start delay
+			job.schedule();
+		}
+	}
+
+	/**
+	 * @return the directory of the services of the given type with the type
+	 *         layout, relative to the discovery directory and ending with '/'.
+	 *         Characters that are not letters, digits, '.', '-' or '_' are
+	 *         replaced by '_'.
+	 */
+	static String getTypeDirectory(IServiceTypeID type) {
+		String name = type.getName();
+		StringBuilder sb = new StringBuilder(name.length() + 1);
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.'
+					|| c == '-' || c == '_';
+			sb.append(safe ? c : '_');
+		}
+		return sb.append('/').toString();
+	}
 	
+	/**
+	 * An {@link IEtcdServiceBatchListener} receives the services in batches.
+	 */
 	public void addServiceListener(final IServiceListener aListener) {
-		synchronized(services) {
+		synchronized (connectLock) {
 			startWatchJob();
 		}
 		super.addServiceListener(aListener);
+		if (aListener instanceof IEtcdServiceBatchListener)
+			synchronizeListeners();
 	}
 	
+	/**
+	 * With the type layout, only services of the types that have listeners
+	 * (or of all types, once a listener for all types is added) are
+	 * discovered.
+	 */
 	public void addServiceListener(final IServiceTypeID aType, final IServiceListener aListener) {
-		synchronized(services) {
-			startWatchJob();
+		synchronized (connectLock) {
+			startWatchJob(aType);
 		}
 		super.addServiceListener(aType, aListener);
+		if (aListener instanceof IEtcdServiceBatchListener)
+			synchronizeListeners();
 	}
 	
 	public void addServiceTypeListener(IServiceTypeListener aListener) {
-		synchronized(services) {
+		synchronized (connectLock) {
 			startWatchJob();
 		}
+		super.addServiceTypeListener(aListener);
+	}
+
+	public void removeServiceListener(IServiceListener aListener) {
+		super.removeServiceListener(aListener);
+		removeDispatchQueue(aListener);
+	}
+
+	public void removeServiceListener(IServiceTypeID aType, IServiceListener aListener) {
+		super.removeServiceListener(aType, aListener);
+		removeDispatchQueue(aListener);
+	}
+
+	public void removeServiceTypeListener(IServiceTypeListener aListener) {
+		super.removeServiceTypeListener(aListener);
+		EtcdEventDispatcher d = dispatcher;
+		if (d != null)
+			d.removeListener(aListener);
+	}
+
+	/**
+	 * Drop the event queue of a service listener that is no longer registered
+	 * for any service type.
+	 */
+	private void removeDispatchQueue(IServiceListener aListener) {
+		synchronized (allServiceListeners) {
+			if (allServiceListeners.contains(aListener))
+				return;
+		}
+		synchronized (serviceListeners) {
+			for (Object listeners : serviceListeners.values())
+				if (((Collection<?>) listeners).contains(aListener))
+					return;
+		}
+		synchronized (synchronizedListeners) {
+			synchronizedListeners.remove(aListener);
+		}
+		EtcdEventDispatcher d = dispatcher;
+		if (d != null)
+			d.removeListener(aListener);
+	}
+
+	/**
+	 * @return the directory watched for services of the given type, or of all
+	 *         types if <code>null</code>
+	 */
+	private String getWatchedDirectory(IServiceTypeID type) {
+		return (typeLayout && type != null) ? this.keyPrefix + getTypeDirectory(type) : this.keyPrefix;
+	}
+
+	/**
+	 * Called once the watched directory has been read, to deliver their
+	 * initial services to the batch listeners waiting for it.
+	 */
+	private void directorySynchronized(String directoryKey) {
+		synchronized (synchronizedListeners) {
+			syncedDirectories.add(directoryKey);
+		}
+		synchronizeListeners();
+	}
+
+	/**
+	 * Deliver the initial services to the batch listeners that did not yet
+	 * receive them and whose directories have all been read. Done while
+	 * holding the lock that changes are delivered with, so that no change
+	 * reaches a listener before its initial services.
+	 */
+	private void synchronizeListeners() {
+		EtcdEventDispatcher d = dispatcher;
+		if (d == null)
+			return;
+		Map<IEtcdServiceBatchListener, Set<IServiceTypeID>> registrations = getBatchListeners();
+		synchronized (synchronizedListeners) {
+			for (Map.Entry<IEtcdServiceBatchListener, Set<IServiceTypeID>> entry : registrations.entrySet()) {
+				IEtcdServiceBatchListener listener = entry.getKey();
+				if (synchronizedListeners.contains(listener))
+					continue;
+				boolean synced = true;
+				for (IServiceTypeID type : entry.getValue())
+					synced &= syncedDirectories.contains(getWatchedDirectory(type));
+				if (!synced)
+					continue;
+				Set<IServiceInfo> initial = new LinkedHashSet<IServiceInfo>();
+				for (IServiceTypeID type : entry.getValue())
+					initial.addAll((type == null) ? getServiceList() : getServiceList(type));
+				synchronizedListeners.add(listener);
+				d.servicesSynchronized(listener, initial.toArray(new IServiceInfo[initial.size()]));
+			}
+		}
+	}
+
+	/**
+	 * @return the registered batch listeners, with the service types they
+	 *         were added for (<code>null</code> for all types)
+	 */
+	private Map<IEtcdServiceBatchListener, Set<IServiceTypeID>> getBatchListeners() {
+		Map<IEtcdServiceBatchListener, Set<IServiceTypeID>> result = new HashMap<IEtcdServiceBatchListener, Set<IServiceTypeID>>();
+		synchronized (allServiceListeners) {
+			for (Object listener : allServiceListeners)
+				if (listener instanceof IEtcdServiceBatchListener)
+					addRegistration(result, (IEtcdServiceBatchListener) listener, null);
+		}
+		synchronized (serviceListeners) {
+			for (Object entry : serviceListeners.entrySet()) {
+				Map.Entry<?, ?> e = (Map.Entry<?, ?>) entry;
+				for (Object listener : (Collection<?>) e.getValue())
+					if (listener instanceof IEtcdServiceBatchListener)
+						addRegistration(result, (IEtcdServiceBatchListener) listener, (IServiceTypeID) e.getKey());
+			}
+		}
+		return result;
+	}
+
+	private static void addRegistration(Map<IEtcdServiceBatchListener, Set<IServiceTypeID>> registrations,
+			IEtcdServiceBatchListener listener, IServiceTypeID type) {
+		Set<IServiceTypeID> types = registrations.get(listener);
+		if (types == null) {
+			types = new HashSet<IServiceTypeID>();
+			registrations.put(listener, types);
+		}
+		types.add(type);
 	}
 	
 	EtcdDiscoveryContainerConfig getEtcdConfig() {
@@ -313,96 +728,253 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 		if (etcdTargetID != null) {
 			ID anID = getConnectedID();
 			fireContainerEvent(new ContainerDisconnectingEvent(this.getID(), anID));
-			synchronized (services) {
-				// delete our sessionId from etcd service
-				try {
-					new EtcdDeleteRequest(getDirectoryUrl() + this.localSessionId, true).execute();
-				} catch (EtcdException e) {
-					logEtcdError("shutdownEtcdConnection", "Error with etcd shutdown", e); //$NON-NLS-1$ //$NON-NLS-2$
+			synchronized (connectLock) {
+				watchDone = true;
+				List<EtcdWatchJob> jobs = new ArrayList<EtcdWatchJob>(typeWatchJobs.values());
+				typeWatchJobs.clear();
+				if (watchJob != null) {
+					jobs.add(watchJob);
+					watchJob = null;
 				}
-				services.clear();
-				etcdTargetID = null;
-				localSessionId = null;
-				keyPrefix = null;
-				dirUrl = null;
-				if (ttlJob != null) {
-					ttlJob.cancel();
-					try {
-						ttlJob.join();
-					} catch (InterruptedException e) {
-					}
-					ttlJob = null;
+				for (EtcdWatchJob job : jobs)
+					job.cancel();
+				if (sessionHeartbeat != null) {
+					sessionHeartbeat.cancel();
+					sessionHeartbeat = null;
 				}
-				if (watchJob != null) {
-					watchJob.cancel();
+				if (backend != null) {
+					// delete our sessionId from etcd service
 					try {
-						watchJob.join();
-					} catch (InterruptedException e) {
+						backend.deleteSession(getSessionKey());
+					} catch (EtcdException e) {
+						logEtcdError("shutdownEtcdConnection", "Error with etcd shutdown", e); //$NON-NLS-1$ //$NON-NLS-2$
 					}
-					watchJob = null;
+					// abort the watch requests in progress instead of waiting
+					// for a change to end them
+					backend.close();
 				}
+				etcdTargetID = null;
+				EtcdDiscoveryContainerConfig config = getEtcdConfig();
+				joinWatchJobs(jobs, (config == null) ? EtcdDiscoveryContainerConfig.ETCD_DISCONNECTTIMEOUT_DEFAULT
+						: config.getDisconnectTimeout());
+				// watch jobs still ending use the session id and key prefix
+				localSessionId = null;
+				keyPrefix = null;
+				services.clear();
+				synchronized (synchronizedListeners) {
+					synchronizedListeners.clear();
+					syncedDirectories.clear();
+				}
+				closeTransport();
+				closeSnapshot();
+				metrics.unregister();
+				closeDispatcher();
 			}
 			fireContainerEvent(new ContainerDisconnectedEvent(this.getID(), anID));
 		}
 	}
 
-	public class EtcdTTLJob extends Job {
+	/**
+	 * Release what a failed connect has set up, so that it can be retried.
+	 */
+	private void connectFailed() {
+		closeTransport();
+		closeSnapshot();
+		closeDispatcher();
+		services.clear();
+		etcdTargetID = null;
+		localSessionId = null;
+		keyPrefix = null;
+	}
 
-		private static final int DELAY = 1000;
-		private int ttl;
-		
-		public EtcdTTLJob(int ttl) {
-			super("Etcd TTL Job"); //$NON-NLS-1$
-			this.ttl = ttl;
+	/**
+	 * Wait for the given (canceled) watch jobs to end, at most the given time.
+	 */
+	private void joinWatchJobs(List<EtcdWatchJob> jobs, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		for (EtcdWatchJob job : jobs) {
+			try {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0 || !job.join(remaining, null)) {
+					LogUtility.logWarning("disconnect", DebugOptions.WATCHJOB, getClass(), //$NON-NLS-1$
+							"Watch jobs did not end within disconnect timeout=" + timeout + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
 		}
+	}
 
-		private long getStartWaitTime() {
-			long kttl = this.ttl * 1000;
-			return kttl - (kttl / 10);
+	private void closeDispatcher() {
+		if (dispatcher != null) {
+			if (!dispatcher.close(DISPATCH_CLOSE_TIMEOUT))
+				logEtcdError("disconnect", "Discarded undelivered events, dispatcher=" + dispatcher); //$NON-NLS-1$ //$NON-NLS-2$
+			dispatcher = null;
 		}
+	}
 
-		void trace(String message) {
-			LogUtility.trace("run", DebugOptions.TTLJOB, EtcdTTLJob.class, message); //$NON-NLS-1$
+	private void closeTransport() {
+		if (backend != null) {
+			backend.close();
+			backend = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+		ForkJoinPool pool = decodePool;
+		if (pool != null) {
+			decodePool = null;
+			pool.shutdown();
+		}
+		if (transport != null) {
+			trace("closeTransport", "transport=" + transport); //$NON-NLS-1$ //$NON-NLS-2$
+			transport.close();
+			transport = null;
 		}
+	}
 
-		@Override
-		protected IStatus run(IProgressMonitor arg0) {
-			trace("Etcd TTL Job starting"); //$NON-NLS-1$
-			long waittime = getStartWaitTime();
-			while (true) {
-				if (arg0.isCanceled())
-					return Status.CANCEL_STATUS;
-				synchronized (this) {
-					try {
-						Thread.sleep(DELAY);
-						if (arg0.isCanceled())
-							return Status.CANCEL_STATUS;
-						waittime -= DELAY;
-						if (waittime <= 0) {
-							try {
-								new EtcdSetRequest(getDirectoryUrl() + EtcdDiscoveryContainer.this.localSessionId,
-										this.ttl, true).execute();
-							} catch (EtcdException e) {
-								logEtcdError("TTLJob.run", "Exception sending ttl update", e); //$NON-NLS-1$//$NON-NLS-2$
-							}
-							waittime = getStartWaitTime();
-						}
-					} catch (InterruptedException e) {
-						logEtcdError("TTLJob.run", "InterruptedException in ttl update", e); //$NON-NLS-1$//$NON-NLS-2$
-					}
+	/**
+	 * @return ms between session refreshes: 90% of the session ttl
+	 */
+	private static long getRefreshPeriod(int ttl) {
+		long kttl = ttl * 1000L;
+		return Math.max(EtcdHeartbeatScheduler.TICK, kttl - (kttl / 10));
+	}
+
+	/**
+	 * Heartbeat task refreshing the session. Runs on the shared heartbeat
+	 * scheduler thread, and sends the refresh on the request executor.
+	 */
+	class SessionRefresh implements Runnable, IProgressRunnable<Object> {
+
+		private final int ttl;
+
+		SessionRefresh(int ttl) {
+			this.ttl = ttl;
+		}
+
+		public void run() {
+			EtcdRequestExecutor ex = executor;
+			if (ex == null)
+				return;
+			// skip this beat if the previous refresh is still in flight
+			if (refreshing.compareAndSet(false, true))
+				ex.execute(this, null);
+			else
+				LogUtility.trace("run", DebugOptions.TTLJOB, getClass(), "Previous session refresh still running"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		public Object run(IProgressMonitor monitor) {
+			try {
+				IEtcdBackend b = backend;
+				if (b == null)
+					return null;
+				long sinceLast = System.currentTimeMillis() - lastSessionRefresh;
+				EtcdResponse response = b.refreshSession(getSessionKey(), this.ttl);
+				if (response.isError()) {
+					LogUtility.logWarning("SessionRefresh.run", DebugOptions.TTLJOB, getClass(), //$NON-NLS-1$
+							"Could not refresh session=" + getSessionKey() + ": " //$NON-NLS-1$ //$NON-NLS-2$
+									+ response.getErrorResponse().getMessage() + ", creating it again"); //$NON-NLS-1$
+					createSession(b);
+					return null;
 				}
+				lastSessionRefresh = System.currentTimeMillis();
+				checkRefreshMargin(sinceLast);
+			} catch (EtcdException e) {
+				logEtcdError("SessionRefresh.run", "Exception sending ttl update", e); //$NON-NLS-1$//$NON-NLS-2$
+			} finally {
+				refreshing.set(false);
 			}
+			return null;
+		}
+
+		/**
+		 * The session (v2 directory or v3 lease) expired or was removed: create
+		 * it again, so that services registered from now on are kept alive.
+		 * Services set in the expired session were removed with it.
+		 */
+		private void createSession(IEtcdBackend b) throws EtcdException {
+			EtcdResponse response = b.createSession(getSessionKey(), this.ttl);
+			if (response.isError()) {
+				logEtcdError("SessionRefresh.run", "Could not create session=" + getSessionKey(), //$NON-NLS-1$ //$NON-NLS-2$
+						new EtcdException("Error response", response.getErrorResponse())); //$NON-NLS-1$
+				return;
+			}
+			lastSessionRefresh = System.currentTimeMillis();
+			LogUtility.logWarning("SessionRefresh.run", DebugOptions.TTLJOB, getClass(), //$NON-NLS-1$
+					"Created session=" + getSessionKey() + " again"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		/**
+		 * Warn when a refresh was sent so late that the session (nearly)
+		 * expired, i.e. used more than 95% of the ttl.
+		 */
+		private void checkRefreshMargin(long sinceLast) {
+			long kttl = this.ttl * 1000L;
+			Heartbeat hb = sessionHeartbeat;
+			String lateness = (hb == null) ? "" : " heartbeat lateness=" + hb.getLastLateness() + "ms"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			if (sinceLast >= kttl)
+				LogUtility.logWarning("SessionRefresh.run", DebugOptions.TTLJOB, getClass(), //$NON-NLS-1$
+						"Session refreshed " + sinceLast + "ms after previous refresh, ttl=" + kttl + "ms exceeded." //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+								+ lateness);
+			else if (sinceLast >= kttl - kttl / 20)
+				LogUtility.logWarning("SessionRefresh.run", DebugOptions.TTLJOB, getClass(), //$NON-NLS-1$
+						"Session refreshed " + sinceLast + "ms after previous refresh, close to ttl=" + kttl + "ms." //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+								+ lateness);
+			else
+				LogUtility.trace("SessionRefresh.run", DebugOptions.TTLJOB, getClass(), //$NON-NLS-1$
+						"Session refreshed after " + sinceLast + "ms." + lateness); //$NON-NLS-1$ //$NON-NLS-2$
 		}
 	}
 
-	private void setNewEtcdIndex(EtcdNode node) {
-		watchIndex = node.getModifiedIndex() + 1;
+	/**
+	 * @return the heartbeat refreshing this container's session, with its
+	 *         lateness, or <code>null</code> if not connected
+	 */
+	public Heartbeat getSessionHeartbeat() {
+		return sessionHeartbeat;
 	}
 
+	/**
+	 * @return time in ms of the last successful session refresh (or of
+	 *         connect)
+	 */
+	public long getLastSessionRefresh() {
+		return lastSessionRefresh;
+	}
+
+	/**
+	 * Watches one directory: the whole discovery directory, or with the type
+	 * layout the directory of one service type.
+	 */
 	public class EtcdWatchJob extends Job {
 
-		public EtcdWatchJob() {
+		private final String directoryKey;
+		private final EtcdRetryBackoff backoff;
+		private EtcdNode topNode;
+		private int watchIndex;
+		// applies the content read on connect while the first watch waits
+		private ForkJoinTask<Integer> bootstrap;
+
+		/**
+		 * @param topNode
+		 *            content of the directory, read at <code>index - 1</code>,
+		 *            or <code>null</code> to read it when the job starts
+		 */
+		public EtcdWatchJob(String directoryKey, EtcdNode topNode, int index) {
 			super("EtcdDiscovery Watch Job"); //$NON-NLS-1$
+			this.directoryKey = directoryKey;
+			this.topNode = topNode;
+			this.watchIndex = index;
+			this.backoff = createWatchBackoff();
+		}
+
+		private void setNewEtcdIndex(EtcdNode node) {
+			watchIndex = node.getModifiedIndex() + 1;
+			services.pruneRemoved(watchIndex - REMOVED_HISTORY);
 		}
 
 		void trace(String methodName, String message) {
@@ -412,24 +984,89 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 		@Override
 		protected IStatus run(IProgressMonitor monitor) {
 			if (topNode != null) {
-				handleAddDirectory(topNode);
+				// services read from the snapshot that were not changed since
+				// are kept without events
+				final Map<EtcdServiceInfoKey, EtcdNode> nodes = new HashMap<EtcdServiceInfoKey, EtcdNode>();
+				collectNodes(topNode, nodes, 0);
 				topNode = null;
+				final int readIndex = watchIndex - 1;
+				ForkJoinPool pool = decodePool;
+				if (pool == null)
+					bootstrap(nodes, readIndex);
+				else
+					// the watch starts from the index of the read meanwhile
+					bootstrap = pool.submit(new Callable<Integer>() {
+						public Integer call() {
+							return Integer.valueOf(bootstrap(nodes, readIndex));
+						}
+					});
+			} else if (watchIndex <= 0 && !readDirectory(monitor))
+				return Status.CANCEL_STATUS;
+			try {
+				return watch(monitor);
+			} finally {
+				awaitBootstrap();
 			}
+		}
+
+		/**
+		 * Apply the content read on connect at the given index.
+		 * 
+		 * @return the number of events fired
+		 */
+		private int bootstrap(Map<EtcdServiceInfoKey, EtcdNode> nodes, int index) {
+			int changes = reconcile(nodes, index);
+			directorySynchronized(directoryKey);
+			return changes;
+		}
+
+		/**
+		 * Wait until the content read on connect has been applied, so that
+		 * changes are applied after it.
+		 */
+		private void awaitBootstrap() {
+			ForkJoinTask<Integer> task = bootstrap;
+			if (task == null)
+				return;
+			bootstrap = null;
+			try {
+				task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				if (!watchDone)
+					logEtcdError("watchJob.run", "Error applying content of directory=" + directoryKey, e.getCause()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+
+		private IStatus watch(IProgressMonitor monitor) {
 			// Now we loop and watch
 			while (!watchDone) {
 				if (monitor.isCanceled())
 					return Status.CANCEL_STATUS;
-				String url = getDirectoryUrl();
+				backoff.attempting();
 				try {
-					EtcdResponse response = new EtcdWatchRequest(url, Integer.toString(watchIndex)).execute();
+					IEtcdBackend b = backend;
+					if (b == null)
+						return Status.CANCEL_STATUS;
+					EtcdResponse response = b.watch(directoryKey, watchIndex);
+					awaitBootstrap();
 					if (monitor.isCanceled())
 						return Status.CANCEL_STATUS;
 					if (etcdTargetID == null || localSessionId == null)
 						return Status.CANCEL_STATUS;
+					if (response == null)
+						// no change within the watch timeout, watch again
+						continue;
 					if (response.isError()) {
-						logEtcdError("watchJobExec", "Etcd error response to watch request", //$NON-NLS-1$ //$NON-NLS-2$
-								new EtcdException("Error response", response.getErrorResponse())); //$NON-NLS-1$
+						if (response.getErrorResponse()
+								.getErrorCode() == EtcdErrorResponse.ERRORCODE_EVENT_INDEX_CLEARED)
+							resync(monitor);
+						else
+							watchFailed(monitor, "Etcd error response to watch request", //$NON-NLS-1$
+									new EtcdException("Error response", response.getErrorResponse())); //$NON-NLS-1$
 					} else {
+						watchSucceeded();
 						EtcdSuccessResponse success = response.getSuccessResponse();
 						String action = success.getAction();
 						EtcdNode node = success.getNode();
@@ -438,34 +1075,313 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 									new EtcdException("node cannot be null")); //$NON-NLS-1$
 							continue;
 						}
+						metrics.watchEvent(action, success.getEtcdIndex(), node.getModifiedIndex());
 						String fullKey = node.getKey();
 						String noPrefix = removeKeyPrefix(fullKey);
 						if (action.equals(EtcdProtocol.ACTION_DELETE) && fullKey.endsWith(localSessionId)) {
 							watchDone = true;
 							continue;
-						} else if (fullKey.endsWith(localSessionId) || noPrefix.startsWith(localSessionId)) {
+						} else if (fullKey.endsWith(localSessionId) || noPrefix.startsWith(localSessionId)
+								|| noPrefix.contains("/" + localSessionId)) { //$NON-NLS-1$
 							setNewEtcdIndex(node);
 							continue;
 						} else {
-							handleEtcdWatchResponse(action, node);
+							handleEtcdWatchResponse(action, node, success.getPreviousNode());
 							setNewEtcdIndex(node);
 						}
 					}
 				} catch (Exception e) {
-					logEtcdError("watchJob.run", "Unexpected exception in watch job", e); //$NON-NLS-1$ //$NON-NLS-2$
+					// e.g. the watch request was aborted by disconnect
+					if (watchDone || monitor.isCanceled())
+						return Status.CANCEL_STATUS;
+					watchFailed(monitor, "Unexpected exception in watch job", e); //$NON-NLS-1$
 				}
 			}
 			return Status.OK_STATUS;
 		}
+
+		/**
+		 * Read the watched directory before the first watch, retrying until
+		 * it succeeds.
+		 * 
+		 * @return <code>false</code> if the job was canceled meanwhile
+		 */
+		private boolean readDirectory(IProgressMonitor monitor) {
+			while (!watchDone && !monitor.isCanceled()) {
+				try {
+					if (sync(monitor, 0, serializableReads) >= 0) {
+						directorySynchronized(directoryKey);
+						return true;
+					}
+				} catch (Exception e) {
+					if (watchDone)
+						return false;
+					watchFailed(monitor, "Unexpected exception reading directory=" + directoryKey, e); //$NON-NLS-1$
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Called when etcd no longer has the events since the watch index.
+		 * Reads the whole watched directory, and compares it with the
+		 * registry by key and modified index: only services that were added,
+		 * changed or removed in the meantime fire events. The watch then
+		 * continues from the index the directory was read at.
+		 */
+		private void resync(IProgressMonitor monitor) throws EtcdException {
+			long start = System.currentTimeMillis();
+			int clearedIndex = watchIndex;
+			int changes = sync(monitor, clearedIndex - 1, serializableResyncReads);
+			if (changes < 0)
+				return;
+			long duration = System.currentTimeMillis() - start;
+			resyncCount.incrementAndGet();
+			lastResyncDuration = duration;
+			totalResyncDuration.addAndGet(duration);
+			LogUtility.logInfo("watchJob.run", DebugOptions.WATCHJOB, getClass(), //$NON-NLS-1$
+					"Watch index=" + clearedIndex + " of directory=" + directoryKey + " cleared by etcd, resynced with " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+							+ changes + " changes in " + duration + "ms, watching from index=" + watchIndex); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		/**
+		 * Read the watched directory, make the registry match it and continue
+		 * the watch from the index it was read at.
+		 * 
+		 * @param index
+		 *            index the read must have seen. A serializable read from a
+		 *            member that is behind it is repeated linearizable.
+		 * @return the number of events fired, or -1 if the directory could not
+		 *         be read
+		 */
+		private int sync(IProgressMonitor monitor, int index, boolean serializable) throws EtcdException {
+			EtcdResponse response = backend.getDirectory(directoryKey, serializable);
+			if (response.isError()) {
+				watchFailed(monitor, "Etcd error response to read of directory=" + directoryKey, //$NON-NLS-1$
+						new EtcdException("Error response", response.getErrorResponse())); //$NON-NLS-1$
+				return -1;
+			}
+			watchSucceeded();
+			EtcdSuccessResponse success = response.getSuccessResponse();
+			if (serializable && success.getEtcdIndex() > 0 && success.getEtcdIndex() < index) {
+				trace("sync", "serializable read of directory=" + directoryKey + " at index=" + success.getEtcdIndex() //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+						+ " is behind index=" + index + ", reading linearizable"); //$NON-NLS-1$ //$NON-NLS-2$
+				return sync(monitor, index, false);
+			}
+			Map<EtcdServiceInfoKey, EtcdNode> nodes = new HashMap<EtcdServiceInfoKey, EtcdNode>();
+			int maxIndex = collectNodes(success.getNode(), nodes, index);
+			int etcdIndex = success.getEtcdIndex();
+			int readIndex = (etcdIndex > 0) ? etcdIndex : maxIndex;
+			int changes = reconcile(nodes, readIndex);
+			watchIndex = readIndex + 1;
+			services.pruneRemoved(watchIndex - REMOVED_HISTORY);
+			return changes;
+		}
+
+		/**
+		 * Make the registry match the given service nodes, read from the
+		 * watched directory. Services that have the same modified index are
+		 * not read again, the others are decoded in parallel and their events
+		 * fired in key order. Services missing from the read are removed as of
+		 * the given index, unless they changed after it.
+		 * 
+		 * @param index
+		 *            index the directory was read at
+		 * @return the number of events fired
+		 */
+		private int reconcile(Map<EtcdServiceInfoKey, EtcdNode> nodes, int index) {
+			List<EtcdServiceEvent> events = new ArrayList<EtcdServiceEvent>();
+			Set<IServiceTypeID> newTypes = new LinkedHashSet<IServiceTypeID>();
+			List<EtcdNode> changed = new ArrayList<EtcdNode>();
+			for (Map.Entry<EtcdServiceInfoKey, EtcdNode> entry : nodes.entrySet()) {
+				EtcdNode node = entry.getValue();
+				if (services.getModifiedIndex(entry.getKey()) != node.getModifiedIndex())
+					changed.add(node);
+			}
+			addNodes(changed, events, newTypes);
+			ID localID = getConfig().getID();
+			for (EtcdServiceInfoKey key : services.getKeys()) {
+				// services of this session are known from the set responses
+				if (nodes.containsKey(key) || localSessionId.equals(key.getSessionId())
+						|| !createFullKey(key).startsWith(directoryKey))
+					continue;
+				EtcdServiceInfo si = services.remove(key, index);
+				if (si != null) {
+					persist(key, index, null);
+					events.add(new EtcdServiceEvent(EtcdServiceEvent.REMOVED, key.getFullKey(), si, null, localID));
+				}
+			}
+			fireChanges(events, newTypes);
+			return events.size();
+		}
+
+		/**
+		 * Collect the service nodes below the given directory node, except
+		 * those of this session.
+		 * 
+		 * @return the highest modified index seen, at least <code>index</code>
+		 */
+		private int collectNodes(EtcdNode node, Map<EtcdServiceInfoKey, EtcdNode> nodes, int index) {
+			if (node == null)
+				return index;
+			index = Math.max(index, node.getModifiedIndex());
+			if (node.isDirectory()) {
+				EtcdNode[] entryNodes = node.getNodes();
+				if (entryNodes != null)
+					for (EtcdNode en : entryNodes)
+						index = collectNodes(en, nodes, index);
+			} else {
+				EtcdServiceInfoKey key = parseServiceInfoKey(node.getKey());
+				if (key != null && !localSessionId.equals(key.getSessionId()))
+					nodes.put(key, node);
+			}
+			return index;
+		}
+
+		private void watchSucceeded() {
+			int failures = backoff.getConsecutiveFailures();
+			backoff.succeeded(System.currentTimeMillis());
+			if (failures > 0)
+				LogUtility.logInfo("watchJob.run", DebugOptions.WATCHJOB, getClass(), //$NON-NLS-1$
+						"Watch recovered after " + failures + " failures"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		/**
+		 * Record a failed watch and wait before the next attempt. Only the first
+		 * failure and the opening of the circuit are logged, further failures
+		 * are traced.
+		 */
+		private void watchFailed(IProgressMonitor monitor, String message, Throwable t) {
+			boolean wasOpen = backoff.isOpen();
+			long delay = backoff.failed(System.currentTimeMillis());
+			int failures = backoff.getConsecutiveFailures();
+			if (failures == 1)
+				logEtcdError("watchJob.run", message + ", retrying in " + delay + "ms", t); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			else if (!wasOpen && backoff.isOpen())
+				LogUtility.logWarning("watchJob.run", DebugOptions.WATCHJOB, getClass(), //$NON-NLS-1$
+						"Watch failed " + failures + " times in a row, retrying every " //$NON-NLS-1$ //$NON-NLS-2$
+								+ getEtcdConfig().getWatchMaxRetryDelay() + "ms. Last error: " + t); //$NON-NLS-1$
+			else
+				LogUtility.trace("watchJob.run", DebugOptions.WATCHJOB, getClass(), //$NON-NLS-1$
+						message + " failures=" + failures + " delay=" + delay + " error=" + t); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			sleep(monitor, delay);
+		}
+
+		private void sleep(IProgressMonitor monitor, long delay) {
+			long end = System.currentTimeMillis() + delay;
+			long remaining;
+			while ((remaining = end - System.currentTimeMillis()) > 0) {
+				if (monitor.isCanceled() || watchDone)
+					return;
+				try {
+					Thread.sleep(Math.min(remaining, 100));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private EtcdRetryBackoff createWatchBackoff() {
+		EtcdDiscoveryContainerConfig config = getEtcdConfig();
+		EtcdRetryBackoff backoff = new EtcdRetryBackoff(config.getWatchRetryDelay(), config.getWatchMaxRetryDelay(),
+				config.getWatchFailureThreshold());
+		synchronized (watchBackoffs) {
+			watchBackoffs.add(backoff);
+		}
+		return backoff;
+	}
+
+	/**
+	 * @return backoff and circuit breaker state of the watch loops, combined
+	 *         over all watch jobs since connect (see
+	 *         {@link EtcdRetryBackoff#combine(Collection, long)}), or
+	 *         <code>null</code> if never connected
+	 */
+	public EtcdRetryBackoff getWatchBackoff() {
+		synchronized (watchBackoffs) {
+			if (!watchBackoffsCreated)
+				return null;
+			return EtcdRetryBackoff.combine(watchBackoffs, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @return number of times the watch index fell out of etcd's event
+	 *         history and the services were resynced from a full read
+	 */
+	public long getResyncCount() {
+		return resyncCount.get();
+	}
+
+	/**
+	 * @return duration in ms of the last resync, or 0 if there was none
+	 */
+	public long getLastResyncDuration() {
+		return lastResyncDuration;
+	}
+
+	/**
+	 * @return total duration in ms of all resyncs
+	 */
+	public long getTotalResyncDuration() {
+		return totalResyncDuration.get();
+	}
+
+	/**
+	 * Create the transport for this connection. If cluster members are
+	 * configured, requests are spread over the target and these members.
+	 */
+	private IEtcdTransport createTransport(EtcdDiscoveryContainerConfig config) throws ContainerConnectException {
+		boolean urlConnection = EtcdProtocol.TRANSPORT_URLCONNECTION.equals(EtcdProtocol.TRANSPORT);
+		List<URL> members = config.getMembers();
+		if (members.isEmpty())
+			return createTransport(config, urlConnection);
+		List<URL> endpoints = new ArrayList<URL>();
+		URI location = this.etcdTargetID.getLocation();
+		try {
+			endpoints.add(new URL(location.getScheme(), location.getHost(), location.getPort(), "")); //$NON-NLS-1$
+		} catch (MalformedURLException e) {
+			throw new ContainerConnectException("Invalid etcd target location=" + location, e); //$NON-NLS-1$
+		}
+		endpoints.addAll(members);
+		EtcdClusterTransport result = new EtcdClusterTransport(createTransport(config, urlConnection), endpoints);
+		trace("createTransport", "etcd cluster members=" + result.getMembers()); //$NON-NLS-1$ //$NON-NLS-2$
+		return result;
+	}
+
+	/**
+	 * Create a transport that records the latencies of this container's
+	 * requests.
+	 */
+	private IEtcdTransport createTransport(EtcdDiscoveryContainerConfig config, boolean urlConnection) {
+		return urlConnection ? new EtcdURLConnectionTransport(requestLatencies)
+				: new EtcdPooledTransport(config.getMaxConnections(), EtcdPooledTransport.KEEPALIVE_TIMEOUT,
+						requestLatencies);
+	}
+
+	/**
+	 * Create the backend for the configured etcd api.
+	 */
+	private IEtcdBackend createBackend(EtcdDiscoveryContainerConfig config) {
+		URI location = this.etcdTargetID.getLocation();
+		if (EtcdDiscoveryContainerConfig.ETCD_API_V3.equals(config.getApi()))
+			return new EtcdV3Backend(location.getScheme() + "://" + location.getRawAuthority() + config.getV3Path(), //$NON-NLS-1$
+					transport, executor);
+		return new EtcdV2Backend(location.toString(), transport, executor,
+				EtcdDiscoveryContainerConfig.ETCD_WATCHMODE_STREAM.equals(config.getWatchMode()));
 	}
 
 	private EtcdServiceInfoKey parseServiceInfoKey(String fullKey) {
 		fullKey = removeKeyPrefix(fullKey);
-		// Now split into sessionKey/serviceInfoKey
+		// Now split into [parent/]sessionKey/serviceInfoKey
 		int slashIndex = fullKey.lastIndexOf('/');
 		if (slashIndex < 0)
 			return null;
-		String sessionKey = fullKey.substring(0, slashIndex);
+		int sessionIndex = fullKey.lastIndexOf('/', slashIndex - 1) + 1;
+		String parent = fullKey.substring(0, sessionIndex);
+		String sessionKey = fullKey.substring(sessionIndex, slashIndex);
 		String siKey = fullKey.substring(slashIndex + 1);
 		// Check to make sure sessionKey has UUID syntax
 		try {
@@ -478,7 +1394,7 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 		} catch (IllegalArgumentException e) {
 			return null;
 		}
-		return new EtcdServiceInfoKey(sessionKey, siKey);
+		return new EtcdServiceInfoKey(parent, sessionKey, siKey);
 	}
 
 	IStatus createErrorStatus(String message) {
@@ -493,81 +1409,298 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 		trace("handleRemoveNode", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
 		EtcdServiceInfoKey key = parseServiceInfoKey(node.getKey());
 		if (key != null) {
-			EtcdServiceInfo si = null;
-			synchronized (services) {
-				si = services.remove(key);
+			// a late delete does not remove a service set again since
+			EtcdServiceInfo si = services.remove(key, node.getModifiedIndex());
+			services.publish();
+			if (si != null) {
+				persist(key, node.getModifiedIndex(), null);
+				fireServiceRemoved(key, si);
 			}
-			if (si != null)
-				fireServiceUndiscovered(key.getFullKey(), si);
-
 		} else
 			logEtcdError("handleRemoveNode", "Could not get EtcdServiceInfoKey for node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
 	}
 
-	private void handleRemoveSession(String sessionKey) {
+	/**
+	 * @param modifiedIndex
+	 *            etcd index of the removal of the session directory, or 0 if
+	 *            not known
+	 */
+	private void handleRemoveSession(String sessionKey, int modifiedIndex) {
 		if (sessionKey != null) {
-			Map<EtcdServiceInfoKey, EtcdServiceInfo> removed = new HashMap<EtcdServiceInfoKey, EtcdServiceInfo>();
-			synchronized (services) {
-				for (Iterator<EtcdServiceInfoKey> it = services.keySet().iterator(); it.hasNext();) {
-					EtcdServiceInfoKey key = it.next();
-					if (key.matchSessionId(sessionKey)) {
-						EtcdServiceInfo esi = services.get(key);
-						if (esi != null)
-							removed.put(key, esi);
-						it.remove();
-					}
-				}
+			Map<EtcdServiceInfoKey, EtcdServiceInfo> removed = services.removeSession(sessionKey, modifiedIndex);
+			services.publish();
+			for (EtcdServiceInfoKey key : removed.keySet()) {
+				persist(key, modifiedIndex, null);
+				fireServiceRemoved(key, removed.get(key));
 			}
-			for (EtcdServiceInfoKey key : removed.keySet())
-				fireServiceUndiscovered(key.getFullKey(), removed.get(key));
 		} else
 			logEtcdError("handleRemoveDirectory", "Could not remove sessionKey=" + sessionKey); //$NON-NLS-1$ //$NON-NLS-2$
 	}
 
 	private void handleRemoveDirectory(EtcdNode node) {
 		trace("handleRemoveDirectory", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
-		handleRemoveSession(removeKeyPrefix(node.getKey()));
+		String directory = removeKeyPrefix(node.getKey());
+		if (directory.endsWith("/")) //$NON-NLS-1$
+			directory = directory.substring(0, directory.length() - 1);
+		int slashIndex = directory.lastIndexOf('/');
+		if (slashIndex < 0) {
+			handleRemoveSession(directory, node.getModifiedIndex());
+			return;
+		}
+		// session directory below a type directory: only its services go
+		String parent = directory.substring(0, slashIndex + 1);
+		String sessionId = directory.substring(slashIndex + 1);
+		List<EtcdServiceEvent> events = new ArrayList<EtcdServiceEvent>();
+		ID localID = getConfig().getID();
+		for (EtcdServiceInfoKey key : services.getKeys())
+			if (sessionId.equals(key.getSessionId()) && parent.equals(key.getParent())) {
+				EtcdServiceInfo si = services.remove(key, node.getModifiedIndex());
+				if (si != null) {
+					persist(key, node.getModifiedIndex(), null);
+					events.add(new EtcdServiceEvent(EtcdServiceEvent.REMOVED, key.getFullKey(), si, null, localID));
+				}
+			}
+		fireChanges(events, Collections.<IServiceTypeID> emptySet());
 	}
 
-	private void handleAddNode(EtcdNode node) {
+	private void handleAddNode(EtcdNode node, EtcdNode prevNode) {
 		trace("handleAddNode", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
+		List<EtcdServiceEvent> events = new ArrayList<EtcdServiceEvent>(2);
+		Set<IServiceTypeID> newTypes = new LinkedHashSet<IServiceTypeID>(1);
+		addNode(node, prevNode, events, newTypes);
+		fireChanges(events, newTypes);
+	}
+
+	private void handleAddDirectory(EtcdNode node) {
+		trace("handleAddDirectory", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
+		List<EtcdServiceEvent> events = new ArrayList<EtcdServiceEvent>();
+		Set<IServiceTypeID> newTypes = new LinkedHashSet<IServiceTypeID>();
+		List<EtcdNode> nodes = new ArrayList<EtcdNode>();
+		collectValues(node, nodes);
+		addNodes(nodes, events, newTypes);
+		fireChanges(events, newTypes);
+	}
+
+	/**
+	 * Publish the changes made to the registry and then notify listeners, so
+	 * that listeners querying the container see the changed services. Service
+	 * types are only announced the first time a service of the type is seen.
+	 */
+	private void fireChanges(List<EtcdServiceEvent> events, Set<IServiceTypeID> newTypes) {
+		services.publish();
+		for (IServiceTypeID type : newTypes)
+			fireServiceTypeDiscovered(type);
+		for (EtcdServiceEvent event : events)
+			fireServiceEvent(event);
+	}
+
+	/**
+	 * Read the service of the given node, unless its value is the one already
+	 * stored for the key.
+	 *
+	 * @param prevNode
+	 *            the node replaced by this change, or <code>null</code>
+	 */
+	private void addNode(EtcdNode node, EtcdNode prevNode, List<EtcdServiceEvent> events,
+			Set<IServiceTypeID> newTypes) {
 		EtcdServiceInfoKey siKey = parseServiceInfoKey(node.getKey());
 		if (siKey != null) {
-			EtcdServiceInfo si = null;
-			try {
-				si = EtcdServiceInfo.deserializeFromString(node.getValue());
-				synchronized (services) {
-					services.put(siKey, si);
-				}
-				fireServiceTypeDiscovered(si.getServiceID().getServiceTypeID());
-				fireServiceDiscovered(siKey.getFullKey(), si);
-			} catch (JSONException e) {
-				logEtcdError("handleEtcdServiceInfoAdd", "Error deserializing nodeValue for node=" + node, //$NON-NLS-1$ //$NON-NLS-2$
-						new EtcdException(e));
-			}
+			long previousFingerprint = (prevNode == null || prevNode.isDirectory()) ? EtcdServiceRegistry.NO_FINGERPRINT
+					: EtcdServiceRegistry.fingerprint(prevNode.getValue());
+			if (addValue(siKey, node.getValue(), node.getModifiedIndex(), previousFingerprint, events, newTypes))
+				persist(siKey, node.getModifiedIndex(), node.getValue());
 		} else
 			logEtcdError("handleAddNode", "Could not get key "); //$NON-NLS-1$ //$NON-NLS-2$
 	}
 
-	private void handleAddDirectory(EtcdNode node) {
-		trace("handleAddDirectory", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
+	/**
+	 * @return <code>true</code> if the service was added or changed
+	 */
+	private boolean addValue(EtcdServiceInfoKey siKey, String value, int modifiedIndex, long previousFingerprint,
+			List<EtcdServiceEvent> events, Set<IServiceTypeID> newTypes) {
+		if (services.isStale(siKey, modifiedIndex)) {
+			trace("addNode", "stale change index=" + modifiedIndex + " for key=" + siKey.getFullKey()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			return false;
+		}
+		long fingerprint = EtcdServiceRegistry.fingerprint(value);
+		if (services.isUnchanged(siKey, fingerprint, previousFingerprint, modifiedIndex)) {
+			trace("addNode", "unchanged value for key=" + siKey.getFullKey()); //$NON-NLS-1$ //$NON-NLS-2$
+			return false;
+		}
+		try {
+			return putService(siKey, EtcdServiceInfo.deserialize(value), modifiedIndex, fingerprint, events, newTypes);
+		} catch (JSONException e) {
+			logEtcdError("handleEtcdServiceInfoAdd", "Error deserializing value for key=" + siKey.getFullKey(), //$NON-NLS-1$ //$NON-NLS-2$
+					new EtcdException(e));
+			return false;
+		}
+	}
+
+	/**
+	 * Read the snapshot file of the last run, if configured, and add its
+	 * services. They are reconciled with etcd when the watch job starts.
+	 */
+	private void openSnapshot(EtcdDiscoveryContainerConfig config) {
+		String file = config.getSnapshotFile();
+		if (file == null || snapshot != null)
+			return;
+		EtcdDiscoverySnapshot s = new EtcdDiscoverySnapshot(new File(file), this.keyPrefix);
+		try {
+			Map<String, EtcdDiscoverySnapshot.Entry> stored = s.load();
+			List<EtcdServiceEvent> events = new ArrayList<EtcdServiceEvent>();
+			Set<IServiceTypeID> newTypes = new LinkedHashSet<IServiceTypeID>();
+			for (Map.Entry<String, EtcdDiscoverySnapshot.Entry> entry : stored.entrySet()) {
+				EtcdServiceInfoKey siKey = parseServiceInfoKey(this.keyPrefix + entry.getKey());
+				if (siKey != null && !localSessionId.equals(siKey.getSessionId()))
+					addValue(siKey, entry.getValue().getValue(), entry.getValue().getIndex(),
+							EtcdServiceRegistry.NO_FINGERPRINT, events, newTypes);
+			}
+			snapshot = s;
+			trace("openSnapshot", "snapshot=" + s); //$NON-NLS-1$ //$NON-NLS-2$
+			fireChanges(events, newTypes);
+		} catch (IOException e) {
+			logEtcdError("openSnapshot", "Could not read discovery snapshot=" + file, e); //$NON-NLS-1$ //$NON-NLS-2$
+			s.close();
+		}
+	}
+
+	/**
+	 * Record an added or changed (value not <code>null</code>) or removed
+	 * service of another session in the snapshot file, under its key relative
+	 * to the discovery directory, so that its parent is known when read.
+	 */
+	private void persist(EtcdServiceInfoKey key, int modifiedIndex, String value) {
+		EtcdDiscoverySnapshot s = snapshot;
+		String sessionId = localSessionId;
+		if (s == null || sessionId == null || sessionId.equals(key.getSessionId()))
+			return;
+		String path = key.getParent() + key.getFullKey();
+		synchronized (s) {
+			try {
+				if (value == null)
+					s.remove(path, modifiedIndex);
+				else
+					s.put(path, modifiedIndex, value);
+			} catch (IOException e) {
+				logEtcdError("persist", "Error writing discovery snapshot=" + s + ", no longer updating it", e); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				snapshot = null;
+				s.close();
+			}
+		}
+	}
+
+	private void closeSnapshot() {
+		EtcdDiscoverySnapshot s = snapshot;
+		if (s != null) {
+			snapshot = null;
+			synchronized (s) {
+				s.close();
+			}
+		}
+	}
+
+	/**
+	 * Store a service and record whether it was added or modified. A change
+	 * older than the stored service or the removal of its key is ignored.
+	 *
+	 * @return <code>false</code> if the change was stale
+	 */
+	private boolean putService(EtcdServiceInfoKey siKey, EtcdServiceInfo si, int modifiedIndex, long fingerprint,
+			List<EtcdServiceEvent> events, Set<IServiceTypeID> newTypes) {
+		IServiceTypeID type = si.getServiceID().getServiceTypeID();
+		boolean newType = !services.hasServiceType(type);
+		EtcdServiceInfo previous = services.put(siKey, siKey.getSessionId(), si, modifiedIndex, fingerprint);
+		if (previous == si) {
+			trace("putService", "ignored stale change index=" + modifiedIndex + " for key=" + siKey.getFullKey()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			return false;
+		}
+		if (newType)
+			newTypes.add(type);
+		ID localID = getConfig().getID();
+		String key = siKey.getFullKey();
+		if (previous == null)
+			events.add(new EtcdServiceEvent(EtcdServiceEvent.ADDED, key, si, null, localID));
+		else if (previous.getServiceID().equals(si.getServiceID()))
+			events.add(new EtcdServiceEvent(EtcdServiceEvent.MODIFIED, key, si, previous, localID));
+		else {
+			events.add(new EtcdServiceEvent(EtcdServiceEvent.REMOVED, key, previous, null, localID));
+			events.add(new EtcdServiceEvent(EtcdServiceEvent.ADDED, key, si, null, localID));
+		}
+		return true;
+	}
+
+	private static final Comparator<EtcdNode> KEY_ORDER = new Comparator<EtcdNode>() {
+		public int compare(EtcdNode n1, EtcdNode n2) {
+			return n1.getKey().compareTo(n2.getKey());
+		}
+	};
+
+	/**
+	 * Add the services of the given nodes in key order, like
+	 * {@link #addNode(EtcdNode, EtcdNode, List, Set)} but decoding the values
+	 * that changed on the decode pool.
+	 */
+	private void addNodes(List<EtcdNode> nodes, List<EtcdServiceEvent> events, Set<IServiceTypeID> newTypes) {
+		Collections.sort(nodes, KEY_ORDER);
+		List<EtcdServiceInfoKey> keys = new ArrayList<EtcdServiceInfoKey>(nodes.size());
+		List<EtcdNode> decoded = new ArrayList<EtcdNode>(nodes.size());
+		long[] fingerprints = new long[nodes.size()];
+		for (EtcdNode node : nodes) {
+			EtcdServiceInfoKey siKey = parseServiceInfoKey(node.getKey());
+			if (siKey == null) {
+				logEtcdError("handleAddNode", "Could not get key "); //$NON-NLS-1$ //$NON-NLS-2$
+				continue;
+			}
+			// stale values are not decoded
+			if (services.isStale(siKey, node.getModifiedIndex()))
+				continue;
+			long fingerprint = EtcdServiceRegistry.fingerprint(node.getValue());
+			if (services.isUnchanged(siKey, fingerprint, EtcdServiceRegistry.NO_FINGERPRINT, node.getModifiedIndex())) {
+				trace("addNode", "unchanged value for key=" + siKey.getFullKey()); //$NON-NLS-1$ //$NON-NLS-2$
+				continue;
+			}
+			fingerprints[keys.size()] = fingerprint;
+			keys.add(siKey);
+			decoded.add(node);
+		}
+		int count = keys.size();
+		String[] values = new String[count];
+		for (int i = 0; i < count; i++)
+			values[i] = decoded.get(i).getValue();
+		EtcdServiceInfo[] infos = new EtcdServiceInfo[count];
+		JSONException[] errors = new JSONException[count];
+		EtcdServiceInfoDecoder.decode(decodePool, values, infos, errors);
+		for (int i = 0; i < count; i++) {
+			EtcdServiceInfoKey siKey = keys.get(i);
+			EtcdNode node = decoded.get(i);
+			if (infos[i] == null) {
+				logEtcdError("handleEtcdServiceInfoAdd", "Error deserializing value for key=" + siKey.getFullKey(), //$NON-NLS-1$ //$NON-NLS-2$
+						new EtcdException(errors[i]));
+				continue;
+			}
+			if (putService(siKey, infos[i], node.getModifiedIndex(), fingerprints[i], events, newTypes))
+				persist(siKey, node.getModifiedIndex(), values[i]);
+		}
+	}
+
+	private void collectValues(EtcdNode node, List<EtcdNode> values) {
 		EtcdNode[] entryNodes = node.getNodes();
 		if (entryNodes != null)
 			for (EtcdNode en : entryNodes)
 				if (en.isDirectory())
-					handleAddDirectory(en);
+					collectValues(en, values);
 				else
-					handleAddNode(en);
+					values.add(en);
 	}
 
 	private void handleCreateAction(EtcdNode node) {
 		trace("handleExpireAction", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
-		handleNodeOrDirectory(node, true);
+		handleNodeOrDirectory(node, null, true);
 	}
 
 	private void handleDeleteAction(EtcdNode node) {
 		trace("handleDeleteAction", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
-		handleNodeOrDirectory(node, false);
+		handleNodeOrDirectory(node, null, false);
 	}
 
 	private void handleExpireAction(EtcdNode node) {
@@ -582,14 +1715,14 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 
 	private void handleGetAction(EtcdNode node) {
 		trace("handleGetAction", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
-		handleNodeOrDirectory(node, true);
+		handleNodeOrDirectory(node, null, true);
 	}
 
 	private void handleKeyAction(EtcdNode node) {
 		trace("handleKeyAction", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
 	}
 
-	private void handleNodeOrDirectory(EtcdNode node, boolean add) {
+	private void handleNodeOrDirectory(EtcdNode node, EtcdNode prevNode, boolean add) {
 		if (node.isDirectory()) {
 			if (add)
 				handleAddDirectory(node);
@@ -597,15 +1730,18 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 				handleRemoveDirectory(node);
 		} else {
 			if (add)
-				handleAddNode(node);
+				handleAddNode(node, prevNode);
 			else
 				handleRemoveNode(node);
 		}
 	}
 
-	private void handleSetAction(EtcdNode node) {
+	/**
+	 * Handles set, update and compareAndSwap.
+	 */
+	private void handleSetAction(EtcdNode node, EtcdNode prevNode) {
 		trace("handleSetAction", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
-		handleNodeOrDirectory(node, true);
+		handleNodeOrDirectory(node, prevNode, true);
 	}
 
 	private void handleUnexpectedAction(String action, EtcdNode node) {
@@ -613,12 +1749,12 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 		// //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 	}
 
-	private void handleEtcdWatchResponse(String action, EtcdNode node) {
+	private void handleEtcdWatchResponse(String action, EtcdNode node, EtcdNode prevNode) {
 		// trace("handleEtcdWatchResponse", "action=" + action + ",node=" + node);
 		// //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 		if (action.equals(EtcdProtocol.ACTION_CREATE))
 			handleCreateAction(node);
-		else if (action.equals(EtcdProtocol.ACTION_DELETE))
+		else if (action.equals(EtcdProtocol.ACTION_DELETE) || action.equals(EtcdProtocol.ACTION_COMPARE_AND_DELETE))
 			handleDeleteAction(node);
 		else if (action.equals(EtcdProtocol.ACTION_EXPIRE))
 			handleExpireAction(node);
@@ -626,25 +1762,98 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 			handleGetAction(node);
 		else if (action.equals(EtcdProtocol.ACTION_KEY))
 			handleKeyAction(node);
-		else if (action.equals(EtcdProtocol.ACTION_SET))
-			handleSetAction(node);
+		else if (action.equals(EtcdProtocol.ACTION_SET) || action.equals(EtcdProtocol.ACTION_UPDATE)
+				|| action.equals(EtcdProtocol.ACTION_COMPARE_AND_SWAP))
+			handleSetAction(node, prevNode);
 		else
 			handleUnexpectedAction(action, node);
 	}
 
 	
-	private void fireServiceUndiscovered(String key, IServiceInfo iinfo) {
-		trace("fireServiceUndiscovered", "key=" + key + ",serviceInfo=" + iinfo); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-		fireServiceUndiscovered(new ServiceContainerEvent(iinfo, getConfig().getID()));
+	private void fireServiceRemoved(EtcdServiceInfoKey key, IServiceInfo iinfo) {
+		fireServiceEvent(new EtcdServiceEvent(EtcdServiceEvent.REMOVED, key.getFullKey(), iinfo, null,
+				getConfig().getID()));
+	}
+
+	/**
+	 * Deliver added and modified services as discovered, removed services as
+	 * undiscovered.
+	 */
+	private void fireServiceEvent(EtcdServiceEvent event) {
+		trace("fireServiceEvent", "event=" + event); //$NON-NLS-1$ //$NON-NLS-2$
+		boolean removed = event.getKind() == EtcdServiceEvent.REMOVED;
+		EtcdEventDispatcher d = dispatcher;
+		if (d == null) {
+			if (removed)
+				fireServiceUndiscovered(event);
+			else
+				fireServiceDiscovered(event);
+		} else
+			for (IServiceListener listener : getServiceListeners(event.getServiceInfo()))
+				if (listener instanceof IEtcdServiceBatchListener)
+					fireServicesChanged(d, (IEtcdServiceBatchListener) listener, event);
+				else if (removed)
+					d.serviceUndiscovered(listener, event);
+				else
+					d.serviceDiscovered(listener, event);
 	}
 
-	private void fireServiceDiscovered(String key, IServiceInfo iinfo) {
-		trace("fireServiceDiscovered", "key=" + key + ",serviceInfo=" + iinfo); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-		fireServiceDiscovered(new ServiceContainerEvent(iinfo, getConfig().getID()));
+	/**
+	 * Add the event to the next batch of the given listener, unless it did
+	 * not yet receive its initial services, which will include the change.
+	 */
+	private void fireServicesChanged(EtcdEventDispatcher d, IEtcdServiceBatchListener listener,
+			EtcdServiceEvent event) {
+		synchronized (synchronizedListeners) {
+			if (synchronizedListeners.contains(listener))
+				d.servicesChanged(listener, event, coalesceWindow);
+		}
 	}
 
 	private void fireServiceTypeDiscovered(IServiceTypeID serviceTypeID) {
-		fireServiceTypeDiscovered(new ServiceTypeContainerEvent(serviceTypeID, getConfig().getID()));
+		IServiceTypeEvent event = new ServiceTypeContainerEvent(serviceTypeID, getConfig().getID());
+		EtcdEventDispatcher d = dispatcher;
+		if (d == null) {
+			fireServiceTypeDiscovered(event);
+			return;
+		}
+		List<IServiceTypeListener> listeners = new ArrayList<IServiceTypeListener>();
+		synchronized (serviceTypeListeners) {
+			for (Object listener : serviceTypeListeners)
+				listeners.add((IServiceTypeListener) listener);
+		}
+		for (IServiceTypeListener listener : listeners)
+			d.serviceTypeDiscovered(listener, event);
+	}
+
+	private List<IServiceListener> getServiceListeners(IServiceInfo iinfo) {
+		List<IServiceListener> results = new ArrayList<IServiceListener>();
+		for (Object listener : getListeners(iinfo.getServiceID().getServiceTypeID()))
+			results.add((IServiceListener) listener);
+		return results;
+	}
+
+	/**
+	 * @return request, watch, registry and dispatch metrics of this container
+	 */
+	public EtcdDiscoveryMetricsMBean getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return latencies of the requests sent by this container, over all its
+	 *         connections
+	 */
+	public EtcdRequestLatencies getRequestLatencies() {
+		return requestLatencies;
+	}
+
+	/**
+	 * @return the dispatcher delivering events to listeners, with its queue
+	 *         depth and latency metrics, or <code>null</code> if not connected
+	 */
+	public EtcdEventDispatcher getEventDispatcher() {
+		return dispatcher;
 	}
 
 	private void trace(String methodName, String message) {
@@ -659,62 +1868,131 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 		logEtcdError(method, message, null);
 	}
 
-	private void logAndThrowEtcdError(String method, String message, EtcdException e) {
+	private void logAndThrowEtcdError(String method, String message, Throwable e) {
 		logEtcdError(method, message, e);
 		throw new RuntimeException(message, e);
 	}
 
 	public IServiceInfo getServiceInfo(IServiceID aServiceID) {
-		synchronized (services) {
-			for (EtcdServiceInfo info : services.values())
-				if (info.getServiceID().equals(aServiceID))
-					return info;
-		}
-		return null;
+		return services.getService(aServiceID);
 	}
 
+	/**
+	 * Returns a copy of the services of the most recently published snapshot.
+	 * 
+	 * @see #getServiceList()
+	 */
 	public IServiceInfo[] getServices() {
-		return services.values().toArray(new IServiceInfo[services.size()]);
+		return services.getServices().clone();
+	}
+
+	/**
+	 * Returns the services of the most recently published snapshot, without
+	 * locking or copying, e.g. for callers that look up services for every
+	 * request they route.
+	 * 
+	 * @return unmodifiable view of the services. Will not be
+	 *         <code>null</code>.
+	 */
+	public List<IServiceInfo> getServiceList() {
+		return services.getSnapshot().getServiceList();
+	}
+
+	/**
+	 * @return unmodifiable view of the services of the given type in the most
+	 *         recently published snapshot, without copying
+	 * @see #getServiceList()
+	 */
+	public List<IServiceInfo> getServiceList(IServiceTypeID aServiceTypeID) {
+		return services.getSnapshot().getServiceList(aServiceTypeID);
+	}
+
+	/**
+	 * @return unmodifiable view of the service types in the most recently
+	 *         published snapshot, without copying
+	 * @see #getServiceList()
+	 */
+	public List<IServiceTypeID> getServiceTypeList() {
+		return services.getSnapshot().getServiceTypeList();
+	}
+
+	/**
+	 * @return the number of services in the most recently published snapshot
+	 */
+	public int getServiceCount() {
+		return services.getSnapshot().getServiceCount();
+	}
+
+	/**
+	 * @return the number of times the discovered services changed since this
+	 *         container was created. Can be used to detect changes between
+	 *         calls to {@link #getServices()}.
+	 */
+	public long getServicesVersion() {
+		return services.getSnapshot().getVersion();
 	}
 
 	private Collection<EtcdServiceInfo> getLocalServices() {
-		List<EtcdServiceInfo> results = new ArrayList<EtcdServiceInfo>();
-		synchronized (services) {
-			for (EtcdServiceInfoKey key : services.keySet())
-				if (key.matchSessionId(this.localSessionId))
-					results.add(services.get(key));
-		}
-		return results;
+		return services.getSessionServices(this.localSessionId);
 	}
 
+	/**
+	 * Unregister all services of this container. If the etcd api allows, all
+	 * of them are deleted with a single request, otherwise all deletes are
+	 * queued like the set requests of {@link #registerServices(IServiceInfo[])}
+	 * before waiting for any of them. Listeners are notified of each removed
+	 * service.
+	 */
 	@Override
 	public void unregisterAllServices() {
-		synchronized (services) {
-			Collection<EtcdServiceInfo> locallyPublished = getLocalServices();
-			for (EtcdServiceInfo info : locallyPublished)
-				unregisterService(info);
+		Collection<EtcdServiceInfo> locallyPublished = getLocalServices();
+		if (locallyPublished.isEmpty())
+			return;
+		checkConnected();
+		final String sessionId = this.localSessionId;
+		IFuture<Object> all = null;
+		// with the type layout the services are not in the session directory
+		if (!typeLayout)
+			all = backend.deleteSessionServices(getSessionKey(), new IEtcdResponseHandler<Object>() {
+				public Object handleResponse(EtcdResponse response) {
+					if (response.isError())
+						logEtcdError("unregisterAllServices", "Etcd session delete request failed", //$NON-NLS-1$ //$NON-NLS-2$
+								new EtcdException(response.getErrorResponse().getMessage()));
+					// removed locally regardless, as for a single unregister
+					handleRemoveSession(sessionId, getDeleteIndex(response));
+					return null;
+				}
+			});
+		if (all != null) {
+			waitForResult("unregisterAllServices", all); //$NON-NLS-1$
+			return;
 		}
+		// issue all deletes before waiting for any of them
+		List<IFuture<IServiceInfo>> futures = new ArrayList<IFuture<IServiceInfo>>();
+		for (EtcdServiceInfo info : locallyPublished)
+			futures.add(unregisterServiceAsync(info));
+		for (IFuture<IServiceInfo> future : futures)
+			waitForResult("unregisterAllServices", future); //$NON-NLS-1$
 	}
 
+	/**
+	 * Returns a copy of the services of the given type in the most recently
+	 * published snapshot.
+	 * 
+	 * @see #getServiceList(IServiceTypeID)
+	 */
 	public IServiceInfo[] getServices(IServiceTypeID aServiceTypeID) {
-		List<IServiceInfo> results = new ArrayList<IServiceInfo>();
-		synchronized (services) {
-			for (EtcdServiceInfo info : services.values()) {
-				IServiceTypeID stid = info.getServiceID().getServiceTypeID();
-				if (stid.equals(aServiceTypeID))
-					results.add(info);
-			}
-		}
-		return results.toArray(new IServiceInfo[results.size()]);
+		return services.getServices(aServiceTypeID).clone();
 	}
 
+	/**
+	 * Returns a copy of the service types in the most recently published
+	 * snapshot.
+	 * 
+	 * @see #getServiceTypeList()
+	 */
 	public IServiceTypeID[] getServiceTypes() {
-		Set<IServiceTypeID> results = new HashSet<IServiceTypeID>();
-		synchronized (services) {
-			for (EtcdServiceInfo info : services.values())
-				results.add(info.getServiceID().getServiceTypeID());
-		}
-		return results.toArray(new IServiceTypeID[results.size()]);
+		return services.getServiceTypes().clone();
 	}
 
 	private int convertLongTTLToIntTTL(long ttl) {
@@ -722,14 +2000,7 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 	}
 
 	private EtcdServiceInfoKey findEtcdServiceInfoKey(IServiceID serviceID, boolean matchSessionId) {
-		synchronized (services) {
-			for (EtcdServiceInfoKey key : services.keySet()) {
-				EtcdServiceInfo info = services.get(key);
-				if (info.getServiceID().equals(serviceID) && key.matchSessionId(this.localSessionId))
-					return key;
-			}
-		}
-		return null;
+		return services.findKey(serviceID, this.localSessionId);
 	}
 
 	private String verifySlash(String prefix) {
@@ -11,12 +11,15 @@ package org.eclipse.ecf.provider.etcd;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import org.eclipse.ecf.core.identity.IDFactory;
 import org.eclipse.ecf.discovery.DiscoveryContainerConfig;
 import org.eclipse.ecf.discovery.identity.IServiceTypeID;
 import org.eclipse.ecf.discovery.identity.ServiceIDFactory;
+import org.eclipse.ecf.internal.provider.etcd.EtcdEventDispatcher;
 import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
 import org.eclipse.ecf.provider.etcd.identity.EtcdServiceID;
 
@@ -66,11 +69,110 @@ public class EtcdDiscoveryContainerConfig extends DiscoveryContainerConfig {
 	public static final String ETCD_STARTDELAY_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".startDelay"; //$NON-NLS-1$
 	public static final int ETCD_STARTDELAY_DEFAULT = Integer.getInteger(ETCD_STARTDELAY_PROP, 5000);
 	
+	public static final String ETCD_MAXCONNECTIONS_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".maxConnections"; //$NON-NLS-1$
+	public static final int ETCD_MAXCONNECTIONS_DEFAULT = Integer.getInteger(ETCD_MAXCONNECTIONS_PROP, 8);
+
+	public static final String ETCD_MEMBERS_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".members"; //$NON-NLS-1$
+	public static final String ETCD_MEMBERS_DEFAULT = System.getProperty(ETCD_MEMBERS_PROP);
+
+	public static final String ETCD_API_V2 = "v2"; //$NON-NLS-1$
+	public static final String ETCD_API_V3 = "v3"; //$NON-NLS-1$
+	public static final String ETCD_API_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".api"; //$NON-NLS-1$
+	public static final String ETCD_API_DEFAULT = System.getProperty(ETCD_API_PROP, ETCD_API_V2);
+
+	public static final String ETCD_V3PATH_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".v3path"; //$NON-NLS-1$
+	public static final String ETCD_V3PATH_DEFAULT = System.getProperty(ETCD_V3PATH_PROP, "/v3"); //$NON-NLS-1$
+
+	public static final String ETCD_WATCHRETRYDELAY_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".watchRetryDelay"; //$NON-NLS-1$
+	public static final long ETCD_WATCHRETRYDELAY_DEFAULT = Long.getLong(ETCD_WATCHRETRYDELAY_PROP, 500);
+
+	public static final String ETCD_WATCHMAXRETRYDELAY_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".watchMaxRetryDelay"; //$NON-NLS-1$
+	public static final long ETCD_WATCHMAXRETRYDELAY_DEFAULT = Long.getLong(ETCD_WATCHMAXRETRYDELAY_PROP, 30000);
+
+	public static final String ETCD_WATCHFAILURETHRESHOLD_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".watchFailureThreshold"; //$NON-NLS-1$
+	public static final int ETCD_WATCHFAILURETHRESHOLD_DEFAULT = Integer.getInteger(ETCD_WATCHFAILURETHRESHOLD_PROP, 5);
+
+	public static final String ETCD_WATCHTIMEOUT_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".watchTimeout"; //$NON-NLS-1$
+	public static final int ETCD_WATCHTIMEOUT_DEFAULT = Integer.getInteger(ETCD_WATCHTIMEOUT_PROP, 60000);
+
+	public static final String ETCD_WATCHMODE_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".watchMode"; //$NON-NLS-1$
+	public static final String ETCD_WATCHMODE_POLL = "poll"; //$NON-NLS-1$
+	public static final String ETCD_WATCHMODE_STREAM = "stream"; //$NON-NLS-1$
+	public static final String ETCD_WATCHMODE_DEFAULT = System.getProperty(ETCD_WATCHMODE_PROP, ETCD_WATCHMODE_POLL);
+
+	public static final String ETCD_DISCONNECTTIMEOUT_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".disconnectTimeout"; //$NON-NLS-1$
+	public static final long ETCD_DISCONNECTTIMEOUT_DEFAULT = Long.getLong(ETCD_DISCONNECTTIMEOUT_PROP, 5000);
+
+	public static final String ETCD_DISPATCHTHREADS_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".dispatchThreads"; //$NON-NLS-1$
+	public static final int ETCD_DISPATCHTHREADS_DEFAULT = Integer.getInteger(ETCD_DISPATCHTHREADS_PROP, 2);
+
+	public static final String ETCD_DISPATCHQUEUESIZE_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".dispatchQueueSize"; //$NON-NLS-1$
+	public static final int ETCD_DISPATCHQUEUESIZE_DEFAULT = Integer.getInteger(ETCD_DISPATCHQUEUESIZE_PROP, 1000);
+
+	public static final String ETCD_DISPATCHOVERFLOW_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".dispatchOverflow"; //$NON-NLS-1$
+	public static final String ETCD_DISPATCHOVERFLOW_DEFAULT = System.getProperty(ETCD_DISPATCHOVERFLOW_PROP,
+			EtcdEventDispatcher.OVERFLOW_BLOCK);
+
+	public static final String ETCD_COALESCEWINDOW_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".coalesceWindow"; //$NON-NLS-1$
+	public static final long ETCD_COALESCEWINDOW_DEFAULT = Long.getLong(ETCD_COALESCEWINDOW_PROP, 100);
+
+	public static final String ETCD_VALUEFORMAT_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".valueFormat"; //$NON-NLS-1$
+	public static final String ETCD_VALUEFORMAT_JSON = "json"; //$NON-NLS-1$
+	public static final String ETCD_VALUEFORMAT_BINARY = "binary"; //$NON-NLS-1$
+	public static final String ETCD_VALUEFORMAT_DEFAULT = System.getProperty(ETCD_VALUEFORMAT_PROP,
+			ETCD_VALUEFORMAT_JSON);
+
+	public static final String ETCD_LAYOUT_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".layout"; //$NON-NLS-1$
+	public static final String ETCD_LAYOUT_SESSION = "session"; //$NON-NLS-1$
+	public static final String ETCD_LAYOUT_TYPE = "type"; //$NON-NLS-1$
+	public static final String ETCD_LAYOUT_DEFAULT = System.getProperty(ETCD_LAYOUT_PROP, ETCD_LAYOUT_SESSION);
+
+	public static final String ETCD_SNAPSHOTFILE_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".snapshotFile"; //$NON-NLS-1$
+	public static final String ETCD_SNAPSHOTFILE_DEFAULT = System.getProperty(ETCD_SNAPSHOTFILE_PROP);
+
+	public static final String ETCD_READCONSISTENCY_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".readConsistency"; //$NON-NLS-1$
+	public static final String ETCD_RESYNCREADCONSISTENCY_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".resyncReadConsistency"; //$NON-NLS-1$
+	public static final String ETCD_READ_LINEARIZABLE = "linearizable"; //$NON-NLS-1$
+	public static final String ETCD_READ_SERIALIZABLE = "serializable"; //$NON-NLS-1$
+	public static final String ETCD_READCONSISTENCY_DEFAULT = System.getProperty(ETCD_READCONSISTENCY_PROP,
+			ETCD_READ_LINEARIZABLE);
+	public static final String ETCD_RESYNCREADCONSISTENCY_DEFAULT = System.getProperty(ETCD_RESYNCREADCONSISTENCY_PROP,
+			ETCD_READ_SERIALIZABLE);
+
+	public static final String ETCD_BOOTSTRAPPARALLELISM_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".bootstrapParallelism"; //$NON-NLS-1$
+	public static final int ETCD_BOOTSTRAPPARALLELISM_DEFAULT = Integer.getInteger(ETCD_BOOTSTRAPPARALLELISM_PROP,
+			Runtime.getRuntime().availableProcessors());
+
+	public static final String ETCD_METRICS_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".metrics"; //$NON-NLS-1$
+	public static final boolean ETCD_METRICS_DEFAULT = Boolean
+			.valueOf(System.getProperty(ETCD_METRICS_PROP, "true")).booleanValue(); //$NON-NLS-1$
+
 	private EtcdServiceID targetID;
+	private List<URL> members = new ArrayList<URL>();
 	private String sessionId;
 	private long ttl = ETCD_TTL_DEFAULT.longValue();
 	private int sessionTTL = ETCD_SESSIONTTL_DEFAULT;
 	private int startDelay = ETCD_STARTDELAY_DEFAULT;
+	private int maxConnections = ETCD_MAXCONNECTIONS_DEFAULT;
+	private String api = ETCD_API_DEFAULT;
+	private long watchRetryDelay = ETCD_WATCHRETRYDELAY_DEFAULT;
+	private long watchMaxRetryDelay = ETCD_WATCHMAXRETRYDELAY_DEFAULT;
+	private int watchFailureThreshold = ETCD_WATCHFAILURETHRESHOLD_DEFAULT;
+	private int watchTimeout = ETCD_WATCHTIMEOUT_DEFAULT;
+	private String watchMode = ETCD_WATCHMODE_DEFAULT;
+	private long disconnectTimeout = ETCD_DISCONNECTTIMEOUT_DEFAULT;
+	private String v3Path = ETCD_V3PATH_DEFAULT;
+	private int dispatchThreads = ETCD_DISPATCHTHREADS_DEFAULT;
+	private int dispatchQueueSize = ETCD_DISPATCHQUEUESIZE_DEFAULT;
+	private String dispatchOverflow = ETCD_DISPATCHOVERFLOW_DEFAULT;
+	private long coalesceWindow = ETCD_COALESCEWINDOW_DEFAULT;
+	private String valueFormat = ETCD_VALUEFORMAT_DEFAULT;
+	private String snapshotFile = ETCD_SNAPSHOTFILE_DEFAULT;
+	private String layout = ETCD_LAYOUT_DEFAULT;
+	private boolean metrics = ETCD_METRICS_DEFAULT;
+	private String readConsistency = ETCD_READCONSISTENCY_DEFAULT;
+	private String resyncReadConsistency = ETCD_RESYNCREADCONSISTENCY_DEFAULT;
+	private int bootstrapParallelism = ETCD_BOOTSTRAPPARALLELISM_DEFAULT;
 	
 	public EtcdDiscoveryContainerConfig() throws MalformedURLException, URISyntaxException {
 		this(System.getProperty(ETCD_CONTAINERID_PROP,ETCD_CONTAINERID_DEFAULT));
@@ -79,6 +181,7 @@ public class EtcdDiscoveryContainerConfig extends DiscoveryContainerConfig {
 	public EtcdDiscoveryContainerConfig(String containerId)
 			throws MalformedURLException, URISyntaxException {
 		super(IDFactory.getDefault().createStringID(containerId));
+		setMembers(ETCD_MEMBERS_DEFAULT);
 		setTargetID(null);
 		setSessionId(null);
 	}
@@ -110,7 +213,10 @@ public class EtcdDiscoveryContainerConfig extends DiscoveryContainerConfig {
 	private void setTargetID(String aTargetId) throws MalformedURLException,
 			URISyntaxException {
 		URL url = null;
-		if (aTargetId == null)
+		if (aTargetId == null && ETCD_TARGETID_DEFAULT == null && !members.isEmpty()) {
+			URL first = members.get(0);
+			url = new URL(first.getProtocol(), first.getHost(), first.getPort(), ETCD_TARGETID_PATH_DEFAULT);
+		} else if (aTargetId == null)
 			url = (ETCD_TARGETID_DEFAULT != null) ? new URL(
 					ETCD_TARGETID_DEFAULT) : new URL(
 					ETCD_TARGETID_PROTOCOL_DEFAULT,
@@ -127,6 +233,40 @@ public class EtcdDiscoveryContainerConfig extends DiscoveryContainerConfig {
 						new Object[] { serviceTypeID, url.toURI() });
 	}
 
+	/**
+	 * Set the members of the etcd cluster.
+	 * 
+	 * @param urls
+	 *            comma separated list of member urls, e.g.
+	 *            <code>http://10.0.0.1:2379,http://10.0.0.2:2379</code>. Only
+	 *            protocol, host and port of each url are used. May be
+	 *            <code>null</code>.
+	 * @throws MalformedURLException
+	 *             if one of the urls is malformed
+	 */
+	public void setMembers(String urls) throws MalformedURLException {
+		List<URL> result = new ArrayList<URL>();
+		if (urls != null) {
+			for (String u : urls.split(",")) { //$NON-NLS-1$
+				u = u.trim();
+				if (u.length() > 0) {
+					URL url = new URL(u);
+					result.add(new URL(url.getProtocol(), url.getHost(), url.getPort(), "")); //$NON-NLS-1$
+				}
+			}
+		}
+		this.members = result;
+	}
+
+	/**
+	 * @return the configured etcd cluster members (protocol, host and port
+	 *         only). Empty if only the target id should be used. Will not be
+	 *         <code>null</code>.
+	 */
+	public List<URL> getMembers() {
+		return new ArrayList<URL>(members);
+	}
+
 	public EtcdServiceID getTargetID() {
 		return targetID;
 	}
@@ -162,4 +302,264 @@ public class EtcdDiscoveryContainerConfig extends DiscoveryContainerConfig {
 	public void setStartDelay(int startDelay) {
 		this.startDelay = startDelay;
 	}
+
+	/**
+	 * @return the maximum number of idle keep-alive connections kept open to
+	 *         the etcd server
+	 */
+	public int getMaxConnections() {
+		return this.maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @return the etcd api to use, {@link #ETCD_API_V2} (the default) or
+	 *         {@link #ETCD_API_V3}. With v3 the requests go to the json
+	 *         gateway at {@link #getV3Path()} on the target's host and port,
+	 *         the path of the target id is not used.
+	 */
+	public String getApi() {
+		return this.api;
+	}
+
+	public void setApi(String api) {
+		this.api = api;
+	}
+
+	/**
+	 * @return path of the etcd v3 json gateway, e.g. <code>/v3</code>, or
+	 *         <code>/v3beta</code> for etcd 3.3
+	 */
+	public String getV3Path() {
+		return this.v3Path;
+	}
+
+	public void setV3Path(String v3Path) {
+		this.v3Path = v3Path;
+	}
+
+	/**
+	 * @return delay in ms before retrying a failed watch request. Doubled
+	 *         after every further failure, up to {@link #getWatchMaxRetryDelay()}.
+	 */
+	public long getWatchRetryDelay() {
+		return this.watchRetryDelay;
+	}
+
+	public void setWatchRetryDelay(long watchRetryDelay) {
+		this.watchRetryDelay = watchRetryDelay;
+	}
+
+	public long getWatchMaxRetryDelay() {
+		return this.watchMaxRetryDelay;
+	}
+
+	public void setWatchMaxRetryDelay(long watchMaxRetryDelay) {
+		this.watchMaxRetryDelay = watchMaxRetryDelay;
+	}
+
+	/**
+	 * @return number of consecutive watch failures after which the watch is
+	 *         only retried every {@link #getWatchMaxRetryDelay()} ms
+	 */
+	public int getWatchFailureThreshold() {
+		return this.watchFailureThreshold;
+	}
+
+	public void setWatchFailureThreshold(int watchFailureThreshold) {
+		this.watchFailureThreshold = watchFailureThreshold;
+	}
+
+	/**
+	 * @return ms a watch request waits for a change before it is sent again
+	 *         (default 60000), or 0 to wait indefinitely
+	 */
+	public int getWatchTimeout() {
+		return this.watchTimeout;
+	}
+
+	public void setWatchTimeout(int watchTimeout) {
+		this.watchTimeout = watchTimeout;
+	}
+
+	/**
+	 * @return how the v2 api watches for changes: <code>poll</code>
+	 *         (default), sending a long polling watch request for every
+	 *         change, or <code>stream</code>, keeping one streaming watch
+	 *         request open per watched directory and reading the changes from
+	 *         it as they happen. The v3 api always streams.
+	 */
+	public String getWatchMode() {
+		return this.watchMode;
+	}
+
+	public void setWatchMode(String watchMode) {
+		this.watchMode = watchMode;
+	}
+
+	/**
+	 * @return ms disconnect waits for the watch jobs to end after aborting
+	 *         their requests (default 5000)
+	 */
+	public long getDisconnectTimeout() {
+		return this.disconnectTimeout;
+	}
+
+	public void setDisconnectTimeout(long disconnectTimeout) {
+		this.disconnectTimeout = disconnectTimeout;
+	}
+
+	/**
+	 * @return number of threads delivering events to service listeners
+	 */
+	public int getDispatchThreads() {
+		return this.dispatchThreads;
+	}
+
+	public void setDispatchThreads(int dispatchThreads) {
+		this.dispatchThreads = dispatchThreads;
+	}
+
+	/**
+	 * @return maximum number of events queued for one listener
+	 */
+	public int getDispatchQueueSize() {
+		return this.dispatchQueueSize;
+	}
+
+	public void setDispatchQueueSize(int dispatchQueueSize) {
+		this.dispatchQueueSize = dispatchQueueSize;
+	}
+
+	/**
+	 * @return what to do when a listener's event queue is full. One of
+	 *         <code>block</code> (default), <code>dropOldest</code> or
+	 *         <code>dropNewest</code>.
+	 */
+	public String getDispatchOverflow() {
+		return this.dispatchOverflow;
+	}
+
+	public void setDispatchOverflow(String dispatchOverflow) {
+		this.dispatchOverflow = dispatchOverflow;
+	}
+
+	/**
+	 * @return ms changes are collected before they are delivered to an
+	 *         {@link IEtcdServiceBatchListener}, 0 to deliver them as soon as
+	 *         the listener is idle. Rounded up to the 100ms resolution of the
+	 *         heartbeat scheduler.
+	 */
+	public long getCoalesceWindow() {
+		return this.coalesceWindow;
+	}
+
+	public void setCoalesceWindow(long coalesceWindow) {
+		this.coalesceWindow = coalesceWindow;
+	}
+
+	/**
+	 * @return format of the service infos written to etcd: <code>json</code>
+	 *         (default) or <code>binary</code>. Both formats are always read,
+	 *         so <code>binary</code> should only be used once all members of
+	 *         the cluster read it.
+	 */
+	public String getValueFormat() {
+		return this.valueFormat;
+	}
+
+	public void setValueFormat(String valueFormat) {
+		this.valueFormat = valueFormat;
+	}
+
+	/**
+	 * @return path of the file the discovered services are kept in across
+	 *         restarts, or <code>null</code> (default) to not keep them
+	 */
+	public String getSnapshotFile() {
+		return this.snapshotFile;
+	}
+
+	public void setSnapshotFile(String snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	/**
+	 * @return how services are stored below the discovery directory:
+	 *         <code>session</code> (default) as
+	 *         <code>sessionId/serviceId</code>, or <code>type</code> as
+	 *         <code>serviceType/sessionId/serviceId</code>. With the type
+	 *         layout, a container only reads and watches the directories of
+	 *         the service types it has listeners for. Containers with the
+	 *         session layout also discover services stored with the type
+	 *         layout, but not the other way round.
+	 */
+	public String getLayout() {
+		return this.layout;
+	}
+
+	public void setLayout(String layout) {
+		this.layout = layout;
+	}
+
+	/**
+	 * @return consistency of the reads of the discovery directory on connect
+	 *         and of a type directory when it is first watched:
+	 *         <code>linearizable</code> (default), answered with the
+	 *         involvement of the cluster leader and reflecting all earlier
+	 *         changes, or <code>serializable</code>, answered by the member
+	 *         receiving the request from its local state, which may be
+	 *         slightly behind
+	 */
+	public String getReadConsistency() {
+		return this.readConsistency;
+	}
+
+	public void setReadConsistency(String readConsistency) {
+		this.readConsistency = readConsistency;
+	}
+
+	/**
+	 * @return consistency of the reads that resync the services when the
+	 *         watch fell behind etcd's event history: <code>serializable</code>
+	 *         (default) or <code>linearizable</code>. A serializable read that
+	 *         turns out to be older than the watch is repeated linearizable.
+	 */
+	public String getResyncReadConsistency() {
+		return this.resyncReadConsistency;
+	}
+
+	public void setResyncReadConsistency(String resyncReadConsistency) {
+		this.resyncReadConsistency = resyncReadConsistency;
+	}
+
+	/**
+	 * @return number of threads decoding the services read from a directory
+	 *         (default: the number of processors). With more than one, the
+	 *         content read on connect is applied while the first watch request
+	 *         is already waiting for changes. 1 decodes on the watch job.
+	 */
+	public int getBootstrapParallelism() {
+		return this.bootstrapParallelism;
+	}
+
+	public void setBootstrapParallelism(int bootstrapParallelism) {
+		this.bootstrapParallelism = bootstrapParallelism;
+	}
+
+	/**
+	 * @return <code>true</code> (default) to register the container's
+	 *         {@link EtcdDiscoveryMetricsMBean} as OSGi service and platform
+	 *         MBean while connected
+	 */
+	public boolean isMetrics() {
+		return this.metrics;
+	}
+
+	public void setMetrics(boolean metrics) {
+		this.metrics = metrics;
+	}
 }
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd;
+
+/**
+ * Metrics of a connected {@link EtcdDiscoveryContainer}. Registered as an
+ * OSGi service (with the {@link #CONTAINER_ID_PROP} service property) and as
+ * a platform MBean named
+ * <code>org.eclipse.ecf.provider.etcd:type=EtcdDiscoveryMetrics,name="&lt;container id&gt;"</code>
+ * while the container is connected, unless disabled with
+ * {@link EtcdDiscoveryContainerConfig#ETCD_METRICS_PROP}.
+ * <p>
+ * Durations are in ms. Latency percentiles are the upper bound of a bucket of
+ * a histogram with power of 2 buckets, so are accurate to a factor of 2.
+ */
+public interface EtcdDiscoveryMetricsMBean {
+
+	/**
+	 * Service property with the id of the container of the metrics service.
+	 */
+	public static final String CONTAINER_ID_PROP = "org.eclipse.ecf.provider.etcd.containerId"; //$NON-NLS-1$
+
+	public static final String OBJECTNAME_DOMAIN = "org.eclipse.ecf.provider.etcd"; //$NON-NLS-1$
+
+	public String getContainerId();
+
+	/**
+	 * @return the types of the etcd requests sent (e.g. <code>Get</code>,
+	 *         <code>Set</code>, <code>V3Put</code>). Request metrics are of
+	 *         this container's requests over all its connections, and do not
+	 *         include watch requests.
+	 */
+	public String[] getRequestTypes();
+
+	public long getRequestCount(String requestType);
+
+	/**
+	 * @return number of requests of the given type that failed or received an
+	 *         etcd error response
+	 */
+	public long getRequestFailures(String requestType);
+
+	public double getRequestLatencyMean(String requestType);
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 */
+	public double getRequestLatencyPercentile(String requestType, double percentile);
+
+	public double getRequestLatencyMax(String requestType);
+
+	/**
+	 * @return number of requests per histogram bucket. Bucket <code>i</code>
+	 *         holds the requests that took less than 2^i microseconds and are
+	 *         not in a lower bucket.
+	 */
+	public long[] getRequestLatencyBuckets(String requestType);
+
+	/**
+	 * @return the actions of the received watch events (e.g. <code>set</code>,
+	 *         <code>delete</code>, <code>expire</code>)
+	 */
+	public String[] getWatchActions();
+
+	public long getWatchEventCount(String action);
+
+	/**
+	 * @return watch events with the given action per second over the last
+	 *         minute
+	 */
+	public double getWatchEventRate(String action);
+
+	/**
+	 * @return watch events per second over the last minute
+	 */
+	public double getWatchEventRate();
+
+	/**
+	 * @return difference between the etcd index of the last watch response
+	 *         (its <code>X-Etcd-Index</code> header) and the index of its
+	 *         change, i.e. how many changes the watch was behind, or -1 if not
+	 *         known
+	 */
+	public long getWatchIndexLag();
+
+	/**
+	 * @return highest {@link #getWatchIndexLag()} seen
+	 */
+	public long getMaxWatchIndexLag();
+
+	public long getResyncCount();
+
+	/**
+	 * @return number of discovered services
+	 */
+	public int getServiceCount();
+
+	/**
+	 * @return names of the discovered service types
+	 */
+	public String[] getServiceTypeNames();
+
+	/**
+	 * @return number of discovered services of the service type with the
+	 *         given name
+	 */
+	public int getServiceCount(String serviceTypeName);
+
+	/**
+	 * @return number of listener calls made by the event dispatcher
+	 */
+	public long getListenerCallCount();
+
+	/**
+	 * @return mean time spent in a listener call
+	 */
+	public double getListenerTimeMean();
+
+	public double getListenerTimePercentile(double percentile);
+
+	public double getListenerTimeMax();
+
+	/**
+	 * @return mean time from dispatching an event until the listener returned,
+	 *         including the time it was queued
+	 */
+	public double getDispatchLatencyMean();
+
+	public double getDispatchLatencyMax();
+
+	public int getDispatchQueueDepth();
+
+	public long getDroppedEventCount();
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd;
+
+import org.eclipse.ecf.core.identity.ID;
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.ServiceContainerEvent;
+
+/**
+ * Service event delivered by {@link EtcdDiscoveryContainer} to service
+ * listeners. Tells whether the service was added, modified or removed.
+ * Added and modified services are delivered through
+ * <code>serviceDiscovered</code>, removed services through
+ * <code>serviceUndiscovered</code>. A service that changes its service id
+ * under the same etcd key is delivered as removed followed by added.
+ */
+public class EtcdServiceEvent extends ServiceContainerEvent {
+
+	private static final long serialVersionUID = 4087525113226425418L;
+
+	public static final int ADDED = 1;
+	public static final int MODIFIED = 2;
+	public static final int REMOVED = 3;
+
+	private final int kind;
+	private final String key;
+	private final IServiceInfo previousServiceInfo;
+
+	public EtcdServiceEvent(int kind, String key, IServiceInfo serviceInfo, IServiceInfo previousServiceInfo,
+			ID localContainerID) {
+		super(serviceInfo, localContainerID);
+		this.kind = kind;
+		this.key = key;
+		this.previousServiceInfo = previousServiceInfo;
+	}
+
+	/**
+	 * @return one of {@link #ADDED}, {@link #MODIFIED} or {@link #REMOVED}
+	 */
+	public int getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the etcd key of the service, relative to the discovery directory
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return for {@link #MODIFIED}, the service info before the change.
+	 *         Otherwise <code>null</code>.
+	 */
+	public IServiceInfo getPreviousServiceInfo() {
+		return previousServiceInfo;
+	}
+
+	@Override
+	public String toString() {
+		String k = (kind == ADDED) ? "added" : (kind == MODIFIED) ? "modified" : "removed"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		return "EtcdServiceEvent[kind=" + k + ", key=" + key + ", serviceInfo=" + getServiceInfo() + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+}
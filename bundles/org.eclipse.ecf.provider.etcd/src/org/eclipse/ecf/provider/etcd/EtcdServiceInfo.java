@@ -8,6 +8,7 @@
  ******************************************************************************/
 package org.eclipse.ecf.provider.etcd;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -21,6 +22,7 @@ import org.eclipse.ecf.discovery.ServiceInfo;
 import org.eclipse.ecf.discovery.ServiceProperties;
 import org.eclipse.ecf.discovery.identity.IServiceTypeID;
 import org.eclipse.ecf.discovery.identity.ServiceIDFactory;
+import org.eclipse.ecf.internal.provider.etcd.EtcdServiceInfoCodec;
 import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -55,6 +57,21 @@ public class EtcdServiceInfo extends ServiceInfo {
 	public static final String SERVICETYPE_PROTOCOLS_KEY = "protocols"; //$NON-NLS-1$
 	private static final String SERVICETYPE_NA_KEY = "namingauth"; //$NON-NLS-1$
 
+	/**
+	 * Read a service info written by either {@link #serializeToJsonString()}
+	 * or {@link #serializeToBinaryString()}.
+	 */
+	public static EtcdServiceInfo deserialize(String value) throws JSONException {
+		if (EtcdServiceInfoCodec.isBinary(value)) {
+			try {
+				return EtcdServiceInfoCodec.decode(value);
+			} catch (IOException e) {
+				throw new JSONException(e);
+			}
+		}
+		return deserializeFromString(value);
+	}
+
 	public static EtcdServiceInfo deserializeFromString(String jsonString)
 			throws JSONException {
 		JSONObject jsonObject = new JSONObject(jsonString);
@@ -206,6 +223,25 @@ public class EtcdServiceInfo extends ServiceInfo {
 		return result.toString();
 	}
 
+	/**
+	 * @return the compact binary encoding of this service info, or
+	 *         <code>null</code> if a property value can only be written as
+	 *         json. Can be read with {@link #deserialize(String)}.
+	 */
+	public String serializeToBinaryString() {
+		return EtcdServiceInfoCodec.encode(this);
+	}
+
+	/**
+	 * @param binary
+	 *            <code>true</code> to write the binary encoding, falling back
+	 *            to json for properties that it cannot represent
+	 */
+	public String serialize(boolean binary) throws JSONException {
+		String result = binary ? serializeToBinaryString() : null;
+		return (result != null) ? result : serializeToJsonString();
+	}
+
 	public EtcdServiceInfo(String jsonString) {
 	}
 
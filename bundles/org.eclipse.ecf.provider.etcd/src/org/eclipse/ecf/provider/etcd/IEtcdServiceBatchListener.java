@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd;
+
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.IServiceListener;
+
+/**
+ * Service listener that receives the services of an
+ * {@link EtcdDiscoveryContainer} in batches instead of one event per
+ * service, e.g. to rebuild a routing table once per batch. Added like any
+ * other service listener; its <code>serviceDiscovered</code> and
+ * <code>serviceUndiscovered</code> methods are not called by the container.
+ * <ul>
+ * <li>{@link #servicesSynchronized(IServiceInfo[])} is called once when the
+ * services the listener was added for have been read from etcd, with all of
+ * them. It is called right away if they were read before the listener was
+ * added, and again after the container reconnected.</li>
+ * <li>{@link #servicesChanged(EtcdServiceEvent[])} is called with the changes
+ * after that. Changes are collected for the coalescing window
+ * ({@link EtcdDiscoveryContainerConfig#ETCD_COALESCEWINDOW_PROP}) and for as
+ * long as the listener is busy, and delivered in the order they happened.</li>
+ * </ul>
+ * A service that changed while the initial services were collected may be
+ * both in the initial services and added by the first changes.
+ */
+public interface IEtcdServiceBatchListener extends IServiceListener {
+
+	/**
+	 * @param services
+	 *            all services the listener was added for
+	 */
+	public void servicesSynchronized(IServiceInfo[] services);
+
+	/**
+	 * @param events
+	 *            changes since the last call, oldest first
+	 */
+	public void servicesChanged(EtcdServiceEvent[] events);
+}
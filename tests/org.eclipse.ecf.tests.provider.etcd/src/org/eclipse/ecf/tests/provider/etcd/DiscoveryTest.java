@@ -1,30 +1,51 @@
 package org.eclipse.ecf.tests.provider.etcd;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.zip.Deflater;
 
 import org.eclipse.ecf.discovery.IDiscoveryAdvertiser;
 import org.eclipse.ecf.discovery.IDiscoveryLocator;
+import org.eclipse.ecf.discovery.IServiceEvent;
 import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.IServiceListener;
 import org.eclipse.ecf.discovery.IServiceProperties;
+import org.eclipse.ecf.discovery.ServiceProperties;
 import org.eclipse.ecf.discovery.identity.IServiceID;
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.discovery.identity.ServiceIDFactory;
+import org.eclipse.ecf.internal.provider.etcd.EtcdServiceInfoCodec;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdBase64;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdDeleteRequest;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdGetRequest;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdNode;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponse;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSetRequest;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSuccessResponse;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainerConfig;
 import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainerInstantiator;
 import org.eclipse.ecf.provider.etcd.EtcdServiceInfo;
 import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
 import org.eclipse.ecf.tests.discovery.AbstractDiscoveryTest;
 import org.eclipse.ecf.tests.discovery.Activator;
+import org.json.JSONException;
 
 @SuppressWarnings("restriction")
 public class DiscoveryTest extends AbstractDiscoveryTest {
 
+	/**
+	 * Unless etcd.test.hostname is set, the tests run against an in-memory
+	 * {@link EtcdTestServer} on 127.0.0.1, where the container under test
+	 * connects to by default.
+	 */
+	public static final boolean USE_TEST_SERVER = System
+			.getProperty("etcd.test.hostname") == null;
 	public static final String TEST_HOST = System.getProperty(
-			"etcd.test.hostname", "composent.com");
+			"etcd.test.hostname", "127.0.0.1");
 	public static final String TEST_PORT = System.getProperty("etcd.test.port",
 			"2379");
 	public static final String TEST_URL_BASE = System.getProperty(
@@ -41,12 +62,25 @@ public class DiscoveryTest extends AbstractDiscoveryTest {
 
 	public static final String SETDIR_SUCCEED = GET_SUCCEED;
 
+	private static EtcdTestServer testServer;
+
+	/**
+	 * Start the test server shared by all tests, if not already running.
+	 */
+	protected static synchronized void startTestServer() throws IOException {
+		if (testServer == null)
+			testServer = new EtcdTestServer(Integer.parseInt(TEST_PORT))
+					.start();
+	}
+
 	public DiscoveryTest() {
 		super(EtcdDiscoveryContainerInstantiator.NAME);
 	}
 
 	@Override
 	protected void setUp() throws Exception {
+		if (USE_TEST_SERVER)
+			startTestServer();
 		new EtcdNamespace();
 		super.setUp();
 	}
@@ -183,8 +217,185 @@ public class DiscoveryTest extends AbstractDiscoveryTest {
 		String s = sinfo.serializeToJsonString();
 		assertNotNull(s);
 
-		EtcdServiceInfo newSinfo = EtcdServiceInfo.deserializeFromString(s);
+		compareServiceInfo(sinfo, EtcdServiceInfo.deserializeFromString(s));
+	}
+
+	/**
+	 * @return a service info with properties of every type the binary
+	 *         encoding supports
+	 */
+	EtcdServiceInfo createBinaryServiceInfo(IServiceProperties props)
+			throws Exception {
+		IServiceTypeID typeID = ServiceIDFactory.getDefault()
+				.createServiceTypeID(EtcdNamespace.INSTANCE,
+						new String[] { "ecf", "osgirsvc", "ecftcp" },
+						new String[] { "default" }, new String[] { "tcp" },
+						"iana");
+		return new EtcdServiceInfo(new URI("ecftcp://localhost:3282/server"),
+				"binary service", typeID, 1, 2, props, 3600);
+	}
+
+	IServiceProperties createBinaryProperties() {
+		IServiceProperties props = new ServiceProperties();
+		props.setPropertyString("objectClass", "org.example.IHello");
+		props.setPropertyString("endpoint.id", "ecftcp://localhost:3282/server");
+		byte[] bytes = new byte[256];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) i;
+		props.setPropertyBytes("bytes", bytes);
+		props.setProperty("int", Integer.valueOf(Integer.MIN_VALUE));
+		props.setProperty("long", Long.valueOf(-1234567890123L));
+		props.setProperty("boolean", Boolean.TRUE);
+		props.setProperty("double", Double.valueOf(-0.125));
+		props.setProperty("float", Float.valueOf(3.5f));
+		return props;
+	}
+
+	/**
+	 * @return the version, flags and body of a binary encoded value
+	 */
+	byte[] decodeBinary(String s) {
+		return EtcdBase64.decode(s.substring(EtcdServiceInfoCodec.PREFIX
+				.length()));
+	}
+
+	String encodeBinary(byte[] data) {
+		return EtcdServiceInfoCodec.PREFIX + EtcdBase64.encode(data);
+	}
+
+	public void testSerializeAndDeserializeBinaryServiceInfo() throws Exception {
+
+		EtcdServiceInfo sinfo = createBinaryServiceInfo(createBinaryProperties());
+
+		String s = sinfo.serialize(true);
+		assertTrue(EtcdServiceInfoCodec.isBinary(s));
+		// small bodies are not deflated
+		assertEquals(0, decodeBinary(s)[1]);
+
+		compareServiceInfo(sinfo, EtcdServiceInfo.deserialize(s));
+		// json is still read
+		compareServiceInfo(sinfo,
+				EtcdServiceInfo.deserialize(sinfo.serializeToJsonString()));
+	}
+
+	public void testBinaryFallsBackToJson() throws Exception {
+		IServiceProperties props = createBinaryProperties();
+		props.setProperty("short", Short.valueOf((short) 1));
+		EtcdServiceInfo sinfo = createBinaryServiceInfo(props);
+
+		assertNull(EtcdServiceInfoCodec.encode(sinfo));
+		assertFalse(EtcdServiceInfoCodec.isBinary(sinfo.serialize(true)));
+	}
+
+	public void testBinaryStringTable() throws Exception {
+		String value = "org.example.service.with.a.long.name.IHello";
+		String other = "org.example.service.with.a.long.name.IWorld";
+		IServiceProperties repeated = new ServiceProperties();
+		repeated.setPropertyString("a", value);
+		repeated.setPropertyString("b", value);
+		IServiceProperties distinct = new ServiceProperties();
+		distinct.setPropertyString("a", value);
+		distinct.setPropertyString("b", other);
+
+		EtcdServiceInfo sinfo = createBinaryServiceInfo(repeated);
+		byte[] r = decodeBinary(EtcdServiceInfoCodec.encode(sinfo));
+		byte[] d = decodeBinary(EtcdServiceInfoCodec
+				.encode(createBinaryServiceInfo(distinct)));
+		// the repeated value is written as a reference
+		assertTrue(r.length + value.length() - 4 <= d.length);
+		compareServiceInfo(sinfo,
+				EtcdServiceInfo.deserialize(EtcdServiceInfoCodec.encode(sinfo)));
+		// well known strings are always written as a reference
+		String name = "service.exported.interfaces";
+		IServiceProperties known = new ServiceProperties();
+		known.setPropertyString(name, "*");
+		IServiceProperties unknown = new ServiceProperties();
+		unknown.setPropertyString(name.replace('.', '_'), "*");
+		assertTrue(decodeBinary(EtcdServiceInfoCodec
+				.encode(createBinaryServiceInfo(known))).length
+				+ name.length() <= decodeBinary(EtcdServiceInfoCodec
+				.encode(createBinaryServiceInfo(unknown))).length);
+	}
+
+	public void testBinaryDeflate() throws Exception {
+		IServiceProperties props = createBinaryProperties();
+		StringBuffer large = new StringBuffer();
+		while (large.length() <= EtcdServiceInfoCodec.DEFLATE_THRESHOLD)
+			large.append("ecftcp://localhost:3282/server ");
+		props.setPropertyString("large", large.toString());
+		EtcdServiceInfo sinfo = createBinaryServiceInfo(props);
+
+		String s = EtcdServiceInfoCodec.encode(sinfo);
+		byte[] data = decodeBinary(s);
+		assertEquals(EtcdServiceInfoCodec.VERSION, data[0]);
+		assertEquals(1, data[1]);
+		assertTrue(data.length < large.length());
+		compareServiceInfo(sinfo, EtcdServiceInfoCodec.decode(s));
+	}
+
+	public void testBinaryInflateLimit() throws Exception {
+		// a few KiB that inflate to more than the limit
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		byte[] zeros = new byte[64 * 1024];
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(EtcdServiceInfoCodec.VERSION);
+		bos.write(1);
+		byte[] buf = new byte[1024];
+		int limit = EtcdServiceInfoCodec.MAX_INFLATED_SIZE;
+		for (int n = 0; n <= limit; n += zeros.length) {
+			deflater.setInput(zeros);
+			while (!deflater.needsInput())
+				bos.write(buf, 0, deflater.deflate(buf));
+		}
+		deflater.finish();
+		while (!deflater.finished())
+			bos.write(buf, 0, deflater.deflate(buf));
+		deflater.end();
+		assertTrue(bos.size() < 64 * 1024);
+		try {
+			EtcdServiceInfoCodec.decode(encodeBinary(bos.toByteArray()));
+			fail("inflated beyond the limit");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(),
+					e.getMessage().indexOf("larger than") > 0);
+		}
+	}
+
+	public void testBinaryRejectsInvalidValues() throws Exception {
+		IServiceProperties props = createBinaryProperties();
+		EtcdServiceInfo sinfo = createBinaryServiceInfo(props);
+		byte[] data = decodeBinary(EtcdServiceInfoCodec.encode(sinfo));
+		props.setPropertyString("large", new String(new char[2000]));
+		byte[] deflated = decodeBinary(EtcdServiceInfoCodec
+				.encode(createBinaryServiceInfo(props)));
+		assertEquals(1, deflated[1]);
 
+		byte[] unknownVersion = (byte[]) data.clone();
+		unknownVersion[0] = (byte) (EtcdServiceInfoCodec.VERSION + 1);
+		String[] invalid = {
+				encodeBinary(Arrays.copyOf(data, data.length - 1)),
+				encodeBinary(Arrays.copyOf(data, data.length / 2)),
+				encodeBinary(Arrays.copyOf(data, 1)),
+				encodeBinary(Arrays.copyOf(deflated, deflated.length - 4)),
+				encodeBinary(unknownVersion),
+				EtcdServiceInfoCodec.PREFIX + "not base64!" };
+		for (int i = 0; i < invalid.length; i++) {
+			try {
+				EtcdServiceInfoCodec.decode(invalid[i]);
+				fail("invalid value " + i + " decoded");
+			} catch (IOException e) {
+				// expected
+			}
+			try {
+				EtcdServiceInfo.deserialize(invalid[i]);
+				fail("invalid value " + i + " deserialized");
+			} catch (JSONException e) {
+				// expected
+			}
+		}
+	}
+
+	void compareServiceInfo(EtcdServiceInfo sinfo, EtcdServiceInfo newSinfo) {
 		assertNotNull(newSinfo);
 
 		IServiceID sid1 = sinfo.getServiceID();
@@ -239,6 +450,49 @@ public class DiscoveryTest extends AbstractDiscoveryTest {
 		return false;
 	}
 	
+	/**
+	 * Disconnect aborts a watch that sees no changes, rather than waiting
+	 * for the next change to end it.
+	 */
+	public void testTimeToDisconnect() throws Exception {
+		EtcdTestServer server = new EtcdTestServer(0).start();
+		try {
+			EtcdDiscoveryContainerConfig config = new EtcdDiscoveryContainerConfig(
+					"timeToDisconnect", server.getKeysUrl());
+			// only the type directory is watched, so deleting the session
+			// does not wake the watch
+			config.setLayout(EtcdDiscoveryContainerConfig.ETCD_LAYOUT_TYPE);
+			config.setWatchTimeout(0);
+			EtcdDiscoveryContainer container = new EtcdDiscoveryContainer(
+					config);
+			container.connect(null, null);
+			container.addServiceListener(serviceInfo.getServiceID()
+					.getServiceTypeID(), new IServiceListener() {
+				public void serviceDiscovered(IServiceEvent anEvent) {
+				}
+
+				public void serviceUndiscovered(IServiceEvent anEvent) {
+				}
+
+				public boolean triggerDiscovery() {
+					return false;
+				}
+			});
+			// the watch of the type directory waits for a change
+			assertTrue("watch did not reach the server",
+					server.awaitWatches(1, 5000));
+			long start = System.currentTimeMillis();
+			container.disconnect();
+			long duration = System.currentTimeMillis() - start;
+			System.out.println("testTimeToDisconnect: disconnect took "
+					+ duration + "ms");
+			assertTrue("disconnect took " + duration + "ms", duration < 2000);
+			container.dispose();
+		} finally {
+			server.stop();
+		}
+	}
+
 	public void testDeleteAll() throws Exception {
 		deleteAll();
 	}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdClusterMember;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdClusterTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdGetRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdHttpResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestLatencies;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSetRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdWatchRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdTransport;
+
+/**
+ * Tests of {@link EtcdClusterTransport} and {@link EtcdClusterMember} over a
+ * transport that answers for members 1 and 2 as scripted.
+ */
+@SuppressWarnings("restriction")
+public class EtcdClusterTransportTest extends TestCase {
+
+	static final String URL = "http://127.0.0.1:2379/v2/keys/test";
+
+	/**
+	 * Answers 200 for any member, unless a status, failure or delay is set
+	 * for its port, and records the ports requests were sent to.
+	 */
+	static class ScriptedTransport implements IEtcdTransport {
+		final Map<Integer, Integer> statuses = new HashMap<Integer, Integer>();
+		final Map<Integer, IOException> failures = new HashMap<Integer, IOException>();
+		final Map<Integer, Long> delays = new HashMap<Integer, Long>();
+		final List<Integer> sent = new ArrayList<Integer>();
+		final EtcdRequestLatencies latencies = new EtcdRequestLatencies();
+
+		public EtcdHttpResponse send(EtcdRequest request) throws IOException {
+			return send(request, request.createURL());
+		}
+
+		public EtcdHttpResponse send(EtcdRequest request, URL url)
+				throws IOException {
+			Integer port = Integer.valueOf(url.getPort());
+			sent.add(port);
+			Long delay = delays.get(port);
+			if (delay != null)
+				try {
+					Thread.sleep(delay.longValue());
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			IOException failure = failures.get(port);
+			if (failure != null)
+				throw failure;
+			Integer status = statuses.get(port);
+			return new EtcdHttpResponse((status == null) ? 200 : status
+					.intValue(), null, null);
+		}
+
+		public EtcdRequestLatencies getLatencies() {
+			return latencies;
+		}
+
+		public void close() {
+			// nothing to release
+		}
+
+		List<Integer> takeSent() {
+			List<Integer> result = new ArrayList<Integer>(sent);
+			sent.clear();
+			return result;
+		}
+	}
+
+	private ScriptedTransport delegate;
+	private EtcdClusterTransport transport;
+	private EtcdClusterMember member1;
+	private EtcdClusterMember member2;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		delegate = new ScriptedTransport();
+		transport = new EtcdClusterTransport(delegate, Arrays.asList(
+				new URL("http://127.0.0.1:1"), new URL("http://127.0.0.1:2"),
+				new URL("http://127.0.0.1:1/duplicate")));
+		member1 = transport.getMembers().get(0);
+		member2 = transport.getMembers().get(1);
+	}
+
+	private int read() throws IOException {
+		return transport.send(new EtcdGetRequest(URL)).getStatus();
+	}
+
+	private int write() throws IOException {
+		return transport.send(new EtcdSetRequest(URL, "value")).getStatus();
+	}
+
+	private static List<Integer> ports(int... ports) {
+		List<Integer> result = new ArrayList<Integer>();
+		for (int i = 0; i < ports.length; i++)
+			result.add(Integer.valueOf(ports[i]));
+		return result;
+	}
+
+	public void testDuplicateEndpointsIgnored() {
+		assertEquals(2, transport.getMembers().size());
+	}
+
+	/**
+	 * Members without latency are probed by reads, then reads go to the
+	 * member with the lowest latency.
+	 */
+	public void testProbeThenSelectFastest() throws Exception {
+		delegate.delays.put(Integer.valueOf(1), Long.valueOf(20));
+		assertEquals(200, read());
+		assertEquals(200, read());
+		assertEquals(ports(1, 2), delegate.takeSent());
+		assertTrue(member1.getAverageLatency() >= 20);
+		assertTrue(member2.getAverageLatency() < member1
+				.getAverageLatency());
+		for (int i = 0; i < 5; i++)
+			read();
+		assertEquals(ports(2, 2, 2, 2, 2), delegate.takeSent());
+		assertEquals(1, member1.getRequests());
+		assertEquals(6, member2.getRequests());
+	}
+
+	/**
+	 * Watches measure no latency and do not probe.
+	 */
+	public void testWatchNotMeasured() throws Exception {
+		transport.send(new EtcdWatchRequest(URL));
+		assertEquals(ports(1), delegate.takeSent());
+		assertEquals(1, member1.getRequests());
+		assertEquals(-1.0, member1.getAverageLatency(), 0);
+	}
+
+	/**
+	 * A read is resent to the next member on an i/o error, and the failed
+	 * member is skipped by the following requests.
+	 */
+	public void testReadFailover() throws Exception {
+		delegate.failures.put(Integer.valueOf(1), new IOException("reset"));
+		assertEquals(200, read());
+		assertEquals(ports(1, 2), delegate.takeSent());
+		assertEquals(1, member1.getErrors());
+		assertEquals(1, member1.getConsecutiveFailures());
+		assertTrue(member1.getErrorRate() > 0);
+		assertEquals(200, read());
+		assertEquals(200, write());
+		assertEquals(ports(2, 2), delegate.takeSent());
+	}
+
+	/**
+	 * A write is resent only if the connection could not be established.
+	 */
+	public void testWriteFailover() throws Exception {
+		delegate.failures.put(Integer.valueOf(1), new IOException("reset"));
+		try {
+			write();
+			fail();
+		} catch (IOException e) {
+			assertEquals("reset", e.getMessage());
+		}
+		assertEquals(ports(1), delegate.takeSent());
+
+		delegate.failures.put(Integer.valueOf(2), new ConnectException(
+				"refused"));
+		delegate.failures.remove(Integer.valueOf(1));
+		// member 1 is backed off, member 2 refuses
+		assertEquals(200, write());
+		assertEquals(ports(2, 1), delegate.takeSent());
+	}
+
+	/**
+	 * A read answered with a server error (e.g. no leader) is resent to the
+	 * next member, a write is not.
+	 */
+	public void testServerError() throws Exception {
+		delegate.statuses.put(Integer.valueOf(1), Integer.valueOf(503));
+		assertEquals(200, read());
+		assertEquals(ports(1, 2), delegate.takeSent());
+		assertEquals(1, member1.getConsecutiveFailures());
+
+		delegate.statuses.put(Integer.valueOf(2), Integer.valueOf(500));
+		assertEquals(500, write());
+		assertEquals(ports(2), delegate.takeSent());
+		assertEquals(1, member2.getConsecutiveFailures());
+	}
+
+	/**
+	 * If all members fail, the last answer or error is returned.
+	 */
+	public void testAllMembersFail() throws Exception {
+		delegate.statuses.put(Integer.valueOf(1), Integer.valueOf(503));
+		delegate.statuses.put(Integer.valueOf(2), Integer.valueOf(503));
+		assertEquals(503, read());
+		assertEquals(ports(1, 2), delegate.takeSent());
+
+		delegate.failures.put(Integer.valueOf(1), new IOException("1"));
+		delegate.failures.put(Integer.valueOf(2), new IOException("2"));
+		// all backed off: tried in the order they recover
+		try {
+			read();
+			fail();
+		} catch (IOException e) {
+			assertEquals("2", e.getMessage());
+		}
+		assertEquals(ports(1, 2), delegate.takeSent());
+		assertEquals(2, member1.getConsecutiveFailures());
+	}
+
+	/**
+	 * A failed member is skipped for a delay that doubles with each further
+	 * failure, and is used again once it answers.
+	 */
+	public void testBackoff() throws Exception {
+		assertEquals(1000, EtcdClusterTransport.RETRY_DELAY);
+		delegate.failures.put(Integer.valueOf(1), new IOException("reset"));
+		read();
+		assertEquals(ports(1, 2), delegate.takeSent());
+
+		Thread.sleep(1100);
+		// retried, as it needs a probe, and failed again
+		read();
+		assertEquals(ports(1, 2), delegate.takeSent());
+		assertEquals(2, member1.getConsecutiveFailures());
+
+		Thread.sleep(1100);
+		read();
+		assertEquals(ports(2), delegate.takeSent());
+
+		delegate.failures.clear();
+		Thread.sleep(1100);
+		read();
+		assertEquals(ports(1), delegate.takeSent());
+		assertEquals(0, member1.getConsecutiveFailures());
+	}
+}
@@ -0,0 +1,464 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.discovery.IServiceEvent;
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.IServiceListener;
+import org.eclipse.ecf.discovery.ServiceInfo;
+import org.eclipse.ecf.discovery.ServiceProperties;
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.discovery.identity.ServiceIDFactory;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainerConfig;
+import org.eclipse.ecf.provider.etcd.EtcdServiceEvent;
+import org.eclipse.ecf.provider.etcd.IEtcdServiceBatchListener;
+import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
+
+/**
+ * Tests of the discovery container against an {@link EtcdTestServer}: one
+ * container publishes services, another one discovers them.
+ */
+public class EtcdDiscoveryContainerTest extends TestCase {
+
+	private static final long TIMEOUT = 10000;
+
+	private EtcdTestServer server;
+	private List<EtcdDiscoveryContainer> containers;
+
+	/**
+	 * Records the events of a service listener as "+name" and "-name".
+	 */
+	static class RecordingListener implements IServiceListener {
+		final List<String> events = new ArrayList<String>();
+
+		public synchronized void serviceDiscovered(IServiceEvent anEvent) {
+			events.add("+" + anEvent.getServiceInfo().getServiceName());
+		}
+
+		public synchronized void serviceUndiscovered(IServiceEvent anEvent) {
+			events.add("-" + anEvent.getServiceInfo().getServiceName());
+		}
+
+		public boolean triggerDiscovery() {
+			return false;
+		}
+
+		synchronized List<String> getEvents() {
+			return new ArrayList<String>(events);
+		}
+	}
+
+	/**
+	 * Records the changes delivered to a batch listener like
+	 * {@link RecordingListener}, and the initial services.
+	 */
+	static class RecordingBatchListener extends RecordingListener implements
+			IEtcdServiceBatchListener {
+		final List<String> initialServices = new ArrayList<String>();
+		int synchronizedCount;
+
+		public synchronized void servicesSynchronized(IServiceInfo[] services) {
+			if (synchronizedCount++ == 0 && !events.isEmpty())
+				events.add("changes before synchronized");
+			for (int i = 0; i < services.length; i++)
+				initialServices.add(services[i].getServiceName());
+		}
+
+		public synchronized void servicesChanged(EtcdServiceEvent[] changes) {
+			for (int i = 0; i < changes.length; i++)
+				events.add((changes[i].getKind() == EtcdServiceEvent.REMOVED ? "-"
+						: "+") + changes[i].getServiceInfo().getServiceName());
+		}
+
+		synchronized int getSynchronizedCount() {
+			return synchronizedCount;
+		}
+	}
+
+	/**
+	 * A condition that {@link EtcdDiscoveryContainerTest#waitFor} waits
+	 * for.
+	 */
+	interface Condition {
+		boolean isTrue();
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EtcdTestServer(0).start();
+		containers = new ArrayList<EtcdDiscoveryContainer>();
+		new EtcdNamespace();
+	}
+
+	protected void tearDown() throws Exception {
+		for (EtcdDiscoveryContainer container : containers) {
+			container.disconnect();
+			container.dispose();
+		}
+		server.stop();
+		super.tearDown();
+	}
+
+	EtcdDiscoveryContainerConfig createConfig() throws Exception {
+		EtcdDiscoveryContainerConfig config = new EtcdDiscoveryContainerConfig(
+				getName(), server.getKeysUrl());
+		config.setStartDelay(0);
+		config.setCoalesceWindow(0);
+		return config;
+	}
+
+	EtcdDiscoveryContainer connect(EtcdDiscoveryContainerConfig config)
+			throws Exception {
+		EtcdDiscoveryContainer container = new EtcdDiscoveryContainer(config);
+		container.connect(null, null);
+		containers.add(container);
+		return container;
+	}
+
+	static IServiceTypeID createType(String service) {
+		return ServiceIDFactory.getDefault().createServiceTypeID(
+				EtcdNamespace.INSTANCE, new String[] { "ecf", service },
+				new String[] { "default" }, new String[] { "tcp" }, "iana");
+	}
+
+	static IServiceInfo createService(IServiceTypeID type, String name)
+			throws Exception {
+		return new ServiceInfo(new URI("ecftcp://localhost:3282/" + name),
+				name, type, new ServiceProperties());
+	}
+
+	static IServiceInfo createService(IServiceTypeID type, String name,
+			String version) throws Exception {
+		ServiceProperties properties = new ServiceProperties();
+		properties.setPropertyString("version", version);
+		return new ServiceInfo(new URI("ecftcp://localhost:3282/" + name),
+				name, type, properties);
+	}
+
+	static String[] getNames(IServiceInfo[] services) {
+		String[] names = new String[services.length];
+		for (int i = 0; i < services.length; i++)
+			names[i] = services[i].getServiceName();
+		Arrays.sort(names);
+		return names;
+	}
+
+	static void waitFor(String message, Condition condition)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (!condition.isTrue()) {
+			if (System.currentTimeMillis() > end)
+				fail("timed out waiting for " + message);
+			Thread.sleep(10);
+		}
+	}
+
+	static void waitForServices(final EtcdDiscoveryContainer container,
+			final String[] names) throws InterruptedException {
+		waitFor("services " + Arrays.asList(names), new Condition() {
+			public boolean isTrue() {
+				return Arrays.equals(names, getNames(container.getServices()));
+			}
+		});
+	}
+
+	/**
+	 * @return the events of the given listener, once there are at least the
+	 *         given number
+	 */
+	static List<String> waitForEvents(final RecordingListener listener,
+			final int count) throws InterruptedException {
+		waitFor(count + " events", new Condition() {
+			public boolean isTrue() {
+				return listener.getEvents().size() >= count;
+			}
+		});
+		return listener.getEvents();
+	}
+
+	static List<String> sorted(List<String> events) {
+		List<String> result = new ArrayList<String>(events);
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Changes whose events etcd no longer has are found by rereading the
+	 * directory, and only they fire events.
+	 */
+	public void testResyncAfterHistoryCleared() throws Exception {
+		IServiceTypeID type = createType("resync");
+		EtcdDiscoveryContainer publisher = connect(createConfig());
+		IServiceInfo a = createService(type, "a");
+		IServiceInfo b = createService(type, "b");
+		IServiceInfo c = createService(type, "c");
+		publisher.registerService(a);
+		publisher.registerService(c);
+
+		EtcdDiscoveryContainer container = connect(createConfig());
+		RecordingListener listener = new RecordingListener();
+		container.addServiceListener(listener);
+		waitForServices(container, new String[] { "a", "c" });
+		assertTrue(server.awaitWatches(1, TIMEOUT));
+
+		server.setWatchesHeld(true);
+		publisher.registerService(b);
+		publisher.unregisterService(a);
+		server.clearHistory();
+		server.setWatchesHeld(false);
+
+		waitForServices(container, new String[] { "b", "c" });
+		assertEquals(1, container.getResyncCount());
+		List<String> events = waitForEvents(listener, 4);
+		assertEquals(4, events.size());
+		assertEquals(Arrays.asList("+a", "+c"), sorted(events.subList(0, 2)));
+		// the order of the changes found by a resync is not defined
+		assertEquals(Arrays.asList("+b", "-a"), sorted(events.subList(2, 4)));
+
+		// the watch continues after the resync
+		publisher.unregisterService(c);
+		waitForServices(container, new String[] { "b" });
+		events = waitForEvents(listener, 5);
+		assertEquals(Arrays.asList("-c"), events.subList(4, events.size()));
+	}
+
+	/**
+	 * A service unregistered while the watch has not yet seen its
+	 * registration is not added again by the late set event.
+	 */
+	public void testNoPhantomAfterLocalUnregister() throws Exception {
+		IServiceTypeID type = createType("phantom");
+		EtcdDiscoveryContainer container = connect(createConfig());
+		RecordingListener listener = new RecordingListener();
+		container.addServiceListener(listener);
+		container.registerService(createService(type, "x"));
+		waitForEvents(listener, 1);
+		assertTrue(server.awaitWatches(1, TIMEOUT));
+
+		server.setWatchesHeld(true);
+		IServiceInfo a = createService(type, "a");
+		container.registerService(a);
+		container.unregisterService(a);
+		server.setWatchesHeld(false);
+		// seen by the watch after the events of a
+		connect(createConfig()).registerService(createService(type, "z"));
+		waitForServices(container, new String[] { "x", "z" });
+		assertEquals(Arrays.asList("+x", "+a", "-a", "+z"),
+				waitForEvents(listener, 4));
+	}
+
+	/**
+	 * A locator with a snapshot file serves the services of its last run
+	 * while etcd is not answering yet, and once etcd has been read only the
+	 * changes made meanwhile fire events.
+	 */
+	public void testServicesFromSnapshotUntilEtcdRead() throws Exception {
+		IServiceTypeID type = createType("snapshot");
+		File file = File.createTempFile("etcd", ".snapshot");
+		file.delete();
+		try {
+			EtcdDiscoveryContainer publisher = connect(createConfig());
+			IServiceInfo b = createService(type, "b");
+			publisher.registerServices(new IServiceInfo[] {
+					createService(type, "a"), b });
+			EtcdDiscoveryContainerConfig config = createConfig();
+			config.setSnapshotFile(file.getPath());
+			EtcdDiscoveryContainer lastRun = connect(config);
+			lastRun.addServiceListener(new RecordingListener());
+			waitForServices(lastRun, new String[] { "a", "b" });
+			lastRun.disconnect();
+
+			publisher.unregisterService(b);
+			publisher.registerService(createService(type, "c"));
+			// connecting takes two requests of a second each
+			server.setLatency(1000);
+			config = createConfig();
+			config.setSnapshotFile(file.getPath());
+			final EtcdDiscoveryContainer locator = new EtcdDiscoveryContainer(
+					config);
+			containers.add(locator);
+			final Exception[] failure = new Exception[1];
+			Thread connecting = new Thread("connect " + getName()) {
+				public void run() {
+					try {
+						locator.connect(null, null);
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			};
+			connecting.start();
+			waitForServices(locator, new String[] { "a", "b" });
+			assertTrue(connecting.isAlive());
+
+			server.setLatency(0);
+			connecting.join(TIMEOUT);
+			assertNull(failure[0]);
+			RecordingListener listener = new RecordingListener();
+			locator.addServiceListener(listener);
+			waitForServices(locator, new String[] { "a", "c" });
+			assertEquals(Arrays.asList("+c", "-b"),
+					sorted(waitForEvents(listener, 2)));
+			// a was not changed
+			Thread.sleep(200);
+			assertEquals(2, listener.getEvents().size());
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * With the type layout, a listener for a service type only discovers
+	 * services of that type, and other types are not read.
+	 */
+	public void testTypeLayoutWatchesListenedTypes() throws Exception {
+		IServiceTypeID listened = createType("listened");
+		IServiceTypeID other = createType("other");
+		EtcdDiscoveryContainerConfig config = createConfig();
+		config.setLayout(EtcdDiscoveryContainerConfig.ETCD_LAYOUT_TYPE);
+		EtcdDiscoveryContainer publisher = connect(config);
+		publisher.registerService(createService(listened, "a"));
+		publisher.registerService(createService(other, "x"));
+
+		config = createConfig();
+		config.setLayout(EtcdDiscoveryContainerConfig.ETCD_LAYOUT_TYPE);
+		EtcdDiscoveryContainer container = connect(config);
+		RecordingListener listener = new RecordingListener();
+		container.addServiceListener(listened, listener);
+		waitForServices(container, new String[] { "a" });
+		assertTrue(server.awaitWatches(1, TIMEOUT));
+
+		publisher.registerService(createService(other, "y"));
+		publisher.registerService(createService(listened, "b"));
+		waitForServices(container, new String[] { "a", "b" });
+		assertEquals(Arrays.asList("+a", "+b"), waitForEvents(listener, 2));
+		assertEquals(0, container.getServices(other).length);
+	}
+
+	/**
+	 * A batch listener first receives all services, then the changes.
+	 */
+	public void testBatchListener() throws Exception {
+		IServiceTypeID type = createType("batch");
+		EtcdDiscoveryContainer publisher = connect(createConfig());
+		IServiceInfo a = createService(type, "a");
+		publisher.registerService(a);
+
+		EtcdDiscoveryContainerConfig config = createConfig();
+		config.setCoalesceWindow(200);
+		EtcdDiscoveryContainer container = connect(config);
+		final RecordingBatchListener listener = new RecordingBatchListener();
+		container.addServiceListener(listener);
+		waitFor("services synchronized", new Condition() {
+			public boolean isTrue() {
+				return listener.getSynchronizedCount() > 0;
+			}
+		});
+		synchronized (listener) {
+			assertEquals(Arrays.asList("a"), listener.initialServices);
+		}
+
+		publisher.registerServices(new IServiceInfo[] {
+				createService(type, "b"), createService(type, "c") });
+		publisher.unregisterService(a);
+		List<String> events = waitForEvents(listener, 3);
+		assertEquals(3, events.size());
+		assertEquals(Arrays.asList("+b", "+c"), sorted(events.subList(0, 2)));
+		assertEquals("-a", events.get(2));
+		assertEquals(1, listener.getSynchronizedCount());
+	}
+
+	/**
+	 * Services registered together are all discovered, and are all removed
+	 * by {@link EtcdDiscoveryContainer#unregisterAllServices()}.
+	 */
+	public void testRegisterAndUnregisterAll() throws Exception {
+		IServiceTypeID type = createType("all");
+		EtcdDiscoveryContainer container = connect(createConfig());
+		RecordingListener listener = new RecordingListener();
+		container.addServiceListener(listener);
+		assertTrue(server.awaitWatches(1, TIMEOUT));
+
+		EtcdDiscoveryContainer publisher = connect(createConfig());
+		IServiceInfo[] services = new IServiceInfo[20];
+		for (int i = 0; i < services.length; i++)
+			services[i] = createService(type, "s" + (char) ('a' + i));
+		IServiceInfo[] registered = publisher.registerServices(services);
+		assertEquals(services.length, registered.length);
+		for (int i = 0; i < services.length; i++)
+			assertEquals(services[i].getServiceID(),
+					registered[i].getServiceID());
+		assertEquals(services.length, server.countValues(getName()));
+		waitForServices(container, getNames(services));
+
+		publisher.unregisterAllServices();
+		assertEquals(0, server.countValues(getName()));
+		waitForServices(container, new String[0]);
+		assertEquals(0, publisher.getServices().length);
+		assertEquals(2 * services.length,
+				waitForEvents(listener, 2 * services.length).size());
+	}
+
+	/**
+	 * A service set again with an unchanged value fires no events, and one set
+	 * with a changed value is delivered as modified, with the previous info.
+	 */
+	public void testUnchangedAndModifiedValues() throws Exception {
+		IServiceTypeID type = createType("modified");
+		EtcdDiscoveryContainer container = connect(createConfig());
+		final List<EtcdServiceEvent> modified = new ArrayList<EtcdServiceEvent>();
+		RecordingListener listener = new RecordingListener() {
+			public synchronized void serviceDiscovered(IServiceEvent anEvent) {
+				super.serviceDiscovered(anEvent);
+				EtcdServiceEvent event = (EtcdServiceEvent) anEvent;
+				if (event.getKind() == EtcdServiceEvent.MODIFIED)
+					modified.add(event);
+			}
+		};
+		container.addServiceListener(listener);
+		assertTrue(server.awaitWatches(1, TIMEOUT));
+
+		EtcdDiscoveryContainer publisher = connect(createConfig());
+		IServiceInfo a = createService(type, "a", "1");
+		publisher.registerService(a);
+		waitForEvents(listener, 1);
+		publisher.registerService(createService(type, "a", "1"));
+		// seen by the watch after the unchanged value of a
+		publisher.registerService(createService(type, "z"));
+		assertEquals(Arrays.asList("+a", "+z"), waitForEvents(listener, 2));
+
+		IServiceInfo changed = createService(type, "a", "2");
+		publisher.registerService(changed);
+		assertEquals(Arrays.asList("+a", "+z", "+a"), waitForEvents(listener,
+				3));
+		synchronized (listener) {
+			assertEquals(1, modified.size());
+			EtcdServiceEvent event = modified.get(0);
+			assertEquals(a.getServiceID(), event.getServiceInfo()
+					.getServiceID());
+			assertEquals("1", event.getPreviousServiceInfo()
+					.getServiceProperties().getPropertyString("version"));
+			assertEquals("2", event.getServiceInfo().getServiceProperties()
+					.getPropertyString("version"));
+		}
+		waitForServices(container, new String[] { "a", "z" });
+		Thread.sleep(200);
+		assertEquals(3, listener.getEvents().size());
+	}
+}
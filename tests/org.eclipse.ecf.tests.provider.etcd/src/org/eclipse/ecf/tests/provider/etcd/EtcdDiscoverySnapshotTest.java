@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.EtcdDiscoverySnapshot;
+
+@SuppressWarnings("restriction")
+public class EtcdDiscoverySnapshotTest extends TestCase {
+
+	private static final String DIRECTORY = "/discovery/";
+
+	private File file;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("etcdsnapshot", ".bin");
+		file.delete();
+	}
+
+	protected void tearDown() throws Exception {
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+		super.tearDown();
+	}
+
+	/**
+	 * Write a snapshot with values a, b and c, the last one written to the
+	 * end of the file.
+	 */
+	private void writeValues() throws IOException {
+		EtcdDiscoverySnapshot snapshot = new EtcdDiscoverySnapshot(file,
+				DIRECTORY);
+		assertTrue(snapshot.load().isEmpty());
+		snapshot.put("session/a", 10, "value a");
+		snapshot.put("session/b", 11, "value b");
+		snapshot.put("session/x", 12, "value x");
+		snapshot.remove("session/x", 13);
+		snapshot.put("session/c", 14, "value c");
+		snapshot.close();
+	}
+
+	private Map<String, EtcdDiscoverySnapshot.Entry> load() throws IOException {
+		EtcdDiscoverySnapshot snapshot = new EtcdDiscoverySnapshot(file,
+				DIRECTORY);
+		try {
+			return snapshot.load();
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	public void testLoad() throws Exception {
+		writeValues();
+		EtcdDiscoverySnapshot snapshot = new EtcdDiscoverySnapshot(file,
+				DIRECTORY);
+		Map<String, EtcdDiscoverySnapshot.Entry> values = snapshot.load();
+		assertEquals(3, values.size());
+		assertEquals("value a", values.get("session/a").getValue());
+		assertEquals(10, values.get("session/a").getIndex());
+		assertEquals("value c", values.get("session/c").getValue());
+		assertNull(values.get("session/x"));
+		assertEquals(14, snapshot.getIndex());
+		snapshot.close();
+	}
+
+	/**
+	 * A file written for another directory is not used.
+	 */
+	public void testOtherDirectory() throws Exception {
+		writeValues();
+		EtcdDiscoverySnapshot snapshot = new EtcdDiscoverySnapshot(file,
+				"/other/");
+		assertTrue(snapshot.load().isEmpty());
+		snapshot.close();
+	}
+
+	/**
+	 * A record cut off by a crash while it was appended is dropped, with the
+	 * records after it. The records before it are kept, and the file can be
+	 * appended to again.
+	 */
+	public void testTornTail() throws Exception {
+		writeValues();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 3);
+		} finally {
+			raf.close();
+		}
+		EtcdDiscoverySnapshot snapshot = new EtcdDiscoverySnapshot(file,
+				DIRECTORY);
+		Map<String, EtcdDiscoverySnapshot.Entry> values = snapshot.load();
+		assertEquals(2, values.size());
+		assertNotNull(values.get("session/a"));
+		assertNotNull(values.get("session/b"));
+		assertNull(values.get("session/c"));
+		snapshot.put("session/d", 20, "value d");
+		snapshot.close();
+
+		values = load();
+		assertEquals(3, values.size());
+		assertEquals("value d", values.get("session/d").getValue());
+	}
+
+	/**
+	 * A record whose checksum does not match is not applied.
+	 */
+	public void testGarbageTail() throws Exception {
+		writeValues();
+		long length = file.length();
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			// length 5, wrong checksum
+			out.write(new byte[] { 0, 0, 0, 5, 1, 2, 3, 4, 1, 0, 0, 0, 99 });
+		} finally {
+			out.close();
+		}
+		Map<String, EtcdDiscoverySnapshot.Entry> values = load();
+		assertEquals(3, values.size());
+		// rewritten with the live values only
+		assertTrue(file.length() < length);
+		assertEquals(3, load().size());
+	}
+}
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.ecf.discovery.IServiceEvent;
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.internal.provider.etcd.EtcdEventDispatcher;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestExecutor;
+import org.eclipse.ecf.provider.etcd.EtcdServiceEvent;
+import org.eclipse.ecf.provider.etcd.IEtcdServiceBatchListener;
+import org.eclipse.equinox.concurrent.future.IFuture;
+import org.eclipse.equinox.concurrent.future.IProgressRunnable;
+
+@SuppressWarnings("restriction")
+public class EtcdEventDispatcherTest extends TestCase {
+
+	private static final long TIMEOUT = 5000;
+
+	private EtcdEventDispatcher dispatcher;
+
+	/**
+	 * Records the keys of the events it receives. Delivery blocks while the
+	 * listener is held.
+	 */
+	static class Listener implements IEtcdServiceBatchListener {
+		final List<String> keys = new ArrayList<String>();
+		final List<Integer> batchSizes = new ArrayList<Integer>();
+		int synchronizedCount;
+		final CountDownLatch entered = new CountDownLatch(1);
+		private CountDownLatch release = new CountDownLatch(0);
+
+		void hold() {
+			release = new CountDownLatch(1);
+		}
+
+		void release() {
+			release.countDown();
+		}
+
+		private void deliver(String key) {
+			entered.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (this) {
+				keys.add(key);
+			}
+		}
+
+		public void serviceDiscovered(IServiceEvent anEvent) {
+			deliver(((EtcdServiceEvent) anEvent).getKey());
+		}
+
+		public void serviceUndiscovered(IServiceEvent anEvent) {
+			deliver(((EtcdServiceEvent) anEvent).getKey());
+		}
+
+		public boolean triggerDiscovery() {
+			return false;
+		}
+
+		public synchronized void servicesSynchronized(IServiceInfo[] services) {
+			if (!keys.isEmpty())
+				fail("changes before synchronized");
+			synchronizedCount++;
+		}
+
+		public synchronized void servicesChanged(EtcdServiceEvent[] events) {
+			batchSizes.add(Integer.valueOf(events.length));
+			for (int i = 0; i < events.length; i++)
+				keys.add(events[i].getKey());
+		}
+
+		synchronized List<String> getKeys() {
+			return new ArrayList<String>(keys);
+		}
+
+		List<String> awaitKeys(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + TIMEOUT;
+			while (getKeys().size() < count) {
+				if (System.currentTimeMillis() > end)
+					fail("timed out waiting for " + count + " events, got "
+							+ getKeys());
+				Thread.sleep(10);
+			}
+			return getKeys();
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		if (dispatcher != null)
+			dispatcher.close(0);
+		super.tearDown();
+	}
+
+	static EtcdServiceEvent event(int i) {
+		return new EtcdServiceEvent(EtcdServiceEvent.ADDED, "key" + i, null,
+				null, null);
+	}
+
+	static List<String> keys(int[] indexes) {
+		List<String> result = new ArrayList<String>();
+		for (int i = 0; i < indexes.length; i++)
+			result.add("key" + indexes[i]);
+		return result;
+	}
+
+	/**
+	 * Every listener receives its events in order, one at a time, also with
+	 * more threads than listeners.
+	 */
+	public void testOrderPerListener() throws Exception {
+		dispatcher = new EtcdEventDispatcher("test", 4, 10000,
+				EtcdEventDispatcher.OVERFLOW_BLOCK);
+		Listener[] listeners = new Listener[3];
+		for (int l = 0; l < listeners.length; l++)
+			listeners[l] = new Listener();
+		int count = 1000;
+		for (int i = 0; i < count; i++)
+			for (int l = 0; l < listeners.length; l++)
+				if (i % 2 == 0)
+					dispatcher.serviceDiscovered(listeners[l], event(i));
+				else
+					dispatcher.serviceUndiscovered(listeners[l], event(i));
+		int[] expected = new int[count];
+		for (int i = 0; i < count; i++)
+			expected[i] = i;
+		for (int l = 0; l < listeners.length; l++)
+			assertEquals(keys(expected), listeners[l].awaitKeys(count));
+		assertTrue(dispatcher.close(TIMEOUT));
+		assertEquals(count * listeners.length, dispatcher.getDeliveredCount());
+		assertEquals(0, dispatcher.getDroppedCount());
+	}
+
+	/**
+	 * Fill the queue of a held listener: the first event is being delivered,
+	 * the next <code>queueSize</code> are queued.
+	 */
+	private Listener fill(int queueSize) throws InterruptedException {
+		Listener listener = new Listener();
+		listener.hold();
+		dispatcher.serviceDiscovered(listener, event(0));
+		assertTrue(listener.entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		for (int i = 1; i <= queueSize; i++)
+			dispatcher.serviceDiscovered(listener, event(i));
+		assertEquals(queueSize, dispatcher.getQueueDepth(listener));
+		return listener;
+	}
+
+	public void testDropNewest() throws Exception {
+		dispatcher = new EtcdEventDispatcher("test", 1, 2,
+				EtcdEventDispatcher.OVERFLOW_DROP_NEWEST);
+		Listener listener = fill(2);
+		for (int i = 3; i <= 5; i++)
+			dispatcher.serviceDiscovered(listener, event(i));
+		assertEquals(3, dispatcher.getDroppedCount());
+		listener.release();
+		assertEquals(keys(new int[] { 0, 1, 2 }), listener.awaitKeys(3));
+	}
+
+	public void testDropOldest() throws Exception {
+		dispatcher = new EtcdEventDispatcher("test", 1, 2,
+				EtcdEventDispatcher.OVERFLOW_DROP_OLDEST);
+		Listener listener = fill(2);
+		for (int i = 3; i <= 5; i++)
+			dispatcher.serviceDiscovered(listener, event(i));
+		assertEquals(3, dispatcher.getDroppedCount());
+		listener.release();
+		assertEquals(keys(new int[] { 0, 4, 5 }), listener.awaitKeys(3));
+	}
+
+	/**
+	 * With the block policy, the dispatching thread waits for room in the
+	 * queue, and no event is dropped.
+	 */
+	public void testBlock() throws Exception {
+		dispatcher = new EtcdEventDispatcher("test", 1, 2,
+				EtcdEventDispatcher.OVERFLOW_BLOCK);
+		final Listener listener = fill(2);
+		Thread producer = new Thread() {
+			public void run() {
+				for (int i = 3; i <= 5; i++)
+					dispatcher.serviceDiscovered(listener, event(i));
+			}
+		};
+		producer.start();
+		producer.join(200);
+		assertTrue("producer did not block", producer.isAlive());
+		listener.release();
+		producer.join(TIMEOUT);
+		assertFalse(producer.isAlive());
+		assertEquals(keys(new int[] { 0, 1, 2, 3, 4, 5 }),
+				listener.awaitKeys(6));
+		assertEquals(0, dispatcher.getDroppedCount());
+	}
+
+	/**
+	 * Request executor threads do not block, since a held listener may be
+	 * waiting for a response handled on them.
+	 */
+	public void testBlockNotOnExecutorThread() throws Exception {
+		dispatcher = new EtcdEventDispatcher("test", 1, 2,
+				EtcdEventDispatcher.OVERFLOW_BLOCK);
+		final Listener listener = fill(2);
+		EtcdRequestExecutor executor = new EtcdRequestExecutor("test", 1);
+		try {
+			IFuture<Object> future = executor.execute(
+					new IProgressRunnable<Object>() {
+						public Object run(IProgressMonitor monitor) {
+							for (int i = 3; i <= 5; i++)
+								dispatcher.serviceDiscovered(listener, event(i));
+							return null;
+						}
+					}, null);
+			future.get(TIMEOUT);
+			assertEquals(5, dispatcher.getQueueDepth(listener));
+			listener.release();
+			assertEquals(keys(new int[] { 0, 1, 2, 3, 4, 5 }),
+					listener.awaitKeys(6));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Changes dispatched while a batch waits for its window, or while the
+	 * listener is busy, are delivered together and in order, after the
+	 * initial services.
+	 */
+	public void testBatches() throws Exception {
+		dispatcher = new EtcdEventDispatcher("test", 2, 1,
+				EtcdEventDispatcher.OVERFLOW_DROP_NEWEST);
+		Listener listener = new Listener();
+		dispatcher.servicesSynchronized(listener, new IServiceInfo[0]);
+		int count = 500;
+		for (int i = 0; i < count; i++)
+			dispatcher.servicesChanged(listener, event(i), 50);
+		int[] expected = new int[count];
+		for (int i = 0; i < count; i++)
+			expected[i] = i;
+		// batches are not bounded by the queue size
+		assertEquals(keys(expected), listener.awaitKeys(count));
+		assertEquals(0, dispatcher.getDroppedCount());
+		synchronized (listener) {
+			assertEquals(1, listener.synchronizedCount);
+			assertTrue(listener.batchSizes.toString(),
+					listener.batchSizes.size() < count);
+		}
+	}
+
+	/**
+	 * Events queued for a removed listener are not delivered.
+	 */
+	public void testRemoveListener() throws Exception {
+		dispatcher = new EtcdEventDispatcher("test", 1, 10,
+				EtcdEventDispatcher.OVERFLOW_BLOCK);
+		Listener listener = fill(5);
+		dispatcher.removeListener(listener);
+		assertEquals(0, dispatcher.getQueueDepth(listener));
+		listener.release();
+		assertTrue(dispatcher.close(TIMEOUT));
+		assertEquals(Arrays.asList("key0"), listener.getKeys());
+	}
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.EtcdHeartbeatScheduler;
+import org.eclipse.ecf.internal.provider.etcd.EtcdHeartbeatScheduler.Heartbeat;
+
+/**
+ * Tests of {@link EtcdHeartbeatScheduler}, mostly on a small wheel of 16
+ * buckets of 1 ms, so that one revolution takes 16 ms.
+ */
+@SuppressWarnings("restriction")
+public class EtcdHeartbeatSchedulerTest extends TestCase {
+
+	private static final long TIMEOUT = 10000;
+	private static final int WHEEL_SIZE = 16;
+
+	private EtcdHeartbeatScheduler scheduler;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		scheduler = new EtcdHeartbeatScheduler(getName(), 1, WHEEL_SIZE);
+	}
+
+	protected void tearDown() throws Exception {
+		scheduler.shutdown();
+		super.tearDown();
+	}
+
+	/**
+	 * Records the times it ran at, in ms since it was created.
+	 */
+	static class RecordingTask implements Runnable {
+		final long created = System.nanoTime();
+		final List<Long> runs = new ArrayList<Long>();
+
+		public synchronized void run() {
+			runs.add(Long.valueOf(TimeUnit.NANOSECONDS.toMillis(System
+					.nanoTime() - created)));
+		}
+
+		synchronized List<Long> getRuns() {
+			return new ArrayList<Long>(runs);
+		}
+	}
+
+	/**
+	 * A task that blocks the scheduler thread, as a long pause would.
+	 */
+	static Runnable pause(final long ms) {
+		return new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(ms);
+				} catch (InterruptedException e) {
+					// ends the pause
+				}
+			}
+		};
+	}
+
+	static void waitForRuns(Heartbeat heartbeat, long count)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (heartbeat.getRunCount() < count) {
+			if (System.currentTimeMillis() > end)
+				fail(heartbeat + " ran " + heartbeat.getRunCount()
+						+ " times, expected " + count);
+			Thread.sleep(5);
+		}
+	}
+
+	public void testInvalidArguments() {
+		try {
+			new EtcdHeartbeatScheduler("test", 1, 12);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			scheduler.schedule(new RecordingTask(), 0, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Thousands of heartbeats spread over many revolutions all run, and all
+	 * runs are counted by the heartbeats and the scheduler.
+	 */
+	public void testManyHeartbeats() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		Random random = new Random(1);
+		Heartbeat[] heartbeats = new Heartbeat[5000];
+		for (int i = 0; i < heartbeats.length; i++)
+			heartbeats[i] = scheduler.schedule(task, random.nextInt(100),
+					20 + random.nextInt(60));
+		assertEquals(heartbeats.length, scheduler.getHeartbeatCount());
+		for (int i = 0; i < heartbeats.length; i++)
+			waitForRuns(heartbeats[i], 3);
+
+		for (int i = 0; i < heartbeats.length; i++)
+			heartbeats[i].cancel();
+		assertEquals(0, scheduler.getHeartbeatCount());
+		// a run in progress is not interrupted
+		Thread.sleep(20);
+		long total = 0;
+		for (int i = 0; i < heartbeats.length; i++) {
+			assertTrue(heartbeats[i].isCancelled());
+			total += heartbeats[i].getRunCount();
+		}
+		assertEquals(total, runs.get());
+		assertEquals(total, scheduler.getRunCount());
+		Thread.sleep(100);
+		assertEquals(total, runs.get());
+	}
+
+	/**
+	 * Deadlines several revolutions out are neither run early nor lost.
+	 */
+	public void testDeadlineBeyondRevolution() throws Exception {
+		RecordingTask once = new RecordingTask();
+		Heartbeat onceHeartbeat = scheduler.schedule(once, 5 * WHEEL_SIZE);
+		RecordingTask periodic = new RecordingTask();
+		Heartbeat periodicHeartbeat = scheduler.schedule(periodic,
+				3 * WHEEL_SIZE, 2 * WHEEL_SIZE);
+		waitForRuns(onceHeartbeat, 1);
+		waitForRuns(periodicHeartbeat, 4);
+		assertTrue(once.getRuns().get(0).longValue() >= 5 * WHEEL_SIZE);
+		List<Long> runs = periodic.getRuns();
+		for (int i = 0; i < 4; i++)
+			assertTrue(runs.toString(), runs.get(i).longValue() >= (3 + 2 * i)
+					* WHEEL_SIZE);
+		// a heartbeat that runs once is removed
+		Thread.sleep(10 * WHEEL_SIZE);
+		assertEquals(1, onceHeartbeat.getRunCount());
+		assertEquals(1, scheduler.getHeartbeatCount());
+	}
+
+	/**
+	 * A heartbeat cancelled while running is not run again, and one due at
+	 * the same time that a running task cancels is not run at all.
+	 */
+	public void testCancelDuringRun() throws Exception {
+		final Heartbeat[] heartbeats = new Heartbeat[2];
+		final CountDownLatch scheduled = new CountDownLatch(1);
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable cancelBoth = new Runnable() {
+			public void run() {
+				try {
+					scheduled.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				runs.incrementAndGet();
+				heartbeats[0].cancel();
+				heartbeats[1].cancel();
+			}
+		};
+		heartbeats[0] = scheduler.schedule(cancelBoth, 10, 10);
+		heartbeats[1] = scheduler.schedule(cancelBoth, 10, 10);
+		scheduled.countDown();
+		Thread.sleep(100);
+		assertEquals(1, runs.get());
+		assertEquals(1, heartbeats[0].getRunCount()
+				+ heartbeats[1].getRunCount());
+		assertEquals(0, scheduler.getHeartbeatCount());
+	}
+
+	/**
+	 * Periods missed during a pause are skipped rather than run back to
+	 * back, and the heartbeat keeps its rate afterwards.
+	 */
+	public void testMissedPeriodsSkipped() throws Exception {
+		RecordingTask task = new RecordingTask();
+		Heartbeat heartbeat = scheduler.schedule(task, 0, 10);
+		waitForRuns(heartbeat, 2);
+		long pauseStart = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- task.created);
+		scheduler.schedule(pause(200), 0);
+		Thread.sleep(400);
+		List<Long> runs = task.getRuns();
+		int during = 0;
+		int catchUp = 0;
+		for (int i = 0; i < runs.size(); i++) {
+			long t = runs.get(i).longValue();
+			if (t > pauseStart + 20 && t < pauseStart + 200)
+				during++;
+			else if (t >= pauseStart + 200 && t < pauseStart + 205)
+				catchUp++;
+		}
+		assertEquals(runs.toString(), 0, during);
+		// at most the late run and the next one due
+		assertTrue(runs.toString(), catchUp <= 2);
+		// about 20 periods in 400 ms, minus the ones skipped
+		assertTrue(runs.toString(), runs.size() < 35);
+		assertTrue(runs.toString(), heartbeat.getRunCount() >= 15);
+		assertTrue(heartbeat.getMaxLateness() >= 150);
+	}
+
+	/**
+	 * After a pause of several revolutions all heartbeats that became due
+	 * run once, and their lateness is recorded.
+	 */
+	public void testExpireAfterLongPause() throws Exception {
+		scheduler.schedule(pause(10 * WHEEL_SIZE), 0);
+		Heartbeat[] heartbeats = new Heartbeat[] {
+				scheduler.schedule(new RecordingTask(), 5),
+				scheduler.schedule(new RecordingTask(), WHEEL_SIZE + 3),
+				scheduler.schedule(new RecordingTask(), 3 * WHEEL_SIZE),
+				scheduler.schedule(new RecordingTask(), 6 * WHEEL_SIZE,
+						100 * WHEEL_SIZE) };
+		for (int i = 0; i < heartbeats.length; i++)
+			waitForRuns(heartbeats[i], 1);
+		Thread.sleep(WHEEL_SIZE);
+		long maxLateness = 0;
+		for (int i = 0; i < heartbeats.length; i++) {
+			assertEquals(1, heartbeats[i].getRunCount());
+			assertEquals(heartbeats[i].getLastLateness(), heartbeats[i]
+					.getMaxLateness());
+			maxLateness = Math.max(maxLateness, heartbeats[i]
+					.getMaxLateness());
+		}
+		// the one due after 5 ms waited for the rest of the pause
+		assertTrue(heartbeats[0].getLastLateness() >= 10 * WHEEL_SIZE - 5 - 2);
+		assertTrue(heartbeats[0].getLastLateness() > heartbeats[2]
+				.getLastLateness());
+		assertEquals(5, scheduler.getRunCount());
+		assertEquals(maxLateness, scheduler.getMaxLateness());
+		assertTrue(scheduler.getAverageLateness() > 0);
+		assertTrue(scheduler.getAverageLateness() < maxLateness);
+		assertEquals(1, scheduler.getHeartbeatCount());
+	}
+
+	/**
+	 * The default wheel of 100 ms ticks runs a heartbeat no earlier than due.
+	 */
+	public void testDefaultWheel() throws Exception {
+		EtcdHeartbeatScheduler s = new EtcdHeartbeatScheduler(getName());
+		try {
+			RecordingTask task = new RecordingTask();
+			Heartbeat heartbeat = s.schedule(task, 150, 200);
+			waitForRuns(heartbeat, 2);
+			List<Long> runs = task.getRuns();
+			assertTrue(runs.toString(), runs.get(0).longValue() >= 150);
+			assertTrue(runs.toString(), runs.get(1).longValue() >= 350);
+			assertEquals(200, heartbeat.getPeriod());
+		} finally {
+			s.shutdown();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdJsonReader;
+import org.json.JSONException;
+
+@SuppressWarnings("restriction")
+public class EtcdJsonReaderTest extends TestCase {
+
+	static EtcdJsonReader reader(String json) {
+		return new EtcdJsonReader(new StringReader(json));
+	}
+
+	public void testValues() throws Exception {
+		EtcdJsonReader r = reader(" {\"s\" : \"v\", \"n\":-12, \"big\":1e3,"
+				+ "\"t\":true,\"f\" : false, \"z\":null,\"a\":[1, \"2\"],"
+				+ "\"o\":{}}\n");
+		assertEquals(EtcdJsonReader.BEGIN_OBJECT, r.peek());
+		r.beginObject();
+		assertEquals("s", r.nextName());
+		assertEquals("v", r.nextString());
+		assertEquals("n", r.nextName());
+		assertEquals(EtcdJsonReader.NUMBER, r.peek());
+		assertEquals(-12, r.nextInt());
+		assertEquals("big", r.nextName());
+		assertEquals(1000, r.nextLong());
+		assertEquals("t", r.nextName());
+		assertTrue(r.nextBoolean());
+		assertEquals("f", r.nextName());
+		assertFalse(r.nextBoolean());
+		assertEquals("z", r.nextName());
+		assertEquals(EtcdJsonReader.NULL, r.peek());
+		r.nextNull();
+		assertEquals("a", r.nextName());
+		r.beginArray();
+		assertTrue(r.hasNext());
+		assertEquals(1, r.nextLong());
+		// numbers may be quoted, e.g. by the v3 json gateway
+		assertEquals(2, r.nextLong());
+		assertFalse(r.hasNext());
+		r.endArray();
+		assertEquals("o", r.nextName());
+		r.beginObject();
+		assertFalse(r.hasNext());
+		r.endObject();
+		assertFalse(r.hasNext());
+		r.endObject();
+		assertEquals(EtcdJsonReader.END_DOCUMENT, r.peek());
+	}
+
+	public void testEscapes() throws Exception {
+		EtcdJsonReader r = reader("[\"a\\\"b\\\\c\\/d\\n\\t\\u00e9\\u20AC\"]");
+		r.beginArray();
+		assertEquals("a\"b\\c/d\n\t\u00e9\u20ac", r.nextString());
+		r.endArray();
+	}
+
+	/**
+	 * Strings and escapes that span the read buffer are read completely.
+	 */
+	public void testLongString() throws Exception {
+		StringBuffer value = new StringBuffer();
+		StringBuffer json = new StringBuffer("[\"");
+		for (int i = 0; i < 5000; i++) {
+			value.append("x\"");
+			json.append("x\\\"");
+		}
+		json.append("\",1]");
+		EtcdJsonReader r = reader(json.toString());
+		r.beginArray();
+		assertEquals(value.toString(), r.nextString());
+		assertEquals(1, r.nextInt());
+		r.endArray();
+	}
+
+	public void testSkipValue() throws Exception {
+		EtcdJsonReader r = reader("{\"skip\":{\"a\":[1,{\"b\":\"]}\"}],"
+				+ "\"c\":null},\"keep\":\"value\",\"last\":\"s\\\"\"}");
+		r.beginObject();
+		assertEquals("skip", r.nextName());
+		r.skipValue();
+		assertEquals("keep", r.nextName());
+		assertEquals("value", r.nextString());
+		assertEquals("last", r.nextName());
+		r.skipValue();
+		r.endObject();
+		assertEquals(EtcdJsonReader.END_DOCUMENT, r.peek());
+	}
+
+	public void testDeepNesting() throws Exception {
+		int depth = 100;
+		StringBuffer json = new StringBuffer();
+		for (int i = 0; i < depth; i++)
+			json.append('[');
+		for (int i = 0; i < depth; i++)
+			json.append(']');
+		EtcdJsonReader r = reader(json.toString());
+		for (int i = 0; i < depth; i++)
+			r.beginArray();
+		for (int i = 0; i < depth; i++)
+			r.endArray();
+		assertEquals(EtcdJsonReader.END_DOCUMENT, r.peek());
+	}
+
+	public void testSyntaxErrors() throws Exception {
+		String[] invalid = { "{\"a\" 1}", "{\"a\":1 \"b\":2}", "[1 2]",
+				"{1:2}", "[\"unterminated", "[1,", "{\"a\":", "[x]" };
+		for (int i = 0; i < invalid.length; i++) {
+			EtcdJsonReader r = reader(invalid[i]);
+			try {
+				r.skipValue();
+				fail("no error for " + invalid[i]);
+			} catch (JSONException e) {
+				// expected
+			}
+		}
+		EtcdJsonReader r = reader("[true]");
+		r.beginArray();
+		try {
+			r.nextName();
+			fail("name read in array");
+		} catch (JSONException e) {
+			// expected
+		}
+		r = reader("[\"\\u12\"]");
+		r.beginArray();
+		try {
+			r.nextString();
+			fail("invalid unicode escape read");
+		} catch (JSONException e) {
+			// expected
+		}
+	}
+}
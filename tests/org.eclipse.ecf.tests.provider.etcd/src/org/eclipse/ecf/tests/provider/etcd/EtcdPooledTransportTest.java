@@ -0,0 +1,527 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdGetRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdHttpResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdPooledTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestLatencies;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSetRequest;
+
+/**
+ * Tests of {@link EtcdPooledTransport} against a server that answers with
+ * scripted raw http responses.
+ */
+@SuppressWarnings("restriction")
+public class EtcdPooledTransportTest extends TestCase {
+
+	/** Scripted action: close the connection instead of responding */
+	static final String CLOSE = "close";
+	/** Scripted action: read the request, but never respond */
+	static final String HANG = "hang";
+
+	static final String OK = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n{}";
+
+	private ScriptedServer server;
+	private EtcdPooledTransport transport;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new ScriptedServer();
+		transport = new EtcdPooledTransport();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		transport.close();
+		server.close();
+	}
+
+	private String read(EtcdHttpResponse response) throws IOException {
+		InputStream in = response.getInputStream();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[256];
+		int r;
+		while ((r = in.read(buf)) != -1)
+			bos.write(buf, 0, r);
+		response.close();
+		return new String(bos.toByteArray(), "UTF-8");
+	}
+
+	/**
+	 * Latencies are recorded by the transport the request was sent with.
+	 */
+	public void testLatenciesPerTransport() throws Exception {
+		String body = "{\"action\":\"get\",\"node\":{\"key\":\"/a\","
+				+ "\"value\":\"a\",\"modifiedIndex\":1,\"createdIndex\":1}}";
+		String get = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length()
+				+ "\r\n\r\n" + body;
+		server.script(get, get);
+		EtcdPooledTransport other = new EtcdPooledTransport();
+		try {
+			new EtcdGetRequest(server.getUrl("/v2/keys/a")).execute(transport);
+			new EtcdGetRequest(server.getUrl("/v2/keys/b")).execute(transport);
+			assertEquals(2, transport.getLatencies().getLatencies().get("Get")
+					.getCount());
+			assertTrue(other.getLatencies().getLatencies().isEmpty());
+		} finally {
+			other.close();
+		}
+	}
+
+	public void testReadResentOnStaleConnection() throws Exception {
+		server.script(OK, CLOSE, OK);
+		assertEquals("{}", read(transport.send(new EtcdGetRequest(server
+				.getUrl("/v2/keys/a")))));
+		// the server closed the pooled connection before the second request
+		assertEquals("{}", read(transport.send(new EtcdGetRequest(server
+				.getUrl("/v2/keys/b")))));
+		assertEquals(1, transport.getStaleConnections());
+		assertEquals(2, server.getConnectionCount());
+	}
+
+	public void testWriteNotResentOnStaleConnection() throws Exception {
+		server.script(OK);
+		assertEquals("{}", read(transport.send(new EtcdGetRequest(server
+				.getUrl("/v2/keys/a")))));
+		// the pooled connection is idle and open, but its next request fails
+		server.script(CLOSE);
+		try {
+			transport.send(new EtcdSetRequest(server.getUrl("/v2/keys/b"),
+					"b"));
+			fail("write resent on a new connection");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	public void testWriteProbesIdleConnection() throws Exception {
+		server.script(OK, OK);
+		server.closeAfterResponse(true);
+		assertEquals("{}", read(transport.send(new EtcdGetRequest(server
+				.getUrl("/v2/keys/a")))));
+		server.awaitClosed(1);
+		// connections used just before are not probed
+		Thread.sleep(EtcdPooledTransport.PROBE_INTERVAL + 5);
+		// the closed connection is found before the request is written
+		assertEquals("{}", read(transport.send(new EtcdSetRequest(server
+				.getUrl("/v2/keys/b"), "b"))));
+		assertEquals(0, transport.getStaleConnections());
+		assertEquals(2, server.getConnectionCount());
+	}
+
+	/**
+	 * Beyond the limit of open connections a request closes an idle
+	 * connection, or waits for a connection in use to be released, up to its
+	 * connect timeout.
+	 */
+	public void testOpenConnectionsBounded() throws Exception {
+		EtcdTestServer etcd = new EtcdTestServer().start();
+		EtcdPooledTransport bounded = new EtcdPooledTransport(1, 2,
+				EtcdPooledTransport.KEEPALIVE_TIMEOUT,
+				new EtcdRequestLatencies());
+		try {
+			final String url = etcd.getKeysUrl() + "/a";
+			EtcdHttpResponse first = bounded.send(new EtcdGetRequest(url));
+			EtcdHttpResponse second = bounded.send(new EtcdGetRequest(url));
+			assertEquals(2, bounded.getOpenConnectionCount());
+			try {
+				bounded.send(new EtcdGetRequest(url) {
+					@Override
+					public int getConnectTimeout() {
+						return 200;
+					}
+				});
+				fail("limit not enforced");
+			} catch (ConnectException e) {
+				// expected
+			}
+
+			final EtcdPooledTransport t = bounded;
+			final EtcdHttpResponse[] third = new EtcdHttpResponse[1];
+			Thread waiting = new Thread("third request") {
+				public void run() {
+					try {
+						third[0] = t.send(new EtcdGetRequest(url));
+					} catch (IOException e) {
+						// asserted below
+					}
+				}
+			};
+			waiting.start();
+			waiting.join(200);
+			assertTrue(waiting.isAlive());
+			// released to the pool, then closed for the waiting request
+			read(first);
+			waiting.join(5000);
+			assertNotNull(third[0]);
+			assertEquals(2, bounded.getOpenConnectionCount());
+			// including the one that timed out
+			assertEquals(4, bounded.getMisses());
+			assertEquals(0, bounded.getIdleConnectionCount());
+
+			read(third[0]);
+			// not read to the end, so closed
+			second.close();
+			assertEquals(1, bounded.getOpenConnectionCount());
+			assertEquals(1, bounded.getIdleConnectionCount());
+		} finally {
+			bounded.close();
+			etcd.stop();
+		}
+		assertEquals(0, bounded.getOpenConnectionCount());
+	}
+
+	public void testReadTimeoutNotResent() throws Exception {
+		server.script(OK, HANG);
+		assertEquals("{}", read(transport.send(new EtcdGetRequest(server
+				.getUrl("/v2/keys/a")))));
+		try {
+			transport.send(new EtcdGetRequest(server.getUrl("/v2/keys/b")) {
+				@Override
+				public int getReadTimeout() {
+					return 500;
+				}
+			});
+			fail("read timeout not reported");
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+		assertEquals(0, transport.getStaleConnections());
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	public void testChunkedBodyKeepsConnection() throws Exception {
+		server.script("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "3;ext=1\r\n{\"a\r\n" + "a\r\n\":\"0123456\r\n"
+				+ "2\r\n\"}\r\n" + "0\r\nX-Trailer: t\r\n\r\n", OK);
+		assertEquals("{\"a\":\"0123456\"}", read(transport.send(new EtcdGetRequest(
+				server.getUrl("/v2/keys/a")))));
+		assertEquals("{}", read(transport.send(new EtcdGetRequest(server
+				.getUrl("/v2/keys/b")))));
+		assertEquals(1, server.getConnectionCount());
+		assertEquals(1, transport.getHits());
+	}
+
+	public void testTruncatedChunkedBody() throws Exception {
+		server.script("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "10\r\n{\"a\"");
+		server.closeAfterResponse(true);
+		try {
+			read(transport.send(new EtcdGetRequest(server.getUrl("/v2/keys/a"))));
+			fail("truncated body not reported");
+		} catch (EOFException e) {
+			// expected
+		}
+		assertEquals(0, transport.getIdleConnectionCount());
+	}
+
+	public void testContentLengthKeepsConnection() throws Exception {
+		server.script(OK, "HTTP/1.1 204 No Content\r\n\r\n", OK);
+		for (int i = 0; i < 3; i++)
+			read(transport.send(new EtcdGetRequest(server.getUrl("/v2/keys/"
+					+ i))));
+		assertEquals(1, server.getConnectionCount());
+		assertEquals(2, transport.getHits());
+		assertEquals(1, transport.getIdleConnectionCount());
+	}
+
+	public void testConnectionCloseNotReused() throws Exception {
+		server.script(
+				"HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 2\r\n\r\n{}",
+				OK);
+		read(transport.send(new EtcdGetRequest(server.getUrl("/v2/keys/a"))));
+		read(transport.send(new EtcdGetRequest(server.getUrl("/v2/keys/b"))));
+		assertEquals(2, server.getConnectionCount());
+		assertEquals(0, transport.getHits());
+	}
+
+	public void testHttp10BodyDelimitedByClose() throws Exception {
+		server.script("HTTP/1.0 200 OK\r\n\r\n{\"a\":1}");
+		server.closeAfterResponse(true);
+		assertEquals("{\"a\":1}", read(transport.send(new EtcdGetRequest(
+				server.getUrl("/v2/keys/a")))));
+		assertEquals(0, transport.getIdleConnectionCount());
+	}
+
+	public void testUnreadBodyNotReused() throws Exception {
+		server.script(OK, OK);
+		transport.send(new EtcdGetRequest(server.getUrl("/v2/keys/a")))
+				.close();
+		read(transport.send(new EtcdGetRequest(server.getUrl("/v2/keys/b"))));
+		assertEquals(2, server.getConnectionCount());
+	}
+
+	public void testRedirectFollowed() throws Exception {
+		server.script("HTTP/1.1 307 Temporary Redirect\r\nLocation: "
+				+ server.getUrl("/v2/keys/leader")
+				+ "\r\nContent-Length: 0\r\n\r\n", OK,
+				"HTTP/1.1 301 Moved Permanently\r\nLocation: /v2/keys/moved"
+						+ "\r\nContent-Length: 0\r\n\r\n", OK);
+		assertEquals("{}", read(transport.send(new EtcdSetRequest(server
+				.getUrl("/v2/keys/a"), "a"))));
+		assertEquals("{}", read(transport.send(new EtcdGetRequest(server
+				.getUrl("/v2/keys/b")))));
+		List<String> requests = server.getRequests();
+		assertEquals(4, requests.size());
+		assertTrue(requests.get(1).startsWith("PUT /v2/keys/leader "));
+		assertTrue(requests.get(3).startsWith("GET /v2/keys/moved "));
+	}
+
+	public void testRedirectNotFollowed() throws Exception {
+		// a write is not turned into a GET, nor sent to another protocol
+		server.script("HTTP/1.1 302 Found\r\nLocation: /v2/keys/b"
+				+ "\r\nContent-Length: 0\r\n\r\n",
+				"HTTP/1.1 307 Temporary Redirect\r\nLocation: "
+						+ "https://127.0.0.1/v2/keys/b"
+						+ "\r\nContent-Length: 0\r\n\r\n");
+		EtcdHttpResponse response = transport.send(new EtcdSetRequest(server
+				.getUrl("/v2/keys/a"), "a"));
+		assertEquals(302, response.getStatus());
+		response.close();
+		response = transport.send(new EtcdGetRequest(server
+				.getUrl("/v2/keys/a")));
+		assertEquals(307, response.getStatus());
+		response.close();
+		assertEquals(2, server.getRequests().size());
+	}
+
+	public void testRedirectLimit() throws Exception {
+		String redirect = "HTTP/1.1 307 Temporary Redirect\r\nLocation: /v2/keys/a"
+				+ "\r\nContent-Length: 0\r\n\r\n";
+		for (int i = 0; i < 10; i++)
+			server.script(redirect);
+		EtcdHttpResponse response = transport.send(new EtcdGetRequest(server
+				.getUrl("/v2/keys/a")));
+		assertEquals(307, response.getStatus());
+		response.close();
+		assertEquals(EtcdPooledTransport.MAX_REDIRECTS + 1, server
+				.getRequests().size());
+	}
+
+	public void testHttpProxy() throws Exception {
+		server.script(OK);
+		ProxySelector selector = ProxySelector.getDefault();
+		ProxySelector.setDefault(new TestProxySelector(server));
+		try {
+			read(transport.send(new EtcdGetRequest(
+					"http://etcd.invalid:2379/v2/keys/a")));
+		} finally {
+			ProxySelector.setDefault(selector);
+		}
+		String request = server.getRequests().get(0);
+		assertTrue(request,
+				request.startsWith("GET http://etcd.invalid:2379/v2/keys/a "));
+		assertTrue(request, request.contains("Host: etcd.invalid:2379\r\n"));
+	}
+
+	public void testHttpsTunnel() throws Exception {
+		server.script("HTTP/1.1 200 Connection established\r\n\r\n");
+		// no tls server behind the proxy, the handshake fails
+		server.closeAfterResponse(true);
+		ProxySelector selector = ProxySelector.getDefault();
+		ProxySelector.setDefault(new TestProxySelector(server));
+		try {
+			transport.send(new EtcdGetRequest(
+					"https://etcd.invalid:2379/v2/keys/a"));
+			fail("handshake succeeded");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			ProxySelector.setDefault(selector);
+		}
+		assertTrue(server.getRequests().get(0)
+				.startsWith("CONNECT etcd.invalid:2379 HTTP/1.1\r\n"));
+	}
+
+	/**
+	 * Selects the scripted server as http proxy for every uri.
+	 */
+	static class TestProxySelector extends ProxySelector {
+
+		private final Proxy proxy;
+
+		TestProxySelector(ScriptedServer server) {
+			proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(
+					"127.0.0.1", server.getPort()));
+		}
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			return Collections.singletonList(proxy);
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Server that answers every request with the next scripted response,
+	 * sequentially over all connections, and records the requests.
+	 */
+	static class ScriptedServer implements Runnable {
+
+		private final ServerSocket serverSocket;
+		private final LinkedList<String> responses = new LinkedList<String>();
+		private final List<String> requests = new ArrayList<String>();
+		private boolean closeAfterResponse;
+		private int connections;
+		private int closed;
+
+		ScriptedServer() throws IOException {
+			serverSocket = new ServerSocket(0);
+			Thread t = new Thread(this, "ScriptedServer");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		String getUrl(String path) {
+			return "http://127.0.0.1:" + getPort() + path;
+		}
+
+		synchronized void script(String... actions) {
+			for (String action : actions)
+				responses.add(action);
+		}
+
+		synchronized void closeAfterResponse(boolean close) {
+			closeAfterResponse = close;
+		}
+
+		synchronized int getConnectionCount() {
+			return connections;
+		}
+
+		synchronized List<String> getRequests() {
+			return new ArrayList<String>(requests);
+		}
+
+		synchronized void awaitClosed(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000;
+			while (closed < count && System.currentTimeMillis() < end)
+				wait(100);
+			assertTrue("connection not closed", closed >= count);
+		}
+
+		public void run() {
+			while (!serverSocket.isClosed()) {
+				Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException e) {
+					return;
+				}
+				synchronized (this) {
+					connections++;
+				}
+				try {
+					handle(socket);
+				} catch (IOException e) {
+					// client went away
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// ignore
+					}
+					synchronized (this) {
+						closed++;
+						notifyAll();
+					}
+				}
+			}
+		}
+
+		private void handle(Socket socket) throws IOException {
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			String head;
+			while ((head = readHead(in)) != null) {
+				String action;
+				boolean close;
+				synchronized (this) {
+					requests.add(head);
+					action = responses.isEmpty() ? CLOSE : responses
+							.removeFirst();
+					close = closeAfterResponse;
+				}
+				if (CLOSE.equals(action))
+					return;
+				if (HANG.equals(action)) {
+					// wait for the client to give up
+					while (in.read() != -1)
+						;
+					return;
+				}
+				out.write(action.getBytes("ISO-8859-1"));
+				out.flush();
+				if (close)
+					return;
+			}
+		}
+
+		/**
+		 * @return the request line and headers, the request body is skipped
+		 */
+		private String readHead(InputStream in) throws IOException {
+			StringBuffer head = new StringBuffer();
+			int b;
+			while ((b = in.read()) != -1) {
+				head.append((char) b);
+				if (head.length() >= 4
+						&& head.substring(head.length() - 4).equals(
+								"\r\n\r\n"))
+					break;
+			}
+			if (b == -1)
+				return null;
+			String h = head.toString();
+			int i = h.toLowerCase().indexOf("content-length:");
+			if (i >= 0) {
+				int length = Integer.parseInt(h.substring(i + 15,
+						h.indexOf('\r', i)).trim());
+				for (int n = 0; n < length; n++)
+					in.read();
+			}
+			return h;
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdErrorResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdException;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdGetRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdPooledTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestExecutor;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSetRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdResponseHandler;
+import org.eclipse.equinox.concurrent.future.IFuture;
+import org.eclipse.equinox.concurrent.future.IListenableFuture;
+import org.eclipse.equinox.concurrent.future.IProgressRunnable;
+
+/**
+ * Tests of {@link EtcdRequest#executeAsync} and {@link EtcdRequestExecutor}
+ * against {@link EtcdTestServer}.
+ */
+@SuppressWarnings("restriction")
+public class EtcdRequestExecutorTest extends TestCase {
+
+	private static final long TIMEOUT = 10000;
+
+	private EtcdTestServer server;
+	private EtcdPooledTransport transport;
+	private EtcdRequestExecutor executor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EtcdTestServer().start();
+		transport = new EtcdPooledTransport();
+		executor = new EtcdRequestExecutor(getName(), 2);
+	}
+
+	protected void tearDown() throws Exception {
+		executor.shutdown();
+		transport.close();
+		server.stop();
+		super.tearDown();
+	}
+
+	private String url(String key) {
+		return server.getKeysUrl() + key;
+	}
+
+	/**
+	 * The future completes with the response, and the handler runs on a
+	 * thread of the executor.
+	 */
+	public void testExecuteAsync() throws Exception {
+		EtcdResponse set = new EtcdSetRequest(url("/a"), "value a")
+				.executeAsync(transport, executor).get(TIMEOUT);
+		assertFalse(set.toString(), set.isError());
+		assertEquals("value a", server.getValue("/a"));
+
+		final boolean[] executorThread = new boolean[1];
+		IListenableFuture<String> get = new EtcdGetRequest(url("/a"))
+				.executeAsync(transport, executor,
+						new IEtcdResponseHandler<String>() {
+							public String handleResponse(EtcdResponse response) {
+								executorThread[0] = EtcdRequestExecutor
+										.isExecutorThread();
+								return response.getSuccessResponse().getNode()
+										.getValue();
+							}
+						});
+		assertEquals("value a", get.get(TIMEOUT));
+		assertTrue(get.isDone());
+		assertTrue(get.getStatus().isOK());
+		assertTrue(executorThread[0]);
+		assertFalse(EtcdRequestExecutor.isExecutorThread());
+	}
+
+	/**
+	 * An etcd error is a response, not a failure of the future.
+	 */
+	public void testErrorResponse() throws Exception {
+		EtcdResponse response = new EtcdGetRequest(url("/missing"))
+				.executeAsync(transport, executor).get(TIMEOUT);
+		assertTrue(response.isError());
+		EtcdErrorResponse error = response.getErrorResponse();
+		assertEquals(100, error.getErrorCode());
+	}
+
+	/**
+	 * A request that cannot be sent completes the future with an error
+	 * status holding the {@link EtcdException}, and so does a failing
+	 * handler.
+	 */
+	public void testFailureStatus() throws Exception {
+		ServerSocket closed = new ServerSocket(0);
+		int port = closed.getLocalPort();
+		closed.close();
+		IFuture<EtcdResponse> future = new EtcdGetRequest("http://127.0.0.1:"
+				+ port + "/v2/keys/a").executeAsync(transport, executor);
+		awaitDone(future);
+		assertFalse(future.getStatus().isOK());
+		assertTrue(future.getStatus().getException()
+				instanceof EtcdException);
+
+		final IllegalStateException failure = new IllegalStateException();
+		IFuture<Object> handled = new EtcdGetRequest(url("/a")).executeAsync(
+				transport, executor, new IEtcdResponseHandler<Object>() {
+					public Object handleResponse(EtcdResponse response) {
+						throw failure;
+					}
+				});
+		awaitDone(handled);
+		assertSame(failure, handled.getStatus().getException());
+	}
+
+	/**
+	 * After shutdown new requests are not sent, their futures complete at
+	 * once with the rejection. Requests submitted before still run.
+	 */
+	public void testRejectedAfterShutdown() throws Exception {
+		server.setLatency(200);
+		IFuture<EtcdResponse> submitted = new EtcdSetRequest(url("/a"),
+				"value a").executeAsync(transport, executor);
+		executor.shutdown();
+		IFuture<EtcdResponse> rejected = new EtcdSetRequest(url("/b"),
+				"value b").executeAsync(transport, executor);
+		assertTrue(rejected.isDone());
+		assertTrue(rejected.getStatus().getException()
+				instanceof RejectedExecutionException);
+
+		assertFalse(submitted.get(TIMEOUT).isError());
+		assertTrue(executor.awaitTermination(TIMEOUT));
+		assertEquals("value a", server.getValue("/a"));
+		assertNull(server.getValue("/b"));
+	}
+
+	/**
+	 * No more requests than threads are in flight, the others wait in the
+	 * queue and are counted as pending.
+	 */
+	public void testThreadsBounded() throws Exception {
+		server.setLatency(200);
+		long start = System.nanoTime();
+		List<IFuture<EtcdResponse>> futures =
+				new ArrayList<IFuture<EtcdResponse>>();
+		for (int i = 0; i < 6; i++)
+			futures.add(new EtcdSetRequest(url("/" + i), "value " + i)
+					.executeAsync(transport, executor));
+		assertEquals(6, executor.getPendingCount());
+		for (IFuture<EtcdResponse> future : futures)
+			assertFalse(future.get(TIMEOUT).isError());
+		// three rounds of two
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+				>= 600);
+		// a thread is still active for a moment after setting the result
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (executor.getPendingCount() > 0) {
+			if (System.currentTimeMillis() > end)
+				fail(executor.getPendingCount() + " requests pending");
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Listeners of a future are run once it completes.
+	 */
+	public void testListener() throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		final IListenableFuture<EtcdResponse> future = new EtcdSetRequest(
+				url("/a"), "value a").executeAsync(transport, executor);
+		future.addListener(executor, new IProgressRunnable<EtcdResponse>() {
+			public EtcdResponse run(IProgressMonitor monitor) throws Exception {
+				done.countDown();
+				return null;
+			}
+		}, null);
+		assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertTrue(future.isDone());
+	}
+
+	private static void awaitDone(IFuture<?> future)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (!future.isDone()) {
+			if (System.currentTimeMillis() > end)
+				fail(future + " not done");
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRetryBackoff;
+
+/**
+ * Tests of {@link EtcdRetryBackoff}, with a retry delay of 100 ms, a maximum
+ * of 1000 ms and a failure threshold of 3. Times are passed in explicitly.
+ */
+@SuppressWarnings("restriction")
+public class EtcdRetryBackoffTest extends TestCase {
+
+	private EtcdRetryBackoff backoff;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		backoff = new EtcdRetryBackoff(100, 1000, 3);
+	}
+
+	private static void assertBetween(long min, long max, long value) {
+		assertTrue(value + " not in [" + min + ", " + max + "]",
+				value >= min && value <= max);
+	}
+
+	public void testClosedOpenHalfOpenClosed() {
+		assertEquals(EtcdRetryBackoff.CLOSED, backoff.getState());
+		backoff.failed(0);
+		backoff.failed(100);
+		assertEquals(EtcdRetryBackoff.CLOSED, backoff.getState());
+		assertFalse(backoff.isOpen());
+		// the threshold opens the circuit
+		assertBetween(500, 1000, backoff.failed(300));
+		assertEquals(EtcdRetryBackoff.OPEN, backoff.getState());
+		assertTrue(backoff.isOpen());
+		assertEquals(1, backoff.getOpenCount());
+
+		backoff.attempting();
+		assertEquals(EtcdRetryBackoff.HALF_OPEN, backoff.getState());
+		// a failed trial opens it again, at the maximum delay
+		assertBetween(500, 1000, backoff.failed(1300));
+		assertEquals(EtcdRetryBackoff.OPEN, backoff.getState());
+		assertEquals(1, backoff.getOpenCount());
+		assertEquals(4, backoff.getConsecutiveFailures());
+
+		backoff.attempting();
+		backoff.succeeded(2300);
+		assertEquals(EtcdRetryBackoff.CLOSED, backoff.getState());
+		assertEquals(0, backoff.getConsecutiveFailures());
+		assertEquals(0, backoff.getCurrentBackoff());
+		assertEquals(4, backoff.getTotalFailures());
+
+		// attempts while closed do not change the state
+		backoff.attempting();
+		assertEquals(EtcdRetryBackoff.CLOSED, backoff.getState());
+		// the threshold counts from the last success
+		backoff.failed(2400);
+		backoff.failed(2500);
+		assertEquals(EtcdRetryBackoff.CLOSED, backoff.getState());
+		backoff.failed(2600);
+		assertEquals(EtcdRetryBackoff.OPEN, backoff.getState());
+		assertEquals(2, backoff.getOpenCount());
+	}
+
+	/**
+	 * Each delay is between half and all of the doubled delay, up to the
+	 * maximum, and varies between attempts.
+	 */
+	public void testJitterBounds() {
+		EtcdRetryBackoff b = new EtcdRetryBackoff(100, 1000, 100);
+		List<Long> delays = new ArrayList<Long>();
+		for (int round = 0; round < 50; round++) {
+			long expected = 100;
+			for (int i = 0; i < 8; i++) {
+				long delay = b.failed(0);
+				assertBetween(expected / 2, expected, delay);
+				assertEquals(delay, b.getCurrentBackoff());
+				if (i == 1)
+					delays.add(Long.valueOf(delay));
+				expected = Math.min(1000, expected * 2);
+			}
+			b.succeeded(0);
+		}
+		Long first = delays.get(0);
+		boolean varies = false;
+		for (Long delay : delays)
+			varies |= !delay.equals(first);
+		assertTrue(delays.toString(), varies);
+		// no overflow however many failures
+		for (int i = 0; i < 99; i++)
+			b.failed(0);
+		assertEquals(EtcdRetryBackoff.CLOSED, b.getState());
+		for (int i = 0; i < 100; i++)
+			assertBetween(500, 1000, b.failed(0));
+		assertEquals(EtcdRetryBackoff.OPEN, b.getState());
+	}
+
+	/**
+	 * The time in the open state adds up over the periods it was open or
+	 * half open, including the current one.
+	 */
+	public void testTimeInOpenState() {
+		assertEquals(0, backoff.getTimeInOpenState(1000));
+		backoff.failed(0);
+		backoff.failed(0);
+		backoff.failed(1000);
+		assertEquals(0, backoff.getTimeInOpenState(1000));
+		assertEquals(500, backoff.getTimeInOpenState(1500));
+		backoff.attempting();
+		assertEquals(1000, backoff.getTimeInOpenState(2000));
+		backoff.succeeded(3000);
+		assertEquals(2000, backoff.getTimeInOpenState(3000));
+		assertEquals(2000, backoff.getTimeInOpenState(10000));
+
+		backoff.failed(10000);
+		backoff.failed(10000);
+		backoff.failed(11000);
+		assertEquals(2500, backoff.getTimeInOpenState(11500));
+		backoff.succeeded(12000);
+		assertEquals(3000, backoff.getTimeInOpenState(20000));
+	}
+
+	/**
+	 * The combined backoff has the state of the worst one and the totals of
+	 * all of them.
+	 */
+	public void testCombine() {
+		EtcdRetryBackoff closed = new EtcdRetryBackoff(100, 1000, 3);
+		closed.failed(0);
+		closed.failed(0);
+		EtcdRetryBackoff open = new EtcdRetryBackoff(100, 1000, 1);
+		long openBackoff = open.failed(1000);
+		EtcdRetryBackoff recovered = new EtcdRetryBackoff(100, 1000, 1);
+		recovered.failed(0);
+		recovered.succeeded(400);
+
+		EtcdRetryBackoff combined = EtcdRetryBackoff.combine(Arrays.asList(
+				closed, open, recovered), 2000);
+		// open wins over more consecutive failures
+		assertEquals(EtcdRetryBackoff.OPEN, combined.getState());
+		assertEquals(1, combined.getConsecutiveFailures());
+		assertEquals(openBackoff, combined.getCurrentBackoff());
+		assertEquals(4, combined.getTotalFailures());
+		assertEquals(2, combined.getOpenCount());
+		assertEquals(1000 + 400, combined.getTimeInOpenState(2000));
+		// still open, from the time of the snapshot on
+		assertEquals(1000 + 400 + 3000, combined.getTimeInOpenState(5000));
+
+		// among closed ones the most consecutive failures win
+		EtcdRetryBackoff once = new EtcdRetryBackoff(100, 1000, 3);
+		once.failed(0);
+		combined = EtcdRetryBackoff.combine(Arrays.asList(once, closed,
+				recovered), 2000);
+		assertEquals(EtcdRetryBackoff.CLOSED, combined.getState());
+		assertEquals(2, combined.getConsecutiveFailures());
+		assertEquals(closed.getCurrentBackoff(), combined.getCurrentBackoff());
+
+		combined = EtcdRetryBackoff.combine(new ArrayList<EtcdRetryBackoff>(),
+				2000);
+		assertEquals(EtcdRetryBackoff.CLOSED, combined.getState());
+		assertEquals(0, combined.getTotalFailures());
+		assertEquals(0, combined.getTimeInOpenState(3000));
+	}
+
+	public void testStateNames() {
+		assertEquals("closed", EtcdRetryBackoff
+				.getStateName(EtcdRetryBackoff.CLOSED));
+		assertEquals("open", EtcdRetryBackoff
+				.getStateName(EtcdRetryBackoff.OPEN));
+		assertEquals("half-open", EtcdRetryBackoff
+				.getStateName(EtcdRetryBackoff.HALF_OPEN));
+	}
+}
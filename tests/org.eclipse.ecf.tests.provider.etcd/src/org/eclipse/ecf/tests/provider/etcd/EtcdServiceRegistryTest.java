@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.ServiceProperties;
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.discovery.identity.ServiceIDFactory;
+import org.eclipse.ecf.internal.provider.etcd.EtcdServiceRegistry;
+import org.eclipse.ecf.provider.etcd.EtcdServiceInfo;
+import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
+
+@SuppressWarnings("restriction")
+public class EtcdServiceRegistryTest extends TestCase {
+
+	private static final long FP = EtcdServiceRegistry.NO_FINGERPRINT;
+
+	private EtcdServiceRegistry<String> registry;
+	private IServiceTypeID type;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		registry = new EtcdServiceRegistry<String>();
+		type = ServiceIDFactory.getDefault().createServiceTypeID(
+				EtcdNamespace.INSTANCE, new String[] { "ecf", "registry" },
+				new String[] { "default" }, new String[] { "tcp" }, "iana");
+	}
+
+	EtcdServiceInfo createService(String name) throws Exception {
+		return new EtcdServiceInfo(new URI("ecftcp://localhost:3282/" + name),
+				name, type, 0, 0, new ServiceProperties(), 0);
+	}
+
+	/**
+	 * A change older than the stored service is ignored.
+	 */
+	public void testStalePut() throws Exception {
+		EtcdServiceInfo a1 = createService("a1");
+		EtcdServiceInfo a2 = createService("a2");
+		assertNull(registry.put("a", "s1", a2, 20, FP));
+		assertTrue(registry.isStale("a", 10));
+		assertFalse(registry.isStale("a", 20));
+		assertFalse(registry.isStale("a", 30));
+		// ignored: returns the given info
+		assertSame(a1, registry.put("a", "s1", a1, 10, FP));
+		assertSame(a2, registry.get("a"));
+		assertEquals(20, registry.getModifiedIndex("a"));
+		// an unknown index is never stale
+		assertSame(a2, registry.put("a", "s1", a1, 0, FP));
+		assertSame(a1, registry.get("a"));
+	}
+
+	/**
+	 * A removal is remembered, so that an older change of the key does not
+	 * add the service again, until the removal is pruned.
+	 */
+	public void testStaleAfterRemove() throws Exception {
+		EtcdServiceInfo a = createService("a");
+		registry.put("a", "s1", a, 10, FP);
+		// the removal is older than the stored service
+		assertNull(registry.remove("a", 5));
+		assertSame(a, registry.get("a"));
+
+		assertSame(a, registry.remove("a", 20));
+		assertNull(registry.get("a"));
+		assertEquals(1, registry.getRemovedCount());
+		assertTrue(registry.isStale("a", 15));
+		assertTrue(registry.isStale("a", 20));
+		assertSame(a, registry.put("a", "s1", a, 15, FP));
+		assertNull(registry.get("a"));
+
+		registry.pruneRemoved(21);
+		assertEquals(0, registry.getRemovedCount());
+		assertFalse(registry.isStale("a", 15));
+		assertNull(registry.put("a", "s1", a, 15, FP));
+		assertSame(a, registry.get("a"));
+	}
+
+	/**
+	 * A newer put replaces a remembered removal.
+	 */
+	public void testPutAfterRemove() throws Exception {
+		EtcdServiceInfo a = createService("a");
+		registry.put("a", "s1", a, 10, FP);
+		registry.remove("a", 20);
+		assertNull(registry.put("a", "s1", a, 30, FP));
+		assertEquals(0, registry.getRemovedCount());
+		assertTrue(registry.isStale("a", 25));
+	}
+
+	public void testRemoveSession() throws Exception {
+		EtcdServiceInfo a = createService("a");
+		EtcdServiceInfo b = createService("b");
+		EtcdServiceInfo c = createService("c");
+		registry.put("a", "s1", a, 10, FP);
+		registry.put("b", "s1", b, 30, FP);
+		registry.put("c", "s2", c, 10, FP);
+		Map<String, EtcdServiceInfo> removed = registry.removeSession("s1", 20);
+		// b changed after the session was removed
+		assertEquals(1, removed.size());
+		assertSame(a, removed.get("a"));
+		assertSame(b, registry.get("b"));
+		assertSame(c, registry.get("c"));
+		assertTrue(registry.isStale("a", 20));
+		assertEquals(2, registry.size());
+	}
+
+	/**
+	 * The list queries only see changes once they are published.
+	 */
+	public void testPublish() throws Exception {
+		EtcdServiceInfo a = createService("a");
+		registry.put("a", "s1", a, 10, FP);
+		assertEquals(0, registry.getServices().length);
+		registry.publish();
+		assertEquals(1, registry.getServices().length);
+		assertSame(a, registry.getServices(type)[0]);
+		assertEquals(1, registry.getServiceTypes().length);
+		registry.remove("a", 20);
+		assertEquals(1, registry.getServices().length);
+		registry.publish();
+		assertEquals(0, registry.getServices().length);
+		assertEquals(0, registry.getServiceTypes().length);
+	}
+
+	/**
+	 * The array of all services is built from the types of the snapshot, and
+	 * does not see changes published after it.
+	 */
+	public void testAllServices() throws Exception {
+		IServiceTypeID other = ServiceIDFactory.getDefault()
+				.createServiceTypeID(EtcdNamespace.INSTANCE,
+						new String[] { "ecf", "other" },
+						new String[] { "default" }, new String[] { "tcp" },
+						"iana");
+		EtcdServiceInfo a = createService("a");
+		EtcdServiceInfo b = new EtcdServiceInfo(new URI(
+				"ecftcp://localhost:3282/b"), "b", other, 0, 0,
+				new ServiceProperties(), 0);
+		registry.put("a", "s1", a, 10, FP);
+		registry.put("b", "s1", b, 11, FP);
+		EtcdServiceRegistry.Snapshot snapshot = registry.publish();
+		assertEquals(2, snapshot.getServiceCount());
+		registry.remove("a", 12);
+		registry.publish();
+		List<IServiceInfo> all = Arrays.asList(snapshot.getServices());
+		assertEquals(2, all.size());
+		assertTrue(all.contains(a));
+		assertTrue(all.contains(b));
+		assertSame(snapshot.getServices(), snapshot.getServices());
+		assertEquals(1, registry.getSnapshot().getServiceCount());
+		assertSame(b, registry.getServices()[0]);
+	}
+
+	/**
+	 * The list views of a snapshot share its arrays and cannot be modified.
+	 */
+	public void testSnapshotLists() throws Exception {
+		EtcdServiceInfo a = createService("a");
+		registry.put("a", "s1", a, 10, FP);
+		EtcdServiceRegistry.Snapshot snapshot = registry.publish();
+		List<IServiceInfo> list = snapshot.getServiceList();
+		assertEquals(1, list.size());
+		assertSame(a, list.get(0));
+		assertSame(list, snapshot.getServiceList());
+		assertSame(a, snapshot.getServiceList(type).get(0));
+		assertEquals(type, snapshot.getServiceTypeList().get(0));
+		try {
+			list.set(0, null);
+			fail("list modified");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		assertSame(a, snapshot.getServices()[0]);
+	}
+}
@@ -0,0 +1,1247 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdBase64;
+
+/**
+ * In-memory stand-in for an etcd v2 server, so that the provider can be tested
+ * and benchmarked without network access or an etcd installation.
+ * <p>
+ * Implements the subset of the <code>/v2/keys</code> api used by the
+ * provider: GET (optionally recursive), PUT of values and directories with
+ * <code>ttl</code> and <code>prevExist</code>, DELETE (with <code>dir</code>
+ * or <code>recursive</code>), long polling watches with <code>wait</code>,
+ * <code>waitIndex</code> and <code>recursive</code>, streaming watches with
+ * <code>stream=true</code> (one chunk per event), ttl expiry, the last
+ * {@link #HISTORY_SIZE} events for watches, and the
+ * <code>X-Etcd-Index</code> header. Connections are kept alive. A latency can
+ * be set that is added before every response.
+ * <p>
+ * Also implements the subset of the <code>/v3</code> json gateway used by the
+ * provider, on keys separate from the v2 tree: <code>kv/range</code>,
+ * <code>kv/put</code> and <code>kv/deleterange</code> of single keys and
+ * prefixes, <code>lease/grant</code>, <code>keepalive</code> and
+ * <code>revoke</code>, lease expiry, and streaming <code>watch</code>es of a
+ * prefix with <code>prev_kv</code>. Revisions are the v2 indexes.
+ * <p>
+ * For tests, watches can be held back ({@link #setWatchesHeld(boolean)}), the
+ * event history can be cleared ({@link #clearHistory()}) and the watches
+ * waiting for events can be counted ({@link #awaitWatches(int, long)}).
+ * <p>
+ * Can also be run standalone:
+ * <code>java EtcdTestServer [port [latencyMs]]</code>.
+ */
+public class EtcdTestServer {
+
+	public static final int HISTORY_SIZE = 1000;
+	public static final String KEYS_PATH = "/v2/keys";
+	public static final String V3_PATH = "/v3";
+
+	private static final long EXPIRY_INTERVAL = 50;
+
+	private static class Node {
+		final String key;
+		final boolean dir;
+		String value;
+		long expiration;
+		int createdIndex;
+		int modifiedIndex;
+		final Map<String, Node> children = new LinkedHashMap<String, Node>();
+
+		Node(String key, boolean dir) {
+			this.key = key;
+			this.dir = dir;
+		}
+	}
+
+	private static class KeyValue {
+		final String key;
+		String value = "";
+		int createRevision;
+		int modRevision;
+		long lease;
+
+		KeyValue(String key) {
+			this.key = key;
+		}
+	}
+
+	private static class Lease {
+		final long id;
+		final int ttl;
+		long expiration;
+		final Set<String> keys = new HashSet<String>();
+
+		Lease(long id, int ttl) {
+			this.id = id;
+			this.ttl = ttl;
+		}
+	}
+
+	private static class Event {
+		final int index;
+		final String key;
+		final String body;
+
+		Event(int index, String key, String body) {
+			this.index = index;
+			this.key = key;
+			this.body = body;
+		}
+	}
+
+	private static class Response {
+		final int status;
+		final int index;
+		final String body;
+		// streaming watch whose events follow the headers, or null
+		final Watch stream;
+
+		Response(int status, int index, String body) {
+			this(status, index, body, null);
+		}
+
+		Response(int status, int index, String body, Watch stream) {
+			this.status = status;
+			this.index = index;
+			this.body = body;
+			this.stream = stream;
+		}
+	}
+
+	private static class Watch {
+		final String key;
+		final boolean recursive;
+		// v3 watch of all keys starting with key
+		final boolean v3;
+		int waitIndex;
+
+		Watch(String key, boolean recursive, boolean v3, int waitIndex) {
+			this.key = key;
+			this.recursive = recursive;
+			this.v3 = v3;
+			this.waitIndex = waitIndex;
+		}
+	}
+
+	private final ServerSocket serverSocket;
+	private final Node root = new Node("/", true);
+	private final LinkedList<Event> history = new LinkedList<Event>();
+	private final TreeMap<String, KeyValue> keyValues = new TreeMap<String, KeyValue>();
+	private final Map<Long, Lease> leases = new HashMap<Long, Lease>();
+	private final LinkedList<Event> v3History = new LinkedList<Event>();
+	private long lastLeaseId = 0x7000;
+	private final Set<Socket> clients = new HashSet<Socket>();
+	private final ExecutorService connectionThreads;
+	private final AtomicLong requestCount = new AtomicLong();
+	private int index;
+	// watches from this index or before get "outdated and cleared"
+	private int clearedIndex;
+	private boolean watchesHeld;
+	private int waitingWatches;
+	private volatile long latency;
+	private volatile boolean stopped;
+	private Thread acceptThread;
+	private Thread expiryThread;
+
+	/**
+	 * Create a server on a free port of the loopback interface.
+	 */
+	public EtcdTestServer() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * Create a server on the given port of the loopback interface.
+	 */
+	public EtcdTestServer(int port) throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress("127.0.0.1", port));
+		connectionThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "EtcdTestServer connection");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public synchronized EtcdTestServer start() {
+		if (acceptThread != null)
+			return this;
+		acceptThread = new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, "EtcdTestServer accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		expiryThread = new Thread(new Runnable() {
+			public void run() {
+				expiryLoop();
+			}
+		}, "EtcdTestServer expiry");
+		expiryThread.setDaemon(true);
+		expiryThread.start();
+		return this;
+	}
+
+	public void stop() {
+		stopped = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		synchronized (this) {
+			for (Socket s : clients)
+				close(s);
+			clients.clear();
+			notifyAll();
+		}
+		connectionThreads.shutdownNow();
+		if (expiryThread != null)
+			expiryThread.interrupt();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return base url of the server, e.g. <code>http://127.0.0.1:2379</code>
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + getPort();
+	}
+
+	/**
+	 * @return url of the keys api, e.g.
+	 *         <code>http://127.0.0.1:2379/v2/keys</code>
+	 */
+	public String getKeysUrl() {
+		return getUrl() + KEYS_PATH;
+	}
+
+	/**
+	 * @return url of the v3 gateway, e.g. <code>http://127.0.0.1:2379/v3</code>
+	 */
+	public String getApiUrl() {
+		return getUrl() + V3_PATH;
+	}
+
+	/**
+	 * @param latency
+	 *            time in ms to wait before sending any response
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return the current etcd index
+	 */
+	public synchronized int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return number of requests received
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * @return the value of the given key, set through the v2 or the v3 api,
+	 *         or <code>null</code> if the key does not exist or is a v2
+	 *         directory
+	 */
+	public synchronized String getValue(String key) {
+		Node n = find(normalize(key));
+		if (n != null && !n.dir)
+			return n.value;
+		KeyValue kv = keyValues.get(key);
+		return (kv == null) ? null : kv.value;
+	}
+
+	/**
+	 * @return number of values (not directories) below the given key
+	 */
+	public synchronized int countValues(String key) {
+		Node n = find(normalize(key));
+		return (n == null) ? 0 : countValues(n);
+	}
+
+	private int countValues(Node n) {
+		if (!n.dir)
+			return 1;
+		int result = 0;
+		for (Node c : n.children.values())
+			result += countValues(c);
+		return result;
+	}
+
+	/**
+	 * @param held
+	 *            <code>true</code> to let watches wait without returning
+	 *            events or errors until called with <code>false</code>
+	 */
+	public synchronized void setWatchesHeld(boolean held) {
+		watchesHeld = held;
+		notifyAll();
+	}
+
+	/**
+	 * Forget the event history, as etcd does after
+	 * {@link #HISTORY_SIZE} changes. Watches for an index up to the current
+	 * index fail with "outdated and cleared".
+	 */
+	public synchronized void clearHistory() {
+		history.clear();
+		v3History.clear();
+		clearedIndex = index;
+		notifyAll();
+	}
+
+	/**
+	 * @return number of watches waiting for an event
+	 */
+	public synchronized int getWaitingWatches() {
+		return waitingWatches;
+	}
+
+	/**
+	 * Wait until at least the given number of watches wait for an event.
+	 *
+	 * @return <code>true</code> if they did within the given time in ms
+	 */
+	public boolean awaitWatches(int count, long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while (getWaitingWatches() < count) {
+			if (System.currentTimeMillis() >= end)
+				return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	// http
+
+	private void acceptLoop() {
+		while (!stopped) {
+			try {
+				final Socket s = serverSocket.accept();
+				s.setTcpNoDelay(true);
+				synchronized (this) {
+					if (stopped) {
+						close(s);
+						return;
+					}
+					clients.add(s);
+				}
+				connectionThreads.execute(new Runnable() {
+					public void run() {
+						serve(s);
+					}
+				});
+			} catch (IOException e) {
+				if (!stopped)
+					e.printStackTrace();
+			}
+		}
+	}
+
+	private void serve(Socket s) {
+		try {
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			OutputStream out = s.getOutputStream();
+			while (!stopped) {
+				String requestLine = readLine(in);
+				if (requestLine == null)
+					return;
+				if (requestLine.length() == 0)
+					continue;
+				Map<String, String> headers = new HashMap<String, String>();
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					int colon = line.indexOf(':');
+					if (colon > 0)
+						headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+				}
+				byte[] body = readBody(in, headers);
+				requestCount.incrementAndGet();
+				String[] parts = requestLine.split(" ");
+				Response response = handle(parts[0], (parts.length > 1) ? parts[1] : "/", body);
+				long l = latency;
+				if (l > 0)
+					Thread.sleep(l);
+				if (response.stream != null) {
+					writeStream(out, response);
+					return;
+				}
+				write(out, response);
+				if ("close".equalsIgnoreCase(headers.get("connection")))
+					return;
+			}
+		} catch (SocketException e) {
+			// closed
+		} catch (IOException e) {
+			if (!stopped)
+				e.printStackTrace();
+		} catch (InterruptedException e) {
+			// stopped
+		} finally {
+			synchronized (this) {
+				clients.remove(s);
+			}
+			close(s);
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int len = sb.length();
+				if (len > 0 && sb.charAt(len - 1) == '\r')
+					sb.setLength(len - 1);
+				return sb.toString();
+			}
+			sb.append((char) c);
+		}
+		return (sb.length() == 0) ? null : sb.toString();
+	}
+
+	private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+			while (true) {
+				String sizeLine = readLine(in);
+				if (sizeLine == null)
+					break;
+				int semi = sizeLine.indexOf(';');
+				int size = Integer.parseInt((semi < 0) ? sizeLine.trim() : sizeLine.substring(0, semi).trim(), 16);
+				if (size == 0) {
+					// trailers
+					String line;
+					while ((line = readLine(in)) != null && line.length() > 0)
+						;
+					break;
+				}
+				copy(in, bos, size);
+				readLine(in);
+			}
+		} else {
+			String length = headers.get("content-length");
+			if (length != null)
+				copy(in, bos, Integer.parseInt(length));
+		}
+		return bos.toByteArray();
+	}
+
+	private static void copy(InputStream in, ByteArrayOutputStream out, int length) throws IOException {
+		byte[] buf = new byte[Math.min(length, 8192)];
+		while (length > 0) {
+			int read = in.read(buf, 0, Math.min(buf.length, length));
+			if (read == -1)
+				throw new IOException("Unexpected end of request body");
+			out.write(buf, 0, read);
+			length -= read;
+		}
+	}
+
+	private static void write(OutputStream out, Response response) throws IOException {
+		byte[] body = response.body.getBytes("UTF-8");
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+		sb.append("Content-Type: application/json\r\n");
+		if (response.index >= 0)
+			sb.append("X-Etcd-Index: ").append(response.index).append("\r\n");
+		sb.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+		out.write(sb.toString().getBytes("ISO-8859-1"));
+		out.write(body);
+		out.flush();
+	}
+
+	/**
+	 * Write the events of a streaming watch as they happen, until the server
+	 * is stopped or the watch falls behind the event history.
+	 */
+	private void writeStream(OutputStream out, Response response) throws IOException, InterruptedException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+		sb.append("Content-Type: application/json\r\n");
+		if (response.index >= 0)
+			sb.append("X-Etcd-Index: ").append(response.index).append("\r\n");
+		sb.append("Transfer-Encoding: chunked\r\n\r\n");
+		out.write(sb.toString().getBytes("ISO-8859-1"));
+		out.flush();
+		Watch watch = response.stream;
+		if (watch.v3)
+			writeChunk(out, v3Result(getIndex(), "\"created\":true"));
+		Event e;
+		while ((e = nextEvent(watch)) != null)
+			writeChunk(out, watch.v3 ? v3Result(e.index, "\"events\":[" + e.body + "]") : e.body);
+		if (watch.v3 && !stopped)
+			writeChunk(out, v3Canceled());
+		out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	private static void writeChunk(OutputStream out, String chunk) throws IOException {
+		byte[] body = (chunk + "\n").getBytes("UTF-8");
+		out.write((Integer.toHexString(body.length) + "\r\n").getBytes("ISO-8859-1"));
+		out.write(body);
+		out.write("\r\n".getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	private synchronized Event nextEvent(Watch watch) throws InterruptedException {
+		while (!stopped) {
+			if (!watchesHeld) {
+				if (isCleared(watch.waitIndex, watch.v3 ? v3History : history))
+					return null;
+				Event e = findEvent(watch);
+				if (e != null) {
+					watch.waitIndex = e.index + 1;
+					return e;
+				}
+			}
+			waitForEvent();
+		}
+		return null;
+	}
+
+	private void waitForEvent() throws InterruptedException {
+		waitingWatches++;
+		try {
+			wait();
+		} finally {
+			waitingWatches--;
+		}
+	}
+
+	private static String reason(int status) {
+		switch (status) {
+		case 200:
+			return "OK";
+		case 201:
+			return "Created";
+		case 400:
+			return "Bad Request";
+		case 403:
+			return "Forbidden";
+		case 404:
+			return "Not Found";
+		case 405:
+			return "Method Not Allowed";
+		case 412:
+			return "Precondition Failed";
+		default:
+			return "Error";
+		}
+	}
+
+	private static void close(Socket s) {
+		try {
+			s.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private static Map<String, String> parseParams(String query, Map<String, String> params)
+			throws UnsupportedEncodingException {
+		if (query == null || query.length() == 0)
+			return params;
+		for (String pair : query.split("&")) {
+			if (pair.length() == 0)
+				continue;
+			int eq = pair.indexOf('=');
+			String name = URLDecoder.decode((eq < 0) ? pair : pair.substring(0, eq), "UTF-8");
+			String value = (eq < 0) ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+			params.put(name, value);
+		}
+		return params;
+	}
+
+	private static String normalize(String key) {
+		StringBuilder sb = new StringBuilder("/");
+		for (String segment : key.split("/"))
+			if (segment.length() > 0)
+				sb.append(segment).append('/');
+		if (sb.length() > 1)
+			sb.setLength(sb.length() - 1);
+		return sb.toString();
+	}
+
+	private Response handle(String method, String uri, byte[] body) throws UnsupportedEncodingException,
+			InterruptedException {
+		int q = uri.indexOf('?');
+		String path = URLDecoder.decode((q < 0) ? uri : uri.substring(0, q), "UTF-8");
+		if (path.startsWith(V3_PATH + "/"))
+			return handleV3(path.substring(V3_PATH.length()), new String(body, "UTF-8"));
+		Map<String, String> params = parseParams((q < 0) ? null : uri.substring(q + 1),
+				new HashMap<String, String>());
+		parseParams(new String(body, "UTF-8"), params);
+		if (!path.equals(KEYS_PATH) && !path.startsWith(KEYS_PATH + "/"))
+			return new Response(404, -1, "{\"message\":\"Not found\"}");
+		String key = normalize(path.substring(KEYS_PATH.length()));
+		if ("GET".equals(method)) {
+			if (isTrue(params, "wait"))
+				return watch(key, isTrue(params, "recursive"), params.get("waitIndex"), isTrue(params, "stream"));
+			return get(key, isTrue(params, "recursive"));
+		} else if ("PUT".equals(method) || "POST".equals(method))
+			return put(key, params);
+		else if ("DELETE".equals(method))
+			return delete(key, params);
+		return new Response(405, -1, "{\"message\":\"Method not allowed\"}");
+	}
+
+	private static boolean isTrue(Map<String, String> params, String name) {
+		return "true".equals(params.get(name));
+	}
+
+	// keys api
+
+	private synchronized Response get(String key, boolean recursive) {
+		Node n = find(key);
+		if (n == null)
+			return error(100, "Key not found", key);
+		StringBuilder sb = new StringBuilder("{\"action\":\"get\",\"node\":");
+		appendNode(sb, n, recursive ? Integer.MAX_VALUE : 1, true);
+		return new Response(200, index, sb.append('}').toString());
+	}
+
+	private synchronized Response watch(String key, boolean recursive, String waitIndexParam, boolean stream)
+			throws InterruptedException {
+		int waitIndex;
+		try {
+			waitIndex = (waitIndexParam == null || waitIndexParam.length() == 0) ? index + 1
+					: Integer.parseInt(waitIndexParam);
+		} catch (NumberFormatException e) {
+			return error(203, "The given index in POST form is not a number", "Watch");
+		}
+		Watch watch = new Watch(key, recursive, false, waitIndex);
+		while (!stopped) {
+			if (!watchesHeld) {
+				if (isCleared(waitIndex, history))
+					return error(401, "The event in requested index is outdated and cleared",
+							"the requested history has been cleared [" + getFirstIndex() + "/" + waitIndex + "]");
+				// the events are written by the connection thread
+				if (stream)
+					return new Response(200, index, null, watch);
+				Event e = findEvent(watch);
+				if (e != null)
+					return new Response(200, index, e.body);
+			}
+			waitForEvent();
+		}
+		throw new InterruptedException();
+	}
+
+	private boolean isCleared(int waitIndex, LinkedList<Event> events) {
+		return waitIndex <= clearedIndex
+				|| (events.size() == HISTORY_SIZE && waitIndex < events.getFirst().index);
+	}
+
+	/**
+	 * @return index of the oldest event in the history
+	 */
+	private int getFirstIndex() {
+		return history.isEmpty() ? index + 1 : history.getFirst().index;
+	}
+
+	private Event findEvent(Watch watch) {
+		for (Event e : watch.v3 ? v3History : history)
+			if (e.index >= watch.waitIndex
+					&& (watch.v3 ? e.key.startsWith(watch.key) : matches(watch.key, watch.recursive, e.key)))
+				return e;
+		return null;
+	}
+
+	private static boolean matches(String watchKey, boolean recursive, String eventKey) {
+		if (eventKey.equals(watchKey))
+			return true;
+		if (!recursive)
+			return false;
+		return "/".equals(watchKey) || eventKey.startsWith(watchKey + "/");
+	}
+
+	private synchronized Response put(String key, Map<String, String> params) {
+		boolean dir = isTrue(params, "dir");
+		String value = params.get("value");
+		String prevExist = params.get("prevExist");
+		long expiration = 0;
+		String ttlParam = params.get("ttl");
+		if (ttlParam != null && ttlParam.length() > 0) {
+			try {
+				int ttl = Integer.parseInt(ttlParam);
+				if (ttl > 0)
+					expiration = System.currentTimeMillis() + ttl * 1000L;
+			} catch (NumberFormatException e) {
+				return error(202, "The given TTL in POST form is not a number", "Update");
+			}
+		}
+		if ("/".equals(key))
+			return error(107, "Root is read only", key);
+		Node existing = find(key);
+		if ("true".equals(prevExist) && existing == null)
+			return error(100, "Key not found", key);
+		if ("false".equals(prevExist) && existing != null)
+			return error(105, "Key already exists", key);
+		if (existing != null && existing.dir) {
+			// only the ttl of an existing directory can be updated
+			if (!dir || !"true".equals(prevExist))
+				return error(102, "Not a file", key);
+			String prev = nodeJson(existing);
+			existing.expiration = expiration;
+			existing.modifiedIndex = ++index;
+			return applied(200, "update", existing, prev);
+		}
+		if (existing != null && dir)
+			return error(102, "Not a file", key);
+		Node parent = mkdirs(parentKey(key));
+		if (parent == null)
+			return error(104, "Not a directory", key);
+		String prev = (existing == null) ? null : nodeJson(existing);
+		Node n = new Node(key, dir);
+		n.value = dir ? null : ((value == null) ? "" : value);
+		n.expiration = expiration;
+		n.createdIndex = n.modifiedIndex = ++index;
+		parent.children.put(name(key), n);
+		String action = "true".equals(prevExist) ? "update" : "false".equals(prevExist) ? "create" : "set";
+		return applied((existing == null) ? 201 : 200, action, n, prev);
+	}
+
+	private synchronized Response delete(String key, Map<String, String> params) {
+		if ("/".equals(key))
+			return error(107, "Root is read only", key);
+		Node n = find(key);
+		if (n == null)
+			return error(100, "Key not found", key);
+		if (n.dir) {
+			if (!isTrue(params, "recursive")) {
+				if (!isTrue(params, "dir"))
+					return error(102, "Not a file", key);
+				if (!n.children.isEmpty())
+					return error(108, "Directory not empty", key);
+			}
+		}
+		String prev = nodeJson(n);
+		remove(n);
+		index++;
+		return applied(200, "delete", removedNode(n, index), prev);
+	}
+
+	private void expiryLoop() {
+		while (!stopped) {
+			try {
+				Thread.sleep(EXPIRY_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			expire(System.currentTimeMillis());
+		}
+	}
+
+	private synchronized void expire(long now) {
+		List<Node> expired = new ArrayList<Node>();
+		collectExpired(root, now, expired);
+		for (Node n : expired) {
+			String prev = nodeJson(n);
+			remove(n);
+			index++;
+			applied(200, "expire", removedNode(n, index), prev);
+		}
+		for (Lease lease : new ArrayList<Lease>(leases.values()))
+			if (lease.expiration <= now)
+				revoke(lease);
+	}
+
+	private static void collectExpired(Node n, long now, List<Node> expired) {
+		for (Iterator<Node> it = n.children.values().iterator(); it.hasNext();) {
+			Node c = it.next();
+			if (c.expiration > 0 && c.expiration <= now)
+				expired.add(c);
+			else if (c.dir)
+				collectExpired(c, now, expired);
+		}
+	}
+
+	/**
+	 * Record the event of a change, wake up watchers and create the response.
+	 */
+	private Response applied(int status, String action, Node n, String prev) {
+		StringBuilder sb = new StringBuilder("{\"action\":\"").append(action).append("\",\"node\":");
+		appendNode(sb, n, 0, false);
+		if (prev != null)
+			sb.append(",\"prevNode\":").append(prev);
+		String body = sb.append('}').toString();
+		history.add(new Event(index, n.key, body));
+		if (history.size() > HISTORY_SIZE)
+			history.removeFirst();
+		notifyAll();
+		return new Response(status, index, body);
+	}
+
+	private Response error(int errorCode, String message, String cause) {
+		int status;
+		switch (errorCode) {
+		case 100:
+			status = 404;
+			break;
+		case 105:
+			status = 412;
+			break;
+		case 102:
+		case 104:
+		case 107:
+		case 108:
+			status = 403;
+			break;
+		default:
+			status = 400;
+		}
+		StringBuilder sb = new StringBuilder("{\"errorCode\":").append(errorCode).append(",\"message\":");
+		appendString(sb, message);
+		sb.append(",\"cause\":");
+		appendString(sb, cause);
+		sb.append(",\"index\":").append(index).append('}');
+		return new Response(status, index, sb.toString());
+	}
+
+	// v3 gateway
+
+	private static final Pattern FIELD = Pattern.compile("\"(\\w+)\":\"?([^\",}]*)");
+
+	private Response handleV3(String path, String body) {
+		Map<String, String> fields = new HashMap<String, String>();
+		// the provider sends flat fields, or a single nested create_request
+		Matcher m = FIELD.matcher(body);
+		while (m.find())
+			fields.put(m.group(1), m.group(2));
+		String key = decode(fields.get("key"));
+		String rangeEnd = decode(fields.get("range_end"));
+		try {
+			if ("/kv/range".equals(path))
+				return range(key, rangeEnd);
+			else if ("/kv/put".equals(path))
+				return put(key, decode(fields.get("value")), parseLong(fields.get("lease")));
+			else if ("/kv/deleterange".equals(path))
+				return deleteRange(key, rangeEnd);
+			else if ("/lease/grant".equals(path))
+				return grant((int) parseLong(fields.get("TTL")));
+			else if ("/lease/keepalive".equals(path))
+				return keepAlive(parseLong(fields.get("ID")));
+			else if ("/lease/revoke".equals(path))
+				return revoke(parseLong(fields.get("ID")));
+			else if ("/watch".equals(path))
+				return watchV3(key, (int) parseLong(fields.get("start_revision")));
+		} catch (NumberFormatException e) {
+			return v3Error(400, 3, e.getMessage());
+		}
+		return v3Error(404, 5, "Not found");
+	}
+
+	private static String decode(String base64) {
+		return (base64 == null) ? null : EtcdBase64.decodeToString(base64);
+	}
+
+	private static long parseLong(String value) {
+		return (value == null || value.length() == 0) ? 0 : Long.parseLong(value);
+	}
+
+	private synchronized Response range(String key, String rangeEnd) {
+		List<KeyValue> kvs = select(key, rangeEnd);
+		StringBuilder sb = new StringBuilder("{");
+		appendHeader(sb);
+		if (!kvs.isEmpty()) {
+			sb.append(",\"kvs\":[");
+			for (int i = 0; i < kvs.size(); i++) {
+				if (i > 0)
+					sb.append(',');
+				appendKeyValue(sb, kvs.get(i));
+			}
+			sb.append("],\"count\":\"").append(kvs.size()).append('"');
+		}
+		return new Response(200, -1, sb.append('}').toString());
+	}
+
+	private synchronized Response put(String key, String value, long leaseId) {
+		Lease lease = null;
+		if (leaseId != 0) {
+			lease = leases.get(Long.valueOf(leaseId));
+			if (lease == null)
+				return v3Error(404, 5, "etcdserver: requested lease not found");
+		}
+		KeyValue prev = keyValues.get(key);
+		KeyValue kv = new KeyValue(key);
+		kv.value = (value == null) ? "" : value;
+		kv.modRevision = ++index;
+		kv.createRevision = (prev == null) ? index : prev.createRevision;
+		kv.lease = leaseId;
+		if (prev != null)
+			detach(prev);
+		keyValues.put(key, kv);
+		if (lease != null)
+			lease.keys.add(key);
+		v3Applied(false, kv, prev);
+		return v3Response("");
+	}
+
+	private synchronized Response deleteRange(String key, String rangeEnd) {
+		List<KeyValue> kvs = select(key, rangeEnd);
+		if (kvs.isEmpty())
+			return v3Response("");
+		index++;
+		for (KeyValue kv : kvs)
+			delete(kv);
+		return v3Response(",\"deleted\":\"" + kvs.size() + "\"");
+	}
+
+	private synchronized Response grant(int ttl) {
+		Lease lease = new Lease(++lastLeaseId, ttl);
+		lease.expiration = System.currentTimeMillis() + ttl * 1000L;
+		leases.put(Long.valueOf(lease.id), lease);
+		return v3Response(",\"ID\":\"" + lease.id + "\",\"TTL\":\"" + ttl + "\"");
+	}
+
+	private synchronized Response keepAlive(long leaseId) {
+		Lease lease = leases.get(Long.valueOf(leaseId));
+		// an unknown lease is answered without TTL
+		String ttl = "";
+		if (lease != null) {
+			lease.expiration = System.currentTimeMillis() + lease.ttl * 1000L;
+			ttl = ",\"TTL\":\"" + lease.ttl + "\"";
+		}
+		return new Response(200, -1, v3Result(index, "\"ID\":\"" + leaseId + "\"" + ttl));
+	}
+
+	private synchronized Response revoke(long leaseId) {
+		Lease lease = leases.get(Long.valueOf(leaseId));
+		if (lease == null)
+			return v3Error(404, 5, "etcdserver: requested lease not found");
+		revoke(lease);
+		return v3Response("");
+	}
+
+	/**
+	 * Remove the lease and delete its keys, as by expiry.
+	 */
+	private void revoke(Lease lease) {
+		leases.remove(Long.valueOf(lease.id));
+		if (lease.keys.isEmpty())
+			return;
+		index++;
+		for (String key : new ArrayList<String>(lease.keys))
+			delete(keyValues.get(key));
+	}
+
+	private synchronized Response watchV3(String prefix, int startRevision) {
+		// the events are written by the connection thread
+		return new Response(200, -1, null, new Watch(prefix, true, true, (startRevision > 0) ? startRevision
+				: index + 1));
+	}
+
+	/**
+	 * @return the key, or all keys from key up to range end (exclusive, or
+	 *         all following keys if "\0")
+	 */
+	private List<KeyValue> select(String key, String rangeEnd) {
+		if (rangeEnd == null) {
+			List<KeyValue> result = new ArrayList<KeyValue>(1);
+			KeyValue kv = keyValues.get(key);
+			if (kv != null)
+				result.add(kv);
+			return result;
+		}
+		if ("\0".equals(rangeEnd))
+			return new ArrayList<KeyValue>(keyValues.tailMap(key).values());
+		return new ArrayList<KeyValue>(keyValues.subMap(key, rangeEnd).values());
+	}
+
+	/**
+	 * Delete the key at the current revision.
+	 */
+	private void delete(KeyValue kv) {
+		keyValues.remove(kv.key);
+		detach(kv);
+		KeyValue deleted = new KeyValue(kv.key);
+		deleted.modRevision = index;
+		v3Applied(true, deleted, kv);
+	}
+
+	private void detach(KeyValue kv) {
+		Lease lease = (kv.lease == 0) ? null : leases.get(Long.valueOf(kv.lease));
+		if (lease != null)
+			lease.keys.remove(kv.key);
+	}
+
+	/**
+	 * Record the event of a change and wake up watchers.
+	 */
+	private void v3Applied(boolean delete, KeyValue kv, KeyValue prev) {
+		StringBuilder sb = new StringBuilder("{");
+		// as the gateway, omits the default type PUT
+		if (delete)
+			sb.append("\"type\":\"DELETE\",");
+		sb.append("\"kv\":");
+		appendKeyValue(sb, kv);
+		if (prev != null) {
+			sb.append(",\"prev_kv\":");
+			appendKeyValue(sb, prev);
+		}
+		v3History.add(new Event(index, kv.key, sb.append('}').toString()));
+		if (v3History.size() > HISTORY_SIZE)
+			v3History.removeFirst();
+		notifyAll();
+	}
+
+	private synchronized String v3Canceled() {
+		int compactRevision = v3History.isEmpty() ? index : v3History.getFirst().index - 1;
+		return v3Result(index, "\"canceled\":true,\"compact_revision\":\"" + compactRevision + "\"");
+	}
+
+	private static String v3Result(int revision, String fields) {
+		return "{\"result\":{\"header\":{\"revision\":\"" + revision + "\"}," + fields + "}}";
+	}
+
+	private Response v3Response(String fields) {
+		StringBuilder sb = new StringBuilder("{");
+		appendHeader(sb);
+		return new Response(200, -1, sb.append(fields).append('}').toString());
+	}
+
+	private Response v3Error(int status, int code, String message) {
+		StringBuilder sb = new StringBuilder("{\"error\":");
+		appendString(sb, message);
+		sb.append(",\"code\":").append(code).append(",\"message\":");
+		appendString(sb, message);
+		return new Response(status, -1, sb.append('}').toString());
+	}
+
+	private void appendHeader(StringBuilder sb) {
+		sb.append("\"header\":{\"revision\":\"").append(index).append("\"}");
+	}
+
+	private static void appendKeyValue(StringBuilder sb, KeyValue kv) {
+		// int64 values as strings and empty fields omitted, as by the gateway
+		sb.append("{\"key\":\"").append(EtcdBase64.encode(kv.key)).append('"');
+		if (kv.createRevision > 0)
+			sb.append(",\"create_revision\":\"").append(kv.createRevision).append('"');
+		sb.append(",\"mod_revision\":\"").append(kv.modRevision).append('"');
+		if (kv.value.length() > 0)
+			sb.append(",\"value\":\"").append(EtcdBase64.encode(kv.value)).append('"');
+		if (kv.lease != 0)
+			sb.append(",\"lease\":\"").append(kv.lease).append('"');
+		sb.append('}');
+	}
+
+	// tree
+
+	private static String parentKey(String key) {
+		int slash = key.lastIndexOf('/');
+		return (slash <= 0) ? "/" : key.substring(0, slash);
+	}
+
+	private static String name(String key) {
+		return key.substring(key.lastIndexOf('/') + 1);
+	}
+
+	private Node find(String key) {
+		Node n = root;
+		for (String segment : key.split("/")) {
+			if (segment.length() == 0)
+				continue;
+			if (!n.dir)
+				return null;
+			n = n.children.get(segment);
+			if (n == null)
+				return null;
+		}
+		return n;
+	}
+
+	/**
+	 * Find or create the directory with the given key.
+	 *
+	 * @return the directory, or <code>null</code> if a value is in the way
+	 */
+	private Node mkdirs(String key) {
+		Node n = root;
+		StringBuilder path = new StringBuilder();
+		for (String segment : key.split("/")) {
+			if (segment.length() == 0)
+				continue;
+			path.append('/').append(segment);
+			Node c = n.children.get(segment);
+			if (c == null) {
+				c = new Node(path.toString(), true);
+				c.createdIndex = c.modifiedIndex = ++index;
+				n.children.put(segment, c);
+			} else if (!c.dir)
+				return null;
+			n = c;
+		}
+		return n;
+	}
+
+	private void remove(Node n) {
+		Node parent = find(parentKey(n.key));
+		if (parent != null)
+			parent.children.remove(name(n.key));
+	}
+
+	private static Node removedNode(Node n, int modifiedIndex) {
+		Node result = new Node(n.key, n.dir);
+		result.createdIndex = n.createdIndex;
+		result.modifiedIndex = modifiedIndex;
+		return result;
+	}
+
+	// json
+
+	private String nodeJson(Node n) {
+		StringBuilder sb = new StringBuilder();
+		appendNode(sb, n, 0, false);
+		return sb.toString();
+	}
+
+	private void appendNode(StringBuilder sb, Node n, int depth, boolean listChildren) {
+		sb.append('{');
+		if (n != root) {
+			sb.append("\"key\":");
+			appendString(sb, n.key);
+			sb.append(',');
+		}
+		if (n.dir)
+			sb.append("\"dir\":true,");
+		else if (n.value != null) {
+			sb.append("\"value\":");
+			appendString(sb, n.value);
+			sb.append(',');
+		}
+		if (n.expiration > 0) {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'000000Z'");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			long ttl = Math.max(1, (n.expiration - System.currentTimeMillis() + 999) / 1000);
+			sb.append("\"expiration\":\"").append(format.format(new Date(n.expiration))).append("\",\"ttl\":")
+					.append(ttl).append(',');
+		}
+		if (n.dir && listChildren && depth > 0 && !n.children.isEmpty()) {
+			sb.append("\"nodes\":[");
+			boolean first = true;
+			for (Node c : n.children.values()) {
+				if (!first)
+					sb.append(',');
+				first = false;
+				appendNode(sb, c, depth - 1, depth > 1);
+			}
+			sb.append("],");
+		}
+		if (n != root)
+			sb.append("\"modifiedIndex\":").append(n.modifiedIndex).append(",\"createdIndex\":")
+					.append(n.createdIndex);
+		else if (sb.charAt(sb.length() - 1) == ',')
+			sb.setLength(sb.length() - 1);
+		sb.append('}');
+	}
+
+	private static void appendString(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					String hex = Integer.toHexString(c);
+					sb.append("\\u");
+					for (int j = hex.length(); j < 4; j++)
+						sb.append('0');
+					sb.append(hex);
+				} else
+					sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdTestServer[url=" + getUrl() + ", latency=" + latency + ", index=" + getIndex() + "]";
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : 2379;
+		EtcdTestServer server = new EtcdTestServer(port);
+		if (args.length > 1)
+			server.setLatency(Long.parseLong(args[1]));
+		server.start();
+		System.out.println("Started " + server);
+		synchronized (server) {
+			while (!server.stopped)
+				server.wait();
+		}
+	}
+}
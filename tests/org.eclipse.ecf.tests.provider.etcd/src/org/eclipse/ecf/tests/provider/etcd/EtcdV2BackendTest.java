@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdNode;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdPooledTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestExecutor;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSetRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV2Backend;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdResponseHandler;
+
+/**
+ * Tests of {@link EtcdV2Backend} against {@link EtcdTestServer}.
+ */
+@SuppressWarnings("restriction")
+public class EtcdV2BackendTest extends TestCase {
+
+	private static final long TIMEOUT = 10000;
+	private static final String SESSION = "/discovery/session";
+	private static final String DIRECTORY = "/discovery/type/session";
+	private static final String WATCHED = "/discovery/watched";
+
+	private EtcdTestServer server;
+	private EtcdPooledTransport transport;
+	private EtcdRequestExecutor executor;
+	private EtcdV2Backend backend;
+	private EtcdV2Backend streamBackend;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EtcdTestServer().start();
+		transport = new EtcdPooledTransport();
+		executor = new EtcdRequestExecutor("test", 4);
+		backend = new EtcdV2Backend(server.getKeysUrl(), transport, executor);
+		streamBackend = new EtcdV2Backend(server.getKeysUrl(), transport,
+				executor, true);
+		streamBackend.setWatchTimeout((int) TIMEOUT);
+	}
+
+	protected void tearDown() throws Exception {
+		streamBackend.close();
+		backend.close();
+		executor.shutdown();
+		transport.close();
+		server.stop();
+		super.tearDown();
+	}
+
+	static final IEtcdResponseHandler<EtcdResponse> RESPONSE =
+			new IEtcdResponseHandler<EtcdResponse>() {
+		public EtcdResponse handleResponse(EtcdResponse response) {
+			return response;
+		}
+	};
+
+	private void set(String key, String value, int ttl) throws Exception {
+		EtcdResponse response = backend.set(SESSION, DIRECTORY, ttl, key,
+				value, 0, RESPONSE).get();
+		assertFalse(response.toString(), response.isError());
+	}
+
+	private void waitForValue(String key, String value) throws Exception {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (value == null ? server.getValue(key) != null : !value
+				.equals(server.getValue(key))) {
+			if (System.currentTimeMillis() > end)
+				fail("key=" + key + " has value=" + server.getValue(key)
+						+ ", expected " + value);
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * @return the etcd index of the change
+	 */
+	private int setWatched(String key, String value) throws Exception {
+		EtcdResponse response = new EtcdSetRequest(server.getKeysUrl()
+				+ WATCHED + key, value).execute(transport);
+		assertFalse(response.toString(), response.isError());
+		return response.getSuccessResponse().getNode().getModifiedIndex();
+	}
+
+	private void assertChange(EtcdResponse response, String key, String value,
+			int index) {
+		assertNotNull(response);
+		assertFalse(response.toString(), response.isError());
+		EtcdNode node = response.getSuccessResponse().getNode();
+		assertEquals(WATCHED + key, node.getKey());
+		assertEquals(value, node.getValue());
+		assertEquals(index, node.getModifiedIndex());
+	}
+
+	/**
+	 * The changes of a directory are decoded one by one from a single
+	 * streaming watch request.
+	 */
+	public void testStreamWatch() throws Exception {
+		int index = server.getIndex();
+		int a = setWatched("/a", "value a");
+		int b = setWatched("/b", "value b");
+		long requests = server.getRequestCount();
+		assertChange(streamBackend.watch(WATCHED, index + 1), "/a",
+				"value a", a);
+		assertChange(streamBackend.watch(WATCHED, a + 1), "/b",
+				"value b", b);
+		assertEquals(requests + 1, server.getRequestCount());
+
+		// changes made while waiting are received on the same stream
+		final int[] c = new int[1];
+		Thread setter = new Thread() {
+			public void run() {
+				try {
+					server.awaitWatches(1, TIMEOUT);
+					c[0] = setWatched("/c", "value c");
+				} catch (Exception e) {
+					// asserted below
+				}
+			}
+		};
+		setter.start();
+		EtcdResponse response = streamBackend.watch(WATCHED, b + 1);
+		setter.join(TIMEOUT);
+		assertChange(response, "/c", "value c", c[0]);
+		assertEquals(requests + 2, server.getRequestCount());
+	}
+
+	/**
+	 * Without a change within the watch timeout the stream is closed, and
+	 * opened again from the given index by the next watch.
+	 */
+	public void testStreamReopenedAfterTimeout() throws Exception {
+		streamBackend.setWatchTimeout(300);
+		int index = server.getIndex();
+		long requests = server.getRequestCount();
+		long start = System.currentTimeMillis();
+		assertNull(streamBackend.watch(WATCHED, index + 1));
+		assertTrue(System.currentTimeMillis() - start >= 300);
+		assertEquals(requests + 1, server.getRequestCount());
+
+		int a = setWatched("/a", "value a");
+		assertChange(streamBackend.watch(WATCHED, index + 1), "/a",
+				"value a", a);
+		assertEquals(requests + 3, server.getRequestCount());
+	}
+
+	/**
+	 * A stream that fell behind is ended by the server. Reopening it from
+	 * its index answers with the error 401, upon which the caller reads the
+	 * directory again and watches from the index of that read.
+	 */
+	public void testStreamRecoversFromClearedIndex() throws Exception {
+		int index = server.getIndex();
+		int a = setWatched("/a", "value a");
+		assertChange(streamBackend.watch(WATCHED, index + 1), "/a",
+				"value a", a);
+
+		// the stream misses the changes, then the history is cleared
+		server.setWatchesHeld(true);
+		int b = setWatched("/b", "value b");
+		setWatched("/c", "value c");
+		server.clearHistory();
+		server.setWatchesHeld(false);
+		assertNull(streamBackend.watch(WATCHED, a + 1));
+
+		EtcdResponse error = streamBackend.watch(WATCHED, b);
+		assertTrue(error.isError());
+		assertEquals(401, error.getErrorResponse().getErrorCode());
+
+		EtcdResponse read = streamBackend.getDirectory(WATCHED, false);
+		assertFalse(read.isError());
+		int readIndex = read.getSuccessResponse().getEtcdIndex();
+		// a, b and c
+		assertEquals(3, read.getSuccessResponse().getNode().getNodes().length);
+		int d = setWatched("/d", "value d");
+		assertChange(streamBackend.watch(WATCHED, readIndex + 1), "/d",
+				"value d", d);
+	}
+
+	/**
+	 * The session directory is created with the first value set in it, and
+	 * kept alive by refreshing the session.
+	 */
+	public void testRefreshSessionDirectory() throws Exception {
+		assertFalse(backend.createSession(SESSION, 1).isError());
+		set(DIRECTORY + "/a", "value a", 1);
+		for (int i = 0; i < 6; i++) {
+			Thread.sleep(300);
+			assertFalse(backend.refreshSession(SESSION, 1).isError());
+		}
+		assertEquals("value a", server.getValue(DIRECTORY + "/a"));
+	}
+
+	/**
+	 * A session directory that expired is created again by the next refresh,
+	 * with the values set in it that were not deleted.
+	 */
+	public void testExpiredSessionDirectoryRecreated() throws Exception {
+		assertFalse(backend.createSession(SESSION, 30).isError());
+		set(DIRECTORY + "/a", "value a", 1);
+		set(DIRECTORY + "/b", "value b", 1);
+		assertFalse(backend.delete(DIRECTORY + "/b", RESPONSE).get()
+				.isError());
+		// not refreshed within its ttl
+		waitForValue(DIRECTORY + "/a", null);
+		assertFalse(backend.refreshSession(SESSION, 1).isError());
+		waitForValue(DIRECTORY + "/a", "value a");
+		assertNull(server.getValue(DIRECTORY + "/b"));
+		// kept alive again by further refreshes
+		for (int i = 0; i < 6; i++) {
+			Thread.sleep(300);
+			assertFalse(backend.refreshSession(SESSION, 1).isError());
+		}
+		assertEquals("value a", server.getValue(DIRECTORY + "/a"));
+	}
+}
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdBase64;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdErrorResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdJsonReader;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdNode;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdPooledTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdProtocol;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestExecutor;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSuccessResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV3Backend;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV3KeyValue;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV3Request;
+import org.json.JSONException;
+
+/**
+ * Tests of {@link EtcdV3Backend} against the v3 gateway of
+ * {@link EtcdTestServer}, and of the decoding of v3 key values.
+ */
+@SuppressWarnings("restriction")
+public class EtcdV3BackendTest extends TestCase {
+
+	private static final long TIMEOUT = 10000;
+	private static final String DIRECTORY = "/discovery";
+	private static final String SESSION = DIRECTORY + "/session";
+
+	private EtcdTestServer server;
+	private EtcdPooledTransport transport;
+	private EtcdRequestExecutor executor;
+	private EtcdV3Backend backend;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EtcdTestServer().start();
+		transport = new EtcdPooledTransport();
+		executor = new EtcdRequestExecutor("test", 4);
+		backend = new EtcdV3Backend(server.getApiUrl(), transport, executor);
+	}
+
+	protected void tearDown() throws Exception {
+		backend.close();
+		executor.shutdown();
+		transport.close();
+		server.stop();
+		super.tearDown();
+	}
+
+	private EtcdSuccessResponse set(String key, String value)
+			throws Exception {
+		EtcdResponse response = backend.set(SESSION, key, value, 0,
+				EtcdV2BackendTest.RESPONSE).get();
+		assertFalse(response.toString(), response.isError());
+		return response.getSuccessResponse();
+	}
+
+	private void waitForValue(String key, String value) throws Exception {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (value == null ? server.getValue(key) != null : !value
+				.equals(server.getValue(key))) {
+			if (System.currentTimeMillis() > end)
+				fail("key=" + key + " has value=" + server.getValue(key)
+						+ ", expected " + value);
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * Keys set in the session are bound to its lease: refreshing keeps them,
+	 * deleting the session removes them.
+	 */
+	public void testSession() throws Exception {
+		assertFalse(backend.createSession(SESSION, 1).isError());
+		assertEquals("", server.getValue(SESSION));
+		EtcdSuccessResponse response = set(SESSION + "/a", "value a");
+		assertEquals(server.getIndex(), response.getEtcdIndex());
+		assertEquals(server.getIndex(), response.getNode()
+				.getModifiedIndex());
+		for (int i = 0; i < 6; i++) {
+			Thread.sleep(300);
+			assertFalse(backend.refreshSession(SESSION, 1).isError());
+		}
+		assertEquals("value a", server.getValue(SESSION + "/a"));
+		assertFalse(backend.deleteSession(SESSION).isError());
+		assertNull(server.getValue(SESSION));
+		assertNull(server.getValue(SESSION + "/a"));
+	}
+
+	/**
+	 * Keys of a session that is not refreshed expire with its lease, and
+	 * refreshing the session afterwards fails with 'key not found'.
+	 */
+	public void testSessionExpiry() throws Exception {
+		assertFalse(backend.createSession(SESSION, 1).isError());
+		set(SESSION + "/a", "value a");
+		waitForValue(SESSION + "/a", null);
+		assertNull(server.getValue(SESSION));
+		EtcdResponse response = backend.refreshSession(SESSION, 1);
+		assertTrue(response.isError());
+		assertEquals(EtcdV3Request.ERRORCODE_KEY_NOT_FOUND, response
+				.getErrorResponse().getErrorCode());
+	}
+
+	/**
+	 * A range read returns the keys below a directory as v2 style node tree,
+	 * with empty values as directories.
+	 */
+	public void testGetDirectory() throws Exception {
+		assertFalse(backend.createSession(SESSION, 30).isError());
+		set(SESSION + "/a", "value a");
+		set(SESSION + "/type/b", "value b");
+		set("/other/c", "value c");
+		EtcdResponse response = backend.getDirectory(DIRECTORY, false);
+		assertFalse(response.toString(), response.isError());
+		EtcdNode top = response.getSuccessResponse().getNode();
+		assertEquals(DIRECTORY, top.getKey());
+		assertEquals(server.getIndex(), top.getModifiedIndex());
+		EtcdNode[] nodes = top.getNodes();
+		assertEquals(1, nodes.length);
+		EtcdNode session = nodes[0];
+		assertEquals(SESSION, session.getKey());
+		assertTrue(session.isDirectory());
+		nodes = session.getNodes();
+		assertEquals(2, nodes.length);
+		assertEquals(SESSION + "/type", nodes[0].getKey());
+		assertTrue(nodes[0].isDirectory());
+		assertEquals("value b", nodes[0].getNodes()[0].getValue());
+		assertEquals(SESSION + "/a", nodes[1].getKey());
+		assertEquals("value a", nodes[1].getValue());
+		assertEquals(0, backend.getDirectory("/empty", true)
+				.getSuccessResponse().getNode().getNodes().length);
+	}
+
+	/**
+	 * Deleting a key reports the revision of the delete; deleting a missing
+	 * key fails with 'key not found'.
+	 */
+	public void testDelete() throws Exception {
+		set("/d/a", "value a");
+		EtcdResponse response = backend.delete("/d/a",
+				EtcdV2BackendTest.RESPONSE).get();
+		assertFalse(response.toString(), response.isError());
+		assertEquals(server.getIndex(), response.getSuccessResponse()
+				.getNode().getModifiedIndex());
+		assertNull(server.getValue("/d/a"));
+		response = backend.delete("/d/a", EtcdV2BackendTest.RESPONSE).get();
+		assertTrue(response.isError());
+		assertEquals(EtcdV3Request.ERRORCODE_KEY_NOT_FOUND, response
+				.getErrorResponse().getErrorCode());
+	}
+
+	/**
+	 * Only the keys in the session directory are deleted, with one revision,
+	 * not the session key itself.
+	 */
+	public void testDeleteSessionServices() throws Exception {
+		assertFalse(backend.createSession(SESSION, 30).isError());
+		set(SESSION + "/a", "value a");
+		set(SESSION + "/type/b", "value b");
+		set(SESSION + "x/c", "value c");
+		EtcdResponse response = backend.deleteSessionServices(SESSION,
+				EtcdV2BackendTest.RESPONSE).get();
+		assertFalse(response.toString(), response.isError());
+		assertEquals(server.getIndex(), response.getSuccessResponse()
+				.getEtcdIndex());
+		assertNull(server.getValue(SESSION + "/a"));
+		assertNull(server.getValue(SESSION + "/type/b"));
+		assertEquals("", server.getValue(SESSION));
+		assertEquals("value c", server.getValue(SESSION + "x/c"));
+		// nothing left to delete is no error
+		assertFalse(backend.deleteSessionServices(SESSION,
+				EtcdV2BackendTest.RESPONSE).get().isError());
+	}
+
+	/**
+	 * Changes are read from one watch stream, translated into v2 actions with
+	 * the previous values.
+	 */
+	public void testWatch() throws Exception {
+		int index = server.getIndex();
+		set(DIRECTORY + "/a", "1");
+		set(DIRECTORY + "/a", "2");
+		set("/other/b", "3");
+		backend.delete(DIRECTORY + "/a", EtcdV2BackendTest.RESPONSE).get();
+		long requests = server.getRequestCount();
+
+		EtcdSuccessResponse change = watch(index + 1);
+		assertEquals(EtcdProtocol.ACTION_CREATE, change.getAction());
+		assertEquals(DIRECTORY + "/a", change.getNode().getKey());
+		assertEquals("1", change.getNode().getValue());
+		assertEquals(index + 1, change.getNode().getModifiedIndex());
+		assertNull(change.getPreviousNode());
+
+		change = watch(index + 2);
+		assertEquals(EtcdProtocol.ACTION_SET, change.getAction());
+		assertEquals("2", change.getNode().getValue());
+		assertEquals("1", change.getPreviousNode().getValue());
+
+		change = watch(index + 3);
+		assertEquals(EtcdProtocol.ACTION_DELETE, change.getAction());
+		assertEquals(DIRECTORY + "/a", change.getNode().getKey());
+		assertEquals(index + 4, change.getNode().getModifiedIndex());
+		assertEquals("2", change.getPreviousNode().getValue());
+		assertEquals(requests + 1, server.getRequestCount());
+
+		// waits on the open stream
+		set(DIRECTORY + "/e", "5");
+		change = watch(index + 5);
+		assertEquals(DIRECTORY + "/e", change.getNode().getKey());
+		assertEquals(requests + 2, server.getRequestCount());
+	}
+
+	private EtcdSuccessResponse watch(int index) throws Exception {
+		EtcdResponse response = backend.watch(DIRECTORY, index);
+		assertFalse(String.valueOf(response), response.isError());
+		return response.getSuccessResponse();
+	}
+
+	/**
+	 * A watch without changes returns <code>null</code> after the watch
+	 * timeout, and the next watch opens the stream again.
+	 */
+	public void testWatchTimeout() throws Exception {
+		backend.setWatchTimeout(200);
+		int index = server.getIndex();
+		assertNull(backend.watch(DIRECTORY, index + 1));
+		set(DIRECTORY + "/a", "1");
+		assertEquals("1", watch(index + 1).getNode().getValue());
+	}
+
+	/**
+	 * A watch from a compacted revision fails with 'outdated and cleared'.
+	 */
+	public void testWatchCompacted() throws Exception {
+		int index = server.getIndex();
+		set(DIRECTORY + "/a", "1");
+		server.clearHistory();
+		EtcdResponse response = backend.watch(DIRECTORY, index + 1);
+		assertTrue(String.valueOf(response), response.isError());
+		assertEquals(EtcdErrorResponse.ERRORCODE_EVENT_INDEX_CLEARED,
+				response.getErrorResponse().getErrorCode());
+		// the next watch from a current revision succeeds
+		set(DIRECTORY + "/b", "2");
+		assertEquals("2", watch(server.getIndex()).getNode().getValue());
+	}
+
+	public void testReadKeyValue() throws Exception {
+		EtcdV3KeyValue kv = readKeyValue("{\"key\":\""
+				+ EtcdBase64.encode("/a/\u00e9") + "\",\"create_revision\":"
+				+ "\"2\",\"mod_revision\":5,\"version\":\"3\",\"value\":\""
+				+ EtcdBase64.encode("v") + "\",\"lease\":\"7587\"}");
+		assertEquals("/a/\u00e9", kv.getKey());
+		assertEquals("v", kv.getValue());
+		assertEquals(2, kv.getCreateRevision());
+		assertEquals(5, kv.getModRevision());
+		assertEquals(7587, kv.getLease());
+		assertFalse(kv.isDirectory());
+		assertTrue(readKeyValue("{\"key\":\"" + EtcdBase64.encode("/a")
+				+ "\"}").isDirectory());
+	}
+
+	/**
+	 * Revisions that do not fit into the v2 indexes fail instead of being
+	 * truncated.
+	 */
+	public void testReadRevisionOverflow() throws Exception {
+		assertEquals(Integer.MAX_VALUE, readKeyValue(
+				"{\"key\":\"YQ==\",\"mod_revision\":\"" + Integer.MAX_VALUE
+						+ "\"}").getModRevision());
+		try {
+			readKeyValue("{\"key\":\"YQ==\",\"mod_revision\":\""
+					+ (Integer.MAX_VALUE + 1L) + "\"}");
+			fail();
+		} catch (JSONException e) {
+			// expected
+		}
+	}
+
+	private static EtcdV3KeyValue readKeyValue(String json) throws Exception {
+		return EtcdV3KeyValue.read(new EtcdJsonReader(new StringReader(json)));
+	}
+}